@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.Watcher.WatcherType;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The materialize throughput of the client watch manager of a
+ * service-discovery cache: a persistent watch on each of many instances,
+ * and persistent recursive watches on the services. Alone, and with a thread
+ * adding and removing watches as the application does. Run with -prof gc
+ * to see the allocation per event.
+ */
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ClientWatchManagerBench {
+
+    @State(Scope.Group)
+    public static class Registry {
+
+        @Param({"100000"})
+        public int watches;
+
+        @Param({"100"})
+        public int services;
+
+        ZooKeeper.ZKWatchManager manager;
+        String[] paths;
+        final Watcher watcher = event -> { };
+        int next;
+        int nextChurn;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            manager = new ZooKeeper.ZKWatchManager(false);
+            for (int i = 0; i < services; i++) {
+                manager.addPersistentWatch("/services/s" + i, watcher, AddWatchMode.PERSISTENT_RECURSIVE);
+            }
+            paths = new String[watches];
+            for (int i = 0; i < watches; i++) {
+                paths[i] = "/services/s" + (i % services) + "/instances/i" + i;
+                manager.addPersistentWatch(paths[i], watcher, AddWatchMode.PERSISTENT);
+            }
+        }
+
+    }
+
+    private static Set<Watcher> materializeNext(Registry registry) {
+        String path = registry.paths[registry.next++ % registry.paths.length];
+        return registry.manager.materialize(KeeperState.SyncConnected, EventType.NodeDataChanged, path);
+    }
+
+    @Benchmark
+    @Group("uncontended")
+    public Set<Watcher> materializeAlone(Registry registry) {
+        return materializeNext(registry);
+    }
+
+    @Benchmark
+    @Group("registration")
+    public void registerAlone(Registry registry, Contended state) throws KeeperException {
+        register(registry, state);
+    }
+
+    @Benchmark
+    @Group("contended")
+    public Set<Watcher> materialize(Registry registry, Contended state) {
+        return materializeNext(registry);
+    }
+
+    @Benchmark
+    @Group("contended")
+    public void register(Registry registry, Contended state) throws KeeperException {
+        String path = state.churnPaths[registry.nextChurn++ % state.churnPaths.length];
+        registry.manager.addPersistentWatch(path, registry.watcher, AddWatchMode.PERSISTENT);
+        registry.manager.removeWatcher(path, registry.watcher, WatcherType.Any, true, Code.OK.intValue());
+    }
+
+    @State(Scope.Group)
+    public static class Contended {
+
+        String[] churnPaths;
+
+        @Setup(Level.Trial)
+        public void setup(Registry registry) {
+            churnPaths = new String[1000];
+            for (int i = 0; i < churnPaths.length; i++) {
+                churnPaths[i] = "/services/s" + (i % registry.services) + "/instances/new" + i;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Memory footprint of a synthetic tree with the node payloads kept on the
+ * heap or in the off-heap payload store. The 5M node tree needs a heap of
+ * several GB in heap mode, e.g. -jvmArgs "-Xmx8g -XX:MaxDirectMemorySize=4g".
+ */
+@Fork(1)
+public class DataTreeMemoryBench {
+
+    // 100 parents keep the children sets of a realistic size
+    static final int PARENTS = 100;
+
+    static void forceGC() {
+        int gcTimes = 3;
+        for (int i = 0; i < gcTimes; i++) {
+            try {
+                System.gc();
+                Thread.currentThread().sleep(1000);
+
+                System.runFinalization();
+                Thread.currentThread().sleep(1000);
+            } catch (InterruptedException ex) { /* ignore */ }
+        }
+    }
+
+    static long getMemoryUse() {
+        forceGC();
+        long totalMem = Runtime.getRuntime().totalMemory();
+
+        forceGC();
+        long freeMem = Runtime.getRuntime().freeMemory();
+        return totalMem - freeMem;
+    }
+
+    @State(Scope.Benchmark)
+    public static class TreeState {
+
+        @Param({"heap", "offheap"})
+        public String storage;
+
+        @Param({"1000000", "5000000"})
+        public int nodeCount;
+
+        @Param({"128"})
+        public int payloadSize;
+
+        DataTree tree;
+        long memWhenSetup = 0;
+
+        @Setup(Level.Invocation)
+        public void setup() {
+            System.setProperty(OffHeapPayloadStore.NODE_PAYLOAD_STORAGE, storage);
+            tree = null;
+            memWhenSetup = getMemoryUse();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            long memUsed = getMemoryUse() - memWhenSetup;
+            OffHeapPayloadStore store = tree.getPayloadStore();
+            long offHeap = store == null ? 0 : store.getReservedBytes();
+            System.out.println(
+                    "Heap used by " + storage + " tree per node " +
+                    String.format("%.2f", memUsed * 1.0 / nodeCount) + " bytes, off-heap " +
+                    String.format("%.2f", offHeap * 1.0 / nodeCount) + " bytes");
+            tree = null;
+        }
+    }
+
+    /**
+     * The output of this test is the time used to build the tree. The memory
+     * it uses is printed after each invocation.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public DataTree testPopulate(TreeState state) throws Exception {
+        DataTree tree = new DataTree();
+        long zxid = 1;
+        for (int p = 0; p < PARENTS; p++) {
+            tree.createNode("/parent" + p, new byte[0], null, 0, p, zxid++, 1);
+        }
+        for (int i = 0; i < state.nodeCount; i++) {
+            byte[] data = new byte[state.payloadSize];
+            data[0] = (byte) i;
+            tree.createNode("/parent" + (i % PARENTS) + "/node" + i, data, null, 0, i / PARENTS, zxid++, 1);
+        }
+        // keep the tree reachable for the memory measurement
+        state.tree = tree;
+        return tree;
+    }
+
+}
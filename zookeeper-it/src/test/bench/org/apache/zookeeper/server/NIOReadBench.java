@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.proto.ConnectRequest;
+import org.apache.zookeeper.proto.ExistsRequest;
+import org.apache.zookeeper.proto.RequestHeader;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Small requests pipelined by many connections to an NIO server, read one
+ * at a time or in batches through the read buffer of the worker threads.
+ * Each operation writes a pipeline of exists requests on every connection,
+ * then reads back all the responses.
+ *
+ * Each connection takes two file descriptors in this process, the client
+ * and the server side.
+ */
+@Fork(1)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class NIOReadBench {
+
+    @Param({"0", "65536"})
+    public int readBufferBytes;
+
+    @Param({"100", "10000"})
+    public int connections;
+
+    @Param({"16"})
+    public int pipeline;
+
+    File dataDir;
+    ZooKeeperServer zks;
+    ServerCnxnFactory factory;
+    Socket[] sockets;
+    OutputStream[] outputs;
+    DataInputStream[] inputs;
+    byte[] requests;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // read by the factory when loaded
+        System.setProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_READ_BUFFER_BYTES, Integer.toString(readBufferBytes));
+        dataDir = Files.createTempDirectory("nioreadbench").toFile();
+        zks = new ZooKeeperServer(dataDir, dataDir, 3000);
+        factory = new NIOServerCnxnFactory();
+        factory.configure(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0, 1000, false);
+        factory.startup(zks);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (int xid = 1; xid <= pipeline; xid++) {
+            bos.write(serialize(new RequestHeader(xid, ZooDefs.OpCode.exists), new ExistsRequest("/", false)));
+        }
+        requests = bos.toByteArray();
+
+        byte[] connectRequest = serialize(new ConnectRequest(0, 0, 30000, 0, new byte[16]));
+        sockets = new Socket[connections];
+        outputs = new OutputStream[connections];
+        inputs = new DataInputStream[connections];
+        for (int i = 0; i < connections; i++) {
+            sockets[i] = new Socket(InetAddress.getLoopbackAddress(), factory.getLocalPort());
+            sockets[i].setTcpNoDelay(true);
+            outputs[i] = sockets[i].getOutputStream();
+            inputs[i] = new DataInputStream(new BufferedInputStream(sockets[i].getInputStream()));
+            outputs[i].write(connectRequest);
+            skipResponse(inputs[i]);
+        }
+    }
+
+    static byte[] serialize(Record... records) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        BinaryOutputArchive oa = BinaryOutputArchive.getArchive(bos);
+        oa.writeInt(-1, "len");
+        for (Record record : records) {
+            record.serialize(oa, "record");
+        }
+        byte[] bytes = bos.toByteArray();
+        int len = bytes.length - 4;
+        bytes[0] = (byte) (len >>> 24);
+        bytes[1] = (byte) (len >>> 16);
+        bytes[2] = (byte) (len >>> 8);
+        bytes[3] = (byte) len;
+        return bytes;
+    }
+
+    static void skipResponse(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        while (len > 0) {
+            len -= in.skipBytes(len);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Socket socket : sockets) {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+        factory.shutdown();
+        zks.shutdown();
+        Files.walk(dataDir.toPath()).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        System.clearProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_READ_BUFFER_BYTES);
+    }
+
+    @Benchmark
+    public void pipelinedRequests() throws IOException {
+        for (int i = 0; i < connections; i++) {
+            outputs[i].write(requests);
+        }
+        for (int i = 0; i < connections; i++) {
+            for (int j = 0; j < pipeline; j++) {
+                skipResponse(inputs[i]);
+            }
+        }
+    }
+
+}
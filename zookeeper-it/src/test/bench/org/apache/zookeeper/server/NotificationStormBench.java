@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.AddWatchMode;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.proto.AddWatchRequest;
+import org.apache.zookeeper.proto.ConnectRequest;
+import org.apache.zookeeper.proto.CreateRequest;
+import org.apache.zookeeper.proto.RequestHeader;
+import org.apache.zookeeper.proto.SetDataRequest;
+import org.apache.zookeeper.server.watch.NotificationDispatcher;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A notification storm: a znode with a persistent watch from every
+ * connection of an NIO server is changed, and each operation waits for the
+ * notification to arrive on all the connections. Run with -prof gc to see
+ * the allocation per notification. With watch delivery threads, the
+ * response to the change no longer waits for the notifications to be
+ * queued on every connection.
+ *
+ * Each connection takes two file descriptors in this process, the client
+ * and the server side.
+ */
+@Fork(1)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NotificationStormBench {
+
+    private static final String PATH = "/storm";
+
+    @Param({"100", "1000"})
+    public int watchers;
+
+    @Param({"0", "2"})
+    public int watchDeliveryThreads;
+
+    File dataDir;
+    ZooKeeperServer zks;
+    ServerCnxnFactory factory;
+    Socket[] sockets;
+    DataInputStream[] inputs;
+    Socket writer;
+    OutputStream writerOutput;
+    DataInputStream writerInput;
+    byte[] setData;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        System.setProperty("zookeeper.forceSync", "no");
+        System.setProperty(NotificationDispatcher.ZOOKEEPER_WATCH_DELIVERY_THREADS, Integer.toString(watchDeliveryThreads));
+        dataDir = Files.createTempDirectory("notificationstormbench").toFile();
+        zks = new ZooKeeperServer(dataDir, dataDir, 3000);
+        factory = new NIOServerCnxnFactory();
+        factory.configure(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0, 1000, false);
+        factory.startup(zks);
+
+        writer = connect();
+        writerOutput = writer.getOutputStream();
+        writerInput = new DataInputStream(new BufferedInputStream(writer.getInputStream()));
+        NIOReadBench.skipResponse(writerInput);
+        writerOutput.write(NIOReadBench.serialize(
+            new RequestHeader(1, ZooDefs.OpCode.create),
+            new CreateRequest(PATH, new byte[16], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT.toFlag())));
+        NIOReadBench.skipResponse(writerInput);
+        setData = NIOReadBench.serialize(
+            new RequestHeader(2, ZooDefs.OpCode.setData),
+            new SetDataRequest(PATH, new byte[16], -1));
+
+        byte[] addWatch = NIOReadBench.serialize(
+            new RequestHeader(1, ZooDefs.OpCode.addWatch),
+            new AddWatchRequest(PATH, AddWatchMode.PERSISTENT.getMode()));
+        sockets = new Socket[watchers];
+        inputs = new DataInputStream[watchers];
+        for (int i = 0; i < watchers; i++) {
+            sockets[i] = connect();
+            inputs[i] = new DataInputStream(new BufferedInputStream(sockets[i].getInputStream()));
+            NIOReadBench.skipResponse(inputs[i]);
+            sockets[i].getOutputStream().write(addWatch);
+            NIOReadBench.skipResponse(inputs[i]);
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), factory.getLocalPort());
+        socket.setTcpNoDelay(true);
+        socket.getOutputStream().write(NIOReadBench.serialize(new ConnectRequest(0, 0, 30000, 0, new byte[16])));
+        return socket;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Socket socket : sockets) {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+        writer.close();
+        factory.shutdown();
+        zks.shutdown();
+        Files.walk(dataDir.toPath()).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        System.clearProperty("zookeeper.forceSync");
+        System.clearProperty(NotificationDispatcher.ZOOKEEPER_WATCH_DELIVERY_THREADS);
+    }
+
+    @Benchmark
+    public void notifyWatchers() throws IOException {
+        writerOutput.write(setData);
+        NIOReadBench.skipResponse(writerInput);
+        for (int i = 0; i < watchers; i++) {
+            NIOReadBench.skipResponse(inputs[i]);
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.proto.ConnectRequest;
+import org.apache.zookeeper.proto.ExistsRequest;
+import org.apache.zookeeper.proto.RequestHeader;
+import org.apache.zookeeper.proto.SetDataRequest;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * End to end latency of the requests of a connection through the pipeline
+ * of a standalone server, from the RequestThrottler through the
+ * PrepRequestProcessor and SyncRequestProcessor to the
+ * FinalRequestProcessor, for each type of request queue. A pipeline of 1
+ * measures the latency of a single request, larger ones the time to
+ * complete that many outstanding requests. The txn log is not synced to
+ * disk, so that writes measure the hand-offs rather than the disk.
+ */
+@Fork(1)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RequestPipelineBench {
+
+    @Param({"linked", "ring"})
+    public String requestQueue;
+
+    @Param({"exists", "setData"})
+    public String op;
+
+    @Param({"1", "64"})
+    public int pipeline;
+
+    File dataDir;
+    ZooKeeperServer zks;
+    ServerCnxnFactory factory;
+    Socket socket;
+    OutputStream output;
+    DataInputStream input;
+    byte[] requests;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        System.setProperty(RequestQueueFactory.ZOOKEEPER_REQUEST_QUEUE, requestQueue);
+        System.setProperty("zookeeper.forceSync", "no");
+        dataDir = Files.createTempDirectory("requestpipelinebench").toFile();
+        zks = new ZooKeeperServer(dataDir, dataDir, 3000);
+        factory = ServerCnxnFactory.createFactory(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 10);
+        factory.startup(zks);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (int xid = 1; xid <= pipeline; xid++) {
+            Record request;
+            int type;
+            if (op.equals("setData")) {
+                request = new SetDataRequest("/", new byte[16], -1);
+                type = ZooDefs.OpCode.setData;
+            } else {
+                request = new ExistsRequest("/", false);
+                type = ZooDefs.OpCode.exists;
+            }
+            bos.write(NIOReadBench.serialize(new RequestHeader(xid, type), request));
+        }
+        requests = bos.toByteArray();
+
+        socket = new Socket(InetAddress.getLoopbackAddress(), factory.getLocalPort());
+        socket.setTcpNoDelay(true);
+        output = socket.getOutputStream();
+        input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        output.write(NIOReadBench.serialize(new ConnectRequest(0, 0, 30000, 0, new byte[16])));
+        NIOReadBench.skipResponse(input);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        socket.close();
+        factory.shutdown();
+        zks.shutdown();
+        Files.walk(dataDir.toPath()).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        System.clearProperty(RequestQueueFactory.ZOOKEEPER_REQUEST_QUEUE);
+        System.clearProperty("zookeeper.forceSync");
+    }
+
+    @Benchmark
+    public void requests() throws IOException {
+        output.write(requests);
+        for (int i = 0; i < pipeline; i++) {
+            NIOReadBench.skipResponse(input);
+        }
+    }
+
+}
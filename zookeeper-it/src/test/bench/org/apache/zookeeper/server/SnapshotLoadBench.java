@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Startup time spent loading a snapshot in the original and in the chunked
+ * format. The chunked format only pays off with several processors, the
+ * number of loading threads is set with the loadThreads parameter.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SnapshotLoadBench {
+
+    // 100 parents keep the children sets of a realistic size
+    static final int PARENTS = 100;
+
+    @Param({"legacy", "chunked"})
+    public String format;
+
+    @Param({"1000000"})
+    public int nodeCount;
+
+    @Param({"128"})
+    public int payloadSize;
+
+    @Param({"4"})
+    public int loadThreads;
+
+    File snapDir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, KeeperException.NoNodeException, KeeperException.NodeExistsException {
+        DataTree dt = new DataTree();
+        byte[] data = new byte[payloadSize];
+        long zxid = 1;
+        for (int i = 0; i < PARENTS; i++) {
+            dt.createNode("/parent" + i, data, null, 0, -1, zxid, zxid++);
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            dt.createNode("/parent" + (i % PARENTS) + "/node" + i, data, null, i % 1000, -1, zxid, zxid++);
+        }
+        Map<Long, Integer> sessions = new HashMap<>();
+        for (long i = 0; i < 1000; i++) {
+            sessions.put(i, 30000);
+        }
+        snapDir = Files.createTempDirectory("snaploadbench").toFile();
+        System.setProperty(FileSnap.SNAPSHOT_CHUNKED, String.valueOf("chunked".equals(format)));
+        File snapFile = new File(snapDir, "snapshot." + Long.toHexString(zxid));
+        new FileSnap(snapDir).serialize(dt, sessions, snapFile, false);
+        System.out.println("Snapshot size " + (snapFile.length() >> 20) + " MB");
+        System.setProperty(FileSnap.SNAPSHOT_LOAD_THREADS, String.valueOf(loadThreads));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File f : snapDir.listFiles()) {
+            f.delete();
+        }
+        snapDir.delete();
+        System.clearProperty(FileSnap.SNAPSHOT_CHUNKED);
+        System.clearProperty(FileSnap.SNAPSHOT_LOAD_THREADS);
+    }
+
+    @Benchmark
+    public DataTree load() throws IOException {
+        DataTree dt = new DataTree();
+        new FileSnap(snapDir).deserialize(dt, new HashMap<>());
+        return dt;
+    }
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reads a transaction log with the stream and the memory mapped iterators.
+ * Each operation reads the whole log, so the replay rate in MB/s is the log
+ * size printed at setup divided by the time per operation.
+ */
+@Fork(1)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TxnLogReadBench {
+
+    @Param({"stream", "mapped"})
+    public String reader;
+
+    @Param({"1024"})
+    public int txnSize;
+
+    // about 256 MB of log
+    @Param({"250000"})
+    public int txnCount;
+
+    File logDir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        logDir = Files.createTempDirectory("txnlogbench").toFile();
+        FileTxnLog log = new FileTxnLog(logDir);
+        byte[] data = new byte[txnSize];
+        for (long zxid = 1; zxid <= txnCount; zxid++) {
+            data[0] = (byte) zxid;
+            log.append(new TxnHeader(1, 1, zxid, zxid, ZooDefs.OpCode.setData),
+                       new SetDataTxn("/bench/node" + (zxid % 1000), data, 1));
+            if (zxid % 1000 == 0) {
+                log.commit();
+            }
+        }
+        log.commit();
+        log.close();
+        long size = 0;
+        for (File f : logDir.listFiles()) {
+            size += f.length();
+        }
+        System.out.println("Log size " + (size >> 20) + " MB, " + txnCount + " txns");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File f : logDir.listFiles()) {
+            f.delete();
+        }
+        logDir.delete();
+    }
+
+    private TxnLog.TxnIterator open() throws IOException {
+        if ("mapped".equals(reader)) {
+            return new MappedTxnIterator(logDir, 1, false);
+        }
+        return new FileTxnLog.FileTxnIterator(logDir, 1, false);
+    }
+
+    /**
+     * Recovery: every txn is deserialized to be applied to the tree.
+     */
+    @Benchmark
+    public void replay(Blackhole bh) throws IOException {
+        TxnLog.TxnIterator itr = open();
+        try {
+            while (itr.getHeader() != null) {
+                bh.consume(itr.getTxn());
+                if (!itr.next()) {
+                    break;
+                }
+            }
+        } finally {
+            itr.close();
+        }
+    }
+
+    /**
+     * Learner sync: the txns are sent as stored in the log.
+     */
+    @Benchmark
+    public void sync(Blackhole bh) throws IOException {
+        TxnLog.TxnIterator itr = open();
+        try {
+            while (itr.getHeader() != null) {
+                bh.consume(itr.getTxnBytes());
+                if (!itr.next()) {
+                    break;
+                }
+            }
+        } finally {
+            itr.close();
+        }
+    }
+
+}
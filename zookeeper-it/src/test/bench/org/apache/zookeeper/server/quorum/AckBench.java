@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.FinalRequestProcessor;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.RequestProcessor;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.quorum.QuorumPeer.QuorumServer;
+import org.apache.zookeeper.server.quorum.flexible.QuorumMaj;
+import org.apache.zookeeper.server.util.ZxidUtils;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Acks processed by the leader for a batch of proposals, the acks of every
+ * follower being sent by its own thread as by the learner handlers. The
+ * acks are recorded under the leader lock with a proposalWindowSize of 0,
+ * and without holding it otherwise.
+ */
+@Fork(1)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AckBench {
+
+    static final int BATCH = 256;
+
+    @Param({"3", "5", "7"})
+    public int voters;
+
+    @Param({"0", "4096"})
+    public int proposalWindowSize;
+
+    File dataDir;
+    FileTxnSnapLog txnSnapLog;
+    Leader leader;
+    ExecutorService followers;
+    long lastProposed;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Map<Long, QuorumServer> servers = new HashMap<>();
+        for (long sid = 1; sid <= voters; sid++) {
+            servers.put(sid, new QuorumServer(sid, new InetSocketAddress("127.0.0.1", 0)));
+        }
+        QuorumPeer peer = new QuorumPeer();
+        peer.setMyid(1);
+        peer.setQuorumVerifier(new QuorumMaj(servers), false);
+
+        dataDir = Files.createTempDirectory("ackbench").toFile();
+        txnSnapLog = new FileTxnSnapLog(dataDir, dataDir);
+        LeaderZooKeeperServer zks = new LeaderZooKeeperServer(txnSnapLog, peer, new ZKDatabase(txnSnapLog));
+        System.setProperty(Leader.PROPOSAL_WINDOW_SIZE, Integer.toString(proposalWindowSize));
+        leader = new Leader(peer, zks);
+
+        // the committed proposals are dropped
+        FinalRequestProcessor discard = new FinalRequestProcessor(zks) {
+            @Override
+            public void processRequest(Request request) {
+            }
+        };
+        RequestProcessor toBeApplied = new Leader.ToBeAppliedRequestProcessor(discard, leader);
+        zks.commitProcessor = new CommitProcessor(discard, "0", false, null) {
+            @Override
+            public void commit(Request request) {
+                try {
+                    toBeApplied.processRequest(request);
+                } catch (RequestProcessorException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        followers = Executors.newFixedThreadPool(voters - 1);
+        lastProposed = ZxidUtils.makeZxid(1, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        followers.shutdownNow();
+        leader.closeSockets();
+        txnSnapLog.close();
+        for (File f : dataDir.listFiles()) {
+            f.delete();
+        }
+        dataDir.delete();
+        System.clearProperty(Leader.PROPOSAL_WINDOW_SIZE);
+    }
+
+    @Setup(Level.Invocation)
+    public void propose() throws Exception {
+        for (int i = 0; i < BATCH; i++) {
+            long zxid = ++lastProposed;
+            TxnHeader hdr = new TxnHeader(1, 1, zxid, 1, ZooDefs.OpCode.setData);
+            leader.propose(new Request(1, 1, ZooDefs.OpCode.setData, hdr, new SetDataTxn("/foo", new byte[0], 1), zxid));
+        }
+    }
+
+    private void ack(long sid, long firstZxid) {
+        for (long zxid = firstZxid; zxid <= lastProposed; zxid++) {
+            leader.processAck(sid, zxid, null);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void processAcks() throws InterruptedException {
+        long firstZxid = lastProposed - BATCH + 1;
+        CountDownLatch done = new CountDownLatch(voters - 1);
+        for (long sid = 2; sid <= voters; sid++) {
+            final long followerSid = sid;
+            followers.execute(() -> {
+                ack(followerSid, firstZxid);
+                done.countDown();
+            });
+        }
+        ack(1, firstZxid);
+        done.await();
+    }
+
+}
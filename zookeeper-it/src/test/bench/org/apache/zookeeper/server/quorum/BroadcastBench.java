@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * CPU spent by the leader to send a proposal and its commit to its
+ * learners, with the packets serialized by every learner handler or once
+ * for all of them. The sockets are replaced by streams discarding the bytes.
+ */
+@Fork(1)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BroadcastBench {
+
+    @Param({"perLearner", "once"})
+    public String serialization;
+
+    @Param({"1", "5", "25"})
+    public int learners;
+
+    @Param({"1024"})
+    public int proposalSize;
+
+    BufferedOutputStream[] outputs;
+    BinaryOutputArchive[] archives;
+    byte[] data;
+    long zxid;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        OutputStream discard = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        outputs = new BufferedOutputStream[learners];
+        archives = new BinaryOutputArchive[learners];
+        for (int i = 0; i < learners; i++) {
+            outputs[i] = new BufferedOutputStream(discard);
+            archives[i] = BinaryOutputArchive.getArchive(outputs[i]);
+        }
+        data = new byte[proposalSize];
+    }
+
+    private void broadcast(QuorumPacket qp) throws IOException {
+        if ("once".equals(serialization)) {
+            byte[] bytes = SerializedQuorumPacket.of(qp).getBytes();
+            for (BufferedOutputStream output : outputs) {
+                output.write(bytes);
+            }
+        } else {
+            for (BinaryOutputArchive oa : archives) {
+                oa.writeRecord(qp, "packet");
+            }
+        }
+    }
+
+    @Benchmark
+    public void proposeAndCommit() throws IOException {
+        zxid++;
+        broadcast(new QuorumPacket(Leader.PROPOSAL, zxid, data, null));
+        broadcast(new QuorumPacket(Leader.COMMIT, zxid, null, null));
+    }
+
+}
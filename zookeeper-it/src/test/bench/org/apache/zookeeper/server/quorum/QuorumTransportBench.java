@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Quorum packets sent over a loopback connection through the socket stream
+ * and through the socket channel. The receiver reads them back as a learner
+ * does and acknowledges every batch with a single byte, so a batch of 1
+ * measures the latency of a packet and larger batches the throughput.
+ */
+@Fork(1)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QuorumTransportBench {
+
+    @Param({"stream", "nio"})
+    public String transport;
+
+    @Param({"1", "100"})
+    public int batch;
+
+    @Param({"128", "4096"})
+    public int packetSize;
+
+    ServerSocket serverSocket;
+    Socket sender;
+    Socket receiver;
+    Thread receiverThread;
+
+    BufferedOutputStream bufferedOutput;
+    BinaryOutputArchive oa;
+    ChannelPacketWriter channelWriter;
+    byte[] data;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        System.setProperty(ChannelPacketWriter.TRANSPORT, transport);
+        serverSocket = ChannelPacketWriter.createServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        sender = ChannelPacketWriter.createSocket();
+        sender.setTcpNoDelay(true);
+        sender.connect(serverSocket.getLocalSocketAddress());
+        receiver = serverSocket.accept();
+        receiver.setTcpNoDelay(true);
+
+        bufferedOutput = new BufferedOutputStream(sender.getOutputStream());
+        oa = BinaryOutputArchive.getArchive(bufferedOutput);
+        channelWriter = ChannelPacketWriter.forSocket(sender);
+        data = new byte[packetSize];
+
+        receiverThread = new Thread(this::receive, "receiver");
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+    }
+
+    private void receive() {
+        try {
+            BinaryInputArchive ia = BinaryInputArchive.getArchive(new BufferedInputStream(receiver.getInputStream()));
+            QuorumPacket qp = new QuorumPacket();
+            while (true) {
+                for (int i = 0; i < batch; i++) {
+                    ia.readRecord(qp, "packet");
+                }
+                receiver.getOutputStream().write(1);
+            }
+        } catch (IOException e) {
+            // closed by tearDown
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sender.close();
+        receiver.close();
+        serverSocket.close();
+        System.clearProperty(ChannelPacketWriter.TRANSPORT);
+    }
+
+    @Benchmark
+    public void sendBatch() throws IOException {
+        for (int i = 0; i < batch; i++) {
+            QuorumPacket qp = new QuorumPacket(Leader.PROPOSAL, i, data, null);
+            if (channelWriter != null) {
+                channelWriter.write(qp);
+            } else {
+                oa.writeRecord(qp, "packet");
+            }
+        }
+        if (channelWriter != null) {
+            channelWriter.flush();
+        } else {
+            bufferedOutput.flush();
+        }
+        if (sender.getInputStream().read() < 0) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+}
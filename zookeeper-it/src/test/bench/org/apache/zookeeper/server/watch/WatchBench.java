@@ -65,7 +65,7 @@ static long getMemoryUse() {
     @State(Scope.Benchmark)
     public static class IterationState {
 
-        @Param({"WatchManager", "WatchManagerOptimized"})
+        @Param({"WatchManager", "WatchManagerOptimized", "WatchManagerTrie"})
         public String watchManagerClass;
 
         @Param({"10000"})
@@ -128,7 +128,7 @@ public void testAddConcentrateWatch(IterationState state) throws Exception {
     @State(Scope.Benchmark)
     public static class InvocationState {
 
-        @Param({"WatchManager", "WatchManagerOptimized"})
+        @Param({"WatchManager", "WatchManagerOptimized", "WatchManagerTrie"})
         public String watchManagerClass;
 
         @Param({"1", "1000"})
@@ -297,4 +297,113 @@ public void testTriggerSparseWatch(TriggerSparseWatchState state) throws Excepti
             state.watchManager.triggerWatch(path, event);
         }
     }
+
+    @State(Scope.Group)
+    public static class ContendedWatchState {
+
+        @Param({"WatchManager", "WatchManagerOptimized", "WatchManagerTrie"})
+        public String watchManagerClass;
+
+        @Param({"10000"})
+        public int pathCount;
+
+        String[] readPaths;
+        String[] writePaths;
+        Watcher watcher;
+        IWatchManager watchManager;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            readPaths = new String[pathCount];
+            writePaths = new String[pathCount];
+            for (int i = 0; i < pathCount; i++) {
+                readPaths[i] = pathPrefix + "read/" + i;
+                writePaths[i] = pathPrefix + "write/" + i;
+            }
+            watcher = new DumbWatcher();
+            watchManager = createWatchManager(watchManagerClass);
+            for (String path : writePaths) {
+                watchManager.addWatch(path, watcher);
+            }
+        }
+    }
+
+    /**
+     * Test reads registering watches on some paths while writes trigger the
+     * watches of other paths, as during a write burst.
+     *
+     * The output of this test is the time used by each side to go through
+     * all its paths.
+     */
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public void addWatch(ContendedWatchState state) {
+        for (String path : state.readPaths) {
+            state.watchManager.addWatch(path, state.watcher);
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public void triggerWatch(ContendedWatchState state) {
+        for (String path : state.writePaths) {
+            state.watchManager.triggerWatch(path, event);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class RecursiveWatchState {
+
+        // WatchManagerOptimized does not support persistent watches
+        @Param({"WatchManager", "WatchManagerTrie"})
+        public String watchManagerClass;
+
+        @Param({"10000"})
+        public int pathCount;
+
+        String[] paths;
+        IWatchManager watchManager;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            paths = new String[pathCount];
+            for (int i = 0; i < pathCount; i++) {
+                paths[i] = pathPrefix + (i % 100) + "/" + i;
+            }
+            watchManager = createWatchManager(watchManagerClass);
+            watchManager.addWatch("/reasonably", new DumbWatcher(), WatcherMode.PERSISTENT_RECURSIVE);
+            Watcher watcher = new DumbWatcher();
+            for (String path : paths) {
+                watchManager.addWatch(path, watcher, WatcherMode.PERSISTENT);
+            }
+        }
+    }
+
+    /**
+     * Test trigger watches of paths under a recursive watch, which have to
+     * look up the watches of all their parents.
+     *
+     * The output of this test is the time used to trigger the watches on all
+     * paths.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public void testTriggerRecursiveWatch(RecursiveWatchState state) throws Exception {
+        for (String path : state.paths) {
+            state.watchManager.triggerWatch(path, event);
+        }
+    }
 }
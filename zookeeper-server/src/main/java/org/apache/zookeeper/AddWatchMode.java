@@ -52,7 +52,34 @@ public enum AddWatchMode {
      * of ZNode paths must be checked for watch triggering.
      * </p>
      */
-    PERSISTENT_RECURSIVE(ZooDefs.AddWatchModes.persistentRecursive)
+    PERSISTENT_RECURSIVE(ZooDefs.AddWatchModes.persistentRecursive),
+
+    /**
+     * <p>
+     * Same as {@link #PERSISTENT}, except that while the connection to the client is backed up, the
+     * server keeps only the latest of the events of the same type on the same path not sent yet. Use
+     * it for znodes changing faster than the client may follow, when only their latest state
+     * matters.
+     * </p>
+     *
+     * <p>
+     * An event is never held back behind a response or another event, so the client still sees
+     * the event of a change before the response to a later request. Use {@link WatchedEvent#getZxid()}
+     * to tell the events merged: the zxid of the txn which triggered the event.
+     * </p>
+     *
+     * @since 3.7.0
+     */
+    PERSISTENT_COALESCED(ZooDefs.AddWatchModes.persistentCoalesced),
+
+    /**
+     * <p>
+     * Same as {@link #PERSISTENT_RECURSIVE}, with the events coalesced as in {@link #PERSISTENT_COALESCED}.
+     * </p>
+     *
+     * @since 3.7.0
+     */
+    PERSISTENT_RECURSIVE_COALESCED(ZooDefs.AddWatchModes.persistentRecursiveCoalesced)
     ;
 
     public int getMode() {
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper;
+
+import java.util.List;
+import org.apache.yetus.audience.InterfaceAudience;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * A page of the children of a znode, as returned by
+ * {@link ZooKeeper#getChildrenPaged(String, String, int)}. The children of
+ * the page are sorted by name.
+ *
+ * @since 3.7.0
+ */
+@InterfaceAudience.Public
+public class ChildrenPage {
+
+    private final List<String> children;
+    private final String nextStartAfter;
+    private final Stat stat;
+
+    public ChildrenPage(List<String> children, String nextStartAfter, Stat stat) {
+        this.children = children;
+        this.nextStartAfter = nextStartAfter;
+        this.stat = stat;
+    }
+
+    /**
+     * @return the children in this page, sorted by name
+     */
+    public List<String> getChildren() {
+        return children;
+    }
+
+    /**
+     * @return the name to pass as startAfter to get the next page, or the
+     *         empty string if this page ends with the last child
+     */
+    public String getNextStartAfter() {
+        return nextStartAfter;
+    }
+
+    /**
+     * @return true if there are children after this page
+     */
+    public boolean hasMore() {
+        return nextStartAfter != null && !nextStartAfter.isEmpty();
+    }
+
+    /**
+     * @return the stat of the parent znode when this page was read. Comparing
+     *         the cversion of consecutive pages tells whether the children
+     *         changed in between.
+     */
+    public Stat getStat() {
+        return stat;
+    }
+
+}
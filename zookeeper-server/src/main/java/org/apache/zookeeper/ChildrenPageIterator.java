@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the children of a znode in name order, fetching them one
+ * page at a time with {@link ZooKeeper#getChildrenPaged(String, String, int)}.
+ *
+ * Pages are read at different times, so children created or deleted during
+ * the iteration may or may not be returned. Children present during the
+ * whole iteration are returned exactly once.
+ */
+class ChildrenPageIterator implements RemoteIterator<String> {
+
+    private final ZooKeeper zk;
+    private final String path;
+    private final int pageSize;
+
+    private Iterator<String> page;
+    private String nextStartAfter = "";
+    private boolean lastPage;
+
+    ChildrenPageIterator(ZooKeeper zk, String path, int pageSize) {
+        this.zk = zk;
+        this.path = path;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public boolean hasNext() throws InterruptedException, KeeperException {
+        while (page == null || !page.hasNext()) {
+            if (lastPage) {
+                return false;
+            }
+            ChildrenPage next = zk.getChildrenPaged(path, nextStartAfter, pageSize);
+            page = next.getChildren().iterator();
+            nextStartAfter = next.getNextStartAfter();
+            lastPage = !next.hasMore();
+        }
+        return true;
+    }
+
+    @Override
+    public String next() throws InterruptedException, KeeperException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+}
@@ -69,10 +69,12 @@
 import org.apache.zookeeper.client.ZKClientConfig;
 import org.apache.zookeeper.client.ZooKeeperSaslClient;
 import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.proto.AddWatchRequest;
 import org.apache.zookeeper.proto.AuthPacket;
 import org.apache.zookeeper.proto.ConnectRequest;
 import org.apache.zookeeper.proto.Create2Response;
 import org.apache.zookeeper.proto.CreateResponse;
+import org.apache.zookeeper.proto.ErrorResponse;
 import org.apache.zookeeper.proto.ExistsResponse;
 import org.apache.zookeeper.proto.GetACLResponse;
 import org.apache.zookeeper.proto.GetAllChildrenNumberResponse;
@@ -901,7 +903,7 @@ void readResponse(ByteBuffer incomingBuffer) throws IOException {
                      }
                 }
 
-                WatchedEvent we = new WatchedEvent(event);
+                WatchedEvent we = new WatchedEvent(event, replyHdr.getZxid());
                 LOG.debug("Got {} for session id 0x{}", we, Long.toHexString(sessionId));
                 eventThread.queueEvent(we);
                 return;
@@ -1000,6 +1002,17 @@ void primeConnection() throws IOException {
                 List<String> childWatches = zooKeeper.getChildWatches();
                 List<String> persistentWatches = zooKeeper.getPersistentWatches();
                 List<String> persistentRecursiveWatches = zooKeeper.getPersistentRecursiveWatches();
+                // SetWatches sets the persistent watches without their coalescing
+                // mode, which is added again once they are set, so these go first
+                Map<String, AddWatchMode> coalescedWatches = zooKeeper.getCoalescedWatches();
+                List<String> coalescedPaths = new ArrayList<String>(coalescedWatches.keySet());
+                List<String> coalescedServerPaths = prependChroot(new ArrayList<String>(coalescedPaths));
+                for (int i = 0; i < coalescedPaths.size(); i++) {
+                    AddWatchMode mode = coalescedWatches.get(coalescedPaths.get(i));
+                    RequestHeader header = new RequestHeader(ClientCnxn.SET_WATCHES_XID, OpCode.addWatch);
+                    Record record = new AddWatchRequest(coalescedServerPaths.get(i), mode.getMode());
+                    outgoingQueue.addFirst(new Packet(header, new ReplyHeader(), record, new ErrorResponse(), null));
+                }
                 if (!dataWatches.isEmpty() || !existWatches.isEmpty() || !childWatches.isEmpty()
                         || !persistentWatches.isEmpty() || !persistentRecursiveWatches.isEmpty()) {
                     Iterator<String> dataWatchesIter = prependChroot(dataWatches).iterator();
@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper;
+
+import java.util.NoSuchElementException;
+import org.apache.yetus.audience.InterfaceAudience;
+
+/**
+ * An iterator over a collection whose elements are fetched from the server
+ * as the iteration goes, so that fetching can fail.
+ *
+ * @since 3.7.0
+ */
+@InterfaceAudience.Public
+public interface RemoteIterator<E> {
+
+    /**
+     * @return true if the iteration has more elements
+     * @throws InterruptedException if the server request is interrupted
+     * @throws KeeperException if the server signals an error
+     */
+    boolean hasNext() throws InterruptedException, KeeperException;
+
+    /**
+     * @return the next element of the iteration
+     * @throws InterruptedException if the server request is interrupted
+     * @throws KeeperException if the server signals an error
+     * @throws NoSuchElementException if the iteration has no more elements
+     */
+    E next() throws InterruptedException, KeeperException;
+
+}
@@ -0,0 +1,371 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * The watchers of the client by path, kept in a trie of the path segments,
+ * so that the watchers of a path and of all its ancestors are looked up by
+ * walking down the trie once, comparing the segments in place instead of
+ * allocating the path of every ancestor.
+ *
+ * Lookups take no lock: the children of a node are a hash table of the
+ * segments replaced on every change, probed with the hash of the segment
+ * computed in place, and the watchers of a node a volatile reference.
+ * Changes lock the node changed, and the parent of a node pruned once it
+ * has neither watchers nor children. The trie is meant for the paths of
+ * the persistent recursive watches, which change seldom.
+ *
+ * As with a ConcurrentHashMap, compute and computeIfPresent are atomic,
+ * and the iterators reflect the trie at some point since their creation.
+ */
+final class WatchPathTrie extends AbstractMap<String, Set<Watcher>> {
+
+    private static final Children NO_CHILDREN = new Children(new Node[0]);
+
+    private final Node root = new Node(null, "");
+    private final AtomicInteger size = new AtomicInteger();
+
+    private static final class Node {
+
+        final Node parent;
+        final String segment;
+        volatile Children children = NO_CHILDREN;
+        // null when the path has no watchers
+        volatile Set<Watcher> watchers;
+        // set once pruned from the parent, guarded by the lock of the node
+        boolean removed;
+
+        Node(Node parent, String segment) {
+            this.parent = parent;
+            this.segment = segment;
+        }
+
+        Node child(String path, int start, int end) {
+            return children.get(path, start, end);
+        }
+
+    }
+
+    /**
+     * An immutable open addressing table of the children of a node.
+     */
+    private static final class Children {
+
+        final Node[] nodes;
+        final Node[] table;
+
+        Children(Node[] nodes) {
+            this.nodes = nodes;
+            // at most half full
+            int capacity = Integer.highestOneBit(Math.max(1, nodes.length) * 2) * 2;
+            table = new Node[capacity];
+            for (Node node : nodes) {
+                int i = node.segment.hashCode() & (capacity - 1);
+                while (table[i] != null) {
+                    i = (i + 1) & (capacity - 1);
+                }
+                table[i] = node;
+            }
+        }
+
+        Node get(String path, int start, int end) {
+            int length = end - start;
+            // String.hashCode of the segment, without allocating it
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + path.charAt(i);
+            }
+            int mask = table.length - 1;
+            for (int i = hash & mask; table[i] != null; i = (i + 1) & mask) {
+                String segment = table[i].segment;
+                if (segment.hashCode() == hash && segment.length() == length
+                        && path.regionMatches(start, segment, 0, length)) {
+                    return table[i];
+                }
+            }
+            return null;
+        }
+
+        Children add(Node child) {
+            Node[] newNodes = Arrays.copyOf(nodes, nodes.length + 1);
+            newNodes[nodes.length] = child;
+            return new Children(newNodes);
+        }
+
+        Children remove(Node child) {
+            Node[] newNodes = new Node[nodes.length - 1];
+            int i = 0;
+            for (Node node : nodes) {
+                if (node != child) {
+                    newNodes[i++] = node;
+                }
+            }
+            return new Children(newNodes);
+        }
+
+    }
+
+    /**
+     * Add the watchers of a path and of all its ancestors to a set, without
+     * allocating anything but the entries of the set.
+     */
+    void addWatchersOfPathAndAncestors(String path, Set<Watcher> result) {
+        Node node = root;
+        addTo(node, result);
+        int start = 1;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            node = node.child(path, start, end);
+            if (node == null) {
+                return;
+            }
+            addTo(node, result);
+            start = end + 1;
+        }
+    }
+
+    private static void addTo(Node node, Set<Watcher> result) {
+        Set<Watcher> watchers = node.watchers;
+        if (watchers != null) {
+            result.addAll(watchers);
+        }
+    }
+
+    private Node find(String path) {
+        Node node = root;
+        int start = 1;
+        while (start < path.length() && node != null) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            node = node.child(path, start, end);
+            start = end + 1;
+        }
+        return node;
+    }
+
+    private Node findOrCreate(String path) {
+        Node node = root;
+        int start = 1;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            Node child = node.child(path, start, end);
+            if (child == null) {
+                synchronized (node) {
+                    if (node.removed) {
+                        // pruned meanwhile, start over
+                        return null;
+                    }
+                    child = node.child(path, start, end);
+                    if (child == null) {
+                        child = new Node(node, path.substring(start, end));
+                        node.children = node.children.add(child);
+                    }
+                }
+            }
+            node = child;
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * Remove the nodes left with neither watchers nor children, from the
+     * given one up.
+     */
+    private void prune(Node node) {
+        while (node != root) {
+            Node parent = node.parent;
+            synchronized (parent) {
+                synchronized (node) {
+                    if (node.removed || node.watchers != null || node.children.nodes.length > 0) {
+                        return;
+                    }
+                    parent.children = parent.children.remove(node);
+                    node.removed = true;
+                }
+            }
+            node = parent;
+        }
+    }
+
+    private void setWatchers(Node node, Set<Watcher> watchers) {
+        if (node.watchers == null && watchers != null) {
+            size.incrementAndGet();
+        } else if (node.watchers != null && watchers == null) {
+            size.decrementAndGet();
+        }
+        node.watchers = watchers;
+    }
+
+    @Override
+    public Set<Watcher> get(Object key) {
+        Node node = find((String) key);
+        return node == null ? null : node.watchers;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Set<Watcher> put(String key, Set<Watcher> value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            Node node = findOrCreate(key);
+            if (node == null) {
+                continue;
+            }
+            synchronized (node) {
+                if (node.removed) {
+                    continue;
+                }
+                Set<Watcher> previous = node.watchers;
+                setWatchers(node, value);
+                return previous;
+            }
+        }
+    }
+
+    @Override
+    public Set<Watcher> remove(Object key) {
+        Node node = find((String) key);
+        if (node == null) {
+            return null;
+        }
+        Set<Watcher> watchers;
+        synchronized (node) {
+            watchers = node.watchers;
+            setWatchers(node, null);
+        }
+        prune(node);
+        return watchers;
+    }
+
+    @Override
+    public Set<Watcher> compute(
+            String key,
+            BiFunction<? super String, ? super Set<Watcher>, ? extends Set<Watcher>> remappingFunction) {
+        while (true) {
+            Node node = findOrCreate(key);
+            if (node == null) {
+                continue;
+            }
+            Set<Watcher> watchers;
+            synchronized (node) {
+                if (node.removed) {
+                    continue;
+                }
+                watchers = remappingFunction.apply(key, node.watchers);
+                setWatchers(node, watchers);
+            }
+            if (watchers == null) {
+                prune(node);
+            }
+            return watchers;
+        }
+    }
+
+    @Override
+    public Set<Watcher> computeIfPresent(
+            String key,
+            BiFunction<? super String, ? super Set<Watcher>, ? extends Set<Watcher>> remappingFunction) {
+        Node node = find(key);
+        if (node == null) {
+            return null;
+        }
+        Set<Watcher> watchers;
+        synchronized (node) {
+            if (node.removed || node.watchers == null) {
+                return null;
+            }
+            watchers = remappingFunction.apply(key, node.watchers);
+            setWatchers(node, watchers);
+        }
+        if (watchers == null) {
+            prune(node);
+        }
+        return watchers;
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    /**
+     * @return a snapshot of the watchers by path, which does not support
+     *         removal
+     */
+    @Override
+    public Set<Entry<String, Set<Watcher>>> entrySet() {
+        Set<Entry<String, Set<Watcher>>> entries = new HashSet<>();
+        List<Node> nodes = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        nodes.add(root);
+        paths.add("/");
+        while (!nodes.isEmpty()) {
+            Node node = nodes.remove(nodes.size() - 1);
+            String path = paths.remove(paths.size() - 1);
+            Set<Watcher> watchers = node.watchers;
+            if (watchers != null) {
+                entries.add(new SimpleImmutableEntry<>(path, watchers));
+            }
+            for (Node child : node.children.nodes) {
+                nodes.add(child);
+                paths.add(node == root ? "/" + child.segment : path + "/" + child.segment);
+            }
+        }
+        return Collections.unmodifiableSet(entries);
+    }
+
+    @Override
+    public void clear() {
+        for (Map.Entry<String, Set<Watcher>> entry : entrySet()) {
+            remove(entry.getKey());
+        }
+    }
+
+}
@@ -46,24 +46,55 @@ public class WatchedEvent {
      * 地址
      */
     private String path;
+    /**
+     * zxid of the txn which triggered the event
+     */
+    private final long zxid;
+
+    /**
+     * The zxid of the events not triggered by a txn, or received from a
+     * server which does not send it.
+     */
+    public static final long NO_ZXID = -1L;
 
     /**
      * Create a WatchedEvent with specified type, state and path
      *
      */
     public WatchedEvent(EventType eventType, KeeperState keeperState, String path) {
+        this(eventType, keeperState, path, NO_ZXID);
+    }
+
+    /**
+     * Create a WatchedEvent with specified type, state, path and zxid
+     *
+     * @since 3.7.0
+     */
+    public WatchedEvent(EventType eventType, KeeperState keeperState, String path, long zxid) {
         this.keeperState = keeperState;
         this.eventType = eventType;
         this.path = path;
+        this.zxid = zxid;
     }
 
     /**
      * Convert a WatcherEvent sent over the wire into a full-fledged WatcherEvent
      */
     public WatchedEvent(WatcherEvent eventMessage) {
+        this(eventMessage, NO_ZXID);
+    }
+
+    /**
+     * Convert a WatcherEvent sent over the wire, with the zxid of its
+     * reply header, into a full-fledged WatcherEvent
+     *
+     * @since 3.7.0
+     */
+    public WatchedEvent(WatcherEvent eventMessage, long zxid) {
         keeperState = KeeperState.fromInt(eventMessage.getState());
         eventType = EventType.fromInt(eventMessage.getType());
         path = eventMessage.getPath();
+        this.zxid = zxid;
     }
 
     public KeeperState getState() {
@@ -78,6 +109,16 @@ public String getPath() {
         return path;
     }
 
+    /**
+     * @return the zxid of the txn which triggered the event, {@link #NO_ZXID}
+     *         if unknown. When the events of a coalescing watch are merged, the
+     *         zxids of the events received for a path skip the ones merged.
+     * @since 3.7.0
+     */
+    public long getZxid() {
+        return zxid;
+    }
+
     @Override
     public String toString() {
         return "WatchedEvent state:" + keeperState + " type:" + eventType + " path:" + path;
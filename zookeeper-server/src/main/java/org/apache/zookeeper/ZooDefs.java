@@ -93,6 +93,8 @@ public interface OpCode {
 
         int addWatch = 106;
 
+        int getChildrenPaged = 107;
+
         int createSession = -10;
 
         int closeSession = -11;
@@ -178,6 +180,10 @@ public interface AddWatchModes {
         int persistent = 0; // matches AddWatchMode.PERSISTENT
 
         int persistentRecursive = 1;  // matches AddWatchMode.PERSISTENT_RECURSIVE
+
+        int persistentCoalesced = 2; // matches AddWatchMode.PERSISTENT_COALESCED
+
+        int persistentRecursiveCoalesced = 3; // matches AddWatchMode.PERSISTENT_RECURSIVE_COALESCED
     }
 
     public static final String[] opNames = {"notification", "create", "delete", "exists", "getData", "setData", "getACL", "setACL", "getChildren", "getChildren2", "getMaxChildren", "setMaxChildren", "ping", "reconfig", "getConfig"};
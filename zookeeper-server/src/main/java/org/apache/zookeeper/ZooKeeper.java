@@ -33,7 +33,6 @@
 import org.apache.zookeeper.proto.*;
 import org.apache.zookeeper.server.DataTree;
 import org.apache.zookeeper.server.EphemeralType;
-import org.apache.zookeeper.server.watch.PathParentIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,6 +41,8 @@
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
  * This is the main class of ZooKeeper client library. To use a ZooKeeper
@@ -844,38 +845,36 @@ public ZKClientConfig getClientConfig() {
     }
 
     protected List<String> getDataWatches() {
-        synchronized (watchManager.dataWatches) {
-            List<String> rc = new ArrayList<String>(watchManager.dataWatches.keySet());
-            return rc;
-        }
+        List<String> rc = new ArrayList<String>(watchManager.dataWatches.keySet());
+        return rc;
     }
 
     protected List<String> getExistWatches() {
-        synchronized (watchManager.existWatches) {
-            List<String> rc = new ArrayList<String>(watchManager.existWatches.keySet());
-            return rc;
-        }
+        List<String> rc = new ArrayList<String>(watchManager.existWatches.keySet());
+        return rc;
     }
 
     protected List<String> getChildWatches() {
-        synchronized (watchManager.childWatches) {
-            List<String> rc = new ArrayList<String>(watchManager.childWatches.keySet());
-            return rc;
-        }
+        List<String> rc = new ArrayList<String>(watchManager.childWatches.keySet());
+        return rc;
     }
 
     protected List<String> getPersistentWatches() {
-        synchronized (watchManager.persistentWatches) {
-            List<String> rc = new ArrayList<String>(watchManager.persistentWatches.keySet());
-            return rc;
-        }
+        List<String> rc = new ArrayList<String>(watchManager.persistentWatches.keySet());
+        return rc;
     }
 
     protected List<String> getPersistentRecursiveWatches() {
-        synchronized (watchManager.persistentRecursiveWatches) {
-            List<String> rc = new ArrayList<String>(watchManager.persistentRecursiveWatches.keySet());
-            return rc;
-        }
+        List<String> rc = new ArrayList<String>(watchManager.persistentRecursiveWatches.keySet());
+        return rc;
+    }
+
+    /**
+     * @return the persistent watches added with a coalescing mode, which are
+     *         added again with it once the watches are set on a new server
+     */
+    protected Map<String, AddWatchMode> getCoalescedWatches() {
+        return new HashMap<String, AddWatchMode>(watchManager.coalescedWatches);
     }
 
     // @VisibleForTesting
@@ -2281,6 +2280,76 @@ public void getChildren(String path, boolean watch, Children2Callback cb, Object
         getChildren(path, watch ? watchManager.defaultWatcher : null, cb, ctx);
     }
 
+    /**
+     * Return a page of the children of the node of the given path, in
+     * lexicographic order.
+     * <p>
+     * Unlike {@link #getChildren(String, Watcher, Stat)}, this bounds the size
+     * of each response, so directories with more children than fit in
+     * jute.maxbuffer can be listed. The server caps the page size with
+     * zookeeper.maxChildrenPageSize and keeps the page well below its
+     * jute.maxbuffer, so a page can hold fewer children than requested even
+     * when more remain.
+     * <p>
+     * A KeeperException with error code KeeperException.NoNode will be thrown
+     * if no node with the given path exists.
+     *
+     * @param path the path of the parent node
+     * @param startAfter only the children sorting after this name are
+     *                   returned; the empty string starts from the first child
+     * @param maxCount maximum number of children in the page, a non-positive
+     *                 value requests the server maximum
+     * @return the page, holding the name to pass as startAfter for the next one
+     * @throws InterruptedException     If the server transaction is interrupted.
+     * @throws KeeperException          If the server signals an error with a non-zero error code.
+     * @throws IllegalArgumentException if an invalid path is specified
+     * @see #getChildrenIterator(String, int)
+     * @since 3.7.0
+     */
+    public ChildrenPage getChildrenPaged(
+            final String path,
+            String startAfter,
+            int maxCount) throws KeeperException, InterruptedException {
+        final String clientPath = path;
+        PathUtils.validatePath(clientPath);
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.getChildrenPaged);
+        GetChildrenPagedRequest request = new GetChildrenPagedRequest(
+            serverPath,
+            startAfter == null ? "" : startAfter,
+            maxCount);
+        GetChildrenPagedResponse response = new GetChildrenPagedResponse();
+        ReplyHeader r = cnxn.submitRequest(h, request, response, null);
+        if (r.getErr() != 0) {
+            throw KeeperException.create(KeeperException.Code.get(r.getErr()), clientPath);
+        }
+        return new ChildrenPage(response.getChildren(), response.getNextStartAfter(), response.getStat());
+    }
+
+    /**
+     * Iterate over the children of the node of the given path in
+     * lexicographic order, fetching them from the server one page at a time
+     * with {@link #getChildrenPaged(String, String, int)}.
+     * <p>
+     * Children created or deleted while iterating may or may not be
+     * returned. Children that exist during the whole iteration are returned
+     * exactly once.
+     *
+     * @param path the path of the parent node
+     * @param pageSize number of children fetched per request, a non-positive
+     *                 value requests the server maximum
+     * @return an iterator over the children names
+     * @throws IllegalArgumentException if an invalid path is specified
+     * @since 3.7.0
+     */
+    public RemoteIterator<String> getChildrenIterator(final String path, int pageSize) {
+        PathUtils.validatePath(path);
+        return new ChildrenPageIterator(this, path, pageSize);
+    }
+
     /**
      * Synchronously gets all numbers of children nodes under a specific path
      *
@@ -2770,23 +2839,32 @@ public boolean isConnected() {
      * We are implementing this as a nested class of ZooKeeper so that
      * the public methods will not be exposed as part of the ZooKeeper client
      * API.
+     * <p>
+     * The watches are kept in concurrent maps, so that the event thread
+     * materializing the watchers of an event and the application threads
+     * adding watches never wait for each other.
      */
     static class ZKWatchManager implements ClientWatchManager {
 
         /**
          * 数据变化的 watcher
          */
-        private final Map<String, Set<Watcher>> dataWatches = new HashMap<String, Set<Watcher>>();
+        private final Map<String, Set<Watcher>> dataWatches = new ConcurrentHashMap<String, Set<Watcher>>();
         /**
          * 是否存在的 watcher
          */
-        private final Map<String, Set<Watcher>> existWatches = new HashMap<String, Set<Watcher>>();
+        private final Map<String, Set<Watcher>> existWatches = new ConcurrentHashMap<String, Set<Watcher>>();
         /**
          * 子节点的 watcher
          */
-        private final Map<String, Set<Watcher>> childWatches = new HashMap<String, Set<Watcher>>();
-        private final Map<String, Set<Watcher>> persistentWatches = new HashMap<String, Set<Watcher>>();
-        private final Map<String, Set<Watcher>> persistentRecursiveWatches = new HashMap<String, Set<Watcher>>();
+        private final Map<String, Set<Watcher>> childWatches = new ConcurrentHashMap<String, Set<Watcher>>();
+        private final Map<String, Set<Watcher>> persistentWatches = new ConcurrentHashMap<String, Set<Watcher>>();
+        private final WatchPathTrie persistentRecursiveWatches = new WatchPathTrie();
+        /**
+         * the coalescing mode of the persistent watches added with one, which
+         * SetWatches does not carry
+         */
+        private final Map<String, AddWatchMode> coalescedWatches = new ConcurrentHashMap<String, AddWatchMode>();
         private final boolean disableAutoWatchReset;
         /**
          * 默认监听
@@ -2797,6 +2875,57 @@ static class ZKWatchManager implements ClientWatchManager {
             this.disableAutoWatchReset = disableAutoWatchReset;
         }
 
+        /**
+         * Add a watcher to the watches of a path, atomically with the removal
+         * of the path once its watches are gone.
+         */
+        static void addWatcher(Map<String, Set<Watcher>> watches, String clientPath, Watcher watcher) {
+            watches.compute(clientPath, (path, watchers) -> {
+                if (watchers == null) {
+                    watchers = new CopyOnWriteArraySet<Watcher>();
+                }
+                watchers.add(watcher);
+                return watchers;
+            });
+        }
+
+        /**
+         * Add a persistent watch, keeping track of its coalescing mode.
+         */
+        void addPersistentWatch(String clientPath, Watcher watcher, AddWatchMode mode) {
+            switch (mode) {
+                case PERSISTENT:
+                case PERSISTENT_COALESCED:
+                    addWatcher(persistentWatches, clientPath, watcher);
+                    break;
+                case PERSISTENT_RECURSIVE:
+                case PERSISTENT_RECURSIVE_COALESCED:
+                    addWatcher(persistentRecursiveWatches, clientPath, watcher);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Mode not supported: " + mode);
+            }
+            // as on the server, the mode last added to the path wins
+            if (mode == AddWatchMode.PERSISTENT_COALESCED || mode == AddWatchMode.PERSISTENT_RECURSIVE_COALESCED) {
+                coalescedWatches.put(clientPath, mode);
+            } else {
+                coalescedWatches.remove(clientPath);
+            }
+        }
+
+        /**
+         * Forget the coalescing mode of a path once the last watcher added
+         * with it is removed.
+         */
+        private void forgetCoalescedMode(String clientPath) {
+            coalescedWatches.computeIfPresent(clientPath, (path, mode) -> {
+                Map<String, Set<Watcher>> watches = mode == AddWatchMode.PERSISTENT_COALESCED
+                    ? persistentWatches
+                    : persistentRecursiveWatches;
+                return watches.containsKey(path) ? mode : null;
+            });
+        }
+
         private void addTo(Set<Watcher> from, Set<Watcher> to) {
             if (from != null) {
                 to.addAll(from);
@@ -2823,48 +2952,23 @@ public Map<EventType, Set<Watcher>> removeWatcher(
             boolean removedWatcher = false;
             switch (watcherType) {
                 case Children: {
-                    synchronized (childWatches) {
-                        removedWatcher = removeWatches(childWatches, watcher, clientPath, local, rc, childWatchersToRem);
-                    }
+                    removedWatcher = removeWatches(childWatches, watcher, clientPath, local, rc, childWatchersToRem);
                     break;
                 }
                 case Data: {
-                    synchronized (dataWatches) {
-                        removedWatcher = removeWatches(dataWatches, watcher, clientPath, local, rc, dataWatchersToRem);
-                    }
-
-                    synchronized (existWatches) {
-                        boolean removedDataWatcher = removeWatches(existWatches, watcher, clientPath, local, rc, dataWatchersToRem);
-                        removedWatcher |= removedDataWatcher;
-                    }
+                    removedWatcher = removeWatches(dataWatches, watcher, clientPath, local, rc, dataWatchersToRem);
+                    removedWatcher |= removeWatches(existWatches, watcher, clientPath, local, rc, dataWatchersToRem);
                     break;
                 }
                 case Any: {
-                    synchronized (childWatches) {
-                        removedWatcher = removeWatches(childWatches, watcher, clientPath, local, rc, childWatchersToRem);
-                    }
-
-                    synchronized (dataWatches) {
-                        boolean removedDataWatcher = removeWatches(dataWatches, watcher, clientPath, local, rc, dataWatchersToRem);
-                        removedWatcher |= removedDataWatcher;
-                    }
-
-                    synchronized (existWatches) {
-                        boolean removedDataWatcher = removeWatches(existWatches, watcher, clientPath, local, rc, dataWatchersToRem);
-                        removedWatcher |= removedDataWatcher;
-                    }
-
-                    synchronized (persistentWatches) {
-                        boolean removedPersistentWatcher = removeWatches(persistentWatches,
-                                watcher, clientPath, local, rc, persistentWatchersToRem);
-                        removedWatcher |= removedPersistentWatcher;
-                    }
-
-                    synchronized (persistentRecursiveWatches) {
-                        boolean removedPersistentRecursiveWatcher = removeWatches(persistentRecursiveWatches,
-                                watcher, clientPath, local, rc, persistentWatchersToRem);
-                        removedWatcher |= removedPersistentRecursiveWatcher;
-                    }
+                    removedWatcher = removeWatches(childWatches, watcher, clientPath, local, rc, childWatchersToRem);
+                    removedWatcher |= removeWatches(dataWatches, watcher, clientPath, local, rc, dataWatchersToRem);
+                    removedWatcher |= removeWatches(existWatches, watcher, clientPath, local, rc, dataWatchersToRem);
+                    removedWatcher |= removeWatches(persistentWatches,
+                            watcher, clientPath, local, rc, persistentWatchersToRem);
+                    removedWatcher |= removeWatches(persistentRecursiveWatches,
+                            watcher, clientPath, local, rc, persistentWatchersToRem);
+                    forgetCoalescedMode(clientPath);
                 }
             }
             // Watcher function doesn't exists for the specified params
@@ -2876,7 +2980,7 @@ public Map<EventType, Set<Watcher>> removeWatcher(
 
         private boolean contains(String path, Watcher watcherObj, Map<String, Set<Watcher>> pathVsWatchers) {
             boolean watcherExists = true;
-            if (pathVsWatchers == null || pathVsWatchers.size() == 0) {
+            if (pathVsWatchers == null || pathVsWatchers.isEmpty()) {
                 watcherExists = false;
             } else {
                 Set<Watcher> watchers = pathVsWatchers.get(path);
@@ -2904,72 +3008,24 @@ void containsWatcher(String path, Watcher watcher, WatcherType watcherType) thro
             boolean containsWatcher = false;
             switch (watcherType) {
                 case Children: {
-                    synchronized (childWatches) {
-                        containsWatcher = contains(path, watcher, childWatches);
-                    }
-
-                    synchronized (persistentWatches) {
-                        boolean contains_temp = contains(path, watcher,
-                                persistentWatches);
-                        containsWatcher |= contains_temp;
-                    }
-
-                    synchronized (persistentRecursiveWatches) {
-                        boolean contains_temp = contains(path, watcher,
-                                persistentRecursiveWatches);
-                        containsWatcher |= contains_temp;
-                    }
+                    containsWatcher = contains(path, watcher, childWatches);
+                    containsWatcher |= contains(path, watcher, persistentWatches);
+                    containsWatcher |= contains(path, watcher, persistentRecursiveWatches);
                     break;
                 }
                 case Data: {
-                    synchronized (dataWatches) {
-                        containsWatcher = contains(path, watcher, dataWatches);
-                    }
-
-                    synchronized (existWatches) {
-                        boolean contains_temp = contains(path, watcher, existWatches);
-                        containsWatcher |= contains_temp;
-                    }
-
-                    synchronized (persistentWatches) {
-                        boolean contains_temp = contains(path, watcher,
-                                persistentWatches);
-                        containsWatcher |= contains_temp;
-                    }
-
-                    synchronized (persistentRecursiveWatches) {
-                        boolean contains_temp = contains(path, watcher,
-                                persistentRecursiveWatches);
-                        containsWatcher |= contains_temp;
-                    }
+                    containsWatcher = contains(path, watcher, dataWatches);
+                    containsWatcher |= contains(path, watcher, existWatches);
+                    containsWatcher |= contains(path, watcher, persistentWatches);
+                    containsWatcher |= contains(path, watcher, persistentRecursiveWatches);
                     break;
                 }
                 case Any: {
-                    synchronized (childWatches) {
-                        containsWatcher = contains(path, watcher, childWatches);
-                    }
-
-                    synchronized (dataWatches) {
-                        boolean contains_temp = contains(path, watcher, dataWatches);
-                        containsWatcher |= contains_temp;
-                    }
-
-                    synchronized (existWatches) {
-                        boolean contains_temp = contains(path, watcher, existWatches);
-                        containsWatcher |= contains_temp;
-                    }
-
-                    synchronized (persistentWatches) {
-                        boolean contains_temp = contains(path, watcher,
-                                persistentWatches);
-                        containsWatcher |= contains_temp;
-                    }
-
-                    synchronized (persistentRecursiveWatches) {
-                        boolean contains_temp = contains(path, watcher,
-                                persistentRecursiveWatches);
-                        containsWatcher |= contains_temp;
-                    }
+                    containsWatcher = contains(path, watcher, childWatches);
+                    containsWatcher |= contains(path, watcher, dataWatches);
+                    containsWatcher |= contains(path, watcher, existWatches);
+                    containsWatcher |= contains(path, watcher, persistentWatches);
+                    containsWatcher |= contains(path, watcher, persistentRecursiveWatches);
                 }
             }
             // Watcher function doesn't exists for the specified params
@@ -3007,10 +3063,9 @@ protected boolean removeWatches(
                         if (watchers.remove(watcher)) {
                             // found path watcher
                             removedWatchers.add(watcher);
-                            // cleanup <path vs watchlist>
-                            if (watchers.size() <= 0) {
-                                pathVsWatcher.remove(path);
-                            }
+                            // cleanup <path vs watchlist>, atomically with
+                            // a watcher added meanwhile
+                            pathVsWatcher.computeIfPresent(path, (p, ws) -> ws.isEmpty() ? null : ws);
                             success = true;
                         }
                     }
@@ -3039,79 +3094,37 @@ public Set<Watcher> materialize(
                     // 是否需要清空watcher
                     boolean clear = disableAutoWatchReset && state != Watcher.Event.KeeperState.SyncConnected;
                    // 数据变更watcher
-                    synchronized (dataWatches) {
-                        for (Set<Watcher> ws : dataWatches.values()) {
-                            result.addAll(ws);
-                        }
-                        if (clear) {
-                            dataWatches.clear();
-                        }
-                    }
+                    addAll(dataWatches, result, clear);
 
                     // 是否存在watcher
-                    synchronized (existWatches) {
-                        for (Set<Watcher> ws : existWatches.values()) {
-                            result.addAll(ws);
-                        }
-                        if (clear) {
-                            existWatches.clear();
-                        }
-                    }
+                    addAll(existWatches, result, clear);
 
                     // 子节点的watcher
-                    synchronized (childWatches) {
-                        for (Set<Watcher> ws : childWatches.values()) {
-                            result.addAll(ws);
-                        }
-                        if (clear) {
-                            childWatches.clear();
-                        }
-                    }
+                    addAll(childWatches, result, clear);
 
-                    synchronized (persistentWatches) {
-                        for (Set<Watcher> ws : persistentWatches.values()) {
-                            result.addAll(ws);
-                        }
-                    }
-
-                    synchronized (persistentRecursiveWatches) {
-                        for (Set<Watcher> ws : persistentRecursiveWatches.values()) {
-                            result.addAll(ws);
-                        }
-                    }
+                    addAll(persistentWatches, result, false);
+                    addAll(persistentRecursiveWatches, result, false);
 
                     return result;
                 case NodeDataChanged:
                 case NodeCreated:
-                    synchronized (dataWatches) {
-                        addTo(dataWatches.remove(clientPath), result);
-                    }
-                    synchronized (existWatches) {
-                        addTo(existWatches.remove(clientPath), result);
-                    }
+                    addTo(dataWatches.remove(clientPath), result);
+                    addTo(existWatches.remove(clientPath), result);
                     addPersistentWatches(clientPath, result);
                     break;
                 case NodeChildrenChanged:
-                    synchronized (childWatches) {
-                        addTo(childWatches.remove(clientPath), result);
-                    }
+                    addTo(childWatches.remove(clientPath), result);
                     addPersistentWatches(clientPath, result);
                     break;
                 case NodeDeleted:
-                    synchronized (dataWatches) {
-                        addTo(dataWatches.remove(clientPath), result);
-                    }
+                    addTo(dataWatches.remove(clientPath), result);
                     // TODO This shouldn't be needed, but just in case
-                    synchronized (existWatches) {
-                        Set<Watcher> list = existWatches.remove(clientPath);
-                        if (list != null) {
-                            addTo(list, result);
-                            LOG.warn("We are triggering an exists watch for delete! Shouldn't happen!");
-                        }
-                    }
-                    synchronized (childWatches) {
-                        addTo(childWatches.remove(clientPath), result);
+                    Set<Watcher> list = existWatches.remove(clientPath);
+                    if (list != null) {
+                        addTo(list, result);
+                        LOG.warn("We are triggering an exists watch for delete! Shouldn't happen!");
                     }
+                    addTo(childWatches.remove(clientPath), result);
                     addPersistentWatches(clientPath, result);
                     break;
                 default:
@@ -3127,16 +3140,29 @@ public Set<Watcher> materialize(
             return result;
         }
 
-        private void addPersistentWatches(String clientPath, Set<Watcher> result) {
-            synchronized (persistentWatches) {
-                addTo(persistentWatches.get(clientPath), result);
-            }
-            synchronized (persistentRecursiveWatches) {
-                for (String path : PathParentIterator.forAll(clientPath).asIterable()) {
-                    addTo(persistentRecursiveWatches.get(path), result);
+        /**
+         * Add the watchers of all the paths, removing the paths if clear is
+         * set. A path removed was added, so no watcher registered meanwhile is
+         * dropped without being notified.
+         */
+        private void addAll(Map<String, Set<Watcher>> watches, Set<Watcher> result, boolean clear) {
+            if (clear) {
+                for (String path : new ArrayList<String>(watches.keySet())) {
+                    addTo(watches.remove(path), result);
+                }
+            } else {
+                for (Set<Watcher> ws : watches.values()) {
+                    result.addAll(ws);
                 }
             }
         }
+
+        private void addPersistentWatches(String clientPath, Set<Watcher> result) {
+            addTo(persistentWatches.get(clientPath), result);
+            if (!persistentRecursiveWatches.isEmpty()) {
+                persistentRecursiveWatches.addWatchersOfPathAndAncestors(clientPath, result);
+            }
+        }
     }
 
     /*
@@ -3168,15 +3194,7 @@ public WatchRegistration(Watcher watcher, String clientPath) {
          */
         public void register(int rc) {
             if (shouldAddWatch(rc)) {
-                Map<String, Set<Watcher>> watches = getWatches(rc);
-                synchronized (watches) {
-                    Set<Watcher> watchers = watches.get(clientPath);
-                    if (watchers == null) {
-                        watchers = new HashSet<Watcher>();
-                        watches.put(clientPath, watchers);
-                    }
-                    watchers.add(watcher);
-                }
+                ZKWatchManager.addWatcher(getWatches(rc), clientPath, watcher);
             }
         }
 
@@ -3242,10 +3260,14 @@ protected Map<String, Set<Watcher>> getWatches(int rc) {
     }
 
     class AddWatchRegistration extends WatchRegistration {
+        private final Watcher watcher;
+        private final String path;
         private final AddWatchMode mode;
 
         public AddWatchRegistration(Watcher watcher, String clientPath, AddWatchMode mode) {
             super(watcher, clientPath);
+            this.watcher = watcher;
+            this.path = clientPath;
             this.mode = mode;
         }
 
@@ -3253,13 +3275,22 @@ public AddWatchRegistration(Watcher watcher, String clientPath, AddWatchMode mod
         protected Map<String, Set<Watcher>> getWatches(int rc) {
             switch (mode) {
                 case PERSISTENT:
+                case PERSISTENT_COALESCED:
                     return watchManager.persistentWatches;
                 case PERSISTENT_RECURSIVE:
+                case PERSISTENT_RECURSIVE_COALESCED:
                     return watchManager.persistentRecursiveWatches;
             }
             throw new IllegalArgumentException("Mode not supported: " + mode);
         }
 
+        @Override
+        public void register(int rc) {
+            if (shouldAddWatch(rc)) {
+                watchManager.addPersistentWatch(path, watcher, mode);
+            }
+        }
+
         @Override
         protected boolean shouldAddWatch(int rc) {
             return rc == 0 || rc == KeeperException.Code.NONODE.intValue();
@@ -0,0 +1,257 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Set of the child names of a data node.
+ *
+ * All names are kept in a single String array. A few children are stored
+ * densely in an exactly sized array and found by a linear scan. Larger sets
+ * switch to an open addressing table with linear probing, which needs no
+ * entry object per child, unlike a HashSet, and fall back to the dense form
+ * once they shrink again.
+ *
+ * The set is not thread safe, the owning DataNode synchronizes access.
+ */
+class ChildSet extends AbstractSet<String> {
+
+    // Sets with more children than this are stored as a hash table.
+    static final int MAX_DENSE_CHILDREN = 8;
+
+    private static final int MIN_TABLE_CAPACITY = 32;
+
+    private static final String[] EMPTY = new String[0];
+
+    private String[] names = EMPTY;
+    private int size;
+    private boolean hashed;
+
+    ChildSet() {
+    }
+
+    ChildSet(int expectedSize) {
+        if (expectedSize > MAX_DENSE_CHILDREN) {
+            names = new String[tableCapacity(expectedSize)];
+            hashed = true;
+        }
+    }
+
+    private static int tableCapacity(int size) {
+        // keep the table at most half full
+        return Math.max(MIN_TABLE_CAPACITY, Integer.highestOneBit(size * 2 - 1) << 1);
+    }
+
+    private static int slot(String name, int mask) {
+        int h = name.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int find(String name) {
+        if (!hashed) {
+            for (int i = 0; i < size; i++) {
+                if (names[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int mask = names.length - 1;
+        int i = slot(name, mask);
+        while (names[i] != null) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof String && find((String) o) >= 0;
+    }
+
+    @Override
+    public boolean add(String name) {
+        if (find(name) >= 0) {
+            return false;
+        }
+        if (!hashed) {
+            if (size < MAX_DENSE_CHILDREN) {
+                names = Arrays.copyOf(names, size + 1);
+                names[size++] = name;
+                return true;
+            }
+            rehash(tableCapacity(size + 1));
+        } else if ((size + 1) * 2 > names.length) {
+            rehash(names.length * 2);
+        }
+        insert(names, name);
+        size++;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        int i = find((String) o);
+        if (i < 0) {
+            return false;
+        }
+        if (!hashed) {
+            String[] shrunk = new String[size - 1];
+            System.arraycopy(names, 0, shrunk, 0, i);
+            System.arraycopy(names, i + 1, shrunk, i, shrunk.length - i);
+            names = shrunk;
+            size--;
+            return true;
+        }
+        delete(i);
+        size--;
+        if (size <= MAX_DENSE_CHILDREN / 2) {
+            toDense();
+        } else if (names.length > MIN_TABLE_CAPACITY && size * 8 < names.length) {
+            rehash(names.length / 2);
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Object[] toArray() {
+        return toArray(new String[size]);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T[] toArray(T[] a) {
+        if (a.length < size) {
+            a = Arrays.copyOf(a, size);
+        }
+        if (!hashed) {
+            System.arraycopy(names, 0, a, 0, size);
+        } else {
+            int j = 0;
+            for (String name : names) {
+                if (name != null) {
+                    a[j++] = (T) name;
+                }
+            }
+        }
+        if (a.length > size) {
+            a[size] = null;
+        }
+        return a;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int next = advance(0);
+
+            private int advance(int i) {
+                if (!hashed) {
+                    return i;
+                }
+                while (i < names.length && names[i] == null) {
+                    i++;
+                }
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return hashed ? next < names.length : next < size;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String name = names[next];
+                next = advance(next + 1);
+                return name;
+            }
+        };
+    }
+
+    private static void insert(String[] table, String name) {
+        int mask = table.length - 1;
+        int i = slot(name, mask);
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = name;
+    }
+
+    private void rehash(int capacity) {
+        String[] table = new String[capacity];
+        for (String name : names) {
+            if (name != null) {
+                insert(table, name);
+            }
+        }
+        names = table;
+        hashed = true;
+    }
+
+    private void toDense() {
+        String[] dense = new String[size];
+        toArray(dense);
+        names = dense;
+        hashed = false;
+    }
+
+    /**
+     * Free a slot of the table, shifting back the names of the probe
+     * sequence following it so lookups never need tombstones.
+     */
+    private void delete(int i) {
+        int mask = names.length - 1;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (names[j] == null) {
+                break;
+            }
+            int k = slot(names[j], mask);
+            // move the name at j into the hole at i unless its home slot k
+            // lies cyclically within (i, j]
+            if (i <= j ? (i < k && k <= j) : (i < k || k <= j)) {
+                continue;
+            }
+            names[i] = names[j];
+            i = j;
+        }
+        names[i] = null;
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import org.apache.zookeeper.server.quorum.Leader;
+import org.apache.zookeeper.server.quorum.Leader.Proposal;
+import org.apache.zookeeper.server.quorum.QuorumPacket;
+
+/**
+ * A ring of the last committed proposals, kept serialized in a direct
+ * buffer of a fixed number of bytes, the oldest ones being evicted to make
+ * room for the new ones. It holds many more proposals than the committedLog
+ * of {@link ZKDatabase} for the same heap, so that learners further behind
+ * can be synced with a DIFF without reading the txnlog.
+ *
+ * Each entry is the zxid and the length of the serialized request followed
+ * by the request. The proposals of the ring are always consecutive: a
+ * proposal larger than the ring or out of order empties it.
+ *
+ * This class is not thread safe, it is guarded by the log lock of
+ * {@link ZKDatabase}: the ring is written with the write lock held and may
+ * be iterated by several threads holding the read lock.
+ */
+final class CommittedLogRing {
+
+    private static final int HEADER_BYTES = 8 + 4;
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final byte[] header = new byte[HEADER_BYTES];
+
+    // offsets from the start of the ring, the position in the buffer being
+    // the offset modulo the capacity
+    private long head;
+    private long tail;
+    private int count;
+    private long minZxid;
+    private long maxZxid;
+
+    CommittedLogRing(int capacity) {
+        this.capacity = capacity;
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Add a committed proposal, evicting the oldest ones if needed.
+     *
+     * @param zxid the zxid of the proposal
+     * @param data the serialized request
+     */
+    void add(long zxid, byte[] data) {
+        long size = HEADER_BYTES + data.length;
+        if (size > capacity || (count > 0 && zxid <= maxZxid)) {
+            clear();
+            if (size > capacity) {
+                return;
+            }
+        }
+        while (tail - head + size > capacity) {
+            evict();
+        }
+        ByteBuffer.wrap(header).putLong(zxid).putInt(data.length);
+        write(tail, header);
+        write(tail + HEADER_BYTES, data);
+        tail += size;
+        if (count++ == 0) {
+            minZxid = zxid;
+        }
+        maxZxid = zxid;
+    }
+
+    private void evict() {
+        read(buffer, head, header);
+        head += HEADER_BYTES + ByteBuffer.wrap(header, 8, 4).getInt();
+        if (--count > 0) {
+            read(buffer, head, header);
+            minZxid = ByteBuffer.wrap(header).getLong();
+        }
+    }
+
+    void clear() {
+        head = 0;
+        tail = 0;
+        count = 0;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return the number of bytes used by the proposals of the ring
+     */
+    long getBytes() {
+        return tail - head;
+    }
+
+    long getMinZxid() {
+        return isEmpty() ? 0 : minZxid;
+    }
+
+    long getMaxZxid() {
+        return isEmpty() ? 0 : maxZxid;
+    }
+
+    /**
+     * @param startZxid the zxid of the first proposal to return
+     * @return the proposals of the ring from startZxid, the proposals having
+     *         their packet set only, as {@link TxnLogProposalIterator}
+     */
+    Iterator<Proposal> iterator(long startZxid) {
+        return new RingIterator(startZxid);
+    }
+
+    private void write(long offset, byte[] src) {
+        int position = (int) (offset % capacity);
+        int first = Math.min(src.length, capacity - position);
+        buffer.position(position);
+        buffer.put(src, 0, first);
+        if (first < src.length) {
+            buffer.position(0);
+            buffer.put(src, first, src.length - first);
+        }
+    }
+
+    private void read(ByteBuffer bb, long offset, byte[] dst) {
+        int position = (int) (offset % capacity);
+        int first = Math.min(dst.length, capacity - position);
+        bb.position(position);
+        bb.get(dst, 0, first);
+        if (first < dst.length) {
+            bb.position(0);
+            bb.get(dst, first, dst.length - first);
+        }
+    }
+
+    private class RingIterator implements Iterator<Proposal> {
+
+        // each reader has its own view of the buffer
+        private final ByteBuffer view = buffer.duplicate();
+        private final byte[] entryHeader = new byte[HEADER_BYTES];
+        private final long end = tail;
+        private long offset = head;
+        private long zxid;
+        private int length;
+
+        RingIterator(long startZxid) {
+            while (readHeader() && zxid < startZxid) {
+                offset += HEADER_BYTES + length;
+            }
+        }
+
+        private boolean readHeader() {
+            if (offset >= end) {
+                return false;
+            }
+            read(view, offset, entryHeader);
+            ByteBuffer bb = ByteBuffer.wrap(entryHeader);
+            zxid = bb.getLong();
+            length = bb.getInt();
+            return true;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return offset < end;
+        }
+
+        @Override
+        public Proposal next() {
+            if (!readHeader()) {
+                throw new NoSuchElementException();
+            }
+            byte[] data = new byte[length];
+            read(view, offset + HEADER_BYTES, data);
+            offset += HEADER_BYTES + length;
+            Proposal p = new Proposal();
+            p.packet = new QuorumPacket(Leader.PROPOSAL, zxid, data, null);
+            return p;
+        }
+
+    }
+
+}
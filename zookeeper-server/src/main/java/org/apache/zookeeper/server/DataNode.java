@@ -20,8 +20,10 @@
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
@@ -46,9 +48,17 @@ public class DataNode implements Record {
     // optimize the performance.
     volatile boolean digestCached;
 
-    /** the data for this datanode */
+    /** the data for this datanode, unless it is kept in the payload store */
     byte[] data;
 
+    /**
+     * the store holding the data of this node off-heap, if the node belongs
+     * to a tree using one, and the handle of the data in that store. A zero
+     * handle means the data is in {@link #data}.
+     */
+    private OffHeapPayloadStore payloadStore;
+    private long payloadHandle;
+
     /**
      * the acl map long for this datanode. the datatree has the map
      */
@@ -64,7 +74,25 @@ public class DataNode implements Record {
      * does not contain the parent path -- just the last part of the path. This
      * should be synchronized on except deserializing (for speed up issues).
      */
-    private Set<String> children = null;
+    private ChildSet children = null;
+
+    /**
+     * immutable list of the children, built on demand for getChildren
+     * requests and dropped whenever the children change.
+     */
+    private List<String> childrenList = null;
+
+    /**
+     * the children sorted by name, built on demand for paged listings. A
+     * change of the children replaces it with a copy with the child inserted
+     * or removed, so paged listings under churn don't sort the children
+     * again; it is dropped instead once the children changed
+     * MAX_SORTED_CHILDREN_UPDATES times without a paged listing.
+     */
+    private String[] sortedChildren = null;
+    private int sortedChildrenUpdates;
+
+    private static final int MAX_SORTED_CHILDREN_UPDATES = 64;
 
     private static final Set<String> EMPTY_SET = Collections.emptySet();
 
@@ -100,10 +128,14 @@ public DataNode(byte[] data, Long acl, StatPersisted stat) {
      */
     public synchronized boolean addChild(String child) {
         if (children == null) {
-            // let's be conservative on the typical number of children
-            children = new HashSet<String>(8);
+            children = new ChildSet();
         }
-        return children.add(child);
+        if (children.add(child)) {
+            childrenList = null;
+            updateSortedChildren(child, true);
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -116,7 +148,12 @@ public synchronized boolean removeChild(String child) {
         if (children == null) {
             return false;
         }
-        return children.remove(child);
+        if (children.remove(child)) {
+            childrenList = null;
+            updateSortedChildren(child, false);
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -125,7 +162,14 @@ public synchronized boolean removeChild(String child) {
      * @param children
      */
     public synchronized void setChildren(HashSet<String> children) {
-        this.children = children;
+        if (children == null) {
+            this.children = null;
+        } else {
+            this.children = new ChildSet(children.size());
+            this.children.addAll(children);
+        }
+        childrenList = null;
+        sortedChildren = null;
     }
 
     /**
@@ -142,6 +186,64 @@ public synchronized Set<String> getChildren() {
         return Collections.unmodifiableSet(children);
     }
 
+    /**
+     * @return an immutable list of the children of this datanode. The list
+     *         is cached until the children change, so repeated calls don't
+     *         copy the children.
+     */
+    public synchronized List<String> getChildrenList() {
+        if (childrenList == null) {
+            if (children == null || children.isEmpty()) {
+                childrenList = Collections.emptyList();
+            } else {
+                childrenList = Collections.unmodifiableList(Arrays.asList(children.toArray(new String[0])));
+            }
+        }
+        return childrenList;
+    }
+
+    /**
+     * @return the children of this datanode sorted by name. The array is
+     *         cached until the children change and must not be modified.
+     */
+    synchronized String[] getSortedChildren() {
+        if (sortedChildren == null) {
+            sortedChildren = children == null ? new String[0] : children.toArray(new String[0]);
+            Arrays.sort(sortedChildren);
+        }
+        sortedChildrenUpdates = 0;
+        return sortedChildren;
+    }
+
+    /**
+     * Insert or remove a child in a copy of the sorted children, as the
+     * array may be in use by a paged listing.
+     */
+    private void updateSortedChildren(String child, boolean added) {
+        if (sortedChildren == null) {
+            return;
+        }
+        if (++sortedChildrenUpdates > MAX_SORTED_CHILDREN_UPDATES) {
+            sortedChildren = null;
+            return;
+        }
+        String[] sorted = sortedChildren;
+        int i = Arrays.binarySearch(sorted, child);
+        String[] updated;
+        if (added) {
+            i = -i - 1;
+            updated = new String[sorted.length + 1];
+            System.arraycopy(sorted, 0, updated, 0, i);
+            updated[i] = child;
+            System.arraycopy(sorted, i, updated, i + 1, sorted.length - i);
+        } else {
+            updated = new String[sorted.length - 1];
+            System.arraycopy(sorted, 0, updated, 0, i);
+            System.arraycopy(sorted, i + 1, updated, i, sorted.length - i - 1);
+        }
+        sortedChildren = updated;
+    }
+
     public synchronized void copyStat(Stat to) {
         to.setAversion(stat.getAversion());
         to.setCtime(stat.getCtime());
@@ -151,7 +253,7 @@ public synchronized void copyStat(Stat to) {
         to.setPzxid(stat.getPzxid());
         to.setVersion(stat.getVersion());
         to.setEphemeralOwner(getClientEphemeralOwner(stat));
-        to.setDataLength(data == null ? 0 : data.length);
+        to.setDataLength(getDataLength());
         int numChildren = 0;
         if (this.children != null) {
             numChildren = children.size();
@@ -182,7 +284,7 @@ public synchronized void deserialize(InputArchive archive, String tag) throws IO
 
     public synchronized void serialize(OutputArchive archive, String tag) throws IOException {
         archive.startRecord(this, "node");
-        archive.writeBuffer(data, "data");
+        archive.writeBuffer(getData(), "data");
         archive.writeLong(acl, "acl");
         stat.serialize(archive, "statpersisted");
         archive.endRecord(this, "node");
@@ -205,7 +307,52 @@ public void setDigest(long digest) {
     }
 
     public synchronized byte[] getData() {
-        return data;
+        return payloadHandle != 0 ? payloadStore.read(payloadHandle) : data;
+    }
+
+    /**
+     * @return the length of the data, without copying it out of the payload store
+     */
+    public synchronized int getDataLength() {
+        if (payloadHandle != 0) {
+            return payloadStore.length(payloadHandle);
+        }
+        return data == null ? 0 : data.length;
+    }
+
+    synchronized void setData(byte[] data) {
+        releasePayload();
+        if (payloadStore != null && payloadStore.accepts(data)) {
+            payloadHandle = payloadStore.allocate(data);
+            this.data = null;
+        } else {
+            this.data = data;
+        }
+    }
+
+    /**
+     * Move the data of this node into the given store. Nothing is done if the
+     * node already uses it.
+     */
+    synchronized void storePayload(OffHeapPayloadStore store) {
+        if (payloadStore == store) {
+            return;
+        }
+        byte[] current = getData();
+        releasePayload();
+        payloadStore = store;
+        setData(current);
+    }
+
+    /**
+     * Free the data kept in the payload store, once the node has been removed
+     * from the tree. The node has no data afterwards.
+     */
+    synchronized void releasePayload() {
+        if (payloadHandle != 0) {
+            payloadStore.free(payloadHandle);
+            payloadHandle = 0;
+        }
     }
 
 }
@@ -22,7 +22,10 @@
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -31,8 +34,11 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
@@ -60,6 +66,7 @@
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.data.StatPersisted;
 import org.apache.zookeeper.server.watch.IWatchManager;
+import org.apache.zookeeper.server.watch.NotificationDispatcher;
 import org.apache.zookeeper.server.watch.WatchManagerFactory;
 import org.apache.zookeeper.server.watch.WatcherMode;
 import org.apache.zookeeper.server.watch.WatcherOrBitSet;
@@ -108,6 +115,9 @@ public class DataTree {
 
     private IWatchManager childWatches;
 
+    // delivers the events triggered to the watchers, null to deliver them inline
+    private NotificationDispatcher notificationDispatcher;
+
     /** cached total size of paths and data for all DataNodes */
     private final AtomicLong nodeDataSize = new AtomicLong(0);
 
@@ -244,7 +254,7 @@ public long approximateDataSize() {
         for (Map.Entry<String, DataNode> entry : nodes.entrySet()) {
             DataNode value = entry.getValue();
             synchronized (value) {
-                result += getNodeSize(entry.getKey(), value.data);
+                result += getNodeSize(entry.getKey(), value.getDataLength());
             }
         }
         return result;
@@ -254,7 +264,11 @@ public long approximateDataSize() {
      * Get the size of the node based on path and data length.
      */
     private static long getNodeSize(String path, byte[] data) {
-        return (path == null ? 0 : path.length()) + (data == null ? 0 : data.length);
+        return getNodeSize(path, data == null ? 0 : data.length);
+    }
+
+    private static long getNodeSize(String path, int dataLength) {
+        return (path == null ? 0 : path.length()) + dataLength;
     }
 
     public long cachedApproximateDataSize() {
@@ -303,6 +317,9 @@ public DataTree() {
         try {
             dataWatches = WatchManagerFactory.createWatchManager();
             childWatches = WatchManagerFactory.createWatchManager();
+            notificationDispatcher = NotificationDispatcher.create();
+            dataWatches.setNotificationDispatcher(notificationDispatcher);
+            childWatches.setNotificationDispatcher(notificationDispatcher);
         } catch (Exception e) {
             LOG.error("Unexpected exception when creating WatchManager, exiting abnormally", e);
             ServiceUtils.requestSystemExit(ExitCode.UNEXPECTED_ERROR.getValue());
@@ -391,10 +408,10 @@ public void updateCountBytes(String lastPrefix, long bytesDiff, int countDiff) {
             return;
         }
         synchronized (node) {
-            updatedStat = new StatsTrack(new String(node.data));
+            updatedStat = new StatsTrack(new String(node.getData()));
             updatedStat.setCount(updatedStat.getCount() + countDiff);
             updatedStat.setBytes(updatedStat.getBytes() + bytesDiff);
-            node.data = updatedStat.toString().getBytes();
+            node.setData(updatedStat.toString().getBytes());
         }
         // now check if the counts match the quota
         String quotaNode = Quotas.quotaPath(lastPrefix);
@@ -406,7 +423,7 @@ public void updateCountBytes(String lastPrefix, long bytesDiff, int countDiff) {
             return;
         }
         synchronized (node) {
-            thisStats = new StatsTrack(new String(node.data));
+            thisStats = new StatsTrack(new String(node.getData()));
         }
         if (thisStats.getCount() > -1 && (thisStats.getCount() < updatedStat.getCount())) {
             LOG.warn(
@@ -509,7 +526,7 @@ public void createNode(final String path, byte[] data, List<ACL> acl, long ephem
             DataNode child = new DataNode(data, longval, stat);
             parent.addChild(childName);
             nodes.postChange(parentName, parent);
-            nodeDataSize.addAndGet(getNodeSize(path, child.data));
+            nodeDataSize.addAndGet(getNodeSize(path, child.getDataLength()));
             nodes.put(path, child);
             EphemeralType ephemeralType = EphemeralType.get(ephemeralOwner);
             if (ephemeralType == EphemeralType.CONTAINER) {
@@ -550,8 +567,8 @@ public void createNode(final String path, byte[] data, List<ACL> acl, long ephem
             updateCountBytes(lastPrefix, bytes, 1);
         }
         updateWriteStat(path, bytes);
-        dataWatches.triggerWatch(path, Event.EventType.NodeCreated);
-        childWatches.triggerWatch(parentName.equals("") ? "/" : parentName, Event.EventType.NodeChildrenChanged);
+        dataWatches.triggerWatch(path, Event.EventType.NodeCreated, zxid, null);
+        childWatches.triggerWatch(parentName.equals("") ? "/" : parentName, Event.EventType.NodeChildrenChanged, zxid, null);
     }
 
     /**
@@ -591,10 +608,12 @@ public void deleteNode(String path, long zxid) throws KeeperException.NoNodeExce
         if (node == null) {
             throw new KeeperException.NoNodeException();
         }
+        // the map releases the data of the node once it is removed
+        int dataLength = node.getDataLength();
         nodes.remove(path);
         synchronized (node) {
             aclCache.removeUsage(node.acl);
-            nodeDataSize.addAndGet(-getNodeSize(path, node.data));
+            nodeDataSize.addAndGet(-getNodeSize(path, dataLength));
         }
 
         // Synchronized to sync the containers and ttls change, probably
@@ -627,11 +646,7 @@ public void deleteNode(String path, long zxid) throws KeeperException.NoNodeExce
         String lastPrefix = getMaxPrefixWithQuota(path);
         if (lastPrefix != null) {
             // ok we have some match and need to update
-            int bytes = 0;
-            synchronized (node) {
-                bytes = (node.data == null ? 0 : -(node.data.length));
-            }
-            updateCountBytes(lastPrefix, bytes, -1);
+            updateCountBytes(lastPrefix, -dataLength, -1);
         }
 
         updateWriteStat(path, 0L);
@@ -647,9 +662,9 @@ public void deleteNode(String path, long zxid) throws KeeperException.NoNodeExce
                 "childWatches.triggerWatch " + parentName);
         }
 
-        WatcherOrBitSet processed = dataWatches.triggerWatch(path, EventType.NodeDeleted);
-        childWatches.triggerWatch(path, EventType.NodeDeleted, processed);
-        childWatches.triggerWatch("".equals(parentName) ? "/" : parentName, EventType.NodeChildrenChanged);
+        WatcherOrBitSet processed = dataWatches.triggerWatch(path, EventType.NodeDeleted, zxid, null);
+        childWatches.triggerWatch(path, EventType.NodeDeleted, zxid, processed);
+        childWatches.triggerWatch("".equals(parentName) ? "/" : parentName, EventType.NodeChildrenChanged, zxid, null);
     }
 
     public Stat setData(String path, byte[] data, int version, long zxid, long time) throws KeeperException.NoNodeException {
@@ -660,9 +675,9 @@ public Stat setData(String path, byte[] data, int version, long zxid, long time)
         }
         byte[] lastdata = null;
         synchronized (n) {
-            lastdata = n.data;
+            lastdata = n.getData();
             nodes.preChange(path, n);
-            n.data = data;
+            n.setData(data);
             n.stat.setMtime(time);
             n.stat.setMzxid(zxid);
             n.stat.setVersion(version);
@@ -678,7 +693,7 @@ public Stat setData(String path, byte[] data, int version, long zxid, long time)
         nodeDataSize.addAndGet(getNodeSize(path, data) - getNodeSize(path, lastdata));
 
         updateWriteStat(path, dataBytes);
-        dataWatches.triggerWatch(path, EventType.NodeDataChanged);
+        dataWatches.triggerWatch(path, EventType.NodeDataChanged, zxid, null);
         return s;
     }
 
@@ -718,7 +733,7 @@ public byte[] getData(String path, Stat stat, Watcher watcher) throws KeeperExce
             if (watcher != null) {
                 dataWatches.addWatch(path, watcher);
             }
-            data = n.data;
+            data = n.getData();
         }
         updateReadStat(path, data == null ? 0 : data.length);
         return data;
@@ -740,6 +755,10 @@ public Stat statNode(String path, Watcher watcher) throws KeeperException.NoNode
         return stat;
     }
 
+    /**
+     * @return the children of the node, in an immutable list shared by all
+     *         readers until the children change
+     */
     public List<String> getChildren(String path, Stat stat, Watcher watcher) throws KeeperException.NoNodeException {
         DataNode n = nodes.get(path);
         if (n == null) {
@@ -750,7 +769,7 @@ public List<String> getChildren(String path, Stat stat, Watcher watcher) throws
             if (stat != null) {
                 n.copyStat(stat);
             }
-            children = new ArrayList<String>(n.getChildren());
+            children = n.getChildrenList();
 
             if (watcher != null) {
                 childWatches.addWatch(path, watcher);
@@ -766,6 +785,55 @@ public List<String> getChildren(String path, Stat stat, Watcher watcher) throws
         return children;
     }
 
+    /**
+     * Get a page of the children of a node, in lexicographic order.
+     *
+     * @param startAfter only the children sorting after this name are
+     *                   returned, the empty string starts from the first child
+     * @param maxCount maximum number of children in the page
+     * @param maxBytes bound on the serialized size of the names in the page,
+     *                 the page holds at least one child nonetheless, as it
+     *                 does when maxCount is less than one
+     * @param page receives the children of the page
+     * @return the name to pass as startAfter to get the next page, or the
+     *         empty string if the page ends with the last child
+     */
+    public String getChildrenPage(
+        String path,
+        String startAfter,
+        int maxCount,
+        int maxBytes,
+        List<String> page,
+        Stat stat) throws KeeperException.NoNodeException {
+        DataNode n = nodes.get(path);
+        if (n == null) {
+            throw new KeeperException.NoNodeException();
+        }
+        String[] sorted;
+        synchronized (n) {
+            if (stat != null) {
+                n.copyStat(stat);
+            }
+            sorted = n.getSortedChildren();
+        }
+
+        int i = Arrays.binarySearch(sorted, startAfter);
+        i = i >= 0 ? i + 1 : -i - 1;
+        int bytes = 0;
+        while (i < sorted.length && (page.isEmpty() || page.size() < maxCount)) {
+            // the UTF-8 bytes of the name, after its length
+            int childBytes = sorted[i].getBytes(StandardCharsets.UTF_8).length + 4;
+            if (!page.isEmpty() && bytes + childBytes > maxBytes) {
+                break;
+            }
+            bytes += childBytes;
+            page.add(sorted[i++]);
+        }
+        updateReadStat(path, bytes);
+
+        return i < sorted.length ? page.get(page.size() - 1) : "";
+    }
+
     public int getAllChildrenNumber(String path) {
         //cull out these two keys:"", "/"
         if ("/".equals(path)) {
@@ -1229,7 +1297,7 @@ private void getCounts(String path, Counts counts) {
         synchronized (node) {
             Set<String> childs = node.getChildren();
             children = childs.toArray(new String[childs.size()]);
-            len = (node.data == null ? 0 : node.data.length);
+            len = node.getDataLength();
         }
         // add itself
         counts.count += 1;
@@ -1260,7 +1328,7 @@ private void updateQuotaForPath(String path) {
         }
         synchronized (node) {
             nodes.preChange(statPath, node);
-            node.data = strack.toString().getBytes();
+            node.setData(strack.toString().getBytes());
             nodes.postChange(statPath, node);
         }
     }
@@ -1320,6 +1388,10 @@ private void setupQuota() {
      * @throws IOException
      */
     void serializeNode(OutputArchive oa, StringBuilder path) throws IOException {
+        serializeNode(oa, path, null);
+    }
+
+    private void serializeNode(OutputArchive oa, StringBuilder path, SnapshotChunks.Writer chunks) throws IOException {
         String pathString = path.toString();
         DataNode node = getNode(pathString);
         if (node == null) {
@@ -1330,13 +1402,18 @@ void serializeNode(OutputArchive oa, StringBuilder path) throws IOException {
         synchronized (node) {
             StatPersisted statCopy = new StatPersisted();
             copyStatPersisted(node.stat, statCopy);
-            //we do not need to make a copy of node.data because the contents
+            //we do not need to make a copy of on-heap data because the contents
             //are never changed
-            nodeCopy = new DataNode(node.data, node.acl, statCopy);
+            nodeCopy = new DataNode(node.getData(), node.acl, statCopy);
             Set<String> childs = node.getChildren();
             children = childs.toArray(new String[childs.size()]);
         }
-        serializeNodeData(oa, pathString, nodeCopy);
+        if (chunks == null) {
+            serializeNodeData(oa, pathString, nodeCopy);
+        } else {
+            serializeNodeData(chunks.getNodeArchive(), pathString, nodeCopy);
+            chunks.endNode();
+        }
         path.append('/');
         int off = path.length();
         for (String child : children) {
@@ -1345,7 +1422,7 @@ void serializeNode(OutputArchive oa, StringBuilder path) throws IOException {
             // to truncate the previous bytes of string.
             path.delete(off, Integer.MAX_VALUE);
             path.append(child);
-            serializeNode(oa, path);
+            serializeNode(oa, path, chunks);
         }
     }
 
@@ -1432,6 +1509,122 @@ public void deserialize(InputArchive ia, String tag) throws IOException {
         aclCache.purgeUnused();
     }
 
+    /**
+     * Serialize the tree with its nodes grouped into chunks, which
+     * {@link #deserializeChunked(InputArchive, int)} decodes in parallel.
+     */
+    public void serializeChunked(OutputArchive oa) throws IOException {
+        serializeAcls(oa);
+        SnapshotChunks.Writer chunks = new SnapshotChunks.Writer(oa);
+        serializeNode(oa, new StringBuilder(), chunks);
+        chunks.finish();
+    }
+
+    /**
+     * Deserialize a tree written by {@link #serializeChunked(OutputArchive)}.
+     *
+     * The chunks are decoded by a pool of threads while the next ones are
+     * read, and added to the tree in order by the reading thread. Nodes are
+     * linked to their parents once they are all in the tree, which is done
+     * in parallel too.
+     *
+     * @param parallelism the number of threads decoding the chunks
+     */
+    public void deserializeChunked(InputArchive ia, int parallelism) throws IOException {
+        aclCache.deserialize(ia);
+        nodes.clear();
+        pTrie.clear();
+        nodeDataSize.set(0);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<SnapshotChunks.Chunk> chunks = new ArrayList<>();
+            // bounds the chunks held in memory
+            Queue<Future<SnapshotChunks.Chunk>> decoding = new ArrayDeque<>();
+            int count = ia.readInt("count");
+            while (count > 0) {
+                final byte[] bytes = ia.readBuffer("chunk");
+                final int chunkCount = count;
+                decoding.add(pool.submit(() -> SnapshotChunks.decode(bytes, chunkCount, digestCalculator)));
+                if (decoding.size() > 2 * parallelism) {
+                    chunks.add(addChunk(SnapshotChunks.await(decoding.poll())));
+                }
+                count = ia.readInt("count");
+            }
+            while (!decoding.isEmpty()) {
+                chunks.add(addChunk(SnapshotChunks.await(decoding.poll())));
+            }
+
+            List<Future<Void>> linking = new ArrayList<>(chunks.size());
+            for (SnapshotChunks.Chunk chunk : chunks) {
+                linking.add(pool.submit(() -> {
+                    linkChunk(chunk);
+                    return null;
+                }));
+            }
+            for (Future<Void> linked : linking) {
+                SnapshotChunks.await(linked);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        // have counted digest for root node with "", ignore here to avoid
+        // counting twice for root node
+        nodes.putWithoutDigest("/", root);
+
+        nodeDataSize.set(approximateDataSize());
+
+        setupQuota();
+
+        aclCache.purgeUnused();
+    }
+
+    private SnapshotChunks.Chunk addChunk(SnapshotChunks.Chunk chunk) {
+        for (int i = 0; i < chunk.paths.length; i++) {
+            DataNode node = chunk.nodes[i];
+            nodes.put(chunk.paths[i], node);
+            synchronized (node) {
+                aclCache.addUsage(node.acl);
+            }
+            if (chunk.paths[i].lastIndexOf('/') == -1) {
+                root = node;
+            }
+        }
+        return chunk;
+    }
+
+    private void linkChunk(SnapshotChunks.Chunk chunk) throws IOException {
+        for (int i = 0; i < chunk.paths.length; i++) {
+            String path = chunk.paths[i];
+            int lastSlash = path.lastIndexOf('/');
+            if (lastSlash == -1) {
+                continue;
+            }
+            String parentPath = path.substring(0, lastSlash);
+            DataNode parent = nodes.get(parentPath);
+            if (parent == null) {
+                throw new IOException("Invalid Datatree, unable to find "
+                                      + "parent "
+                                      + parentPath
+                                      + " of path "
+                                      + path);
+            }
+            parent.addChild(path.substring(lastSlash + 1));
+            long eowner = chunk.nodes[i].stat.getEphemeralOwner();
+            EphemeralType ephemeralType = EphemeralType.get(eowner);
+            if (ephemeralType == EphemeralType.CONTAINER) {
+                containers.add(path);
+            } else if (ephemeralType == EphemeralType.TTL) {
+                ttls.add(path);
+            } else if (eowner != 0) {
+                // chunks are linked in parallel
+                HashSet<String> list = ephemerals.computeIfAbsent(eowner, k -> new HashSet<String>());
+                synchronized (list) {
+                    list.add(path);
+                }
+            }
+        }
+    }
+
     /**
      * Summary of the watches on the datatree.
      * @param pwriter the output to write to
@@ -1502,6 +1695,20 @@ public void dumpEphemerals(PrintWriter pwriter) {
     public void shutdownWatcher() {
         dataWatches.shutdown();
         childWatches.shutdown();
+        if (notificationDispatcher != null) {
+            notificationDispatcher.shutdown();
+        }
+    }
+
+    /**
+     * Deliver an event to a watcher in order with the events triggered.
+     */
+    private void process(Watcher watcher, WatchedEvent event) {
+        if (notificationDispatcher == null) {
+            watcher.process(event);
+        } else {
+            notificationDispatcher.dispatch(watcher, event);
+        }
     }
 
     /**
@@ -1530,9 +1737,9 @@ public void setWatches(long relativeZxid, List<String> dataWatches, List<String>
             DataNode node = getNode(path);
             WatchedEvent e = null;
             if (node == null) {
-                watcher.process(new WatchedEvent(EventType.NodeDeleted, KeeperState.SyncConnected, path));
+                process(watcher, new WatchedEvent(EventType.NodeDeleted, KeeperState.SyncConnected, path));
             } else if (node.stat.getMzxid() > relativeZxid) {
-                watcher.process(new WatchedEvent(EventType.NodeDataChanged, KeeperState.SyncConnected, path));
+                process(watcher, new WatchedEvent(EventType.NodeDataChanged, KeeperState.SyncConnected, path));
             } else {
                 this.dataWatches.addWatch(path, watcher);
             }
@@ -1540,7 +1747,7 @@ public void setWatches(long relativeZxid, List<String> dataWatches, List<String>
         for (String path : existWatches) {
             DataNode node = getNode(path);
             if (node != null) {
-                watcher.process(new WatchedEvent(EventType.NodeCreated, KeeperState.SyncConnected, path));
+                process(watcher, new WatchedEvent(EventType.NodeCreated, KeeperState.SyncConnected, path));
             } else {
                 this.dataWatches.addWatch(path, watcher);
             }
@@ -1548,9 +1755,9 @@ public void setWatches(long relativeZxid, List<String> dataWatches, List<String>
         for (String path : childWatches) {
             DataNode node = getNode(path);
             if (node == null) {
-                watcher.process(new WatchedEvent(EventType.NodeDeleted, KeeperState.SyncConnected, path));
+                process(watcher, new WatchedEvent(EventType.NodeDeleted, KeeperState.SyncConnected, path));
             } else if (node.stat.getPzxid() > relativeZxid) {
-                watcher.process(new WatchedEvent(EventType.NodeChildrenChanged, KeeperState.SyncConnected, path));
+                process(watcher, new WatchedEvent(EventType.NodeChildrenChanged, KeeperState.SyncConnected, path));
             } else {
                 this.childWatches.addWatch(path, watcher);
             }
@@ -1623,6 +1830,15 @@ public boolean containsWatcher(String path, WatcherType type, Watcher watcher) {
         return containsWatcher;
     }
 
+    /**
+     * @return the mode of the data watch of the watcher on the path, null if
+     *         it has none. Persistent watches are data and child watches of
+     *         the same mode.
+     */
+    public WatcherMode getWatcherMode(String path, Watcher watcher) {
+        return dataWatches.getWatcherMode(path, watcher);
+    }
+
     public boolean removeWatch(String path, WatcherType type, Watcher watcher) {
         boolean removed = false;
         switch (type) {
@@ -1860,6 +2076,14 @@ public long getTreeDigest() {
         return nodes.getDigest();
     }
 
+    /**
+     * @return the store holding the data of the nodes off-heap, or null if
+     *         the data is kept on the heap
+     */
+    public OffHeapPayloadStore getPayloadStore() {
+        return nodes instanceof NodeHashMapImpl ? ((NodeHashMapImpl) nodes).getPayloadStore() : null;
+    }
+
     public ZxidDigest getLastProcessedZxidDigest() {
         return lastProcessedZxidDigest;
     }
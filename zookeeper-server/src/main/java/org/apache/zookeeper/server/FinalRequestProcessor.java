@@ -26,6 +26,7 @@
 import java.util.Locale;
 import java.util.Set;
 import org.apache.commons.lang.StringUtils;
+import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.ClientCnxn;
 import org.apache.zookeeper.KeeperException;
@@ -63,6 +64,8 @@
 import org.apache.zookeeper.proto.GetAllChildrenNumberResponse;
 import org.apache.zookeeper.proto.GetChildren2Request;
 import org.apache.zookeeper.proto.GetChildren2Response;
+import org.apache.zookeeper.proto.GetChildrenPagedRequest;
+import org.apache.zookeeper.proto.GetChildrenPagedResponse;
 import org.apache.zookeeper.proto.GetChildrenRequest;
 import org.apache.zookeeper.proto.GetChildrenResponse;
 import org.apache.zookeeper.proto.GetDataRequest;
@@ -165,6 +168,8 @@ public void processRequest(Request request) {
         Code err = Code.OK;
         Record rsp = null;
         String path = null;
+        // Stat identifying the version of a cacheable read response, see ResponseCache.
+        Stat cacheStat = null;
         try {
             if (request.getHdr() != null && request.getHdr().getType() == OpCode.error) {
                 AuditHelper.addAuditLog(request, rc, true);
@@ -264,7 +269,7 @@ public void processRequest(Request request) {
                         Record rec;
                         switch (readOp.getType()) {
                         case OpCode.getChildren:
-                            rec = handleGetChildrenRequest(readOp.toRequestRecord(), cnxn, request.authInfo);
+                            rec = handleGetChildrenRequest(readOp.toRequestRecord(), cnxn, request.authInfo, null);
                             subResult = new GetChildrenResult(((GetChildrenResponse) rec).getChildren());
                             break;
                         case OpCode.getData:
@@ -357,6 +362,7 @@ public void processRequest(Request request) {
                 }
                 Stat stat = zks.getZKDatabase().statNode(path, existsRequest.getWatch() ? cnxn : null);
                 rsp = new ExistsResponse(stat);
+                cacheStat = stat;
                 requestPathMetricsCollector.registerRequest(request.type, path);
                 break;
             }
@@ -366,6 +372,7 @@ public void processRequest(Request request) {
                 ByteBufferInputStream.byteBuffer2Record(request.request, getDataRequest);
                 path = getDataRequest.getPath();
                 rsp = handleGetDataRequest(getDataRequest, cnxn, request.authInfo);
+                cacheStat = ((GetDataResponse) rsp).getStat();
                 requestPathMetricsCollector.registerRequest(request.type, path);
                 break;
             }
@@ -440,6 +447,8 @@ public void processRequest(Request request) {
                         path,
                         null);
                     rsp = new GetACLResponse(acl, stat);
+                    // only responses which are not redacted can be shared
+                    cacheStat = stat;
                 } catch (KeeperException.NoAuthException e) {
                     List<ACL> acl1 = new ArrayList<ACL>(acl.size());
                     for (ACL a : acl) {
@@ -460,7 +469,8 @@ public void processRequest(Request request) {
                 GetChildrenRequest getChildrenRequest = new GetChildrenRequest();
                 ByteBufferInputStream.byteBuffer2Record(request.request, getChildrenRequest);
                 path = getChildrenRequest.getPath();
-                rsp = handleGetChildrenRequest(getChildrenRequest, cnxn, request.authInfo);
+                cacheStat = new Stat();
+                rsp = handleGetChildrenRequest(getChildrenRequest, cnxn, request.authInfo, cacheStat);
                 requestPathMetricsCollector.registerRequest(request.type, path);
                 break;
             }
@@ -480,6 +490,10 @@ public void processRequest(Request request) {
                     request.authInfo,
                     path,
                     null);
+                // The count covers the whole subtree, so the cached response
+                // is invalidated by any write rather than by the node stat.
+                cacheStat = new Stat();
+                cacheStat.setMzxid(zks.getZKDatabase().getDataTreeLastProcessedZxid());
                 int number = zks.getZKDatabase().getAllChildrenNumber(path);
                 rsp = new GetAllChildrenNumberResponse(number);
                 break;
@@ -503,6 +517,41 @@ public void processRequest(Request request) {
                 List<String> children = zks.getZKDatabase()
                                            .getChildren(path, stat, getChildren2Request.getWatch() ? cnxn : null);
                 rsp = new GetChildren2Response(children, stat);
+                cacheStat = stat;
+                requestPathMetricsCollector.registerRequest(request.type, path);
+                break;
+            }
+            case OpCode.getChildrenPaged: {
+                lastOp = "GETP";
+                GetChildrenPagedRequest getChildrenPagedRequest = new GetChildrenPagedRequest();
+                ByteBufferInputStream.byteBuffer2Record(request.request, getChildrenPagedRequest);
+                Stat stat = new Stat();
+                path = getChildrenPagedRequest.getPath();
+                DataNode n = zks.getZKDatabase().getNode(path);
+                if (n == null) {
+                    throw new KeeperException.NoNodeException();
+                }
+                zks.checkACL(
+                    request.cnxn,
+                    zks.getZKDatabase().aclForNode(n),
+                    ZooDefs.Perms.READ,
+                    request.authInfo, path,
+                    null);
+                int maxCount = getChildrenPagedRequest.getMaxCount();
+                if (maxCount <= 0 || maxCount > ZooKeeperServer.getMaxChildrenPageSize()) {
+                    maxCount = ZooKeeperServer.getMaxChildrenPageSize();
+                }
+                String startAfter = getChildrenPagedRequest.getStartAfter();
+                List<String> children = new ArrayList<>(Math.min(maxCount, 1024));
+                // keep the page well below the buffer limit of the client
+                String nextStartAfter = zks.getZKDatabase().getChildrenPage(
+                    path,
+                    startAfter == null ? "" : startAfter,
+                    maxCount,
+                    BinaryInputArchive.maxBuffer / 2,
+                    children,
+                    stat);
+                rsp = new GetChildrenPagedResponse(children, nextStartAfter, stat);
                 requestPathMetricsCollector.registerRequest(request.type, path);
                 break;
             }
@@ -585,31 +634,15 @@ public void processRequest(Request request) {
 
         updateStats(request, lastOp, lastZxid);
 
+        cnxn.waitForQueuedNotifications();
         try {
-            if (path == null || rsp == null) {
+            if (path == null || rsp == null || cacheStat == null) {
                 cnxn.sendResponse(hdr, rsp, "response");
             } else {
-                int opCode = request.type;
-                Stat stat = null;
-                // Serialized read and get children responses could be cached by the connection
-                // object. Cache entries are identified by their path and last modified zxid,
+                // Serialized read responses could be cached by the connection
+                // object. Cache entries are identified by their path and stat,
                 // so these values are passed along with the response.
-                switch (opCode) {
-                    case OpCode.getData : {
-                        GetDataResponse getDataResponse = (GetDataResponse) rsp;
-                        stat = getDataResponse.getStat();
-                        cnxn.sendResponse(hdr, rsp, "response", path, stat, opCode);
-                        break;
-                    }
-                    case OpCode.getChildren2 : {
-                        GetChildren2Response getChildren2Response = (GetChildren2Response) rsp;
-                        stat = getChildren2Response.getStat();
-                        cnxn.sendResponse(hdr, rsp, "response", path, stat, opCode);
-                        break;
-                    }
-                    default:
-                        cnxn.sendResponse(hdr, rsp, "response");
-                }
+                cnxn.sendResponse(hdr, rsp, "response", path, cacheStat, request.type);
             }
 
             if (request.type == OpCode.closeSession) {
@@ -620,7 +653,7 @@ public void processRequest(Request request) {
         }
     }
 
-    private Record handleGetChildrenRequest(Record request, ServerCnxn cnxn, List<Id> authInfo) throws KeeperException, IOException {
+    private Record handleGetChildrenRequest(Record request, ServerCnxn cnxn, List<Id> authInfo, Stat stat) throws KeeperException, IOException {
         GetChildrenRequest getChildrenRequest = (GetChildrenRequest) request;
         String path = getChildrenRequest.getPath();
         DataNode n = zks.getZKDatabase().getNode(path);
@@ -629,7 +662,7 @@ private Record handleGetChildrenRequest(Record request, ServerCnxn cnxn, List<Id
         }
         zks.checkACL(cnxn, zks.getZKDatabase().aclForNode(n), ZooDefs.Perms.READ, authInfo, path, null);
         List<String> children = zks.getZKDatabase()
-                                   .getChildren(path, null, getChildrenRequest.getWatch() ? cnxn : null);
+                                   .getChildren(path, stat, getChildrenRequest.getWatch() ? cnxn : null);
         return new GetChildrenResponse(children);
     }
 
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+/**
+ * Decides when the SyncRequestProcessor flushes a batch of transactions in
+ * adaptive group commit mode.
+ *
+ * The commit latency of a transaction is the time it waits for its batch to
+ * be flushed plus the duration of the fsync. The policy estimates a high
+ * percentile of the fsync duration from a smoothed mean and mean deviation,
+ * the way TCP estimates its retransmission timeout, and lets a batch grow
+ * until its oldest transaction would miss the target latency. It also
+ * flushes right away when the measured arrival rate makes it unlikely that
+ * another transaction joins the batch before that deadline, so a lone write
+ * doesn't wait for nothing.
+ *
+ * Not thread safe, only used by the sync thread.
+ */
+class GroupCommitPolicy {
+
+    // gains of the smoothed mean and deviation, as in RFC 6298
+    private static final int MEAN_SHIFT = 3;
+    private static final int DEVIATION_SHIFT = 2;
+    // deviations added to the mean fsync duration to estimate its high percentile
+    private static final int DEVIATIONS = 4;
+
+    private long fsyncNanos;
+    private long fsyncDeviationNanos;
+    private boolean fsyncMeasured;
+
+    private long arrivalGapNanos = -1;
+    private long lastArrivalNanos;
+
+    // arrival of the oldest transaction of the current batch, if any
+    private long batchStartNanos;
+    private boolean batchOpen;
+
+    /**
+     * Record a transaction added to the batch.
+     */
+    void onArrival(long nowNanos, long targetNanos) {
+        if (lastArrivalNanos != 0) {
+            // any gap longer than the target means the same, so clamp it to
+            // recover quickly from idle periods
+            long gap = Math.min(nowNanos - lastArrivalNanos, targetNanos);
+            arrivalGapNanos = arrivalGapNanos < 0 ? gap : arrivalGapNanos + ((gap - arrivalGapNanos) >> MEAN_SHIFT);
+        }
+        lastArrivalNanos = nowNanos;
+        if (!batchOpen) {
+            batchOpen = true;
+            batchStartNanos = nowNanos;
+        }
+    }
+
+    /**
+     * Record the duration of the fsync of a batch, which closes the batch.
+     */
+    void onFlush(long durationNanos) {
+        onFsync(durationNanos);
+        closeBatch();
+    }
+
+    /**
+     * Close the current batch, handed over for an fsync still to complete.
+     */
+    void closeBatch() {
+        batchOpen = false;
+    }
+
+    /**
+     * Record the duration of the fsync of a batch, once it completed.
+     */
+    void onFsync(long durationNanos) {
+        if (!fsyncMeasured) {
+            fsyncMeasured = true;
+            fsyncNanos = durationNanos;
+            fsyncDeviationNanos = durationNanos / 2;
+        } else {
+            long error = durationNanos - fsyncNanos;
+            fsyncNanos += error >> MEAN_SHIFT;
+            fsyncDeviationNanos += (Math.abs(error) - fsyncDeviationNanos) >> DEVIATION_SHIFT;
+        }
+    }
+
+    /**
+     * @return the estimated high percentile of the fsync duration
+     */
+    long getFsyncEstimateNanos() {
+        return fsyncNanos + DEVIATIONS * fsyncDeviationNanos;
+    }
+
+    /**
+     * @return the smoothed time between transactions, or -1 before two
+     *         transactions arrived
+     */
+    long getArrivalGapNanos() {
+        return arrivalGapNanos;
+    }
+
+    /**
+     * @return how much longer the current batch can wait for more
+     *         transactions before being flushed
+     */
+    long getSlackNanos(long nowNanos, long targetNanos) {
+        if (!batchOpen) {
+            return 0;
+        }
+        return batchStartNanos + targetNanos - getFsyncEstimateNanos() - nowNanos;
+    }
+
+    /**
+     * @return how long to wait for the next transaction before flushing the
+     *         current batch, 0 to flush it now
+     */
+    long getPollTimeNanos(long nowNanos, long targetNanos) {
+        long slack = getSlackNanos(nowNanos, targetNanos);
+        if (slack <= 0 || arrivalGapNanos < 0 || arrivalGapNanos > slack) {
+            return 0;
+        }
+        return slack;
+    }
+
+    /**
+     * @return true if the current batch must be flushed to meet the target
+     */
+    boolean shouldFlush(long nowNanos, long targetNanos) {
+        return batchOpen && getSlackNanos(nowNanos, targetNanos) <= 0;
+    }
+
+}
@@ -29,18 +29,17 @@
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.Record;
-import org.apache.zookeeper.ClientCnxn;
 import org.apache.zookeeper.WatchedEvent;
-import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.proto.ReplyHeader;
-import org.apache.zookeeper.proto.WatcherEvent;
 import org.apache.zookeeper.server.NIOServerCnxnFactory.SelectorThread;
 import org.apache.zookeeper.server.command.CommandExecutor;
 import org.apache.zookeeper.server.command.FourLetterCommands;
@@ -71,6 +70,9 @@ public class NIOServerCnxn extends ServerCnxn {
 
     private ByteBuffer incomingBuffer = lenBuffer;
 
+    // requests read in a batch after the connection got throttled
+    private volatile ByteBuffer queuedBuffer;
+
     private final Queue<ByteBuffer> outgoingBuffers = new LinkedBlockingQueue<ByteBuffer>();
 
     private int sessionTimeout;
@@ -137,6 +139,8 @@ public void sendBuffer(ByteBuffer... buffers) {
             LOG.trace("Add a buffer to outgoingBuffers, sk {} is valid: {}", sk, sk.isValid());
         }
 
+        flushCoalescedNotifications();
+
         synchronized (outgoingBuffers) {
             for (ByteBuffer buffer : buffers) {
                 outgoingBuffers.add(buffer);
@@ -301,6 +305,16 @@ void handleWrite(SelectionKey k) throws IOException {
                 outgoingBuffers.remove();
             }
         }
+
+        if (!isOutgoingBackedUp()) {
+            flushCoalescedNotifications();
+        }
+    }
+
+    @Override
+    protected boolean isOutgoingBackedUp() {
+        // a buffer and a sentinel for each reply
+        return outgoingBuffers.size() >= 2 * NIOServerCnxnFactory.getCoalesceBacklog();
     }
 
     /**
@@ -320,27 +334,38 @@ void doIO(SelectionKey k) throws InterruptedException {
 
                 return;
             }
-            if (k.isReadable()) {
-                int rc = sock.read(incomingBuffer);
-                if (rc < 0) {
-                    handleFailedRead();
+            if (queuedBuffer != null) {
+                // requests left over by a batch once throttled, processed
+                // before reading any further
+                if (!throttled.get()) {
+                    processRequests(queuedBuffer);
                 }
-                if (incomingBuffer.remaining() == 0) {
-                    boolean isPayload;
-                    if (incomingBuffer == lenBuffer) { // start of next request
-                        incomingBuffer.flip();
-                        isPayload = readLength(k);
-                        incomingBuffer.clear();
-                    } else {
-                        // continuation
-                        isPayload = true;
+            } else if (k.isReadable()) {
+                ByteBuffer readBuffer = NIOServerCnxnFactory.getReadBuffer();
+                if (readBuffer != null && initialized && incomingBuffer == lenBuffer && lenBuffer.position() == 0) {
+                    readRequests(readBuffer);
+                } else {
+                    int rc = sock.read(incomingBuffer);
+                    if (rc < 0) {
+                        handleFailedRead();
                     }
-                    if (isPayload) { // not the case for 4letterword
-                        readPayload();
-                    } else {
-                        // four letter words take care
-                        // need not do anything else
-                        return;
+                    if (incomingBuffer.remaining() == 0) {
+                        boolean isPayload;
+                        if (incomingBuffer == lenBuffer) { // start of next request
+                            incomingBuffer.flip();
+                            isPayload = readLength(k);
+                            incomingBuffer.clear();
+                        } else {
+                            // continuation
+                            isPayload = true;
+                        }
+                        if (isPayload) { // not the case for 4letterword
+                            readPayload();
+                        } else {
+                            // four letter words take care
+                            // need not do anything else
+                            return;
+                        }
                     }
                 }
             }
@@ -379,6 +404,89 @@ private void readRequest() throws IOException {
         zkServer.processPacket(this, incomingBuffer);
     }
 
+    /**
+     * Read as much as available from the socket into the read buffer of the
+     * thread, and process all the complete requests in it as a batch.
+     */
+    private void readRequests(ByteBuffer readBuffer) throws IOException {
+        readBuffer.clear();
+        int rc = sock.read(readBuffer);
+        if (rc < 0) {
+            handleFailedRead();
+        }
+        readBuffer.flip();
+        processRequests(readBuffer);
+    }
+
+    /**
+     * Process the complete requests in the buffer as a batch, up to the one
+     * throttling the connection, after which the rest of the buffer is
+     * queued until receiving is enabled again. Otherwise the incomplete
+     * request at the end of the buffer is kept in the length or the incoming
+     * buffer, and completed by the next reads.
+     */
+    private void processRequests(ByteBuffer buffer) throws IOException {
+        List<ByteBuffer> packets = new ArrayList<>();
+        IOException error = null;
+        while (buffer.remaining() >= 4) {
+            int len = buffer.getInt(buffer.position());
+            try {
+                checkRequestLength(len);
+            } catch (IOException e) {
+                error = e;
+                break;
+            }
+            if (buffer.remaining() - 4 < len) {
+                break;
+            }
+            buffer.position(buffer.position() + 4);
+            ByteBuffer packet = ByteBuffer.allocate(len);
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + len);
+            packet.put(buffer);
+            buffer.limit(limit);
+            packet.flip();
+            packets.add(packet);
+        }
+
+        int processed = packets.isEmpty() ? 0 : zkServer.processPackets(this, packets);
+        for (int i = 0; i < processed; i++) {
+            packetReceived(4 + packets.get(i).capacity());
+        }
+        if (processed < packets.size()) {
+            int unprocessed = 0;
+            for (int i = processed; i < packets.size(); i++) {
+                unprocessed += 4 + packets.get(i).capacity();
+            }
+            buffer.position(buffer.position() - unprocessed);
+            if (buffer != queuedBuffer) {
+                queuedBuffer = ByteBuffer.allocate(buffer.remaining());
+                queuedBuffer.put(buffer);
+                queuedBuffer.flip();
+            }
+            return;
+        }
+        queuedBuffer = null;
+        if (error != null) {
+            throw error;
+        }
+
+        if (buffer.remaining() >= 4) {
+            incomingBuffer = ByteBuffer.allocate(buffer.getInt());
+            incomingBuffer.put(buffer);
+        } else {
+            lenBuffer.put(buffer);
+        }
+    }
+
+    /**
+     * @return whether requests read in a batch are waiting for receiving to
+     *         be enabled again
+     */
+    boolean hasQueuedRequests() {
+        return queuedBuffer != null;
+    }
+
     // returns whether we are interested in writing, which is determined
     // by whether we have any pending buffers on the output queue or not
     private boolean getWriteInterest() {
@@ -393,6 +501,11 @@ private boolean getReadInterest() {
 
     private final AtomicBoolean throttled = new AtomicBoolean(false);
 
+    @Override
+    boolean isRecvDisabled() {
+        return throttled.get();
+    }
+
     // Throttle acceptance of new requests. If this entailed a state change,
     // register an interest op update request with the selector.
     //
@@ -537,6 +650,15 @@ private boolean readLength(SelectionKey k) throws IOException {
         if (!initialized && checkFourLetterWord(sk, len)) {
             return false;
         }
+        checkRequestLength(len);
+        incomingBuffer = ByteBuffer.allocate(len);
+        return true;
+    }
+
+    /**
+     * @throws IOException if the request is rejected
+     */
+    private void checkRequestLength(int len) throws IOException {
         if (len < 0 || len > BinaryInputArchive.maxBuffer) {
             throw new IOException("Len error " + len);
         }
@@ -545,8 +667,6 @@ private boolean readLength(SelectionKey k) throws IOException {
         }
         // checkRequestSize will throw IOException if request is rejected
         zkServer.checkRequestSizeWhenReceivingMessage(len);
-        incomingBuffer = ByteBuffer.allocate(len);
-        return true;
     }
 
     /**
@@ -682,7 +802,6 @@ public void sendResponse(ReplyHeader h, Record r, String tag, String cacheKey, S
      */
     @Override
     public void process(WatchedEvent event) {
-        ReplyHeader h = new ReplyHeader(ClientCnxn.NOTIFICATION_XID, -1L, 0);
         if (LOG.isTraceEnabled()) {
             ZooTrace.logTraceMessage(
                 LOG,
@@ -690,13 +809,14 @@ public void process(WatchedEvent event) {
                 "Deliver event " + event + " to 0x" + Long.toHexString(this.sessionId) + " through " + this);
         }
 
-        // Convert WatchedEvent to a type that can be sent over the wire
-        WatcherEvent e = event.getWrapper();
-
-        // The last parameter OpCode here is used to select the response cache.
-        // Passing OpCode.error (with a value of -1) means we don't care, as we don't need
-        // response cache on delivering watcher events.
-        sendResponse(h, e, "notification", null, null, ZooDefs.OpCode.error);
+        if (coalesceNotification(event)) {
+            return;
+        }
+        try {
+            sendBuffer(serializeNotification(event));
+        } catch (Exception e) {
+            LOG.warn("Unexpected exception. Destruction averted.", e);
+        }
     }
 
     /*
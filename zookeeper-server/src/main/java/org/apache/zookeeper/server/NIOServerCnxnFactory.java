@@ -78,6 +78,10 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
     public static final String ZOOKEEPER_NIO_NUM_WORKER_THREADS = "zookeeper.nio.numWorkerThreads";
     /** Default: 64kB */
     public static final String ZOOKEEPER_NIO_DIRECT_BUFFER_BYTES = "zookeeper.nio.directBufferBytes";
+    /** Default: 0, which reads the requests one at a time */
+    public static final String ZOOKEEPER_NIO_READ_BUFFER_BYTES = "zookeeper.nio.readBufferBytes";
+    /** Default: 16 */
+    public static final String ZOOKEEPER_NIO_COALESCE_BACKLOG = "zookeeper.nio.coalesceBacklog";
     /** Default worker pool shutdown timeout in ms: 5000 (5s) */
     public static final String ZOOKEEPER_NIO_SHUTDOWN_TIMEOUT = "zookeeper.nio.shutdownTimeout";
 
@@ -105,6 +109,18 @@ public void uncaughtException(Thread t, Throwable e) {
          * Default to using 64k direct buffers.
          */
         directBufferBytes = Integer.getInteger(ZOOKEEPER_NIO_DIRECT_BUFFER_BYTES, 64 * 1024);
+
+        /**
+         * Value of 0 disables batched reads, a connection reading a single
+         * request at a time into a buffer of its own.
+         */
+        readBufferBytes = Integer.getInteger(ZOOKEEPER_NIO_READ_BUFFER_BYTES, 0);
+
+        /**
+         * The number of replies queued for a connection from which the
+         * notifications of its coalescing watches are coalesced.
+         */
+        coalesceBacklog = Integer.getInteger(ZOOKEEPER_NIO_COALESCE_BACKLOG, 16);
     }
 
     /**
@@ -489,7 +505,13 @@ private void processInterestOpsUpdateRequests() {
                 }
                 NIOServerCnxn cnxn = (NIOServerCnxn) key.attachment();
                 if (cnxn.isSelectable()) {
-                    key.interestOps(cnxn.getInterestOps());
+                    if (cnxn.hasQueuedRequests() && !cnxn.isRecvDisabled()) {
+                        // no read event may come to resume the requests
+                        // queued while throttled
+                        handleIO(key);
+                    } else {
+                        key.interestOps(cnxn.getInterestOps());
+                    }
                 }
             }
         }
@@ -518,7 +540,7 @@ public void doWork() throws InterruptedException {
                 return;
             }
 
-            if (key.isReadable() || key.isWritable()) {
+            if (key.isReadable() || key.isWritable() || cnxn.hasQueuedRequests()) {
                 cnxn.doIO(key);
 
                 // Check if we shutdown or doIO() closed this connection
@@ -600,6 +622,25 @@ public static ByteBuffer getDirectBuffer() {
         return directBufferBytes > 0 ? directBuffer.get() : null;
     }
 
+    /**
+     * Connections read all the requests available at once into this buffer,
+     * then submit them as a batch, instead of reading them one at a time.
+     */
+    private static final ThreadLocal<ByteBuffer> readBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(readBufferBytes);
+        }
+    };
+
+    public static ByteBuffer getReadBuffer() {
+        return readBufferBytes > 0 ? readBuffer.get() : null;
+    }
+
+    static int getCoalesceBacklog() {
+        return coalesceBacklog;
+    }
+
     // ipMap is used to limit connections per IP
     private final ConcurrentHashMap<InetAddress, Set<NIOServerCnxn>> ipMap = new ConcurrentHashMap<InetAddress, Set<NIOServerCnxn>>();
 
@@ -612,6 +653,8 @@ public static ByteBuffer getDirectBuffer() {
     protected WorkerService workerPool;
 
     private static int directBufferBytes;
+    private static int readBufferBytes;
+    private static int coalesceBacklog;
     private int numSelectorThreads;
     private int numWorkerThreads;
     private long workerShutdownTimeoutMS;
@@ -662,7 +705,8 @@ public void configure(InetSocketAddress addr, int maxcc, int backlog, boolean se
             + (sessionlessCnxnTimeout / 1000) + "s sessionless connection timeout, "
             + numSelectorThreads + " selector thread(s), "
             + (numWorkerThreads > 0 ? numWorkerThreads : "no") + " worker threads, and "
-            + (directBufferBytes == 0 ? "gathered writes." : ("" + (directBufferBytes / 1024) + " kB direct buffers."));
+            + (directBufferBytes == 0 ? "gathered writes" : ("" + (directBufferBytes / 1024) + " kB direct buffers"))
+            + (readBufferBytes == 0 ? "." : (", batched reads of " + (readBufferBytes / 1024) + " kB."));
         LOG.info(logMsg);
         for (int i = 0; i < numSelectorThreads; ++i) {
             selectorThreads.add(new SelectorThread(i));
@@ -40,12 +40,10 @@
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.Record;
-import org.apache.zookeeper.ClientCnxn;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.proto.ReplyHeader;
-import org.apache.zookeeper.proto.WatcherEvent;
 import org.apache.zookeeper.server.command.CommandExecutor;
 import org.apache.zookeeper.server.command.FourLetterCommands;
 import org.apache.zookeeper.server.command.NopCommand;
@@ -156,7 +154,6 @@ public int getSessionTimeout() {
 
     @Override
     public void process(WatchedEvent event) {
-        ReplyHeader h = new ReplyHeader(ClientCnxn.NOTIFICATION_XID, -1L, 0);
         if (LOG.isTraceEnabled()) {
             ZooTrace.logTraceMessage(
                 LOG,
@@ -164,11 +161,11 @@ public void process(WatchedEvent event) {
                 "Deliver event " + event + " to 0x" + Long.toHexString(this.sessionId) + " through " + this);
         }
 
-        // Convert WatchedEvent to a type that can be sent over the wire
-        WatcherEvent e = event.getWrapper();
-
+        if (closingChannel || !channel.isOpen() || coalesceNotification(event)) {
+            return;
+        }
         try {
-            sendResponse(h, e, "notification");
+            sendBuffer(serializeNotification(event));
         } catch (IOException e1) {
             LOG.debug("Problem sending to {}", getRemoteSocketAddress(), e1);
             close();
@@ -193,6 +190,11 @@ public void setSessionId(long sessionId) {
         factory.addSession(sessionId, this);
     }
 
+    @Override
+    protected boolean isOutgoingBackedUp() {
+        return !channel.isWritable();
+    }
+
     // Use a single listener instance to reduce GC
     private final GenericFutureListener<Future<Void>> onSendBufferDoneListener = f -> {
         if (f.isSuccess()) {
@@ -206,6 +208,7 @@ public void sendBuffer(ByteBuffer... buffers) {
             close(DisconnectReason.CLIENT_CLOSED_CONNECTION);
             return;
         }
+        flushCoalescedNotifications();
         channel.writeAndFlush(Unpooled.wrappedBuffer(buffers)).addListener(onSendBufferDoneListener);
     }
 
@@ -552,6 +555,11 @@ public void disableRecv(boolean waitDisableRecv) {
         }
     }
 
+    @Override
+    boolean isRecvDisabled() {
+        return throttled.get();
+    }
+
     @Override
     public void enableRecv() {
         if (throttled.compareAndSet(true, false)) {
@@ -251,6 +251,17 @@ public void channelActive(ChannelHandlerContext ctx) throws Exception {
             }
         }
 
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            if (ctx.channel().isWritable()) {
+                NettyServerCnxn cnxn = ctx.channel().attr(CONNECTION_ATTRIBUTE).get();
+                if (cnxn != null) {
+                    cnxn.flushCoalescedNotifications();
+                }
+            }
+            super.channelWritabilityChanged(ctx);
+        }
+
         @Override
         public void channelInactive(ChannelHandlerContext ctx) throws Exception {
             if (LOG.isTraceEnabled()) {
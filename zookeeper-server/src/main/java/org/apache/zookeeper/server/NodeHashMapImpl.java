@@ -26,7 +26,9 @@
 
 /**
  * a simple wrapper to ConcurrentHashMap that recalculates a digest after
- * each mutation.
+ * each mutation. When off-heap payload storage is enabled, the data of the
+ * nodes put into the map is moved into an {@link OffHeapPayloadStore} and
+ * released when they are removed.
  */
 public class NodeHashMapImpl implements NodeHashMap {
 
@@ -36,15 +38,33 @@ public class NodeHashMapImpl implements NodeHashMap {
 
     private final AdHash hash;
 
+    private final OffHeapPayloadStore payloadStore;
+
     public NodeHashMapImpl(DigestCalculator digestCalculator) {
+        this(digestCalculator, OffHeapPayloadStore.isEnabled() ? new OffHeapPayloadStore() : null);
+    }
+
+    /**
+     * @param payloadStore store for the data of the nodes, or null to keep it on the heap
+     */
+    public NodeHashMapImpl(DigestCalculator digestCalculator, OffHeapPayloadStore payloadStore) {
         this.digestCalculator = digestCalculator;
+        this.payloadStore = payloadStore;
         nodes = new ConcurrentHashMap<>();
         hash = new AdHash();
         digestEnabled = ZooKeeperServer.isDigestEnabled();
     }
 
+    /**
+     * @return the store holding the data of the nodes, or null if it is on the heap
+     */
+    public OffHeapPayloadStore getPayloadStore() {
+        return payloadStore;
+    }
+
     @Override
     public DataNode put(String path, DataNode node) {
+        storePayload(node);
         DataNode oldNode = nodes.put(path, node);
         addDigest(path, node);
         if (oldNode != null) {
@@ -55,6 +75,7 @@ public DataNode put(String path, DataNode node) {
 
     @Override
     public DataNode putWithoutDigest(String path, DataNode node) {
+        storePayload(node);
         return nodes.put(path, node);
     }
 
@@ -68,6 +89,9 @@ public DataNode remove(String path) {
         DataNode oldNode = nodes.remove(path);
         if (oldNode != null) {
             removeDigest(path, oldNode);
+            if (payloadStore != null) {
+                oldNode.releasePayload();
+            }
         }
         return oldNode;
     }
@@ -79,6 +103,12 @@ public Set<Map.Entry<String, DataNode>> entrySet() {
 
     @Override
     public void clear() {
+        if (payloadStore != null) {
+            for (DataNode node : nodes.values()) {
+                node.releasePayload();
+            }
+            payloadStore.reset();
+        }
         nodes.clear();
         hash.clear();
     }
@@ -101,6 +131,12 @@ public void postChange(String path, DataNode node) {
         addDigest(path, node);
     }
 
+    private void storePayload(DataNode node) {
+        if (payloadStore != null) {
+            node.storePayload(payloadStore);
+        }
+    }
+
     private void addDigest(String path, DataNode node) {
         // Excluding everything under '/zookeeper/' for digest calculation.
         if (path.startsWith(ZooDefs.ZOOKEEPER_NODE_SUBTREE)) {
@@ -0,0 +1,232 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the payloads of data nodes in direct memory slabs, so that a large
+ * tree holds a single long handle per node on the heap instead of its data.
+ *
+ * Payloads are written into chunks carved out of fixed size slabs. Chunk
+ * sizes are rounded up to one of four size classes per power of two, which
+ * wastes at most a quarter of a chunk, and freed chunks are kept on a free
+ * list per size class for reuse. Slabs are never returned, except when the
+ * whole store is reset.
+ *
+ * Allocation and release are synchronized; they happen on the thread applying
+ * transactions to the data tree. Reads don't take the store lock: a node only
+ * reads and frees its own chunk while holding its monitor, which also
+ * publishes the chunk contents to the reading thread.
+ */
+public class OffHeapPayloadStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OffHeapPayloadStore.class);
+
+    /**
+     * Storage of the node payloads, either "heap" (the default) or "offheap".
+     */
+    public static final String NODE_PAYLOAD_STORAGE = "zookeeper.nodePayloadStorage";
+
+    /**
+     * Size of the direct memory slabs payloads are allocated from.
+     */
+    public static final String OFF_HEAP_SLAB_SIZE = "zookeeper.offHeapPayloadSlabSize";
+
+    public static final int DEFAULT_SLAB_SIZE = 8 * 1024 * 1024;
+
+    private static final int MIN_SLAB_SIZE = 64 * 1024;
+
+    // Each chunk starts with the length of the payload it holds.
+    private static final int LENGTH_PREFIX = 4;
+
+    private static final int MIN_CHUNK = 16;
+
+    // Enough size classes for any int sized chunk.
+    private static final int SIZE_CLASSES = 4 * 28;
+
+    private final int slabSize;
+    private final int maxPayloadSize;
+
+    // Replaced, never modified, when a slab is added, so readers need no lock.
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    // Offset of the first unused byte of the last slab.
+    private int top;
+
+    private final long[][] freeChunks = new long[SIZE_CLASSES][];
+    private final int[] freeCounts = new int[SIZE_CLASSES];
+
+    private long usedBytes;
+
+    public static boolean isEnabled() {
+        return "offheap".equalsIgnoreCase(System.getProperty(NODE_PAYLOAD_STORAGE, "heap"));
+    }
+
+    public OffHeapPayloadStore() {
+        this(Integer.getInteger(OFF_HEAP_SLAB_SIZE, DEFAULT_SLAB_SIZE));
+    }
+
+    public OffHeapPayloadStore(int slabSize) {
+        if (slabSize < MIN_SLAB_SIZE) {
+            LOG.warn("{} = {} is too small, using {}", OFF_HEAP_SLAB_SIZE, slabSize, MIN_SLAB_SIZE);
+            slabSize = MIN_SLAB_SIZE;
+        }
+        this.slabSize = slabSize;
+        // larger payloads stay on the heap rather than wasting slab tails
+        this.maxPayloadSize = slabSize / 8;
+        LOG.info("Storing node payloads off-heap in slabs of {} bytes", slabSize);
+    }
+
+    /**
+     * @return true if the data should be kept in this store, false if it is
+     *         better left on the heap
+     */
+    public boolean accepts(byte[] data) {
+        return data != null && data.length > 0 && data.length <= maxPayloadSize;
+    }
+
+    /**
+     * Copy the data into the store.
+     *
+     * @return the handle of the data, never 0
+     */
+    public synchronized long allocate(byte[] data) {
+        int chunk = chunkSize(data.length + LENGTH_PREFIX);
+        int sizeClass = sizeClass(chunk);
+        long handle;
+        if (freeCounts[sizeClass] > 0) {
+            handle = freeChunks[sizeClass][--freeCounts[sizeClass]];
+        } else {
+            handle = bump(chunk);
+        }
+        ByteBuffer slab = slabs[slabIndex(handle)].duplicate();
+        int offset = offset(handle);
+        slab.putInt(offset, data.length);
+        slab.position(offset + LENGTH_PREFIX);
+        slab.put(data);
+        usedBytes += chunk;
+        return handle;
+    }
+
+    private long bump(int chunk) {
+        ByteBuffer[] current = slabs;
+        if (current.length == 0 || top + chunk > slabSize) {
+            ByteBuffer[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = ByteBuffer.allocateDirect(slabSize);
+            slabs = grown;
+            top = 0;
+        }
+        long handle = ((long) slabs.length << 32) | top;
+        top += chunk;
+        return handle;
+    }
+
+    /**
+     * @return a copy of the data stored under the handle
+     */
+    public byte[] read(long handle) {
+        ByteBuffer slab = slabs[slabIndex(handle)].duplicate();
+        int offset = offset(handle);
+        byte[] data = new byte[slab.getInt(offset)];
+        slab.position(offset + LENGTH_PREFIX);
+        slab.get(data);
+        return data;
+    }
+
+    /**
+     * @return the length of the data stored under the handle
+     */
+    public int length(long handle) {
+        return slabs[slabIndex(handle)].getInt(offset(handle));
+    }
+
+    /**
+     * Release the chunk of the handle for reuse. The handle must not be used
+     * afterwards.
+     */
+    public synchronized void free(long handle) {
+        int chunk = chunkSize(length(handle) + LENGTH_PREFIX);
+        int sizeClass = sizeClass(chunk);
+        long[] free = freeChunks[sizeClass];
+        if (free == null) {
+            free = freeChunks[sizeClass] = new long[16];
+        } else if (freeCounts[sizeClass] == free.length) {
+            free = freeChunks[sizeClass] = Arrays.copyOf(free, free.length * 2);
+        }
+        free[freeCounts[sizeClass]++] = handle;
+        usedBytes -= chunk;
+    }
+
+    /**
+     * Drop all slabs. Handles allocated before must not be used afterwards.
+     */
+    public synchronized void reset() {
+        slabs = new ByteBuffer[0];
+        top = 0;
+        Arrays.fill(freeChunks, null);
+        Arrays.fill(freeCounts, 0);
+        usedBytes = 0;
+    }
+
+    /**
+     * @return the number of bytes held by allocated chunks
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return the number of direct memory bytes reserved by the slabs
+     */
+    public long getReservedBytes() {
+        return (long) slabs.length * slabSize;
+    }
+
+    private static int slabIndex(long handle) {
+        // slab numbers start at 1 so that 0 is never a valid handle
+        return (int) (handle >>> 32) - 1;
+    }
+
+    private static int offset(long handle) {
+        return (int) handle;
+    }
+
+    static int chunkSize(int size) {
+        if (size <= MIN_CHUNK) {
+            return MIN_CHUNK;
+        }
+        // size is in (hb, 2 * hb], which is split in four classes
+        int hb = Integer.highestOneBit(size - 1);
+        int step = hb >> 2;
+        return (size + step - 1) & -step;
+    }
+
+    static int sizeClass(int chunk) {
+        if (chunk <= MIN_CHUNK) {
+            return 0;
+        }
+        int hb = Integer.highestOneBit(chunk - 1);
+        int step = hb >> 2;
+        return 4 * (Integer.numberOfTrailingZeros(hb) - 4) + (chunk - hb) / step;
+    }
+
+}
@@ -31,7 +31,7 @@
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import org.apache.jute.BinaryOutputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.CreateMode;
@@ -99,7 +99,7 @@ public class PrepRequestProcessor extends ZooKeeperCriticalThread implements Req
      */
     private static boolean failCreate = false;
 
-    LinkedBlockingQueue<Request> submittedRequests = new LinkedBlockingQueue<Request>();
+    BlockingQueue<Request> submittedRequests = RequestQueueFactory.createQueue("prep_processor");
 
     private final RequestProcessor nextProcessor;
     private final boolean digestEnabled;
@@ -889,6 +889,7 @@ protected void pRequest(Request request) throws RequestProcessorException {
             case OpCode.getChildren:
             case OpCode.getAllChildrenNumber:
             case OpCode.getChildren2:
+            case OpCode.getChildrenPaged:
             case OpCode.ping:
             case OpCode.setWatches:
             case OpCode.setWatches2:
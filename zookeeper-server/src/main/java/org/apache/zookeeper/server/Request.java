@@ -238,6 +238,7 @@ static boolean isValid(int type) {
         case OpCode.getChildren:
         case OpCode.getAllChildrenNumber:
         case OpCode.getChildren2:
+        case OpCode.getChildrenPaged:
         case OpCode.getData:
         case OpCode.getEphemerals:
         case OpCode.multi:
@@ -265,6 +266,7 @@ public boolean isQuorum() {
         case OpCode.getChildren:
         case OpCode.getAllChildrenNumber:
         case OpCode.getChildren2:
+        case OpCode.getChildrenPaged:
         case OpCode.getData:
         case OpCode.getEphemerals:
         case OpCode.multiRead:
@@ -348,6 +350,8 @@ public static String op2String(int op) {
                 return "getEphemerals";
             case OpCode.getAllChildrenNumber:
                 return "getAllChildrenNumber";
+            case OpCode.getChildrenPaged:
+                return "getChildrenPaged";
             case OpCode.createSession:
                 return "createSession";
             case OpCode.closeSession:
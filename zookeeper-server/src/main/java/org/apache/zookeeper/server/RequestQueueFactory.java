@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.server.util.MpscRing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A factory used to produce the queues handing off requests between the
+ * request processors, based on the zookeeper.requestQueue option: either
+ * unbounded linked queues, or bounded rings allocated once, which make the
+ * producers wait for room when full.
+ *
+ * The queues record their size when taking a request, and the time the
+ * consumer waits for requests and the producers wait for room, in the
+ * request_queue_* metrics keyed by the name of the queue.
+ */
+public class RequestQueueFactory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestQueueFactory.class);
+
+    public static final String ZOOKEEPER_REQUEST_QUEUE = "zookeeper.requestQueue";
+    /** Default: 65536 */
+    public static final String ZOOKEEPER_REQUEST_QUEUE_CAPACITY = "zookeeper.requestQueue.capacity";
+
+    public static final String LINKED = "linked";
+    public static final String RING = "ring";
+
+    /**
+     * Create a queue of the configured type, linked by default.
+     *
+     * @param name the name of the queue in the metrics
+     */
+    public static <E> BlockingQueue<E> createQueue(String name) {
+        return createQueue(name, LINKED, Integer.getInteger(ZOOKEEPER_REQUEST_QUEUE_CAPACITY, 64 * 1024));
+    }
+
+    /**
+     * @param name the name of the queue in the metrics
+     * @param defaultType the type of the queue if not configured
+     * @param capacity the capacity of a ring
+     */
+    public static <E> BlockingQueue<E> createQueue(String name, String defaultType, int capacity) {
+        String type = System.getProperty(ZOOKEEPER_REQUEST_QUEUE, defaultType);
+        if (RING.equals(type)) {
+            return new RingRequestQueue<>(name, capacity);
+        }
+        if (!LINKED.equals(type)) {
+            LOG.warn("Unknown {} {}, using a {} queue for {}", ZOOKEEPER_REQUEST_QUEUE, type, LINKED, name);
+        }
+        return new LinkedRequestQueue<>(name);
+    }
+
+    private static long elapsedMicros(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    }
+
+    static class LinkedRequestQueue<E> extends LinkedBlockingQueue<E> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        LinkedRequestQueue(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public E take() throws InterruptedException {
+            ServerMetrics.getMetrics().REQUEST_QUEUE_SIZE.add(name, size());
+            E e = poll();
+            if (e == null) {
+                long start = System.nanoTime();
+                e = super.take();
+                ServerMetrics.getMetrics().REQUEST_QUEUE_TAKE_WAIT_TIME.add(name, elapsedMicros(start));
+            }
+            return e;
+        }
+
+        @Override
+        public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+            ServerMetrics.getMetrics().REQUEST_QUEUE_SIZE.add(name, size());
+            E e = poll();
+            if (e == null) {
+                long start = System.nanoTime();
+                e = super.poll(timeout, unit);
+                ServerMetrics.getMetrics().REQUEST_QUEUE_TAKE_WAIT_TIME.add(name, elapsedMicros(start));
+            }
+            return e;
+        }
+
+    }
+
+    static class RingRequestQueue<E> extends MpscRing<E> {
+
+        private final String name;
+
+        RingRequestQueue(String name, int capacity) {
+            super(capacity);
+            this.name = name;
+        }
+
+        @Override
+        public E take() throws InterruptedException {
+            ServerMetrics.getMetrics().REQUEST_QUEUE_SIZE.add(name, size());
+            E e = poll();
+            if (e == null) {
+                long start = System.nanoTime();
+                e = super.take();
+                ServerMetrics.getMetrics().REQUEST_QUEUE_TAKE_WAIT_TIME.add(name, elapsedMicros(start));
+            }
+            return e;
+        }
+
+        @Override
+        public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+            ServerMetrics.getMetrics().REQUEST_QUEUE_SIZE.add(name, size());
+            E e = poll();
+            if (e == null) {
+                long start = System.nanoTime();
+                e = super.poll(timeout, unit);
+                ServerMetrics.getMetrics().REQUEST_QUEUE_TAKE_WAIT_TIME.add(name, elapsedMicros(start));
+            }
+            return e;
+        }
+
+        @Override
+        public void put(E e) throws InterruptedException {
+            if (!offer(e)) {
+                long start = System.nanoTime();
+                super.put(e);
+                ServerMetrics.getMetrics().REQUEST_QUEUE_PUT_WAIT_TIME.add(name, elapsedMicros(start));
+            }
+        }
+
+        @Override
+        public boolean add(E e) {
+            if (!offer(e)) {
+                long start = System.nanoTime();
+                super.add(e);
+                ServerMetrics.getMetrics().REQUEST_QUEUE_PUT_WAIT_TIME.add(name, elapsedMicros(start));
+            }
+            return true;
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends E> c) {
+            if (c.size() <= remainingCapacity()) {
+                return super.addAll(c);
+            }
+            long start = System.nanoTime();
+            boolean changed = super.addAll(c);
+            ServerMetrics.getMetrics().REQUEST_QUEUE_PUT_WAIT_TIME.add(name, elapsedMicros(start));
+            return changed;
+        }
+
+    }
+
+}
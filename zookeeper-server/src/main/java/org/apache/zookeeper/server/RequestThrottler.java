@@ -19,7 +19,8 @@
 package org.apache.zookeeper.server;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import org.apache.zookeeper.util.ServiceUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,12 +56,21 @@
  * To ensure ordering guarantees, if a request is ever dropped from a connection
  * that connection is closed and flagged as invalid. All subsequent requests
  * inflight from that connection are then dropped as well.
+ *
+ * Requests are submitted to the throttler through a bounded ring, one at a
+ * time or in batches, such as the requests read at once from a connection.
+ * Submitters wait for room when the ring is full. A linked queue is used
+ * instead when configured for all the request queues, see
+ * {@link RequestQueueFactory}.
  */
 public class RequestThrottler extends ZooKeeperCriticalThread {
 
     private static final Logger LOG = LoggerFactory.getLogger(RequestThrottler.class);
 
-    private final LinkedBlockingQueue<Request> submittedRequests = new LinkedBlockingQueue<Request>();
+    private static final String QUEUE_CAPACITY = "zookeeper.request_throttler.queueCapacity";
+
+    private final BlockingQueue<Request> submittedRequests = RequestQueueFactory.createQueue(
+        "request_throttler", RequestQueueFactory.RING, Integer.getInteger(QUEUE_CAPACITY, 64 * 1024));
 
     private final ZooKeeperServer zks;
     private volatile boolean stopping;
@@ -234,6 +244,19 @@ public void submitRequest(Request request) {
         }
     }
 
+    /**
+     * Submit requests as a single batch, which is enqueued at once when it
+     * fits in the queue.
+     */
+    public void submitRequests(List<Request> requests) {
+        if (stopping) {
+            LOG.debug("Shutdown in progress. Requests cannot be processed");
+            requests.forEach(this::dropRequest);
+        } else {
+            submittedRequests.addAll(requests);
+        }
+    }
+
     public int getInflight() {
         return submittedRequests.size();
     }
@@ -18,42 +18,113 @@
 
 package org.apache.zookeeper.server;
 
-import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.metrics.Counter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-@SuppressWarnings("serial")
+/**
+ * Cache of serialized read responses, keyed by path.
+ *
+ * Lookups never block: entries live in a {@link ConcurrentHashMap} and a hit
+ * only sets the reference bit of the entry. The cache is bounded both by the
+ * number of entries and by the total number of serialized bytes it holds. When
+ * a put exceeds either bound, a CLOCK sweep over the map evicts entries that
+ * have not been referenced since the hand last passed them.
+ */
 public class ResponseCache {
     private static final Logger LOG = LoggerFactory.getLogger(ResponseCache.class);
 
     // Magic number chosen to be "big enough but not too big"
     public static final int DEFAULT_RESPONSE_CACHE_SIZE = 400;
+    public static final long DEFAULT_RESPONSE_CACHE_BYTES = 32 * 1024 * 1024;
+
     private final int cacheSize;
+    private final long maxCacheBytes;
+    private final Counter evictionCounter;
+
     private static class Entry {
-        public Stat stat;
-        public byte[] data;
+        final String key;
+        final Stat stat;
+        final byte[] data;
+        volatile boolean referenced;
+
+        Entry(String key, byte[] data, Stat stat) {
+            this.key = key;
+            this.data = data;
+            this.stat = stat;
+        }
     }
 
-    private final Map<String, Entry> cache;
+    private final ConcurrentHashMap<String, Entry> cache;
+    private final AtomicInteger entryCount = new AtomicInteger();
+    private final AtomicLong cacheBytes = new AtomicLong();
+
+    // Only the thread holding evictionLock advances the clock hand.
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private Iterator<Entry> clockHand;
 
     public ResponseCache(int cacheSize) {
+        this(cacheSize, DEFAULT_RESPONSE_CACHE_BYTES, null);
+    }
+
+    /**
+     * @param cacheSize maximum number of entries, a non-positive value disables the cache
+     * @param maxCacheBytes maximum number of serialized bytes held by the cache,
+     *                      a non-positive value bounds the cache by entry count only
+     * @param evictionCounter counter incremented for each evicted entry, can be null
+     */
+    public ResponseCache(int cacheSize, long maxCacheBytes, Counter evictionCounter) {
         this.cacheSize = cacheSize;
-        cache = Collections.synchronizedMap(new LRUCache<>(cacheSize));
-        LOG.info("Response cache size is initialized with value {}.", cacheSize);
+        this.maxCacheBytes = maxCacheBytes > 0 ? maxCacheBytes : Long.MAX_VALUE;
+        this.evictionCounter = evictionCounter;
+        cache = new ConcurrentHashMap<>(Math.max(16, cacheSize / 4));
+        LOG.info("Response cache size is initialized with value {} and {} bytes.", cacheSize, maxCacheBytes);
     }
 
     public int getCacheSize() {
         return cacheSize;
     }
 
+    public long getMaxCacheBytes() {
+        return maxCacheBytes;
+    }
+
+    /**
+     * @return the number of serialized bytes currently held by the cache
+     */
+    public long getCacheBytes() {
+        return cacheBytes.get();
+    }
+
+    /**
+     * @return the number of entries currently held by the cache
+     */
+    public int getEntryCount() {
+        return entryCount.get();
+    }
+
     public void put(String path, byte[] data, Stat stat) {
-        Entry entry = new Entry();
-        entry.data = data;
-        entry.stat = stat;
-        cache.put(path, entry);
+        if (!isEnabled() || data.length > maxCacheBytes) {
+            // never admit an entry that would flush the whole cache
+            return;
+        }
+        Entry entry = new Entry(path, data, stat);
+        Entry old = cache.put(path, entry);
+        if (old == null) {
+            entryCount.incrementAndGet();
+            cacheBytes.addAndGet(data.length);
+        } else {
+            cacheBytes.addAndGet(data.length - old.data.length);
+        }
+        if (isOverCapacity()) {
+            evict();
+        }
     }
 
     public byte[] get(String key, Stat stat) {
@@ -63,30 +134,58 @@ public byte[] get(String key, Stat stat) {
         }
         if (!stat.equals(entry.stat)) {
             // The node has been modified, invalidate cache.
-            cache.remove(key);
+            remove(entry);
             return null;
-        } else {
-            return entry.data;
         }
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.data;
     }
 
     public boolean isEnabled() {
         return cacheSize > 0;
     }
 
-    private static class LRUCache<K, V> extends LinkedHashMap<K, V> {
-
-        private int cacheSize;
+    private boolean isOverCapacity() {
+        return entryCount.get() >= cacheSize || cacheBytes.get() > maxCacheBytes;
+    }
 
-        LRUCache(int cacheSize) {
-            super(cacheSize / 4);
-            this.cacheSize = cacheSize;
+    private boolean remove(Entry entry) {
+        if (cache.remove(entry.key, entry)) {
+            entryCount.decrementAndGet();
+            cacheBytes.addAndGet(-entry.data.length);
+            return true;
         }
+        return false;
+    }
 
-        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-            return size() >= cacheSize;
+    private void evict() {
+        evictionLock.lock();
+        try {
+            // Entries keep getting referenced by concurrent readers, so give up
+            // on second chances after two full revolutions of the hand.
+            long sweepLimit = 2L * (entryCount.get() + 1);
+            long swept = 0;
+            while (isOverCapacity()) {
+                if (clockHand == null || !clockHand.hasNext()) {
+                    clockHand = cache.values().iterator();
+                    if (!clockHand.hasNext()) {
+                        return;
+                    }
+                }
+                Entry entry = clockHand.next();
+                if (entry.referenced && swept++ < sweepLimit) {
+                    entry.referenced = false;
+                    continue;
+                }
+                if (remove(entry) && evictionCounter != null) {
+                    evictionCounter.add(1);
+                }
+            }
+        } finally {
+            evictionLock.unlock();
         }
-
     }
 
 }
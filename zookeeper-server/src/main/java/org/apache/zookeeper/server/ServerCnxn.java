@@ -27,6 +27,7 @@
 import java.nio.ByteBuffer;
 import java.security.cert.Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedHashMap;
@@ -34,18 +35,21 @@
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import org.apache.jute.BinaryOutputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.Quotas;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.metrics.Counter;
 import org.apache.zookeeper.proto.ReplyHeader;
 import org.apache.zookeeper.proto.RequestHeader;
+import org.apache.zookeeper.server.watch.NotificationEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -73,6 +77,14 @@ public abstract class ServerCnxn implements Stats, Watcher {
 
     AtomicLong outstandingCount = new AtomicLong();
 
+    // notifications queued in a NotificationDispatcher for the connection
+    private final AtomicInteger queuedNotifications = new AtomicInteger();
+
+    // the notifications of coalescing watches held back while the outgoing
+    // queue is backed up, the latest one of each type and path
+    private final Map<NotificationKey, WatchedEvent> coalescedNotifications = new LinkedHashMap<>();
+    private volatile boolean hasCoalescedNotifications = false;
+
     /** The ZooKeeperServer for this connection. May be null if the server
      * is not currently serving requests (for example if the server is not
      * an active quorum participant.
@@ -161,6 +173,39 @@ public void decrOutstandingAndCheckThrottle(ReplyHeader h) {
         }
     }
 
+    public void incrQueuedNotifications() {
+        queuedNotifications.incrementAndGet();
+    }
+
+    public void decrQueuedNotifications() {
+        if (queuedNotifications.decrementAndGet() == 0) {
+            synchronized (queuedNotifications) {
+                queuedNotifications.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait for the notifications queued for the connection to be delivered,
+     * so that a response is sent after the notifications of the changes
+     * applied before it.
+     */
+    public void waitForQueuedNotifications() {
+        if (queuedNotifications.get() == 0) {
+            return;
+        }
+        synchronized (queuedNotifications) {
+            while (queuedNotifications.get() > 0) {
+                try {
+                    queuedNotifications.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
     public abstract void close(DisconnectReason reason);
 
     /**
@@ -200,66 +245,238 @@ protected byte[] serializeRecord(Record record) throws IOException {
         return baos.toByteArray();
     }
 
-    protected ByteBuffer[] serialize(ReplyHeader h, Record r, String tag,
-                                     String cacheKey, Stat stat, int opCode) throws IOException {
-        byte[] header = serializeRecord(h);
-        byte[] data = null;
-        if (r != null) {
-            ResponseCache cache = null;
-            Counter cacheHit = null, cacheMiss = null;
-            switch (opCode) {
-                case OpCode.getData : {
-                    cache = zkServer.getReadResponseCache();
-                    cacheHit = ServerMetrics.getMetrics().RESPONSE_PACKET_CACHE_HITS;
-                    cacheMiss = ServerMetrics.getMetrics().RESPONSE_PACKET_CACHE_MISSING;
-                    break;
-                }
-                case OpCode.getChildren2 : {
-                    cache = zkServer.getGetChildrenResponseCache();
-                    cacheHit = ServerMetrics.getMetrics().RESPONSE_PACKET_GET_CHILDREN_CACHE_HITS;
-                    cacheMiss = ServerMetrics.getMetrics().RESPONSE_PACKET_GET_CHILDREN_CACHE_MISSING;
-                    break;
-                }
-                default:
-                    // op codes where response cache is not supported.
+    /**
+     * Scratch stream replies are serialized into before being copied into a
+     * single, exactly sized buffer. One is kept per thread so that the
+     * intermediate array is reused across replies.
+     */
+    private static final ThreadLocal<ReplyOutputStream> replyOutputStream = ThreadLocal.withInitial(ReplyOutputStream::new);
+
+    private static class ReplyOutputStream extends ByteArrayOutputStream {
+
+        // Don't keep the arrays of unusually large replies alive on every thread.
+        private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+        ReplyOutputStream() {
+            super(ZooKeeperServer.intBufferStartingSizeBytes);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        void release() {
+            if (buf.length > MAX_RETAINED_CAPACITY) {
+                buf = new byte[ZooKeeperServer.intBufferStartingSizeBytes];
             }
+            reset();
+        }
+
+    }
+
+    /**
+     * Serialize a reply into a single buffer holding the length prefix, the
+     * reply header and the reply payload. When the op code has a response
+     * cache, a cached payload is copied in after the header instead of
+     * serializing the record again.
+     */
+    protected ByteBuffer serialize(ReplyHeader h, Record r, String tag,
+                                   String cacheKey, Stat stat, int opCode) throws IOException {
+        ReplyOutputStream out = replyOutputStream.get();
+        try {
+            BinaryOutputArchive bos = BinaryOutputArchive.getArchive(out);
+            bos.writeRecord(h, null);
+            byte[] cached = null;
+            if (r != null) {
+                ResponseCache cache = null;
+                Counter cacheHit = null, cacheMiss = null;
+                switch (opCode) {
+                    case OpCode.getData : {
+                        cache = zkServer.getReadResponseCache();
+                        cacheHit = ServerMetrics.getMetrics().RESPONSE_PACKET_CACHE_HITS;
+                        cacheMiss = ServerMetrics.getMetrics().RESPONSE_PACKET_CACHE_MISSING;
+                        break;
+                    }
+                    case OpCode.getChildren2 : {
+                        cache = zkServer.getGetChildrenResponseCache();
+                        cacheHit = ServerMetrics.getMetrics().RESPONSE_PACKET_GET_CHILDREN_CACHE_HITS;
+                        cacheMiss = ServerMetrics.getMetrics().RESPONSE_PACKET_GET_CHILDREN_CACHE_MISSING;
+                        break;
+                    }
+                    case OpCode.exists : {
+                        cache = zkServer.getExistsResponseCache();
+                        cacheHit = ServerMetrics.getMetrics().RESPONSE_PACKET_EXISTS_CACHE_HITS;
+                        cacheMiss = ServerMetrics.getMetrics().RESPONSE_PACKET_EXISTS_CACHE_MISSING;
+                        break;
+                    }
+                    case OpCode.getChildren : {
+                        cache = zkServer.getGetChildrenWithoutStatResponseCache();
+                        cacheHit = ServerMetrics.getMetrics().RESPONSE_PACKET_GET_CHILDREN_WITHOUT_STAT_CACHE_HITS;
+                        cacheMiss = ServerMetrics.getMetrics().RESPONSE_PACKET_GET_CHILDREN_WITHOUT_STAT_CACHE_MISSING;
+                        break;
+                    }
+                    case OpCode.getACL : {
+                        cache = zkServer.getGetACLResponseCache();
+                        cacheHit = ServerMetrics.getMetrics().RESPONSE_PACKET_GET_ACL_CACHE_HITS;
+                        cacheMiss = ServerMetrics.getMetrics().RESPONSE_PACKET_GET_ACL_CACHE_MISSING;
+                        break;
+                    }
+                    case OpCode.getAllChildrenNumber : {
+                        cache = zkServer.getGetAllChildrenNumberResponseCache();
+                        cacheHit = ServerMetrics.getMetrics().RESPONSE_PACKET_GET_ALL_CHILDREN_NUMBER_CACHE_HITS;
+                        cacheMiss = ServerMetrics.getMetrics().RESPONSE_PACKET_GET_ALL_CHILDREN_NUMBER_CACHE_MISSING;
+                        break;
+                    }
+                    default:
+                        // op codes where response cache is not supported.
+                }
 
-            if (cache != null && stat != null && cacheKey != null && !cacheKey.endsWith(Quotas.statNode)) {
-                // Use cache to get serialized data.
-                //
-                // NB: Tag is ignored both during cache lookup and serialization,
-                // since is is not used in read responses, which are being cached.
-                data = cache.get(cacheKey, stat);
-                if (data == null) {
-                    // Cache miss, serialize the response and put it in cache.
-                    data = serializeRecord(r);
-                    cache.put(cacheKey, data, stat);
-                    cacheMiss.add(1);
+                if (cache != null && stat != null && cacheKey != null && !cacheKey.endsWith(Quotas.statNode)) {
+                    // Use cache to get serialized data.
+                    //
+                    // NB: Tag is ignored both during cache lookup and serialization,
+                    // since is is not used in read responses, which are being cached.
+                    cached = cache.get(cacheKey, stat);
+                    if (cached == null) {
+                        // Cache miss, serialize the response and put it in cache.
+                        int headerLength = out.size();
+                        bos.writeRecord(r, null);
+                        cache.put(cacheKey, Arrays.copyOfRange(out.array(), headerLength, out.size()), stat);
+                        cacheMiss.add(1);
+                    } else {
+                        cacheHit.add(1);
+                    }
                 } else {
-                    cacheHit.add(1);
+                    bos.writeRecord(r, null);
                 }
-            } else {
-                data = serializeRecord(r);
             }
+            int packetLength = out.size() + (cached == null ? 0 : cached.length);
+            ServerStats serverStats = serverStats();
+            if (serverStats != null) {
+                serverStats.updateClientResponseSize(packetLength);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(4 + packetLength);
+            buffer.putInt(packetLength);
+            buffer.put(out.array(), 0, out.size());
+            if (cached != null) {
+                buffer.put(cached);
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * Serialize the notification of a watched event. The notification of a
+     * {@link NotificationEvent} is serialized once and shared by all the
+     * connections it is delivered to, each sending a read-only view of it.
+     */
+    protected ByteBuffer serializeNotification(WatchedEvent event) throws IOException {
+        ByteBuffer buffer;
+        if (event instanceof NotificationEvent) {
+            buffer = ((NotificationEvent) event).serialize();
+        } else {
+            buffer = NotificationEvent.serialize(event);
         }
-        int dataLength = data == null ? 0 : data.length;
-        int packetLength = header.length + dataLength;
         ServerStats serverStats = serverStats();
         if (serverStats != null) {
-            serverStats.updateClientResponseSize(packetLength);
+            serverStats.updateClientResponseSize(buffer.remaining() - 4);
+        }
+        return buffer;
+    }
+
+    /**
+     * @return whether the replies queued for the client are piling up, so
+     *         that the notifications of coalescing watches are coalesced
+     */
+    protected boolean isOutgoingBackedUp() {
+        return false;
+    }
+
+    /**
+     * Hold back the notification of a coalescing watch while the outgoing
+     * queue is backed up, in place of the one of the same type and path
+     * held back already.
+     *
+     * @return whether the notification was taken, false if it is to be
+     *         sent now
+     */
+    protected boolean coalesceNotification(WatchedEvent event) {
+        if (!(event instanceof NotificationEvent) || !((NotificationEvent) event).isCoalesced()) {
+            return false;
+        }
+        synchronized (coalescedNotifications) {
+            if (coalescedNotifications.isEmpty() && !isOutgoingBackedUp()) {
+                return false;
+            }
+            // moved to the end, so the notifications keep the order of their zxids
+            NotificationKey key = new NotificationKey(event);
+            if (coalescedNotifications.remove(key) != null) {
+                ServerMetrics.getMetrics().COALESCED_NOTIFICATIONS.add(1);
+            }
+            coalescedNotifications.put(key, event);
+            hasCoalescedNotifications = true;
+            // the outgoing queue may have drained before the notification
+            // was held back, with no one left to flush it
+            if (!isOutgoingBackedUp()) {
+                flushCoalescedNotifications();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Send the notifications held back, which is done before anything else
+     * is sent to the client, so that they keep their order with the
+     * replies.
+     */
+    protected void flushCoalescedNotifications() {
+        if (!hasCoalescedNotifications) {
+            return;
+        }
+        synchronized (coalescedNotifications) {
+            if (coalescedNotifications.isEmpty()) {
+                return;
+            }
+            List<WatchedEvent> events = new ArrayList<>(coalescedNotifications.values());
+            coalescedNotifications.clear();
+            hasCoalescedNotifications = false;
+            for (WatchedEvent event : events) {
+                try {
+                    sendBuffer(serializeNotification(event));
+                } catch (IOException e) {
+                    LOG.warn("Failed to send {} to 0x{}", event, Long.toHexString(getSessionId()), e);
+                }
+            }
+        }
+    }
+
+    private static final class NotificationKey {
+
+        private final EventType type;
+        private final String path;
+
+        NotificationKey(WatchedEvent event) {
+            this.type = event.getType();
+            this.path = event.getPath();
         }
-        ByteBuffer lengthBuffer = ByteBuffer.allocate(4).putInt(packetLength);
-        lengthBuffer.rewind();
 
-        int bufferLen = data != null ? 3 : 2;
-        ByteBuffer[] buffers = new ByteBuffer[bufferLen];
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof NotificationKey)) {
+                return false;
+            }
+            NotificationKey other = (NotificationKey) o;
+            return type == other.type && path.equals(other.path);
+        }
 
-        buffers[0] = lengthBuffer;
-        buffers[1] = ByteBuffer.wrap(header);
-        if (data != null) {
-            buffers[2] = ByteBuffer.wrap(data);
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + path.hashCode();
         }
-        return buffers;
+
     }
 
     /* notify the client the session is closing and close/cleanup socket */
@@ -294,6 +511,14 @@ void disableRecv() {
 
     abstract void disableRecv(boolean waitDisableRecv);
 
+    /**
+     * @return whether the connection is throttled, and should stop
+     *         processing the requests it has already read
+     */
+    boolean isRecvDisabled() {
+        return false;
+    }
+
     abstract void setSessionTimeout(int sessionTimeout);
 
     protected ZooKeeperSaslServer zooKeeperSaslServer = null;
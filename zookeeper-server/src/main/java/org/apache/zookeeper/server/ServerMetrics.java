@@ -79,6 +79,9 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         LOOKING_COUNT = metricsContext.getCounter("looking_count");
         DIFF_COUNT = metricsContext.getCounter("diff_count");
         SNAP_COUNT = metricsContext.getCounter("snap_count");
+        DIFF_FROM_COMMITTED_LOG_COUNT = metricsContext.getCounter("diff_from_committed_log_count");
+        DIFF_FROM_COMMITTED_LOG_RING_COUNT = metricsContext.getCounter("diff_from_committed_log_ring_count");
+        DIFF_FROM_TXNLOG_COUNT = metricsContext.getCounter("diff_from_txnlog_count");
         COMMIT_COUNT = metricsContext.getCounter("commit_count");
         CONNECTION_REQUEST_COUNT = metricsContext.getCounter("connection_request_count");
         CONNECTION_TOKEN_DEFICIT = metricsContext.getSummary("connection_token_deficit", DetailLevel.BASIC);
@@ -103,10 +106,28 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         DEAD_WATCHERS_CLEARED = metricsContext.getCounter("dead_watchers_cleared");
         DEAD_WATCHERS_CLEANER_LATENCY = metricsContext.getSummary("dead_watchers_cleaner_latency", DetailLevel.ADVANCED);
 
+        /*
+         * Asynchronous delivery of the notifications in NotificationDispatcher
+         */
+        NOTIFICATION_QUEUE_SIZE = metricsContext.getSummary("notification_queue_size", DetailLevel.BASIC);
+        NOTIFICATION_DELIVERY_LAG = metricsContext.getSummary("notification_delivery_lag_ms", DetailLevel.ADVANCED);
+        NOTIFICATION_QUEUE_FULL_TIME = metricsContext.getCounter("notification_queue_full_time");
+        COALESCED_NOTIFICATIONS = metricsContext.getCounter("coalesced_notifications");
+
         RESPONSE_PACKET_CACHE_HITS = metricsContext.getCounter("response_packet_cache_hits");
         RESPONSE_PACKET_CACHE_MISSING = metricsContext.getCounter("response_packet_cache_misses");
         RESPONSE_PACKET_GET_CHILDREN_CACHE_HITS = metricsContext.getCounter("response_packet_get_children_cache_hits");
         RESPONSE_PACKET_GET_CHILDREN_CACHE_MISSING = metricsContext.getCounter("response_packet_get_children_cache_misses");
+        RESPONSE_PACKET_EXISTS_CACHE_HITS = metricsContext.getCounter("response_packet_exists_cache_hits");
+        RESPONSE_PACKET_EXISTS_CACHE_MISSING = metricsContext.getCounter("response_packet_exists_cache_misses");
+        RESPONSE_PACKET_GET_CHILDREN_WITHOUT_STAT_CACHE_HITS = metricsContext.getCounter("response_packet_get_children_without_stat_cache_hits");
+        RESPONSE_PACKET_GET_CHILDREN_WITHOUT_STAT_CACHE_MISSING = metricsContext.getCounter("response_packet_get_children_without_stat_cache_misses");
+        RESPONSE_PACKET_GET_ACL_CACHE_HITS = metricsContext.getCounter("response_packet_get_acl_cache_hits");
+        RESPONSE_PACKET_GET_ACL_CACHE_MISSING = metricsContext.getCounter("response_packet_get_acl_cache_misses");
+        RESPONSE_PACKET_GET_ALL_CHILDREN_NUMBER_CACHE_HITS = metricsContext.getCounter("response_packet_get_all_children_number_cache_hits");
+        RESPONSE_PACKET_GET_ALL_CHILDREN_NUMBER_CACHE_MISSING = metricsContext.getCounter("response_packet_get_all_children_number_cache_misses");
+        RESPONSE_PACKET_CACHE_EVICTIONS = metricsContext.getCounter("response_packet_cache_evictions");
+        RESPONSE_PACKET_GET_CHILDREN_CACHE_EVICTIONS = metricsContext.getCounter("response_packet_get_children_cache_evictions");
 
         ENSEMBLE_AUTH_SUCCESS = metricsContext.getCounter("ensemble_auth_success");
 
@@ -164,6 +185,14 @@ private ServerMetrics(MetricsProvider metricsProvider) {
          */
         WRITE_COMMITPROC_TIME = metricsContext.getSummary("write_commitproc_time_ms", DetailLevel.ADVANCED);
 
+        /**
+         * Time spent by a read request in the commit processor before it is
+         * dispatched by the fair read scheduler, overall and per session.
+         */
+        FAIR_READ_QUEUE_TIME = metricsContext.getSummary("fair_read_queue_time_ms", DetailLevel.ADVANCED);
+        SESSION_READ_QUEUE_TIME = metricsContext.getSummarySet("session_read_queue_time_ms", DetailLevel.ADVANCED);
+        FAIR_READ_SESSIONS = metricsContext.getSummary("fair_read_sessions", DetailLevel.BASIC);
+
         /**
          * Time spent by a committed request, for a locally issued write, in the
          * commit processor.
@@ -211,6 +240,7 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         SYNC_PROCESSOR_QUEUED = metricsContext.getCounter("sync_processor_request_queued");
         SYNC_PROCESSOR_QUEUE_TIME = metricsContext.getSummary("sync_processor_queue_time_ms", DetailLevel.ADVANCED);
         SYNC_PROCESSOR_FLUSH_TIME = metricsContext.getSummary("sync_processor_queue_flush_time_ms", DetailLevel.ADVANCED);
+        SYNC_PROCESSOR_BATCH_WAIT_TIME = metricsContext.getSummary("sync_processor_batch_wait_time_ms", DetailLevel.ADVANCED);
         SYNC_PROCESS_TIME = metricsContext.getSummary("sync_process_time", DetailLevel.BASIC);
 
         BATCH_SIZE = metricsContext.getSummary("sync_processor_batch_size", DetailLevel.BASIC);
@@ -228,6 +258,10 @@ private ServerMetrics(MetricsProvider metricsProvider) {
 
         NETTY_QUEUED_BUFFER = metricsContext.getSummary("netty_queued_buffer_capacity", DetailLevel.BASIC);
 
+        REQUEST_QUEUE_SIZE = metricsContext.getSummarySet("request_queue_size", DetailLevel.BASIC);
+        REQUEST_QUEUE_TAKE_WAIT_TIME = metricsContext.getSummarySet("request_queue_take_wait_time_us", DetailLevel.ADVANCED);
+        REQUEST_QUEUE_PUT_WAIT_TIME = metricsContext.getSummarySet("request_queue_put_wait_time_us", DetailLevel.ADVANCED);
+
         DIGEST_MISMATCHES_COUNT = metricsContext.getCounter("digest_mismatches_count");
         TLS_HANDSHAKE_EXCEEDED = metricsContext.getCounter("tls_handshake_exceeded");
     }
@@ -273,6 +307,15 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Counter LOOKING_COUNT;
     public final Counter DIFF_COUNT;
     public final Counter SNAP_COUNT;
+
+    /**
+     * Learner syncs served from memory, with the committedLog or the ring of
+     * committed proposals, and from disk, with the txnlog
+     */
+    public final Counter DIFF_FROM_COMMITTED_LOG_COUNT;
+    public final Counter DIFF_FROM_COMMITTED_LOG_RING_COUNT;
+    public final Counter DIFF_FROM_TXNLOG_COUNT;
+
     public final Counter COMMIT_COUNT;
     public final Counter CONNECTION_REQUEST_COUNT;
 
@@ -316,6 +359,10 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Counter SYNC_PROCESSOR_QUEUED;
     public final Summary SYNC_PROCESSOR_QUEUE_TIME;
     public final Summary SYNC_PROCESSOR_FLUSH_TIME;
+    /**
+     * Time between the oldest request of a batch entering the sync queue and the flush of the batch
+     */
+    public final Summary SYNC_PROCESSOR_BATCH_WAIT_TIME;
     public final Summary SYNC_PROCESS_TIME;
 
     public final Summary BATCH_SIZE;
@@ -342,12 +389,34 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Summary DEAD_WATCHERS_CLEANER_LATENCY;
 
     /*
-     * Response cache hit and miss metrics.
+     * Asynchronous delivery of the notifications in NotificationDispatcher
+     */
+    public final Summary NOTIFICATION_QUEUE_SIZE;
+    public final Summary NOTIFICATION_DELIVERY_LAG;
+    public final Counter NOTIFICATION_QUEUE_FULL_TIME;
+
+    /*
+     * Number of notifications of coalescing watches dropped for a later one
+     */
+    public final Counter COALESCED_NOTIFICATIONS;
+
+    /*
+     * Response cache hit, miss and eviction metrics.
      */
     public final Counter RESPONSE_PACKET_CACHE_HITS;
     public final Counter RESPONSE_PACKET_CACHE_MISSING;
     public final Counter RESPONSE_PACKET_GET_CHILDREN_CACHE_HITS;
     public final Counter RESPONSE_PACKET_GET_CHILDREN_CACHE_MISSING;
+    public final Counter RESPONSE_PACKET_EXISTS_CACHE_HITS;
+    public final Counter RESPONSE_PACKET_EXISTS_CACHE_MISSING;
+    public final Counter RESPONSE_PACKET_GET_CHILDREN_WITHOUT_STAT_CACHE_HITS;
+    public final Counter RESPONSE_PACKET_GET_CHILDREN_WITHOUT_STAT_CACHE_MISSING;
+    public final Counter RESPONSE_PACKET_GET_ACL_CACHE_HITS;
+    public final Counter RESPONSE_PACKET_GET_ACL_CACHE_MISSING;
+    public final Counter RESPONSE_PACKET_GET_ALL_CHILDREN_NUMBER_CACHE_HITS;
+    public final Counter RESPONSE_PACKET_GET_ALL_CHILDREN_NUMBER_CACHE_MISSING;
+    public final Counter RESPONSE_PACKET_CACHE_EVICTIONS;
+    public final Counter RESPONSE_PACKET_GET_CHILDREN_CACHE_EVICTIONS;
 
     /**
      * Learner handler quorum packet metrics.
@@ -389,6 +458,17 @@ private ServerMetrics(MetricsProvider metricsProvider) {
      */
     public final Summary WRITE_COMMITPROC_TIME;
 
+    /**
+     * Time spent by a read request in the commit processor before it is
+     * dispatched by the fair read scheduler, overall and per session.
+     */
+    public final Summary FAIR_READ_QUEUE_TIME;
+    public final SummarySet SESSION_READ_QUEUE_TIME;
+    /**
+     * Number of sessions with reads held by the fair read scheduler.
+     */
+    public final Summary FAIR_READ_SESSIONS;
+
     /**
      * Time spent by a committed request, for a locally issued write, in the
      * commit processor.
@@ -438,6 +518,16 @@ private ServerMetrics(MetricsProvider metricsProvider) {
 
     public final Summary NETTY_QUEUED_BUFFER;
 
+    /*
+     * Queues between the request processors, keyed by the name of the queue:
+     * the number of requests in the queue when the consumer takes one, and
+     * the time the consumer waits for a request and the producers wait for
+     * room in a bounded queue.
+     */
+    public final SummarySet REQUEST_QUEUE_SIZE;
+    public final SummarySet REQUEST_QUEUE_TAKE_WAIT_TIME;
+    public final SummarySet REQUEST_QUEUE_PUT_WAIT_TIME;
+
     // Total number of digest mismatches that are observed when applying
     // txns to data tree.
     public final Counter DIGEST_MISMATCHES_COUNT;
@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
+
+/**
+ * The nodes of a chunked snapshot.
+ *
+ * Instead of a single stream of nodes, the tree is written as a sequence of
+ * chunks, each one holding the number of nodes it contains followed by the
+ * nodes serialized in a length prefixed buffer:
+ * <pre>
+ * Chunks:
+ *     count Chunk Chunks || 0
+ *
+ * Chunk:
+ *     len (path DataNode)*count
+ * </pre>
+ * The lengths index the chunks, so the reader can hand each of them over to
+ * another thread to be decoded while it reads the next ones. Chunks are kept
+ * below half of jute.maxbuffer, unless a single node is larger, so they are
+ * accepted by the buffer length check of the reader.
+ */
+class SnapshotChunks {
+
+    static final int CHUNK_SIZE = Math.min(512 * 1024, BinaryInputArchive.maxBuffer / 2);
+
+    /**
+     * Groups the nodes of a snapshot into chunks.
+     */
+    static class Writer {
+
+        private final OutputArchive oa;
+        private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK_SIZE);
+        private final ByteArrayOutputStream node = new ByteArrayOutputStream();
+        private final BinaryOutputArchive nodeArchive = BinaryOutputArchive.getArchive(node);
+        private int count;
+
+        Writer(OutputArchive oa) {
+            this.oa = oa;
+        }
+
+        /**
+         * @return the archive to serialize the next node to
+         */
+        OutputArchive getNodeArchive() {
+            return nodeArchive;
+        }
+
+        /**
+         * Add the node serialized to the node archive to the current chunk.
+         */
+        void endNode() throws IOException {
+            if (count > 0 && chunk.size() + node.size() > CHUNK_SIZE) {
+                flush();
+            }
+            node.writeTo(chunk);
+            node.reset();
+            count++;
+        }
+
+        private void flush() throws IOException {
+            oa.writeInt(count, "count");
+            oa.writeBuffer(chunk.toByteArray(), "chunk");
+            chunk.reset();
+            count = 0;
+        }
+
+        /**
+         * Write the last chunk and the end marker.
+         */
+        void finish() throws IOException {
+            if (count > 0) {
+                flush();
+            }
+            oa.writeInt(0, "count");
+        }
+
+    }
+
+    /**
+     * The decoded nodes of a chunk, in snapshot order.
+     */
+    static class Chunk {
+
+        final String[] paths;
+        final DataNode[] nodes;
+
+        Chunk(int count) {
+            paths = new String[count];
+            nodes = new DataNode[count];
+        }
+
+    }
+
+    /**
+     * Decode the nodes of a chunk and compute their digests, which are cached
+     * by the nodes, so adding them to the tree is cheap.
+     */
+    static Chunk decode(byte[] bytes, int count, DigestCalculator digestCalculator) throws IOException {
+        InputArchive ia = BinaryInputArchive.getArchive(new ByteArrayInputStream(bytes));
+        Chunk chunk = new Chunk(count);
+        for (int i = 0; i < count; i++) {
+            String path = ia.readString("path");
+            DataNode node = new DataNode();
+            ia.readRecord(node, "node");
+            digestCalculator.calculateDigest(path, node);
+            chunk.paths[i] = path;
+            chunk.nodes[i] = node;
+        }
+        return chunk;
+    }
+
+    static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading the snapshot");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+}
@@ -141,9 +141,10 @@ private long printZnode(DataTree dataTree, String name, boolean dumpData) {
             printStat(n.stat);
             zxid = Math.max(n.stat.getMzxid(), n.stat.getPzxid());
             if (dumpData) {
-                System.out.println("  data = " + (n.data == null ? "" : Base64.getEncoder().encodeToString(n.data)));
+                byte[] data = n.getData();
+                System.out.println("  data = " + (data == null ? "" : Base64.getEncoder().encodeToString(data)));
             } else {
-                System.out.println("  dataLength = " + (n.data == null ? 0 : n.data.length));
+                System.out.println("  dataLength = " + n.getDataLength());
             }
             children = n.getChildren();
         }
@@ -205,7 +206,7 @@ private void printZnodeJson(final DataTree dataTree, final String fullPath) {
 
         int dataLen;
         synchronized (n) { // keep findbugs happy
-            dataLen = (n.data == null) ? 0 : n.data.length;
+            dataLen = n.getDataLength();
         }
         StringBuilder nodeSB = new StringBuilder();
         nodeSB.append("{");
@@ -24,10 +24,14 @@
 import java.util.Objects;
 import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.zookeeper.common.Time;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,6 +59,9 @@ public class SyncRequestProcessor extends ZooKeeperCriticalThread implements Req
 
     private static final Request REQUEST_OF_DEATH = Request.requestOfDeath;
 
+    // wakes the sync thread up to forward the persisted batches
+    private static final Request BATCH_PERSISTED = new Request(null, 0, 0, 0, null, null);
+
     /** The number of log entries to log before starting a snapshot */
     private static int snapCount = ZooKeeperServer.getSnapCount();
 
@@ -69,7 +76,7 @@ public class SyncRequestProcessor extends ZooKeeperCriticalThread implements Req
     private int randRoll;
     private long randSize;
 
-    private final BlockingQueue<Request> queuedRequests = new LinkedBlockingQueue<Request>();
+    private final BlockingQueue<Request> queuedRequests = RequestQueueFactory.createQueue("sync_processor");
 
     private final Semaphore snapThreadMutex = new Semaphore(1);
 
@@ -85,6 +92,37 @@ public class SyncRequestProcessor extends ZooKeeperCriticalThread implements Req
     private final Queue<Request> toFlush;
     private long lastFlushTime;
 
+    /**
+     * Sizes the batches when a group commit target latency is configured,
+     * in place of flushDelay and maxWriteQueuePollTime.
+     */
+    private final GroupCommitPolicy groupCommitPolicy = new GroupCommitPolicy();
+
+    /**
+     * With a pipelined transaction log, a flush only hands the batch over to
+     * the log writer thread. Once the batch is persisted, the log writer
+     * thread queues it back to the sync thread, which passes the requests to
+     * the next processor, so the log writer thread is free for the next
+     * fsync. Requests must not overtake the batches in flight, even reads.
+     */
+    private final AtomicInteger inFlightBatches = new AtomicInteger();
+    private final Queue<PersistedBatch> persistedBatches = new ConcurrentLinkedQueue<>();
+    private CompletableFuture<Void> lastCommit;
+
+    private static class PersistedBatch {
+
+        final Queue<Request> requests;
+        final long flushTime;
+        final long fsyncNanos;
+
+        PersistedBatch(Queue<Request> requests, long flushTime, long fsyncNanos) {
+            this.requests = requests;
+            this.flushTime = flushTime;
+            this.fsyncNanos = fsyncNanos;
+        }
+
+    }
+
     public SyncRequestProcessor(ZooKeeperServer zks, RequestProcessor nextProcessor) {
         super("SyncThread:" + zks.getServerId(), zks.getZooKeeperServerListener());
         this.zks = zks;
@@ -118,14 +156,34 @@ private long getRemainingDelay() {
         return 0;
     }
 
+    private long getPollTimeNanos() {
+        long targetNanos = getGroupCommitTargetNanos();
+        if (targetNanos > 0) {
+            return groupCommitPolicy.getPollTimeNanos(System.nanoTime(), targetNanos);
+        }
+        return TimeUnit.MILLISECONDS.toNanos(Math.min(zks.getMaxWriteQueuePollTime(), getRemainingDelay()));
+    }
+
+    private long getGroupCommitTargetNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(zks.getGroupCommitTargetLatency());
+    }
+
     /** If both flushDelay and maxMaxBatchSize are set (bigger than 0), flush
      * whenever either condition is hit. If only one or the other is
      * set, flush only when the relevant condition is hit.
+     * With a group commit target latency, the batch is flushed when its
+     * oldest request would otherwise miss the target, and flushDelay is
+     * ignored.
      */
     private boolean shouldFlush() {
         long flushDelay = zks.getFlushDelay();
         long maxBatchSize = zks.getMaxBatchSize();
-        if ((flushDelay > 0) && (getRemainingDelay() == 0)) {
+        long targetNanos = getGroupCommitTargetNanos();
+        if (targetNanos > 0) {
+            if (groupCommitPolicy.shouldFlush(System.nanoTime(), targetNanos)) {
+                return true;
+            }
+        } else if ((flushDelay > 0) && (getRemainingDelay() == 0)) {
             return true;
         }
         return (maxBatchSize > 0) && (toFlush.size() >= maxBatchSize);
@@ -160,10 +218,10 @@ public void run() {
             resetSnapshotStats();
             lastFlushTime = Time.currentElapsedTime();
             while (true) {
+                forwardPersisted();
                 ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUE_SIZE.add(queuedRequests.size());
 
-                long pollTime = Math.min(zks.getMaxWriteQueuePollTime(), getRemainingDelay());
-                Request si = queuedRequests.poll(pollTime, TimeUnit.MILLISECONDS);
+                Request si = queuedRequests.poll(getPollTimeNanos(), TimeUnit.NANOSECONDS);
                 if (si == null) {
                     /* We timed out looking for more writes to batch, go ahead and flush immediately */
                     flush();
@@ -173,6 +231,9 @@ public void run() {
                 if (si == REQUEST_OF_DEATH) {
                     break;
                 }
+                if (si == BATCH_PERSISTED) {
+                    continue;
+                }
 
                 long startProcessTime = Time.currentElapsedTime();
                 ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUE_TIME.add(startProcessTime - si.syncQueueStartTime);
@@ -200,7 +261,7 @@ public void run() {
                             }.start();
                         }
                     }
-                } else if (toFlush.isEmpty()) {
+                } else if (toFlush.isEmpty() && inFlightBatches.get() == 0) {
                     // optimization for read heavy workloads
                     // iff this is a read, and there are no pending
                     // flushes (writes), then just pass this to the next
@@ -214,6 +275,7 @@ public void run() {
                     continue;
                 }
                 toFlush.add(si);
+                groupCommitPolicy.onArrival(System.nanoTime(), getGroupCommitTargetNanos());
                 if (shouldFlush()) {
                     flush();
                 }
@@ -233,14 +295,71 @@ private void flush() throws IOException, RequestProcessorException {
         ServerMetrics.getMetrics().BATCH_SIZE.add(toFlush.size());
 
         long flushStartTime = Time.currentElapsedTime();
-        zks.getZKDatabase().commit();
+        ServerMetrics.getMetrics().SYNC_PROCESSOR_BATCH_WAIT_TIME.add(flushStartTime - toFlush.peek().syncQueueStartTime);
+        long fsyncStartNanos = System.nanoTime();
+        CompletableFuture<Void> committed = zks.getZKDatabase().commitAsync();
+        if (!committed.isDone()) {
+            flushPipelined(committed, flushStartTime, fsyncStartNanos);
+            return;
+        }
+        try {
+            committed.join();
+        } catch (CompletionException e) {
+            throw new IOException(e.getCause());
+        }
+        groupCommitPolicy.onFlush(System.nanoTime() - fsyncStartNanos);
         ServerMetrics.getMetrics().SYNC_PROCESSOR_FLUSH_TIME.add(Time.currentElapsedTime() - flushStartTime);
 
+        forward(this.toFlush);
+        if (this.nextProcessor != null) {
+            lastFlushTime = Time.currentElapsedTime();
+        }
+    }
+
+    private void flushPipelined(CompletableFuture<Void> committed, long flushStartTime, long fsyncStartNanos) {
+        final Queue<Request> batch = new ArrayDeque<>(this.toFlush);
+        this.toFlush.clear();
+        inFlightBatches.incrementAndGet();
+        lastCommit = committed.whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                inFlightBatches.decrementAndGet();
+                handleException(this.getName(), failure);
+                return;
+            }
+            persistedBatches.add(new PersistedBatch(
+                batch,
+                Time.currentElapsedTime() - flushStartTime,
+                System.nanoTime() - fsyncStartNanos));
+            // without waiting for room, the sync thread looks for persisted
+            // batches before every request anyway
+            queuedRequests.offer(BATCH_PERSISTED);
+        });
+        // the fsync of this batch is still running, its duration is recorded
+        // once it completes
+        groupCommitPolicy.closeBatch();
+        lastFlushTime = Time.currentElapsedTime();
+    }
+
+    /**
+     * Pass the requests of the batches persisted by the log writer thread to
+     * the next processor, in commit order.
+     */
+    private void forwardPersisted() throws IOException, RequestProcessorException {
+        PersistedBatch batch;
+        while ((batch = persistedBatches.poll()) != null) {
+            groupCommitPolicy.onFsync(batch.fsyncNanos);
+            ServerMetrics.getMetrics().SYNC_PROCESSOR_FLUSH_TIME.add(batch.flushTime);
+            forward(batch.requests);
+            inFlightBatches.decrementAndGet();
+        }
+    }
+
+    private void forward(Queue<Request> batch) throws IOException, RequestProcessorException {
         if (this.nextProcessor == null) {
-            this.toFlush.clear();
+            batch.clear();
         } else {
-            while (!this.toFlush.isEmpty()) {
-                final Request i = this.toFlush.remove();
+            while (!batch.isEmpty()) {
+                final Request i = batch.remove();
                 long latency = Time.currentElapsedTime() - i.syncQueueStartTime;
                 ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUE_AND_FLUSH_TIME.add(latency);
                 this.nextProcessor.processRequest(i);
@@ -248,7 +367,16 @@ private void flush() throws IOException, RequestProcessorException {
             if (this.nextProcessor instanceof Flushable) {
                 ((Flushable) this.nextProcessor).flush();
             }
-            lastFlushTime = Time.currentElapsedTime();
+        }
+    }
+
+    private void waitForCommits() throws InterruptedException {
+        if (lastCommit != null) {
+            try {
+                lastCommit.get();
+            } catch (ExecutionException e) {
+                LOG.warn("Failed to persist the last transactions", e.getCause());
+            }
         }
     }
 
@@ -258,6 +386,8 @@ public void shutdown() {
         try {
             this.join();
             this.flush();
+            waitForCommits();
+            forwardPersisted();
         } catch (InterruptedException e) {
             LOG.warn("Interrupted while wating for {} to finish", this);
             Thread.currentThread().interrupt();
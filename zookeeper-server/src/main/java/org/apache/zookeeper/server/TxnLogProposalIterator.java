@@ -21,7 +21,6 @@
 import java.io.IOException;
 import java.util.Iterator;
 import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
-import org.apache.zookeeper.server.persistence.Util;
 import org.apache.zookeeper.server.quorum.Leader;
 import org.apache.zookeeper.server.quorum.Leader.Proposal;
 import org.apache.zookeeper.server.quorum.QuorumPacket;
@@ -60,7 +59,9 @@ public Proposal next() {
 
         Proposal p = new Proposal();
         try {
-            byte[] serializedData = Util.marshallTxnEntry(itr.getHeader(), itr.getTxn(), itr.getDigest());
+            // the txn as stored in the log, iterators reading the log raw
+            // don't need to deserialize it
+            byte[] serializedData = itr.getTxnBytes();
 
             QuorumPacket pp = new QuorumPacket(Leader.PROPOSAL, itr.getHeader().getZxid(), serializedData, null);
             p.packet = pp;
@@ -30,6 +30,7 @@
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -91,6 +92,13 @@ public class ZKDatabase {
     public int commitLogCount;
     protected static int commitLogBuffer = 700;
     protected Queue<Proposal> committedLog = new ArrayDeque<>();
+
+    /**
+     * Size in bytes of the ring of committed proposals serving the DIFFs
+     * beyond the committedLog, 0 to disable it
+     */
+    public static final String COMMIT_LOG_RING_BYTES = "zookeeper.commitLogRingBytes";
+    protected CommittedLogRing committedLogRing;
     protected ReentrantReadWriteLock logLock = new ReentrantReadWriteLock();
     private volatile boolean initialized = false;
 
@@ -150,6 +158,12 @@ public ZKDatabase(FileTxnSnapLog snapLog) {
             commitLogCount = DEFAULT_COMMIT_LOG_COUNT;
         }
         LOG.info("{}={}", COMMIT_LOG_COUNT, commitLogCount);
+
+        int commitLogRingBytes = Integer.getInteger(COMMIT_LOG_RING_BYTES, 0);
+        if (commitLogRingBytes > 0) {
+            committedLogRing = new CommittedLogRing(commitLogRingBytes);
+        }
+        LOG.info("{}={}", COMMIT_LOG_RING_BYTES, commitLogRingBytes);
     }
 
     /**
@@ -180,6 +194,9 @@ public void clear() {
         try {
             lock.lock();
             committedLog.clear();
+            if (committedLogRing != null) {
+                committedLogRing.clear();
+            }
         } finally {
             lock.unlock();
         }
@@ -237,6 +254,36 @@ public synchronized Collection<Proposal> getCommittedLog() {
         return Collections.unmodifiableCollection(result);
     }
 
+    /**
+     * Check if the ring of committed proposals can serve a sync. The caller
+     * must hold the read lock of the log lock.
+     *
+     * @param fromZxid the last zxid of the learner
+     * @param toZxid the zxid the proposals are needed up to
+     * @return true if the ring holds the proposals from fromZxid to toZxid
+     */
+    public boolean isInCommittedLogRing(long fromZxid, long toZxid) {
+        return committedLogRing != null
+               && !committedLogRing.isEmpty()
+               && committedLogRing.getMinZxid() <= fromZxid
+               && committedLogRing.getMaxZxid() >= toZxid;
+    }
+
+    /**
+     * Get proposals from the ring of committed proposals. Only packet part
+     * of proposal is populated. The caller must hold the read lock of the
+     * log lock while iterating.
+     *
+     * @param startZxid the starting zxid of the proposal
+     * @return the proposals of the ring from startZxid
+     */
+    public Iterator<Proposal> getProposalsFromCommittedLogRing(long startZxid) {
+        if (committedLogRing == null) {
+            return Collections.emptyIterator();
+        }
+        return committedLogRing.iterator(startZxid);
+    }
+
     /**
      * get the last processed zxid from a datatree
      * @return the last processed zxid of a datatree
@@ -334,6 +381,9 @@ public void addCommittedProposal(Request request) {
             p.request = request;
             committedLog.add(p);
             maxCommittedLog = p.packet.getZxid();
+            if (committedLogRing != null) {
+                committedLogRing.add(request.zxid, data);
+            }
         } finally {
             wl.unlock();
         }
@@ -349,6 +399,14 @@ public boolean isTxnLogSyncEnabled() {
         return enabled;
     }
 
+    /**
+     * @return the most recent valid snapshot file, or null if there is none
+     * @throws IOException
+     */
+    public File findMostRecentSnapshot() throws IOException {
+        return snapLog.findMostRecentSnapshot();
+    }
+
     public long calculateTxnLogSizeLimit() {
         long snapSize = 0;
         try {
@@ -566,6 +624,20 @@ public List<String> getChildren(String path, Stat stat, Watcher watcher) throws
         return dataTree.getChildren(path, stat, watcher);
     }
 
+    /**
+     * get a page of the children of this path, in lexicographic order
+     * @see DataTree#getChildrenPage(String, String, int, int, List, Stat)
+     */
+    public String getChildrenPage(
+        String path,
+        String startAfter,
+        int maxCount,
+        int maxBytes,
+        List<String> page,
+        Stat stat) throws KeeperException.NoNodeException {
+        return dataTree.getChildrenPage(path, startAfter, maxCount, maxBytes, page, stat);
+    }
+
     /*
      * get all sub-children number of this node
      * */
@@ -621,6 +693,19 @@ public void deserializeSnapshot(InputArchive ia) throws IOException {
         initialized = true;
     }
 
+    /**
+     * deserialize a snapshot file received from the leader, replacing
+     * the data tree and the sessions
+     * @param snap the snapshot file, named after its stream mode
+     * @param zxid the zxid of the snapshot
+     * @throws IOException
+     */
+    public void deserializeSnapshot(File snap, long zxid) throws IOException {
+        clear();
+        snapLog.deserializeSnapshot(getDataTree(), getSessionWithTimeOuts(), snap, zxid);
+        initialized = true;
+    }
+
     /**
      * serialize the snapshot
      * @param oa the output archive to which the snapshot needs to be serialized
@@ -657,6 +742,15 @@ public void commit() throws IOException {
         this.snapLog.commit();
     }
 
+    /**
+     * commit to the underlying transaction log without waiting for the fsync
+     * @return a future completed once the transactions are persisted
+     * @throws IOException
+     */
+    public CompletableFuture<Void> commitAsync() throws IOException {
+        return this.snapLog.commitAsync();
+    }
+
     /**
      * close this database. free the resources
      * @throws IOException
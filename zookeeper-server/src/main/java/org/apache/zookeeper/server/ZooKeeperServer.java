@@ -117,6 +117,11 @@ public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
     public static final String CLOSE_SESSION_TXN_ENABLED = "zookeeper.closeSessionTxn.enabled";
     private static boolean closeSessionTxnEnabled = true;
 
+    // Upper bound on the number of children returned by a getChildrenPaged request
+    public static final String MAX_CHILDREN_PAGE_SIZE = "zookeeper.maxChildrenPageSize";
+    public static final int DEFAULT_MAX_CHILDREN_PAGE_SIZE = 10000;
+    private static final int maxChildrenPageSize;
+
     static {
         LOG = LoggerFactory.getLogger(ZooKeeperServer.class);
 
@@ -138,6 +143,19 @@ public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
         closeSessionTxnEnabled = Boolean.parseBoolean(
                 System.getProperty(CLOSE_SESSION_TXN_ENABLED, "true"));
         LOG.info("{} = {}", CLOSE_SESSION_TXN_ENABLED, closeSessionTxnEnabled);
+
+        int pageSize = Integer.getInteger(MAX_CHILDREN_PAGE_SIZE, DEFAULT_MAX_CHILDREN_PAGE_SIZE);
+        if (pageSize < 1) {
+            LOG.warn("Invalid {} {}, using the default {}",
+                MAX_CHILDREN_PAGE_SIZE, pageSize, DEFAULT_MAX_CHILDREN_PAGE_SIZE);
+            pageSize = DEFAULT_MAX_CHILDREN_PAGE_SIZE;
+        }
+        maxChildrenPageSize = pageSize;
+        LOG.info("{} = {}", MAX_CHILDREN_PAGE_SIZE, maxChildrenPageSize);
+    }
+
+    public static int getMaxChildrenPageSize() {
+        return maxChildrenPageSize;
     }
 
     public static boolean isCloseSessionTxnEnabled() {
@@ -166,6 +184,10 @@ public static void setCloseSessionTxnEnabled(boolean enabled) {
     private ZKDatabase zkDb;
     private ResponseCache readResponseCache;
     private ResponseCache getChildrenResponseCache;
+    private ResponseCache existsResponseCache;
+    private ResponseCache getChildrenWithoutStatResponseCache;
+    private ResponseCache getACLResponseCache;
+    private ResponseCache getAllChildrenNumberResponseCache;
     private final AtomicLong hzxid = new AtomicLong(0);
     public static final Exception ok = new Exception("No prob");
     protected RequestProcessor firstProcessor;
@@ -211,6 +233,8 @@ protected enum State {
     private static volatile long maxWriteQueuePollTime;
     private static final String MAX_BATCH_SIZE = "zookeeper.maxBatchSize";
     private static volatile int maxBatchSize;
+    private static final String GROUP_COMMIT_TARGET_LATENCY = "zookeeper.groupCommitTargetLatency";
+    private static volatile long groupCommitTargetLatency;
 
     /**
      * Starting size of read and write ByteArroyOuputBuffers. Default is 32 bytes.
@@ -222,12 +246,15 @@ protected enum State {
 
     public static final String GET_DATA_RESPONSE_CACHE_SIZE = "zookeeper.maxResponseCacheSize";
     public static final String GET_CHILDREN_RESPONSE_CACHE_SIZE = "zookeeper.maxGetChildrenResponseCacheSize";
+    public static final String GET_DATA_RESPONSE_CACHE_BYTES = "zookeeper.maxResponseCacheBytes";
+    public static final String GET_CHILDREN_RESPONSE_CACHE_BYTES = "zookeeper.maxGetChildrenResponseCacheBytes";
 
     static {
         long configuredFlushDelay = Long.getLong(FLUSH_DELAY, 0);
         setFlushDelay(configuredFlushDelay);
         setMaxWriteQueuePollTime(Long.getLong(MAX_WRITE_QUEUE_POLL_SIZE, configuredFlushDelay / 3));
         setMaxBatchSize(Integer.getInteger(MAX_BATCH_SIZE, 1000));
+        setGroupCommitTargetLatency(Long.getLong(GROUP_COMMIT_TARGET_LATENCY, 0));
 
         intBufferStartingSizeBytes = Integer.getInteger(INT_BUFFER_STARTING_SIZE_BYTES, DEFAULT_STARTING_BUFFER_SIZE);
 
@@ -312,13 +339,14 @@ public ZooKeeperServer(FileTxnSnapLog txnLogFactory, int tickTime, int minSessio
 
         listener = new ZooKeeperServerListenerImpl(this);
 
-        readResponseCache = new ResponseCache(Integer.getInteger(
-            GET_DATA_RESPONSE_CACHE_SIZE,
-            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE));
-
-        getChildrenResponseCache = new ResponseCache(Integer.getInteger(
-            GET_CHILDREN_RESPONSE_CACHE_SIZE,
-            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE));
+        // exists, getACL and getAllChildrenNumber responses are sized like
+        // getData responses, getChildren like getChildren2 responses.
+        readResponseCache = newReadResponseCache();
+        existsResponseCache = newReadResponseCache();
+        getACLResponseCache = newReadResponseCache();
+        getAllChildrenNumberResponseCache = newReadResponseCache();
+        getChildrenResponseCache = newGetChildrenResponseCache();
+        getChildrenWithoutStatResponseCache = newGetChildrenResponseCache();
 
         this.initialConfig = initialConfig;
 
@@ -1453,6 +1481,15 @@ static void setMaxBatchSize(int size) {
         maxBatchSize = size;
     }
 
+    long getGroupCommitTargetLatency() {
+        return groupCommitTargetLatency;
+    }
+
+    static void setGroupCommitTargetLatency(long latency) {
+        LOG.info("{}={}", GROUP_COMMIT_TARGET_LATENCY, latency);
+        groupCommitTargetLatency = latency;
+    }
+
     private void initLargeRequestThrottlingSettings() {
         setLargeRequestMaxBytes(Integer.getInteger("zookeeper.largeRequestMaxBytes", largeRequestMaxBytes));
         setLargeRequestThreshold(Integer.getInteger("zookeeper.largeRequestThreshold", -1));
@@ -1533,6 +1570,72 @@ public void requestFinished(Request request) {
     }
 
     public void processPacket(ServerCnxn cnxn, ByteBuffer incomingBuffer) throws IOException {
+        Request si = readRequest(cnxn, incomingBuffer);
+        if (si != null) {
+            submitRequest(si);
+        }
+    }
+
+    /**
+     * Process the packets read at once from a connection, submitting their
+     * requests as a single batch. The requests preceding an auth or sasl
+     * packet are submitted before it is processed. Stops after the packet
+     * throttling the connection, as it would have stopped reading them one
+     * at a time.
+     *
+     * @return the number of packets processed
+     */
+    public int processPackets(ServerCnxn cnxn, List<ByteBuffer> packets) throws IOException {
+        List<Request> batch = new ArrayList<>(packets.size());
+        int globalOutstandingLimit = getGlobalOutstandingLimit();
+        int processed = 0;
+        try {
+            for (ByteBuffer packet : packets) {
+                // the type follows the xid in the header
+                int type = packet.remaining() >= 8 ? packet.getInt(packet.position() + 4) : OpCode.error;
+                // near the global outstanding limit the requests are
+                // submitted before reading the next one, to be seen when
+                // checking whether to throttle the connection
+                if (!batch.isEmpty()
+                    && (type == OpCode.auth || type == OpCode.sasl
+                        || Math.max(getInflight(), getInProcess()) + batch.size() > globalOutstandingLimit)) {
+                    submitRequests(batch);
+                    batch.clear();
+                }
+                Request si = readRequest(cnxn, packet);
+                if (si != null) {
+                    batch.add(si);
+                }
+                processed++;
+                if (cnxn.isRecvDisabled()) {
+                    break;
+                }
+            }
+        } finally {
+            if (!batch.isEmpty()) {
+                submitRequests(batch);
+            }
+        }
+        return processed;
+    }
+
+    /**
+     * Submit requests in order, as a single batch to the request throttler.
+     */
+    public void submitRequests(List<Request> requests) {
+        if (requestThrottler == null) {
+            requests.forEach(this::submitRequest);
+        } else {
+            requestThrottler.submitRequests(requests);
+        }
+    }
+
+    /**
+     * Process a packet read from a connection.
+     *
+     * @return the request to submit, null if the packet was processed
+     */
+    private Request readRequest(ServerCnxn cnxn, ByteBuffer incomingBuffer) throws IOException {
         // We have the request, now process and setup for next
         InputStream bais = new ByteBufferInputStream(incomingBuffer);
         BinaryInputArchive bia = BinaryInputArchive.getArchive(bais);
@@ -1594,15 +1697,17 @@ public void processPacket(ServerCnxn cnxn, ByteBuffer incomingBuffer) throws IOE
                 cnxn.sendBuffer(ServerCnxnFactory.closeConn);
                 cnxn.disableRecv();
             }
-            return;
+            return null;
         } else if (h.getType() == OpCode.sasl) {
             processSasl(incomingBuffer, cnxn, h);
+            return null;
         } else {
             if (shouldRequireClientSaslAuth() && !hasCnxSASLAuthenticated(cnxn)) {
                 ReplyHeader replyHeader = new ReplyHeader(h.getXid(), 0, Code.SESSIONCLOSEDREQUIRESASLAUTH.intValue());
                 cnxn.sendResponse(replyHeader, null, "response");
                 cnxn.sendCloseSession();
                 cnxn.disableRecv();
+                return null;
             } else {
                 Request si = new Request(cnxn, cnxn.getSessionId(), h.getXid(), h.getType(), incomingBuffer, cnxn.getAuthInfo());
                 int length = incomingBuffer.limit();
@@ -1612,7 +1717,7 @@ public void processPacket(ServerCnxn cnxn, ByteBuffer incomingBuffer) throws IOE
                     si.setLargeRequestSize(length);
                 }
                 si.setOwner(ServerCnxn.me);
-                submitRequest(si);
+                return si;
             }
         }
     }
@@ -1798,6 +1903,36 @@ public ResponseCache getGetChildrenResponseCache() {
         return isResponseCachingEnabled ? getChildrenResponseCache : null;
     }
 
+    public ResponseCache getExistsResponseCache() {
+        return isResponseCachingEnabled ? existsResponseCache : null;
+    }
+
+    public ResponseCache getGetChildrenWithoutStatResponseCache() {
+        return isResponseCachingEnabled ? getChildrenWithoutStatResponseCache : null;
+    }
+
+    public ResponseCache getGetACLResponseCache() {
+        return isResponseCachingEnabled ? getACLResponseCache : null;
+    }
+
+    public ResponseCache getGetAllChildrenNumberResponseCache() {
+        return isResponseCachingEnabled ? getAllChildrenNumberResponseCache : null;
+    }
+
+    private static ResponseCache newReadResponseCache() {
+        return new ResponseCache(
+            Integer.getInteger(GET_DATA_RESPONSE_CACHE_SIZE, ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE),
+            Long.getLong(GET_DATA_RESPONSE_CACHE_BYTES, ResponseCache.DEFAULT_RESPONSE_CACHE_BYTES),
+            ServerMetrics.getMetrics().RESPONSE_PACKET_CACHE_EVICTIONS);
+    }
+
+    private static ResponseCache newGetChildrenResponseCache() {
+        return new ResponseCache(
+            Integer.getInteger(GET_CHILDREN_RESPONSE_CACHE_SIZE, ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE),
+            Long.getLong(GET_CHILDREN_RESPONSE_CACHE_BYTES, ResponseCache.DEFAULT_RESPONSE_CACHE_BYTES),
+            ServerMetrics.getMetrics().RESPONSE_PACKET_GET_CHILDREN_CACHE_EVICTIONS);
+    }
+
     protected void registerMetrics() {
         MetricsContext rootContext = ServerMetrics.getMetrics().getMetricsProvider().getRootContext();
 
@@ -1835,6 +1970,13 @@ protected void registerMetrics() {
         rootContext.registerGauge("max_client_response_size", stats.getClientResponseStats()::getMaxBufferSize);
         rootContext.registerGauge("min_client_response_size", stats.getClientResponseStats()::getMinBufferSize);
 
+        rootContext.registerGauge("response_packet_cache_bytes", () -> readResponseCache.getCacheBytes()
+            + existsResponseCache.getCacheBytes()
+            + getACLResponseCache.getCacheBytes()
+            + getAllChildrenNumberResponseCache.getCacheBytes());
+        rootContext.registerGauge("response_packet_get_children_cache_bytes", () -> getChildrenResponseCache.getCacheBytes()
+            + getChildrenWithoutStatResponseCache.getCacheBytes());
+
         rootContext.registerGauge("outstanding_tls_handshake", this::getOutstandingHandshakeNum);
     }
 
@@ -1871,6 +2013,9 @@ protected void unregisterMetrics() {
         rootContext.unregisterGauge("max_client_response_size");
         rootContext.unregisterGauge("min_client_response_size");
 
+        rootContext.unregisterGauge("response_packet_cache_bytes");
+        rootContext.unregisterGauge("response_packet_get_children_cache_bytes");
+
     }
 
     /**
@@ -375,6 +375,16 @@ public void setMaxBatchSize(int size) {
         ZooKeeperServer.setMaxBatchSize(size);
     }
 
+    @Override
+    public long getGroupCommitTargetLatency() {
+        return zks.getGroupCommitTargetLatency();
+    }
+
+    @Override
+    public void setGroupCommitTargetLatency(long latency) {
+        ZooKeeperServer.setGroupCommitTargetLatency(latency);
+    }
+
     public boolean getRequestStaleConnectionCheck() {
         return Request.getStaleConnectionCheck();
     }
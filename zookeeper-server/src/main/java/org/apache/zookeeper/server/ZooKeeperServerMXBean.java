@@ -221,6 +221,9 @@ public interface ZooKeeperServerMXBean {
     int getMaxBatchSize();
     void setMaxBatchSize(int size);
 
+    long getGroupCommitTargetLatency();
+    void setGroupCommitTargetLatency(long latency);
+
     /**
      * @return Current maxCnxns allowed to a single ZooKeeper server
      */
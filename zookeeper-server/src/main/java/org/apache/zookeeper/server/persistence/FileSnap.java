@@ -47,6 +47,21 @@ public class FileSnap implements SnapShot {
     SnapshotInfo lastSnapshotInfo = null;
     private volatile boolean close = false;
     private static final int VERSION = 2;
+    // version of the snapshots with a chunked tree
+    private static final int CHUNKED_VERSION = 3;
+
+    /**
+     * When enabled, snapshots are written with the nodes grouped into chunks
+     * which are decoded in parallel when the snapshot is loaded. Disabled by
+     * default, since older servers can't read these snapshots.
+     */
+    public static final String SNAPSHOT_CHUNKED = "zookeeper.snapshot.chunked";
+
+    /**
+     * Number of threads decoding the chunks of a snapshot, the number of
+     * processors by default.
+     */
+    public static final String SNAPSHOT_LOAD_THREADS = "zookeeper.snapshot.loadThreads";
     private static final long dbId = -1;
     private static final Logger LOG = LoggerFactory.getLogger(FileSnap.class);
     public static final int SNAP_MAGIC = ByteBuffer.wrap("ZKSN".getBytes()).getInt();
@@ -84,21 +99,8 @@ public long deserialize(DataTree dt, Map<Long, Integer> sessions) throws IOExcep
             snap = snapList.get(i);
             LOG.info("Reading snapshot {}", snap);
             snapZxid = Util.getZxidFromName(snap.getName(), SNAPSHOT_FILE_PREFIX);
-            try (CheckedInputStream snapIS = SnapStream.getInputStream(snap)) {
-                InputArchive ia = BinaryInputArchive.getArchive(snapIS);
-                deserialize(dt, sessions, ia);
-                SnapStream.checkSealIntegrity(snapIS, ia);
-
-                // Digest feature was added after the CRC to make it backward
-                // compatible, the older code can still read snapshots which
-                // includes digest.
-                //
-                // To check the intact, after adding digest we added another
-                // CRC check.
-                if (dt.deserializeZxidDigest(ia, snapZxid)) {
-                    SnapStream.checkSealIntegrity(snapIS, ia);
-                }
-
+            try {
+                deserialize(dt, sessions, snap, snapZxid);
                 foundValid = true;
                 break;
             } catch (IOException e) {
@@ -119,6 +121,33 @@ public long deserialize(DataTree dt, Map<Long, Integer> sessions) throws IOExcep
         return dt.lastProcessedZxid;
     }
 
+    /**
+     * deserialize the datatree from a snapshot file, checking its integrity.
+     * The lastProcessedZxid of the datatree is left unchanged.
+     * @param dt the datatree to be serialized into
+     * @param sessions the sessions to be filled up
+     * @param snap the snapshot file, named after its stream mode
+     * @param snapZxid the zxid of the snapshot
+     * @throws IOException
+     */
+    public void deserialize(DataTree dt, Map<Long, Integer> sessions, File snap, long snapZxid) throws IOException {
+        try (CheckedInputStream snapIS = SnapStream.getInputStream(snap)) {
+            InputArchive ia = BinaryInputArchive.getArchive(snapIS);
+            deserialize(dt, sessions, ia);
+            SnapStream.checkSealIntegrity(snapIS, ia);
+
+            // Digest feature was added after the CRC to make it backward
+            // compatible, the older code can still read snapshots which
+            // includes digest.
+            //
+            // To check the intact, after adding digest we added another
+            // CRC check.
+            if (dt.deserializeZxidDigest(ia, snapZxid)) {
+                SnapStream.checkSealIntegrity(snapIS, ia);
+            }
+        }
+    }
+
     /**
      * deserialize the datatree from an inputarchive
      * @param dt the datatree to be serialized into
@@ -132,7 +161,12 @@ public void deserialize(DataTree dt, Map<Long, Integer> sessions, InputArchive i
         if (header.getMagic() != SNAP_MAGIC) {
             throw new IOException("mismatching magic headers " + header.getMagic() + " !=  " + FileSnap.SNAP_MAGIC);
         }
-        SerializeUtils.deserializeSnapshot(dt, ia, sessions);
+        if (header.getVersion() == CHUNKED_VERSION) {
+            int parallelism = Integer.getInteger(SNAPSHOT_LOAD_THREADS, Runtime.getRuntime().availableProcessors());
+            SerializeUtils.deserializeChunkedSnapshot(dt, ia, sessions, Math.max(1, parallelism));
+        } else {
+            SerializeUtils.deserializeSnapshot(dt, ia, sessions);
+        }
     }
 
     /**
@@ -224,7 +258,11 @@ protected void serialize(
             throw new IllegalStateException("Snapshot's not open for writing: uninitialized header");
         }
         header.serialize(oa, "fileheader");
-        SerializeUtils.serializeSnapshot(dt, oa, sessions);
+        if (header.getVersion() == CHUNKED_VERSION) {
+            SerializeUtils.serializeChunkedSnapshot(dt, oa, sessions);
+        } else {
+            SerializeUtils.serializeSnapshot(dt, oa, sessions);
+        }
     }
 
     /**
@@ -242,7 +280,8 @@ public synchronized void serialize(
         if (!close) {
             try (CheckedOutputStream snapOS = SnapStream.getOutputStream(snapShot, fsync)) {
                 OutputArchive oa = BinaryOutputArchive.getArchive(snapOS);
-                FileHeader header = new FileHeader(SNAP_MAGIC, VERSION, dbId);
+                boolean chunked = Boolean.getBoolean(SNAPSHOT_CHUNKED);
+                FileHeader header = new FileHeader(SNAP_MAGIC, chunked ? CHUNKED_VERSION : VERSION, dbId);
                 serialize(dt, sessions, oa, header);
                 SnapStream.sealStream(snapOS, oa);
 
@@ -35,6 +35,8 @@
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.Adler32;
 import java.util.zip.Checksum;
@@ -125,6 +127,25 @@ public class FileTxnLog implements TxnLog, Closeable {
      */
     private static long txnLogSizeLimit = -1;
 
+    /**
+     * When enabled, the transactions are serialized into direct buffers and
+     * written and forced by a dedicated thread, so the serialization of the
+     * next batch overlaps with the fsync of the previous one. Disabled by
+     * default.
+     */
+    static final String TXN_LOG_PIPELINED = "zookeeper.txnLogPipelined";
+
+    /**
+     * Size of the buffers of the pipelined log writer (KB), 64 by default.
+     */
+    static final String TXN_LOG_WRITE_BUFFER_SIZE = "zookeeper.txnLogWriteBufferSizeInKb";
+
+    /**
+     * When enabled, the logs are read through memory mappings instead of
+     * streams, see {@link MappedTxnIterator}. Disabled by default.
+     */
+    static final String TXN_LOG_MAPPED_READ = "zookeeper.txnLogMappedRead";
+
     static {
         LOG = LoggerFactory.getLogger(FileTxnLog.class);
 
@@ -152,12 +173,15 @@ public class FileTxnLog implements TxnLog, Closeable {
 
     File logDir;
     private final boolean forceSync = !System.getProperty("zookeeper.forceSync", "yes").equals("no");
+    private final boolean pipelined = Boolean.getBoolean(TXN_LOG_PIPELINED);
+    private final boolean mappedRead = Boolean.getBoolean(TXN_LOG_MAPPED_READ);
+    private PipelinedTxnLogWriter writer;
     long dbId;
     private final Queue<FileOutputStream> streamsToFlush = new ArrayDeque<>();
     File logFileWrite = null;
     private FilePadding filePadding = new FilePadding();
 
-    private ServerStats serverStats;
+    private volatile ServerStats serverStats;
 
     private volatile long syncElapsedMS = -1L;
 
@@ -233,6 +257,10 @@ protected Checksum makeChecksumAlgorithm() {
      * @throws IOException
      */
     public synchronized void rollLog() throws IOException {
+        if (writer != null && writer.hasLog()) {
+            prevLogsRunningTotal += getCurrentLogSize();
+            writer.rollLog();
+        }
         if (logStream != null) {
             this.logStream.flush();
             prevLogsRunningTotal += getCurrentLogSize();
@@ -248,6 +276,10 @@ public synchronized void rollLog() throws IOException {
      * @throws IOException
      */
     public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.shutdown();
+            writer = null;
+        }
         if (logStream != null) {
             logStream.close();
         }
@@ -280,6 +312,10 @@ public synchronized boolean append(TxnHeader hdr, Record txn, TxnDigest digest)
         } else {
             lastZxidSeen = hdr.getZxid();
         }
+        if (pipelined) {
+            appendPipelined(hdr, txn, digest);
+            return true;
+        }
         if (logStream == null) {
             LOG.info("Creating new log file: {}", Util.makeLogName(hdr.getZxid()));
 
@@ -307,6 +343,27 @@ public synchronized boolean append(TxnHeader hdr, Record txn, TxnDigest digest)
         return true;
     }
 
+    private void appendPipelined(TxnHeader hdr, Record txn, TxnDigest digest) throws IOException {
+        if (writer == null) {
+            int bufferSize = Integer.getInteger(TXN_LOG_WRITE_BUFFER_SIZE, 64) * 1024;
+            writer = new PipelinedTxnLogWriter(this, bufferSize, forceSync);
+            writer.start();
+        }
+        if (!writer.hasLog()) {
+            LOG.info("Creating new log file: {}", Util.makeLogName(hdr.getZxid()));
+
+            logFileWrite = new File(logDir, Util.makeLogName(hdr.getZxid()));
+            writer.startLog(logFileWrite, new FileHeader(TXNLOG_MAGIC, VERSION, dbId));
+        }
+        byte[] buf = Util.marshallTxnEntry(hdr, txn, digest);
+        if (buf == null || buf.length == 0) {
+            throw new IOException("Faulty serialization for header " + "and txn");
+        }
+        Checksum crc = makeChecksumAlgorithm();
+        crc.update(buf, 0, buf.length);
+        writer.append(crc.getValue(), buf);
+    }
+
     /**
      * Find the log file that starts at, or just before, the snapshot. Return
      * this and all subsequent logs. Results are ordered by zxid of file,
@@ -388,38 +445,62 @@ private void close(TxnIterator itr) {
      * disk
      */
     public synchronized void commit() throws IOException {
+        if (pipelined) {
+            waitFor(handOver());
+            rollLogIfTooLarge();
+            return;
+        }
         if (logStream != null) {
             logStream.flush();
         }
         for (FileOutputStream log : streamsToFlush) {
             log.flush();
             if (forceSync) {
-                long startSyncNS = System.nanoTime();
-
-                FileChannel channel = log.getChannel();
-                channel.force(false);
-
-                syncElapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
-                if (syncElapsedMS > fsyncWarningThresholdMS) {
-                    if (serverStats != null) {
-                        serverStats.incrementFsyncThresholdExceedCount();
-                    }
-
-                    LOG.warn(
-                        "fsync-ing the write ahead log in {} took {}ms which will adversely effect operation latency."
-                            + "File size is {} bytes. See the ZooKeeper troubleshooting guide",
-                        Thread.currentThread().getName(),
-                        syncElapsedMS,
-                        channel.size());
-                }
-
-                ServerMetrics.getMetrics().FSYNC_TIME.add(syncElapsedMS);
+                force(log.getChannel());
             }
         }
         while (streamsToFlush.size() > 1) {
             streamsToFlush.poll().close();
         }
 
+        rollLogIfTooLarge();
+    }
+
+    /**
+     * commit the log without waiting for the fsync. With a pipelined log,
+     * the transactions are written and forced by the log writer thread.
+     * @return a future completed once the transactions are persisted
+     * @throws IOException
+     */
+    @Override
+    public synchronized CompletableFuture<Void> commitAsync() throws IOException {
+        if (!pipelined) {
+            commit();
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> committed = handOver();
+        // the size of the log lags behind by the batches still being written
+        rollLogIfTooLarge();
+        return committed;
+    }
+
+    /**
+     * @return true if the transactions are written and forced by a log
+     * writer thread
+     */
+    boolean isPipelined() {
+        return pipelined;
+    }
+
+    private CompletableFuture<Void> handOver() {
+        if (writer == null) {
+            // nothing was ever appended
+            return CompletableFuture.completedFuture(null);
+        }
+        return writer.commit();
+    }
+
+    private void rollLogIfTooLarge() throws IOException {
         // Roll the log file if we exceed the size limit
         if (txnLogSizeLimit > 0) {
             long logSize = getCurrentLogSize();
@@ -431,6 +512,45 @@ public synchronized void commit() throws IOException {
         }
     }
 
+    /**
+     * Force a log file to disk, tracking the time spent in the fsync.
+     */
+    void force(FileChannel channel) throws IOException {
+        long startSyncNS = System.nanoTime();
+
+        channel.force(false);
+
+        syncElapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
+        if (syncElapsedMS > fsyncWarningThresholdMS) {
+            if (serverStats != null) {
+                serverStats.incrementFsyncThresholdExceedCount();
+            }
+
+            LOG.warn(
+                "fsync-ing the write ahead log in {} took {}ms which will adversely effect operation latency."
+                    + "File size is {} bytes. See the ZooKeeper troubleshooting guide",
+                Thread.currentThread().getName(),
+                syncElapsedMS,
+                channel.size());
+        }
+
+        ServerMetrics.getMetrics().FSYNC_TIME.add(syncElapsedMS);
+    }
+
+    static void waitFor(CompletableFuture<Void> committed) throws IOException {
+        try {
+            committed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while committing the transaction log", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
     /**
      *
      * @return elapsed sync time of transaction log in milliseconds
@@ -459,9 +579,37 @@ public TxnIterator read(long zxid) throws IOException {
      * @return returns an iterator to iterate through the transaction logs
      */
     public TxnIterator read(long zxid, boolean fastForward) throws IOException {
+        if (mappedRead) {
+            return new MappedTxnIterator(logDir, zxid, fastForward);
+        }
         return new FileTxnIterator(logDir, zxid, fastForward);
     }
 
+    /**
+     * the log files holding the transactions from the given zxid on, the
+     * oldest one last
+     * @param logDir the transaction database directory
+     * @param zxid the zxid to start reading from
+     * @return the list of log files to read
+     */
+    static ArrayList<File> getLogFilesToRead(File logDir, long zxid) {
+        ArrayList<File> storedFiles = new ArrayList<>();
+        List<File> files = Util.sortDataDir(
+            FileTxnLog.getLogFiles(logDir.listFiles(), 0),
+            LOG_FILE_PREFIX,
+            false);
+        for (File f : files) {
+            if (Util.getZxidFromName(f.getName(), LOG_FILE_PREFIX) >= zxid) {
+                storedFiles.add(f);
+            } else if (Util.getZxidFromName(f.getName(), LOG_FILE_PREFIX) < zxid) {
+                // add the last logfile that is less than the zxid
+                storedFiles.add(f);
+                break;
+            }
+        }
+        return storedFiles;
+    }
+
     /**
      * truncate the current transaction logs
      * @param zxid the zxid to truncate the logs to
@@ -621,6 +769,7 @@ public static class FileTxnIterator implements TxnLog.TxnIterator {
         TxnHeader hdr;
         Record record;
         TxnDigest digest;
+        byte[] txnBytes;
         File logFile;
         InputArchive ia;
         static final String CRC_ERROR = "CRC check failed";
@@ -670,20 +819,7 @@ public FileTxnIterator(File logDir, long zxid) throws IOException {
          * @throws IOException
          */
         void init() throws IOException {
-            storedFiles = new ArrayList<>();
-            List<File> files = Util.sortDataDir(
-                FileTxnLog.getLogFiles(logDir.listFiles(), 0),
-                LOG_FILE_PREFIX,
-                false);
-            for (File f : files) {
-                if (Util.getZxidFromName(f.getName(), LOG_FILE_PREFIX) >= zxid) {
-                    storedFiles.add(f);
-                } else if (Util.getZxidFromName(f.getName(), LOG_FILE_PREFIX) < zxid) {
-                    // add the last logfile that is less than the zxid
-                    storedFiles.add(f);
-                    break;
-                }
-            }
+            storedFiles = getLogFilesToRead(logDir, zxid);
             goToNextLog();
             next();
         }
@@ -781,12 +917,14 @@ public boolean next() throws IOException {
                 hdr = logEntry.getHeader();
                 record = logEntry.getTxn();
                 digest = logEntry.getDigest();
+                txnBytes = bytes;
             } catch (EOFException e) {
                 LOG.debug("EOF exception", e);
                 inputStream.close();
                 inputStream = null;
                 ia = null;
                 hdr = null;
+                txnBytes = null;
                 // this means that the file has ended
                 // we should go to the next file
                 if (!goToNextLog()) {
@@ -823,6 +961,14 @@ public TxnDigest getDigest() {
             return digest;
         }
 
+        /**
+         * @return the bytes the current transaction was read from
+         */
+        @Override
+        public byte[] getTxnBytes() {
+            return txnBytes;
+        }
+
         /**
          * close the iterator
          * and release the resources.
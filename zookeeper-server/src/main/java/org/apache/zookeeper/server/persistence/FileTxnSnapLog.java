@@ -24,6 +24,7 @@
 import java.nio.file.Files;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import org.apache.jute.Record;
 import org.apache.zookeeper.KeeperException;
@@ -535,6 +536,21 @@ public File findMostRecentSnapshot() throws IOException {
         return snaplog.findMostRecentSnapshot();
     }
 
+    /**
+     * deserialize a snapshot file, which may not be in the snapshot
+     * directory, into a data tree
+     * @param dt the datatree to be deserialized into
+     * @param sessions the sessions to be filled up
+     * @param snap the snapshot file, named after its stream mode
+     * @param snapZxid the zxid of the snapshot
+     * @throws IOException
+     */
+    public void deserializeSnapshot(DataTree dt, Map<Long, Integer> sessions, File snap, long snapZxid) throws IOException {
+        FileSnap snaplog = new FileSnap(snapDir);
+        snaplog.deserialize(dt, sessions, snap, snapZxid);
+        dt.lastProcessedZxid = snapZxid;
+    }
+
     /**
      * the n most recent snapshots
      * @param n the number of recent snapshots
@@ -590,6 +606,20 @@ public void commit() throws IOException {
         txnLog.commit();
     }
 
+    /**
+     * commit the transaction of logs without waiting for the fsync. Unless
+     * the log is pipelined, this is {@link #commit()}.
+     * @return a future completed once the transactions are persisted
+     * @throws IOException
+     */
+    public CompletableFuture<Void> commitAsync() throws IOException {
+        if (txnLog instanceof FileTxnLog && ((FileTxnLog) txnLog).isPipelined()) {
+            return txnLog.commitAsync();
+        }
+        commit();
+        return CompletableFuture.completedFuture(null);
+    }
+
     /**
      *
      * @return elapsed sync time of transaction log commit in milliseconds
@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.Adler32;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.server.TxnLogEntry;
+import org.apache.zookeeper.server.util.SerializeUtils;
+import org.apache.zookeeper.txn.TxnDigest;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Iterates over the transaction logs through read only memory mappings.
+ *
+ * The entries are validated in place: the checksum is computed over the
+ * mapped bytes and the header is decoded from its fixed offsets, without
+ * copying the entry. The record and the digest are only deserialized when
+ * asked for, and {@link #getTxnBytes()} copies the entry as stored in the
+ * log, so a learner can be synced from the log without deserializing and
+ * serializing every transaction again.
+ *
+ * The log files are mapped in windows of {@link #WINDOW_SIZE} bytes, which
+ * are unmapped when garbage collected.
+ */
+class MappedTxnIterator implements TxnLog.TxnIterator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedTxnIterator.class);
+
+    static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    // crc and length of an entry
+    private static final int ENTRY_HEADER_SIZE = 12;
+
+    private final ArrayList<File> storedFiles;
+
+    private File logFile;
+    private FileChannel channel;
+    private long fileSize;
+    private MappedByteBuffer window;
+    private long windowStart;
+    // offset in the log file of the next entry
+    private long position;
+
+    private TxnHeader hdr;
+    // offset in the window of the bytes of the current txn
+    private int txnOffset;
+    private int txnLength;
+    // window holding the current txn, kept after the log is closed
+    private MappedByteBuffer txnWindow;
+    private TxnLogEntry logEntry;
+
+    /**
+     * create an iterator over a transaction database directory
+     * @param logDir the transaction database directory
+     * @param zxid the zxid to start reading from
+     * @param fastForward true if the iterator should be fast forwarded to
+     *        point to the txn of a given zxid, else the iterator will point
+     *        to the starting txn of a txnlog that may contain txn of a given
+     *        zxid
+     * @throws IOException
+     */
+    MappedTxnIterator(File logDir, long zxid, boolean fastForward) throws IOException {
+        storedFiles = FileTxnLog.getLogFilesToRead(logDir, zxid);
+        if (goToNextLog()) {
+            next();
+        }
+        if (fastForward && hdr != null) {
+            while (hdr.getZxid() < zxid) {
+                if (!next()) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private boolean goToNextLog() throws IOException {
+        if (storedFiles.isEmpty()) {
+            logFile = null;
+            return false;
+        }
+        logFile = storedFiles.remove(storedFiles.size() - 1);
+        channel = new RandomAccessFile(logFile, "r").getChannel();
+        fileSize = channel.size();
+        window = null;
+        position = 0;
+        try {
+            if (!map(16)) {
+                throw new EOFException("Failed to read the header of " + logFile);
+            }
+            int magic = window.getInt(0);
+            if (magic != FileTxnLog.TXNLOG_MAGIC) {
+                throw new IOException("Transaction log: " + logFile
+                                      + " has invalid magic number "
+                                      + magic + " != " + FileTxnLog.TXNLOG_MAGIC);
+            }
+        } catch (IOException e) {
+            closeLog();
+            throw e;
+        }
+        position = 16;
+        return true;
+    }
+
+    /**
+     * Map the bytes of the current log file from the current position on,
+     * at least the given number of them.
+     * @return false if the log file is too short
+     */
+    private boolean map(int length) throws IOException {
+        if (position + length > fileSize) {
+            return false;
+        }
+        if (window == null || position + length > windowStart + window.capacity()) {
+            long size = Math.min(fileSize - position, Math.max(WINDOW_SIZE, length));
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            windowStart = position;
+        }
+        return true;
+    }
+
+    /**
+     * go to the next transaction of the logs
+     * @return true if there is one
+     * @throws IOException if a transaction is corrupted
+     */
+    public boolean next() throws IOException {
+        while (logFile != null) {
+            try {
+                if (readEntry()) {
+                    return true;
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            // this means that the file has ended, go to the next one
+            closeLog();
+            hdr = null;
+            if (!goToNextLog()) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private boolean readEntry() throws IOException {
+        if (!map(ENTRY_HEADER_SIZE)) {
+            return false;
+        }
+        int base = (int) (position - windowStart);
+        long crcValue = window.getLong(base);
+        int length = window.getInt(base + 8);
+        // Since we preallocate, we define EOF to be an empty transaction
+        if (length == 0 || length == -1) {
+            return false;
+        }
+        if (length < 0) {
+            throw new IOException(BinaryInputArchive.UNREASONBLE_LENGTH + length);
+        }
+        if (!map(ENTRY_HEADER_SIZE + length + 1)) {
+            return false;
+        }
+        base = (int) (position - windowStart);
+        if (window.get(base + ENTRY_HEADER_SIZE + length) != 'B') {
+            LOG.error("Last transaction was partial.");
+            return false;
+        }
+
+        ByteBuffer txn = window.duplicate();
+        txn.position(base + ENTRY_HEADER_SIZE);
+        txn.limit(base + ENTRY_HEADER_SIZE + length);
+        Adler32 crc = new Adler32();
+        crc.update(txn);
+        if (crcValue != crc.getValue()) {
+            throw new IOException(FileTxnLog.FileTxnIterator.CRC_ERROR);
+        }
+
+        txnOffset = base + ENTRY_HEADER_SIZE;
+        txnLength = length;
+        // clientId, cxid, zxid, time and type, as serialized by jute
+        hdr = new TxnHeader(
+            window.getLong(txnOffset),
+            window.getInt(txnOffset + 8),
+            window.getLong(txnOffset + 12),
+            window.getLong(txnOffset + 20),
+            window.getInt(txnOffset + 28));
+        txnWindow = window;
+        logEntry = null;
+        position += ENTRY_HEADER_SIZE + length + 1;
+        return true;
+    }
+
+    private void closeLog() throws IOException {
+        window = null;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    public TxnHeader getHeader() {
+        return hdr;
+    }
+
+    public Record getTxn() {
+        return hdr == null ? null : decode().getTxn();
+    }
+
+    public TxnDigest getDigest() {
+        return hdr == null ? null : decode().getDigest();
+    }
+
+    /**
+     * @return a copy of the current transaction as stored in the log
+     */
+    @Override
+    public byte[] getTxnBytes() {
+        if (hdr == null) {
+            return null;
+        }
+        byte[] bytes = new byte[txnLength];
+        ByteBuffer txn = txnWindow.duplicate();
+        txn.position(txnOffset);
+        txn.get(bytes);
+        return bytes;
+    }
+
+    private TxnLogEntry decode() {
+        if (logEntry == null) {
+            try {
+                logEntry = SerializeUtils.deserializeTxn(getTxnBytes());
+            } catch (IOException e) {
+                // the checksum of the entry was valid
+                throw new IllegalStateException("Failed to deserialize the txn " + hdr.getZxid(), e);
+            }
+        }
+        return logEntry;
+    }
+
+    /**
+     * Return total storage size of txnlog that will return by this iterator.
+     * Like {@link FileTxnLog.FileTxnIterator#getStorageSize()}, this leaves
+     * out the log being read.
+     */
+    public long getStorageSize() {
+        long sum = 0;
+        for (File f : storedFiles) {
+            sum += f.length();
+        }
+        return sum;
+    }
+
+    public void close() throws IOException {
+        storedFiles.clear();
+        logFile = null;
+        hdr = null;
+        closeLog();
+    }
+
+}
@@ -0,0 +1,344 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.server.ZooKeeperThread;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the transaction log on a dedicated thread, so the transactions of
+ * the next batch can be serialized while the previous batch is forced to
+ * disk.
+ *
+ * The appending thread frames the transactions into direct buffers. A commit
+ * hands the filled buffers over to the writer thread, which writes them to
+ * the log with gathering writes, forces the log and completes the future
+ * returned by the commit. Batches committed while the writer thread is busy
+ * are written and forced together, and their futures complete in commit
+ * order. Once a write fails, all later commits fail as well, so the log
+ * never has a gap.
+ *
+ * startLog, append, rollLog, commit and close must be called by a single
+ * thread, or under a common lock.
+ */
+class PipelinedTxnLogWriter extends ZooKeeperThread {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PipelinedTxnLogWriter.class);
+
+    // at most this many buffers are kept for reuse
+    private static final int MAX_SPARE_BUFFERS = 16;
+
+    private static final byte[] EOR = {0x42};
+
+    private final FileTxnLog txnLog;
+    private final int bufferSize;
+    private final boolean forceSync;
+
+    private final BlockingQueue<Batch> committed = new LinkedBlockingQueue<>();
+    private final Queue<ByteBuffer> spareBuffers = new ConcurrentLinkedQueue<>();
+
+    // owned by the appending thread
+    private final ByteBuffer frame = ByteBuffer.allocate(12);
+    private List<Segment> pending = new ArrayList<>();
+    private Segment segment;
+    private LogFile currentLog;
+
+    // owned by the writer thread
+    private LogFile lastWritten;
+    private IOException failure;
+
+    PipelinedTxnLogWriter(FileTxnLog txnLog, int bufferSize, boolean forceSync) {
+        super("TxnLogWriter");
+        this.txnLog = txnLog;
+        this.bufferSize = bufferSize;
+        this.forceSync = forceSync;
+        setDaemon(true);
+    }
+
+    /**
+     * @return true if a log file is open for appending
+     */
+    boolean hasLog() {
+        return currentLog != null;
+    }
+
+    /**
+     * Create a new log file and append its header.
+     */
+    void startLog(File file, FileHeader header) throws IOException {
+        currentLog = new LogFile(new FileOutputStream(file));
+        segment = null;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        header.serialize(BinaryOutputArchive.getArchive(baos), "fileheader");
+        put(baos.toByteArray());
+    }
+
+    /**
+     * Append a serialized transaction to the current log file.
+     */
+    void append(long crc, byte[] txnBytes) {
+        frame.clear();
+        frame.putLong(crc).putInt(txnBytes.length);
+        put(frame.array());
+        put(txnBytes);
+        put(EOR);
+    }
+
+    /**
+     * Stop appending to the current log file. The transactions appended to
+     * it are still written by the next commit.
+     */
+    void rollLog() {
+        currentLog = null;
+        segment = null;
+    }
+
+    /**
+     * Hand the transactions appended since the last commit over to the
+     * writer thread.
+     */
+    CompletableFuture<Void> commit() {
+        Batch batch = new Batch(pending, false);
+        pending = new ArrayList<>();
+        segment = null;
+        committed.add(batch);
+        return batch.future;
+    }
+
+    /**
+     * Write the pending transactions, then stop the writer thread and close
+     * the log files.
+     */
+    void shutdown() throws IOException {
+        CompletableFuture<Void> last = commit();
+        committed.add(new Batch(new ArrayList<>(), true));
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing the transaction log", e);
+        }
+        FileTxnLog.waitFor(last);
+    }
+
+    private void put(byte[] bytes) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            ByteBuffer buffer = writableBuffer();
+            int length = Math.min(bytes.length - offset, buffer.remaining());
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    private ByteBuffer writableBuffer() {
+        if (segment == null) {
+            segment = new Segment(currentLog);
+            pending.add(segment);
+        }
+        List<ByteBuffer> buffers = segment.buffers;
+        ByteBuffer buffer = buffers.isEmpty() ? null : buffers.get(buffers.size() - 1);
+        if (buffer == null || !buffer.hasRemaining()) {
+            buffer = spareBuffers.poll();
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(bufferSize);
+            }
+            buffers.add(buffer);
+        }
+        return buffer;
+    }
+
+    @Override
+    public void run() {
+        List<Batch> batches = new ArrayList<>();
+        boolean stopping = false;
+        try {
+            while (!stopping) {
+                batches.add(committed.take());
+                committed.drainTo(batches);
+                write(batches);
+                for (Batch batch : batches) {
+                    stopping |= batch.last;
+                    if (failure == null) {
+                        batch.future.complete(null);
+                    } else {
+                        batch.future.completeExceptionally(failure);
+                    }
+                }
+                batches.clear();
+            }
+        } catch (InterruptedException e) {
+            LOG.warn("Transaction log writer interrupted", e);
+        } finally {
+            closeQuietly(lastWritten);
+            IOException closed = new IOException("Transaction log is closed");
+            for (Batch batch : batches) {
+                batch.future.completeExceptionally(closed);
+            }
+        }
+    }
+
+    /**
+     * Write the segments of the batches, force every log file written to and
+     * close the log files which were rolled.
+     */
+    private void write(List<Batch> batches) {
+        if (failure != null) {
+            return;
+        }
+        List<LogFile> written = new ArrayList<>();
+        List<ByteBuffer> run = new ArrayList<>();
+        LogFile runLog = null;
+        try {
+            for (Batch batch : batches) {
+                for (Segment s : batch.segments) {
+                    if (s.log != runLog) {
+                        if (runLog != null) {
+                            runLog.write(run);
+                        }
+                        run.clear();
+                        runLog = s.log;
+                        if (!written.contains(runLog)) {
+                            written.add(runLog);
+                        }
+                    }
+                    for (ByteBuffer buffer : s.buffers) {
+                        buffer.flip();
+                        run.add(buffer);
+                    }
+                }
+            }
+            if (runLog != null) {
+                runLog.write(run);
+            }
+            for (LogFile log : written) {
+                if (forceSync) {
+                    txnLog.force(log.channel);
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Failed to write the transaction log", e);
+            failure = e;
+            return;
+        } finally {
+            for (Batch batch : batches) {
+                for (Segment s : batch.segments) {
+                    recycle(s.buffers);
+                }
+            }
+        }
+        if (runLog != null) {
+            // all but the latest log file were rolled
+            if (lastWritten != null && lastWritten != runLog) {
+                closeQuietly(lastWritten);
+            }
+            for (int i = 0; i < written.size() - 1; i++) {
+                closeQuietly(written.get(i));
+            }
+            lastWritten = runLog;
+        }
+    }
+
+    private void recycle(List<ByteBuffer> buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (spareBuffers.size() < MAX_SPARE_BUFFERS) {
+                buffer.clear();
+                spareBuffers.add(buffer);
+            }
+        }
+    }
+
+    private static void closeQuietly(LogFile log) {
+        if (log != null) {
+            try {
+                log.fos.close();
+            } catch (IOException e) {
+                LOG.warn("Ignoring exception during close", e);
+            }
+        }
+    }
+
+    private static class LogFile {
+
+        final FileOutputStream fos;
+        final FileChannel channel;
+        final FilePadding filePadding = new FilePadding();
+
+        LogFile(FileOutputStream fos) {
+            this.fos = fos;
+            this.channel = fos.getChannel();
+        }
+
+        void write(List<ByteBuffer> buffers) throws IOException {
+            filePadding.padFile(channel);
+            ByteBuffer[] srcs = buffers.toArray(new ByteBuffer[0]);
+            long remaining = 0;
+            for (ByteBuffer buffer : srcs) {
+                remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(srcs);
+            }
+        }
+
+    }
+
+    /**
+     * The transactions of a commit appended to one log file.
+     */
+    private static class Segment {
+
+        final LogFile log;
+        final List<ByteBuffer> buffers = new ArrayList<>();
+
+        Segment(LogFile log) {
+            this.log = log;
+        }
+
+    }
+
+    private static class Batch {
+
+        final List<Segment> segments;
+        final boolean last;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Batch(List<Segment> segments, boolean last) {
+            this.segments = segments;
+            this.last = last;
+        }
+
+    }
+
+}
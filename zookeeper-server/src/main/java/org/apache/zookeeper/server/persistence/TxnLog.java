@@ -20,6 +20,7 @@
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.jute.Record;
 import org.apache.zookeeper.server.ServerStats;
@@ -127,6 +128,22 @@ public interface TxnLog extends Closeable {
      */
     void commit() throws IOException;
 
+    /**
+     * commit the transactions without waiting for them
+     * to be persisted
+     * <p>
+     * 异步提交事务
+     *
+     * @return a future completed once the transactions appended so far
+     *         are persisted. The futures of successive commits complete
+     *         in order.
+     * @throws IOException
+     */
+    default CompletableFuture<Void> commitAsync() throws IOException {
+        commit();
+        return CompletableFuture.completedFuture(null);
+    }
+
     /**
      * 事务同步消费的时间,单位毫秒
      *
@@ -186,6 +203,19 @@ interface TxnIterator extends Closeable {
          */
         TxnDigest getDigest();
 
+        /**
+         * return the transaction as serialized in the log: the header,
+         * the record and the digest.
+         * <p>
+         * 获取序列化的事务
+         *
+         * @return the serialized transaction
+         * @throws IOException
+         */
+        default byte[] getTxnBytes() throws IOException {
+            return Util.marshallTxnEntry(getHeader(), getTxn(), getDigest());
+        }
+
         /**
          * go to the next transaction record.
          * <p>
@@ -18,6 +18,7 @@
 
 package org.apache.zookeeper.server.quorum;
 
+import java.io.Flushable;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.RequestProcessor;
 import org.apache.zookeeper.server.ServerMetrics;
@@ -26,13 +27,17 @@
 
 /**
  * This is a very simple RequestProcessor that simply forwards a request from a
- * previous stage to the leader as an ACK.
+ * previous stage to the leader as an ACK. The requests logged by a batch are
+ * acked at once when the batch is flushed.
  */
-class AckRequestProcessor implements RequestProcessor {
+class AckRequestProcessor implements RequestProcessor, Flushable {
 
     private static final Logger LOG = LoggerFactory.getLogger(AckRequestProcessor.class);
     Leader leader;
 
+    // zxid of the last request logged, acked by the next flush
+    private long pendingAckZxid = -1;
+
     AckRequestProcessor(Leader leader) {
         this.leader = leader;
     }
@@ -40,16 +45,26 @@ class AckRequestProcessor implements RequestProcessor {
     /**
      * Forward the request as an ACK to the leader
      */
-    public void processRequest(Request request) {
+    public synchronized void processRequest(Request request) {
         QuorumPeer self = leader.self;
         if (self != null) {
             request.logLatency(ServerMetrics.getMetrics().PROPOSAL_ACK_CREATION_LATENCY);
-            leader.processAck(self.getId(), request.zxid, null);
+            pendingAckZxid = request.zxid;
         } else {
             LOG.error("Null QuorumPeer");
         }
     }
 
+    /**
+     * ACK the requests logged since the last flush
+     */
+    public synchronized void flush() {
+        if (pendingAckZxid != -1) {
+            leader.processAck(leader.self.getId(), pendingAckZxid, null);
+            pendingAckZxid = -1;
+        }
+    }
+
     public void shutdown() {
         // TODO No need to do anything
     }
@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.jute.BinaryOutputArchive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the quorum packets of a learner connection to the socket channel
+ * through a direct buffer, instead of a BufferedOutputStream over the
+ * socket stream.
+ *
+ * The packets are serialized straight into the direct buffer, which the
+ * channel writes without copying it. The buffer is written out when it
+ * holds flushBytes bytes or when the writer is flushed, so a single write
+ * carries all the packets queued in between. A packet serialized once for
+ * all the learners which doesn't fit in the buffer is written along with
+ * it by a single gathering write.
+ *
+ * The quorum sockets only have a channel when the NIO transport is enabled
+ * and the quorum isn't using SSL or port unification, the other ones are
+ * written through their stream. The wire format is the same, so servers
+ * using either transport can be mixed in an ensemble.
+ *
+ * The channel stays in blocking mode. With the socket adaptors which switch
+ * the channel to non-blocking mode during a timed read of the socket input
+ * stream, a write may return without writing anything, it is then retried
+ * after a short pause.
+ */
+final class ChannelPacketWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChannelPacketWriter.class);
+
+    /**
+     * "nio" to write the quorum packets to socket channels, "stream" to
+     * write them to the socket streams
+     */
+    static final String TRANSPORT = "zookeeper.quorum.transport";
+
+    /**
+     * Size of the buffer of a connection, written out when full
+     */
+    static final String FLUSH_BYTES = "zookeeper.quorum.nio.flushBytes";
+
+    private static final long RETRY_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final SocketChannel channel;
+    private final ByteBuffer buffer;
+    private final BinaryOutputArchive archive;
+
+    ChannelPacketWriter(SocketChannel channel, int flushBytes) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(flushBytes);
+        this.archive = BinaryOutputArchive.getArchive(new BufferOutputStream());
+    }
+
+    static boolean isEnabled() {
+        return "nio".equals(System.getProperty(TRANSPORT, "stream"));
+    }
+
+    /**
+     * @return a server socket whose accepted sockets have a channel if the
+     * NIO transport is enabled, a plain server socket otherwise
+     */
+    static ServerSocket createServerSocket() throws IOException {
+        return isEnabled() ? ServerSocketChannel.open().socket() : new ServerSocket();
+    }
+
+    /**
+     * @return a socket with a channel if the NIO transport is enabled, a
+     * plain socket otherwise
+     */
+    static Socket createSocket() throws IOException {
+        return isEnabled() ? SocketChannel.open().socket() : new Socket();
+    }
+
+    /**
+     * @return a writer for the channel of sock, or null if the NIO transport
+     * is disabled or sock has no channel
+     */
+    static ChannelPacketWriter forSocket(Socket sock) {
+        if (!isEnabled() || sock.getChannel() == null) {
+            return null;
+        }
+        int flushBytes = Integer.getInteger(FLUSH_BYTES, 64 * 1024);
+        LOG.info("Writing the packets to {} through a buffer of {} bytes", sock.getRemoteSocketAddress(), flushBytes);
+        return new ChannelPacketWriter(sock.getChannel(), flushBytes);
+    }
+
+    /**
+     * Serialize a packet into the buffer, which is written out if full.
+     */
+    void write(QuorumPacket p) throws IOException {
+        if (!(p instanceof SerializedQuorumPacket)) {
+            archive.writeRecord(p, "packet");
+            return;
+        }
+        byte[] bytes = ((SerializedQuorumPacket) p).getBytes();
+        if (bytes.length <= buffer.remaining()) {
+            buffer.put(bytes);
+            return;
+        }
+        buffer.flip();
+        writeFully(buffer, ByteBuffer.wrap(bytes));
+        buffer.clear();
+    }
+
+    /**
+     * Write out the packets in the buffer.
+     */
+    void flush() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer... buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer b : buffers) {
+            remaining += b.remaining();
+        }
+        while (remaining > 0) {
+            long written = channel.write(buffers);
+            if (written == 0) {
+                // the channel is in non-blocking mode for a timed read
+                LockSupport.parkNanos(RETRY_NANOS);
+            }
+            remaining -= written;
+        }
+    }
+
+    /**
+     * The stream of the archive, which fills the buffer.
+     */
+    private class BufferOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            ChannelPacketWriter.this.flush();
+        }
+
+    }
+
+}
@@ -25,12 +25,13 @@
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.common.Time;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.RequestProcessor;
+import org.apache.zookeeper.server.RequestQueueFactory;
 import org.apache.zookeeper.server.ServerMetrics;
 import org.apache.zookeeper.server.WorkerService;
 import org.apache.zookeeper.server.ZooKeeperCriticalThread;
@@ -84,17 +85,25 @@ public class CommitProcessor extends ZooKeeperCriticalThread implements RequestP
     public static final String ZOOKEEPER_COMMIT_PROC_MAX_READ_BATCH_SIZE = "zookeeper.commitProcessor.maxReadBatchSize";
     /** Default max commit batch size: 1 */
     public static final String ZOOKEEPER_COMMIT_PROC_MAX_COMMIT_BATCH_SIZE = "zookeeper.commitProcessor.maxCommitBatchSize";
+    /** Default: false */
+    public static final String ZOOKEEPER_COMMIT_PROC_FAIR_SCHEDULING = "zookeeper.commitProcessor.fairScheduling";
+    /** Default fair scheduling quantum: 4 */
+    public static final String ZOOKEEPER_COMMIT_PROC_FAIR_QUANTUM = "zookeeper.commitProcessor.fairQuantum";
+    /** Default max reads in flight with fair scheduling: 2 * numWorkerThreads */
+    public static final String ZOOKEEPER_COMMIT_PROC_MAX_READS_IN_FLIGHT = "zookeeper.commitProcessor.maxReadsInFlight";
+    /** Default: false */
+    public static final String ZOOKEEPER_COMMIT_PROC_SESSION_METRICS = "zookeeper.commitProcessor.sessionMetrics";
 
     /**
      * Incoming requests.
      */
-    protected LinkedBlockingQueue<Request> queuedRequests = new LinkedBlockingQueue<Request>();
+    protected BlockingQueue<Request> queuedRequests = RequestQueueFactory.createQueue("commit_processor_queued");
 
     /**
      * Incoming requests that are waiting on a commit,
      * contained in order of arrival
      */
-    protected final LinkedBlockingQueue<Request> queuedWriteRequests = new LinkedBlockingQueue<>();
+    protected final BlockingQueue<Request> queuedWriteRequests = RequestQueueFactory.createQueue("commit_processor_queued_writes");
 
     /**
      * The number of read requests currently held in all session queues
@@ -109,7 +118,7 @@ public class CommitProcessor extends ZooKeeperCriticalThread implements RequestP
     /**
      * Requests that have been committed.
      */
-    protected final LinkedBlockingQueue<Request> committedRequests = new LinkedBlockingQueue<Request>();
+    protected final BlockingQueue<Request> committedRequests = RequestQueueFactory.createQueue("commit_processor_committed");
 
     /**
      * Requests that we are holding until commit comes in. Keys represent
@@ -154,6 +163,15 @@ public class CommitProcessor extends ZooKeeperCriticalThread implements RequestP
      */
     boolean matchSyncs;
 
+    /**
+     * The reads ready to run when fair scheduling is enabled, dispatched in
+     * round robin across the sessions up to maxReadsInFlight at a time, so
+     * that the reads of a session do not queue up behind the ones of a busy
+     * session in the worker threads. Null if disabled.
+     */
+    FairReadScheduler fairScheduler;
+    private int maxReadsInFlight;
+
     public CommitProcessor(RequestProcessor nextProcessor, String id, boolean matchSyncs, ZooKeeperServerListener listener) {
         super("CommitProcessor:" + id, listener);
         this.nextProcessor = nextProcessor;
@@ -211,10 +229,10 @@ public void run() {
                 commitIsWaiting = !committedRequests.isEmpty();
                 requestsToProcess = queuedRequests.size();
                 // Avoid sync if we have something to do
-                if (requestsToProcess == 0 && !commitIsWaiting) {
+                if (requestsToProcess == 0 && !commitIsWaiting && !canDispatchFairReads()) {
                     // Waiting for requests to process
                     synchronized (this) {
-                        while (!stopped && requestsToProcess == 0 && !commitIsWaiting) {
+                        while (!stopped && requestsToProcess == 0 && !commitIsWaiting && !canDispatchFairReads()) {
                             wait();
                             commitIsWaiting = !committedRequests.isEmpty();
                             requestsToProcess = queuedRequests.size();
@@ -249,6 +267,9 @@ public void run() {
                         Deque<Request> requests = pendingRequests.computeIfAbsent(request.sessionId, sid -> new ArrayDeque<>());
                         requests.addLast(request);
                         ServerMetrics.getMetrics().REQUESTS_IN_SESSION_QUEUE.add(requests.size());
+                    } else if (fairScheduler != null) {
+                        readsProcessed++;
+                        fairScheduler.add(request);
                     } else {
                         readsProcessed++;
                         numReadQueuedRequests.decrementAndGet();
@@ -274,6 +295,9 @@ public void run() {
                         break;
                     }
                 }
+                if (fairScheduler != null) {
+                    dispatchFairReads();
+                }
                 ServerMetrics.getMetrics().READS_ISSUED_IN_COMMIT_PROC.add(readsProcessed);
 
                 if (!commitIsWaiting) {
@@ -328,6 +352,14 @@ public void run() {
                                  * haven't gotten to this write yet.
                                  */
                                 break;
+                            } else if (fairScheduler != null && fairScheduler.hasReads(request.sessionId)) {
+                                /*
+                                 * Can't process this write until the reads of the
+                                 * session before it have run, so dispatch them now.
+                                 */
+                                int dispatched = fairScheduler.dispatchSession(request.sessionId, this::sendFairRead);
+                                numReadQueuedRequests.addAndGet(-dispatched);
+                                break;
                             } else {
                                 ServerMetrics.getMetrics().REQUESTS_IN_SESSION_QUEUE.add(sessionQueue.size());
                                 // If session queue != null, then it is also not empty.
@@ -381,8 +413,12 @@ public void run() {
                         Deque<Request> sessionQueue = pendingRequests.get(sessionId);
                         int readsAfterWrite = 0;
                         while (!stopped && !sessionQueue.isEmpty() && !needCommit(sessionQueue.peek())) {
-                            numReadQueuedRequests.decrementAndGet();
-                            sendToNextProcessor(sessionQueue.poll());
+                            if (fairScheduler != null) {
+                                fairScheduler.add(sessionQueue.poll());
+                            } else {
+                                numReadQueuedRequests.decrementAndGet();
+                                sendToNextProcessor(sessionQueue.poll());
+                            }
                             readsAfterWrite++;
                         }
                         ServerMetrics.getMetrics().READS_AFTER_WRITE_IN_SESSION_QUEUE.add(readsAfterWrite);
@@ -427,6 +463,33 @@ protected void waitForEmptyPool() throws InterruptedException {
             .add(Time.currentElapsedTime() - startWaitTime);
     }
 
+    private boolean canDispatchFairReads() {
+        return fairScheduler != null && !fairScheduler.isEmpty() && numRequestsProcessing.get() < maxReadsInFlight;
+    }
+
+    /**
+     * Dispatch the reads of the fair scheduler until maxReadsInFlight are
+     * being processed, or all of them without worker threads.
+     */
+    private void dispatchFairReads() {
+        if (fairScheduler.isEmpty()) {
+            return;
+        }
+        ServerMetrics.getMetrics().FAIR_READ_SESSIONS.add(fairScheduler.numSessions());
+        int dispatched;
+        while (!stopped
+               && canDispatchFairReads()
+               && (dispatched = fairScheduler.dispatch(maxReadsInFlight - numRequestsProcessing.get(), this::sendFairRead)) > 0) {
+            numReadQueuedRequests.addAndGet(-dispatched);
+        }
+    }
+
+    private void sendFairRead(Request request) {
+        if (!stopped) {
+            sendToNextProcessor(request);
+        }
+    }
+
     @Override
     public void start() {
         int numCores = Runtime.getRuntime().availableProcessors();
@@ -434,6 +497,7 @@ public void start() {
         workerShutdownTimeoutMS = Long.getLong(ZOOKEEPER_COMMIT_PROC_SHUTDOWN_TIMEOUT, 5000);
 
         initBatchSizes();
+        initFairScheduling(numWorkerThreads);
 
         LOG.info(
             "Configuring CommitProcessor with {} worker threads.",
@@ -478,6 +542,25 @@ private static void initBatchSizes() {
              maxCommitBatchSize);
     }
 
+    void initFairScheduling(int numWorkerThreads) {
+        if (!Boolean.getBoolean(ZOOKEEPER_COMMIT_PROC_FAIR_SCHEDULING)) {
+            fairScheduler = null;
+            return;
+        }
+        int quantum = Integer.getInteger(ZOOKEEPER_COMMIT_PROC_FAIR_QUANTUM, FairReadScheduler.LIST_COST);
+        maxReadsInFlight = Integer.getInteger(ZOOKEEPER_COMMIT_PROC_MAX_READS_IN_FLIGHT, 2 * Math.max(1, numWorkerThreads));
+        if (maxReadsInFlight <= 0) {
+            String errorMsg = "maxReadsInFlight must be positive, was " + maxReadsInFlight;
+            throw new IllegalArgumentException(errorMsg);
+        }
+        fairScheduler = new FairReadScheduler(quantum, Boolean.getBoolean(ZOOKEEPER_COMMIT_PROC_SESSION_METRICS));
+
+        LOG.info(
+            "Configuring CommitProcessor with fair scheduling, quantum {} maxReadsInFlight {}",
+            quantum,
+            maxReadsInFlight);
+    }
+
     private static void processCommitMetrics(Request request, boolean isWrite) {
         if (isWrite) {
             if (request.commitProcQueueStartTime != -1 && request.commitRecvTime != -1) {
@@ -554,9 +637,14 @@ public void doWork() throws RequestProcessorException {
 
             } finally {
 
-                if (numRequestsProcessing.decrementAndGet() == 0) {
+                int numInProcess = numRequestsProcessing.decrementAndGet();
+                if (numInProcess == 0) {
                     wakeupOnEmpty();
                 }
+                // let the main thread dispatch the reads held back
+                if (fairScheduler != null && numInProcess == maxReadsInFlight - 1 && fairScheduler.size() > 0) {
+                    wakeup();
+                }
             }
         }
 
@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.ServerMetrics;
+
+/**
+ * Holds the reads of the CommitProcessor which are ready to run, in a queue
+ * per session, and hands them to the worker threads with deficit round
+ * robin across the sessions, so that a session issuing many reads cannot
+ * delay the reads of the others.
+ *
+ * On each visit a session is credited with the quantum, and its reads are
+ * dispatched in order while their cost fits in its credit. The reads
+ * listing the children of a node cost {@link #LIST_COST}, the others 1.
+ * The credit left when a session runs out of reads is dropped.
+ *
+ * Only the main thread of the CommitProcessor may call the methods, except
+ * {@link #size()} which any thread may read.
+ */
+class FairReadScheduler {
+
+    static final int LIST_COST = 4;
+
+    private final int quantum;
+    private final boolean sessionMetrics;
+    private final Map<Long, SessionReads> sessions = new HashMap<>();
+    // the sessions with reads, the one being visited first
+    private final ArrayDeque<SessionReads> active = new ArrayDeque<>();
+    private volatile int size;
+
+    /**
+     * @param quantum the credit of a session on each visit
+     * @param sessionMetrics whether to record the time the reads are queued
+     *                       for each session
+     */
+    FairReadScheduler(int quantum, boolean sessionMetrics) {
+        if (quantum <= 0) {
+            throw new IllegalArgumentException("quantum must be positive, was " + quantum);
+        }
+        this.quantum = quantum;
+        this.sessionMetrics = sessionMetrics;
+    }
+
+    static int cost(Request request) {
+        switch (request.type) {
+        case OpCode.getChildren:
+        case OpCode.getChildren2:
+        case OpCode.getChildrenPaged:
+        case OpCode.getAllChildrenNumber:
+        case OpCode.getEphemerals:
+        case OpCode.multiRead:
+            return LIST_COST;
+        default:
+            return 1;
+        }
+    }
+
+    void add(Request request) {
+        SessionReads session = sessions.get(request.sessionId);
+        if (session == null) {
+            session = new SessionReads();
+            sessions.put(request.sessionId, session);
+            active.addLast(session);
+        }
+        session.reads.addLast(request);
+        size++;
+    }
+
+    /**
+     * @return the number of reads held, may be read by any thread
+     */
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int numSessions() {
+        return sessions.size();
+    }
+
+    boolean hasReads(long sessionId) {
+        return sessions.containsKey(sessionId);
+    }
+
+    /**
+     * Dispatch reads in deficit round robin order.
+     *
+     * @param max the maximum number of reads to dispatch
+     * @return the number of reads dispatched
+     */
+    int dispatch(int max, Consumer<Request> dispatcher) {
+        int dispatched = 0;
+        while (dispatched < max && !active.isEmpty()) {
+            SessionReads session = active.peekFirst();
+            if (!session.visited) {
+                session.deficit += quantum;
+                session.visited = true;
+            }
+            Request request = session.reads.peekFirst();
+            int cost = cost(request);
+            if (cost > session.deficit) {
+                // the visit is over, keep the credit for the next one
+                session.visited = false;
+                active.addLast(active.pollFirst());
+                continue;
+            }
+            session.reads.pollFirst();
+            session.deficit -= cost;
+            if (session.reads.isEmpty()) {
+                active.pollFirst();
+                sessions.remove(request.sessionId);
+            }
+            dispatch(request, dispatcher);
+            dispatched++;
+        }
+        return dispatched;
+    }
+
+    /**
+     * Dispatch all the reads of a session regardless of the round robin,
+     * so that a committed write of the session may follow them.
+     *
+     * @return the number of reads dispatched
+     */
+    int dispatchSession(long sessionId, Consumer<Request> dispatcher) {
+        SessionReads session = sessions.remove(sessionId);
+        if (session == null) {
+            return 0;
+        }
+        active.remove(session);
+        int dispatched = session.reads.size();
+        Request request;
+        while ((request = session.reads.pollFirst()) != null) {
+            dispatch(request, dispatcher);
+        }
+        return dispatched;
+    }
+
+    private void dispatch(Request request, Consumer<Request> dispatcher) {
+        size--;
+        if (request.commitProcQueueStartTime != -1) {
+            long queueTime = Time.currentElapsedTime() - request.commitProcQueueStartTime;
+            ServerMetrics.getMetrics().FAIR_READ_QUEUE_TIME.add(queueTime);
+            if (sessionMetrics) {
+                ServerMetrics.getMetrics().SESSION_READ_QUEUE_TIME.add(Long.toHexString(request.sessionId), queueTime);
+            }
+        }
+        dispatcher.accept(request);
+    }
+
+    void clear() {
+        sessions.clear();
+        active.clear();
+        size = 0;
+    }
+
+    private static class SessionReads {
+
+        final ArrayDeque<Request> reads = new ArrayDeque<>();
+        int deficit;
+        boolean visited;
+
+    }
+
+}
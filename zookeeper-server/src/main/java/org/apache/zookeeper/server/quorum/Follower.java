@@ -208,6 +208,17 @@ protected void processPacket(QuorumPacket qp) throws Exception {
                 ServerMetrics.getMetrics().OM_COMMIT_PROCESS_TIME.add(Time.currentElapsedTime() - startTime);
             }
             break;
+        case Leader.COMMIT_UPTO:
+            ServerMetrics.getMetrics().LEARNER_COMMIT_RECEIVED_COUNT.add(1);
+            for (long committed = getFirstCommitted(qp); committed <= qp.getZxid(); committed++) {
+                fzk.commit(committed);
+                if (om != null) {
+                    final long startTime = Time.currentElapsedTime();
+                    om.proposalCommitted(committed);
+                    ServerMetrics.getMetrics().OM_COMMIT_PROCESS_TIME.add(Time.currentElapsedTime() - startTime);
+                }
+            }
+            break;
 
         case Leader.COMMITANDACTIVATE:
             // get the new configuration from the request
@@ -75,4 +75,14 @@ public interface FollowerMXBean extends ZooKeeperServerMXBean {
      */
     void setMaxConcurrentDiffSyncs(int maxConcurrentDiffSyncs);
 
+    /**
+     * @return Maximum rate in bytes per second of the snapshot files sent to observers, all together, 0 if unlimited
+     */
+    long getMaxSnapSyncBytesPerSec();
+
+    /**
+     * @param maxSnapSyncBytesPerSec Maximum rate in bytes per second of the snapshot files sent to observers, all together, 0 if unlimited
+     */
+    void setMaxSnapSyncBytesPerSec(long maxSnapSyncBytesPerSec);
+
 }
@@ -89,6 +89,71 @@ public static class Proposal extends SyncedLearnerTracker {
         public QuorumPacket packet;
         public Request request;
 
+        // when set, the acks are recorded in ackBits instead of the ack set,
+        // without holding the leader lock
+        private ProposalWindow.Voters voters;
+        private final AtomicLong ackBits = new AtomicLong();
+
+        /**
+         * Record the acks in a bitmap updated atomically. The proposal must
+         * wait for the quorum of the single quorum verifier of voters.
+         */
+        void useAckBitmap(ProposalWindow.Voters voters) {
+            this.voters = voters;
+            qvAcksetPairs.set(0, new QuorumVerifierAcksetPair(voters.qv, null) {
+                @Override
+                public HashSet<Long> getAckset() {
+                    return voters.toSids(ackBits.get());
+                }
+            });
+        }
+
+        boolean hasAckBitmap() {
+            return voters != null;
+        }
+
+        /**
+         * Record the ack of sid in the bitmap.
+         *
+         * @return true if the ack completes the quorum of the proposal
+         */
+        boolean addAckAndCheckQuorum(long sid) {
+            long bit = voters.bitOf(sid);
+            long acks;
+            do {
+                acks = ackBits.get();
+                if (bit == 0 || (acks & bit) != 0) {
+                    return false;
+                }
+            } while (!ackBits.compareAndSet(acks, acks | bit));
+            return !voters.isQuorum(acks) && voters.isQuorum(acks | bit);
+        }
+
+        @Override
+        public boolean addAck(Long sid) {
+            if (voters == null) {
+                return super.addAck(sid);
+            }
+            addAckAndCheckQuorum(sid);
+            return voters.bitOf(sid) != 0;
+        }
+
+        @Override
+        public boolean hasAllQuorums() {
+            if (voters == null) {
+                return super.hasAllQuorums();
+            }
+            return voters.isQuorum(ackBits.get());
+        }
+
+        @Override
+        public String ackSetsToString() {
+            if (voters == null) {
+                return super.ackSetsToString();
+            }
+            return voters.toSids(ackBits.get()).toString();
+        }
+
         @Override
         public String toString() {
             return packet.getType() + ", " + packet.getZxid() + ", " + request;
@@ -113,6 +178,10 @@ public static int getAckLoggingFrequency() {
         return ackLoggingFrequency;
     }
 
+    // number of outstanding proposals whose acks are recorded without holding
+    // the leader lock. If <=0, all the acks are recorded under the lock.
+    public static final String PROPOSAL_WINDOW_SIZE = "zookeeper.leader.proposalWindowSize";
+
     final LeaderZooKeeperServer zk;
 
     final QuorumPeer self;
@@ -309,7 +378,7 @@ Optional<ServerSocket> createServerSocket(InetSocketAddress address, boolean por
             if (portUnification || sslQuorum) {
                 serverSocket = new UnifiedServerSocket(self.getX509Util(), portUnification);
             } else {
-                serverSocket = new ServerSocket();
+                serverSocket = ChannelPacketWriter.createServerSocket();
             }
             serverSocket.setReuseAddress(true);
             serverSocket.bind(address);
@@ -423,8 +492,53 @@ Optional<ServerSocket> createServerSocket(InetSocketAddress address, boolean por
      */
     static final int INFORMANDACTIVATE = 19;
 
+    /**
+     * This message type is sent by a leader to commit a range of proposals
+     * at once. The zxid of the packet is the last zxid of the range and its
+     * data holds the first one. It is only sent to the learners with a
+     * protocol version of at least {@link #PROTOCOL_VERSION_COMMIT_UPTO},
+     * the other ones get a COMMIT for every proposal of the range.
+     */
+    static final int COMMIT_UPTO = 20;
+
+    /**
+     * Protocol version of the learners which handle COMMIT_UPTO.
+     */
+    static final int PROTOCOL_VERSION_COMMIT_UPTO = 0x10001;
+
+    /**
+     * Protocol version of the leaders which handle cumulative ACKs, sent to
+     * the learners in LEADERINFO. An ACK always covers all the proposals up
+     * to its zxid, since learners log the proposals in order, so learners
+     * following such a leader may only ACK the last proposal of a batch.
+     */
+    static final int PROTOCOL_VERSION_CUMULATIVE_ACK = 0x10001;
+
+    /**
+     * This message type is sent by a leader instead of SNAP to transfer its
+     * last snapshot file, followed by the proposals committed since the
+     * snapshot. Its data holds the name, last modified time and length of
+     * the file and the offset the transfer starts from, the rest of the file
+     * following it in chunks. It is only sent to the learners with a
+     * protocol version of at least {@link #PROTOCOL_VERSION_SNAP_FILE}.
+     *
+     * @see SnapshotFileTransfer
+     */
+    static final int SNAP_FILE = 21;
+
+    /**
+     * Protocol version of the learners which handle SNAP_FILE, and of the
+     * leaders which resume the transfer of a snapshot file from the partial
+     * file sent by a learner in ACKEPOCH. It includes the previous versions.
+     */
+    static final int PROTOCOL_VERSION_SNAP_FILE = 0x10002;
+
     final ConcurrentMap<Long, Proposal> outstandingProposals = new ConcurrentHashMap<Long, Proposal>();
 
+    // the outstanding proposals, looked up by the learner handlers to record
+    // their acks without holding the leader lock. null if disabled.
+    private final ProposalWindow proposalWindow = createProposalWindow();
+
     private final ConcurrentLinkedQueue<Proposal> toBeApplied = new ConcurrentLinkedQueue<Proposal>();
 
     // VisibleForTesting
@@ -553,7 +667,7 @@ private void acceptConnections() throws IOException {
 
     // when a reconfig occurs where the leader is removed or becomes an observer,
     // it does not commit ops after committing the reconfig
-    boolean allowedToCommit = true;
+    volatile boolean allowedToCommit = true;
 
     /**
      * Timestamp when this leader started serving request (Quorum is running)
@@ -919,6 +1033,9 @@ public synchronized boolean tryToCommit(Proposal p, long zxid, SocketAddress fol
         }
 
         outstandingProposals.remove(zxid);
+        if (proposalWindow != null) {
+            proposalWindow.remove(zxid, outstandingProposals.isEmpty());
+        }
 
         if (p.request != null) {
             toBeApplied.add(p);
@@ -928,6 +1045,7 @@ public synchronized boolean tryToCommit(Proposal p, long zxid, SocketAddress fol
             LOG.warn("Going to commit null: {}", p);
         } else if (p.request.getHdr().getType() == OpCode.reconfig) {
             LOG.debug("Committing a reconfiguration! {}", outstandingProposals.size());
+            sendQueuedCommits();
 
             //if this server is voter in new config with the same quorum address,
             //then it will remain the leader
@@ -952,11 +1070,13 @@ public synchronized boolean tryToCommit(Proposal p, long zxid, SocketAddress fol
             //turnOffFollowers();
         } else {
             p.request.logLatency(ServerMetrics.getMetrics().QUORUM_ACK_LATENCY);
-            commit(zxid);
+            queueCommit(zxid);
             inform(p);
         }
         zk.commitProcessor.commit(p.request);
         if (pendingSyncs.containsKey(zxid)) {
+            // the learner must get the commit before the sync
+            sendQueuedCommits();
             for (LearnerSyncRequest r : pendingSyncs.remove(zxid)) {
                 sendSync(r);
             }
@@ -974,7 +1094,7 @@ public synchronized boolean tryToCommit(Proposal p, long zxid, SocketAddress fol
      * @param followerAddr
      */
     @Override
-    public synchronized void processAck(long sid, long zxid, SocketAddress followerAddr) {
+    public void processAck(long sid, long zxid, SocketAddress followerAddr) {
         if (!allowedToCommit) {
             return; // last op committed was a leader change - from now on
         }
@@ -1009,9 +1129,14 @@ public synchronized void processAck(long sid, long zxid, SocketAddress followerA
             // The proposal has already been committed
             return;
         }
-        Proposal p = outstandingProposals.get(zxid);
+        Proposal p = proposalWindow == null ? null : proposalWindow.get(zxid);
+        if (p == null) {
+            p = outstandingProposals.get(zxid);
+        }
         if (p == null) {
-            LOG.warn("Trying to commit future proposal: zxid 0x{} from {}", Long.toHexString(zxid), followerAddr);
+            if (lastCommitted < zxid) {
+                LOG.warn("Trying to commit future proposal: zxid 0x{} from {}", Long.toHexString(zxid), followerAddr);
+            }
             return;
         }
 
@@ -1019,29 +1144,137 @@ public synchronized void processAck(long sid, long zxid, SocketAddress followerA
             p.request.logLatency(ServerMetrics.getMetrics().ACK_LATENCY, Long.toString(sid));
         }
 
-        p.addAck(sid);
+        // The ACK covers the proposals between the last one acked by sid
+        // and p, which can be committed by this pass as well
+        long firstAcked = firstAckedBy(sid, zxid);
+        if (!addAcksWithoutLock(sid, firstAcked, zxid)) {
+            return;
+        }
+
+        synchronized (this) {
+            if (hasZxidGap(firstAcked, zxid)) {
+                for (Map.Entry<Long, Proposal> entry : outstandingProposals.entrySet()) {
+                    if (entry.getKey() >= firstAcked && entry.getKey() <= zxid) {
+                        entry.getValue().addAck(sid);
+                    }
+                }
+            } else {
+                for (long acked = firstAcked; acked <= zxid; acked++) {
+                    Proposal ackedProposal = outstandingProposals.get(acked);
+                    if (ackedProposal != null) {
+                        ackedProposal.addAck(sid);
+                    }
+                }
+            }
+            commitProposals(zxid, followerAddr);
+        }
+    }
 
-        boolean hasCommitted = tryToCommit(p, zxid, followerAddr);
+    /**
+     * The zxids of the proposals are consecutive, unless the zxid of the
+     * leader was moved forward, as tests do to reach the end of an epoch.
+     * Every zxid of a range starting after the last committed one and
+     * ending at an outstanding proposal is outstanding, unless the range
+     * spans such a gap.
+     *
+     * @return true if the range may span a gap in the zxids
+     */
+    private boolean hasZxidGap(long firstZxid, long lastZxid) {
+        return lastZxid - firstZxid >= outstandingProposals.size();
+    }
 
-        // If p is a reconfiguration, multiple other operations may be ready to be committed,
-        // since operations wait for different sets of acks.
-        // Currently we only permit one outstanding reconfiguration at a time
+    /**
+     * @return the zxid of the first outstanding proposal from zxid on, which
+     * is zxid itself unless it falls in a gap in the zxids
+     */
+    private long firstOutstandingFrom(long zxid) {
+        if (outstandingProposals.isEmpty() || outstandingProposals.containsKey(zxid)) {
+            return zxid;
+        }
+        long first = zxid;
+        for (long outstanding : outstandingProposals.keySet()) {
+            if (outstanding > zxid && (first == zxid || outstanding < first)) {
+                first = outstanding;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Record the ACK of sid for the proposals of the window from firstZxid
+     * to lastZxid without holding the leader lock.
+     *
+     * @return false if the ACK is recorded and completes no quorum, true if
+     * the ACK must be recorded under the leader lock or if some proposals may
+     * be committed
+     */
+    private boolean addAcksWithoutLock(long sid, long firstZxid, long lastZxid) {
+        if (proposalWindow == null || proposalWindow.isOverflowed() || hasZxidGap(firstZxid, lastZxid)) {
+            return true;
+        }
+        boolean quorumCompleted = false;
+        for (long zxid = firstZxid; zxid <= lastZxid; zxid++) {
+            Proposal p = proposalWindow.get(zxid);
+            if (p == null) {
+                // committed already
+                continue;
+            }
+            if (!p.hasAckBitmap()) {
+                return true;
+            }
+            if (p.addAckAndCheckQuorum(sid)) {
+                quorumCompleted = true;
+            }
+        }
+        return quorumCompleted;
+    }
+
+    /**
+     * Commit the outstanding proposals in order, from the oldest one to the
+     * first one missing its quorum.
+     *
+     * @param zxid the zxid of an outstanding proposal of the current epoch
+     */
+    private synchronized void commitProposals(long zxid, SocketAddress followerAddr) {
+        // Multiple operations may be ready to be committed, either because p is a reconfiguration,
+        // since operations wait for different sets of acks, or because an ack covers several proposals,
+        // or because the acks completing the quorum of a proposal were recorded before those of the
+        // previous proposal. Currently we only permit one outstanding reconfiguration at a time
         // such that the reconfiguration and subsequent outstanding ops proposed while the reconfig is
         // pending all wait for a quorum of old and new config, so its not possible to get enough acks
         // for an operation without getting enough acks for preceding ops. But in the future if multiple
         // concurrent reconfigs are allowed, this can happen and then we need to check whether some pending
         // ops may already have enough acks and can be committed, which is what this code does.
+        // The proposals committed by this pass are sent to the followers with a single COMMIT_UPTO.
 
-        if (hasCommitted && p.request != null && p.request.getHdr().getType() == OpCode.reconfig) {
-            long curZxid = zxid;
-            while (allowedToCommit && hasCommitted && p != null) {
-                curZxid++;
-                p = outstandingProposals.get(curZxid);
-                if (p != null) {
-                    hasCommitted = tryToCommit(p, curZxid, null);
-                }
-            }
+        // the proposals of the previous epochs are committed
+        long curZxid = firstOutstandingFrom(
+            Math.max(lastCommitted + 1, ZxidUtils.makeZxid(ZxidUtils.getEpochFromZxid(zxid), 1)));
+        Proposal p = outstandingProposals.get(curZxid);
+        while (allowedToCommit && p != null && tryToCommit(p, curZxid, followerAddr)) {
+            curZxid = firstOutstandingFrom(curZxid + 1);
+            p = outstandingProposals.get(curZxid);
         }
+        sendQueuedCommits();
+    }
+
+    /**
+     * Record an ACK of sid for zxid.
+     *
+     * @return the first zxid covered by the ACK which sid didn't ACK before
+     */
+    private long firstAckedBy(long sid, long zxid) {
+        AtomicLong lastAcked = lastAckedZxids.computeIfAbsent(sid, k -> new AtomicLong());
+        long previous = lastAcked.getAndAccumulate(zxid, Math::max);
+        long first = Math.max(lastCommitted, previous) + 1;
+        // the proposals of the previous epochs are committed
+        first = Math.max(first, ZxidUtils.makeZxid(ZxidUtils.getEpochFromZxid(zxid), 1));
+        return Math.min(first, zxid);
+    }
+
+    private static ProposalWindow createProposalWindow() {
+        int size = Integer.getInteger(PROPOSAL_WINDOW_SIZE, 4096);
+        return size > 0 ? new ProposalWindow(size) : null;
     }
 
     static class ToBeAppliedRequestProcessor implements RequestProcessor {
@@ -1116,9 +1349,10 @@ public void shutdown() {
      *                the packet to be sent
      */
     void sendPacket(QuorumPacket qp) {
+        QuorumPacket serialized = SerializedQuorumPacket.of(qp);
         synchronized (forwardingFollowers) {
             for (LearnerHandler f : forwardingFollowers) {
-                f.queuePacket(qp);
+                f.queuePacket(serialized);
             }
         }
     }
@@ -1127,12 +1361,21 @@ void sendPacket(QuorumPacket qp) {
      * send a packet to all observers
      */
     void sendObserverPacket(QuorumPacket qp) {
+        QuorumPacket serialized = SerializedQuorumPacket.of(qp);
         for (LearnerHandler f : getObservingLearners()) {
-            f.queuePacket(qp);
+            f.queuePacket(serialized);
         }
     }
 
-    long lastCommitted = -1;
+    volatile long lastCommitted = -1;
+
+    // last zxid acked by each voter
+    private final ConcurrentMap<Long, AtomicLong> lastAckedZxids = new ConcurrentHashMap<Long, AtomicLong>();
+
+    // range of zxids committed by the current processAck pass which are not
+    // sent to the followers yet
+    private long firstQueuedCommit = -1;
+    private long lastQueuedCommit = -1;
 
     /**
      * Create a commit packet and send it to all the members of the quorum
@@ -1148,6 +1391,69 @@ public void commit(long zxid) {
         ServerMetrics.getMetrics().COMMIT_COUNT.add(1);
     }
 
+    /**
+     * Commit a proposal, which is sent to the followers along with the other
+     * proposals committed by the same processAck pass.
+     */
+    private void queueCommit(long zxid) {
+        if (firstQueuedCommit != -1 && zxid != lastQueuedCommit + 1) {
+            // a COMMIT_UPTO covers consecutive zxids, which the zxids of
+            // the proposals aren't once the zxid of the leader is moved
+            sendQueuedCommits();
+        }
+        lastCommitted = zxid;
+        if (firstQueuedCommit == -1) {
+            firstQueuedCommit = zxid;
+        }
+        lastQueuedCommit = zxid;
+    }
+
+    /**
+     * Send the commits queued by {@link #queueCommit(long)} to the followers.
+     */
+    private void sendQueuedCommits() {
+        if (firstQueuedCommit == -1) {
+            return;
+        }
+        if (firstQueuedCommit == lastQueuedCommit) {
+            commit(lastQueuedCommit);
+        } else {
+            commitUpTo(firstQueuedCommit, lastQueuedCommit);
+        }
+        firstQueuedCommit = -1;
+        lastQueuedCommit = -1;
+    }
+
+    /**
+     * Send a COMMIT_UPTO packet for a range of committed proposals to the
+     * followers which support it, and a COMMIT for every proposal of the
+     * range to the other ones.
+     */
+    private void commitUpTo(long firstZxid, long lastZxid) {
+        byte[] data = new byte[8];
+        ByteBuffer.wrap(data).putLong(firstZxid);
+        QuorumPacket commitUpTo = SerializedQuorumPacket.of(new QuorumPacket(Leader.COMMIT_UPTO, lastZxid, data, null));
+        List<QuorumPacket> commits = null;
+        synchronized (forwardingFollowers) {
+            for (LearnerHandler f : forwardingFollowers) {
+                if (f.getVersion() >= PROTOCOL_VERSION_COMMIT_UPTO) {
+                    f.queuePacket(commitUpTo);
+                    continue;
+                }
+                if (commits == null) {
+                    commits = new ArrayList<>();
+                    for (long zxid = firstZxid; zxid <= lastZxid; zxid++) {
+                        commits.add(SerializedQuorumPacket.of(new QuorumPacket(Leader.COMMIT, zxid, null, null)));
+                    }
+                }
+                for (QuorumPacket commit : commits) {
+                    f.queuePacket(commit);
+                }
+            }
+        }
+        ServerMetrics.getMetrics().COMMIT_COUNT.add(lastZxid - firstZxid + 1);
+    }
+
     //commit and send some info
     public void commitAndActivate(long zxid, long designatedLeader) {
         synchronized (this) {
@@ -1249,6 +1555,16 @@ public Proposal propose(Request request) throws XidRolloverException {
 
             LOG.debug("Proposing:: {}", request);
 
+            if (proposalWindow != null) {
+                if (p.qvAcksetPairs.size() == 1) {
+                    ProposalWindow.Voters voters = proposalWindow.votersOf(p.qvAcksetPairs.get(0).getQuorumVerifier());
+                    if (voters != null) {
+                        p.useAckBitmap(voters);
+                    }
+                }
+                proposalWindow.add(p);
+            }
+
             lastProposed = p.packet.getZxid();
             outstandingProposals.put(lastProposed, p);
             sendPacket(pp);
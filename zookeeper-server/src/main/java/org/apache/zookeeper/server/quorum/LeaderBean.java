@@ -106,4 +106,14 @@ public void setMaxConcurrentDiffSyncs(int maxConcurrentDiffSyncs) {
         leader.setMaxConcurrentDiffSyncs(maxConcurrentDiffSyncs);
     }
 
+    @Override
+    public long getMaxSnapSyncBytesPerSec() {
+        return leader.getMaxSnapSyncBytesPerSec();
+    }
+
+    @Override
+    public void setMaxSnapSyncBytesPerSec(long maxSnapSyncBytesPerSec) {
+        leader.setMaxSnapSyncBytesPerSec(maxSnapSyncBytesPerSec);
+    }
+
 }
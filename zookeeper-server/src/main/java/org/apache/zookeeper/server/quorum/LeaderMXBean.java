@@ -85,4 +85,14 @@ public interface LeaderMXBean extends ZooKeeperServerMXBean {
      */
     void setMaxConcurrentDiffSyncs(int maxConcurrentDiffSyncs);
 
+    /**
+     * @return Maximum rate in bytes per second of the snapshot files sent to learners, all together, 0 if unlimited
+     */
+    long getMaxSnapSyncBytesPerSec();
+
+    /**
+     * @param maxSnapSyncBytesPerSec Maximum rate in bytes per second of the snapshot files sent to learners, all together, 0 if unlimited
+     */
+    void setMaxSnapSyncBytesPerSec(long maxSnapSyncBytesPerSec);
+
 }
@@ -24,6 +24,7 @@
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -109,6 +110,11 @@ public Socket getSocket() {
      * 序列化
      */
     protected OutputArchive leaderOs;
+
+    // writes the packets to the socket channel instead of leaderOs, null
+    // when the packets are written to the socket stream
+    private ChannelPacketWriter channelWriter;
+
     /** the protocol version of the leader */
     protected int leaderProtocolVersion = 0x01;
 
@@ -125,9 +131,23 @@ public Socket getSocket() {
 
     private static final boolean nodelay = System.getProperty("follower.nodelay", "true").equals("true");
 
+    /**
+     * When the leader supports it, send a single ACK for the last proposal
+     * of each batch logged, which covers the previous proposals.
+     */
+    private static final boolean cumulativeAck = Boolean.parseBoolean(System.getProperty("zookeeper.learner.cumulativeAck", "true"));
+
     static {
         LOG.info("leaderConnectDelayDuringRetryMs: {}", leaderConnectDelayDuringRetryMs);
         LOG.info("TCP NoDelay set to: {}", nodelay);
+        LOG.info("Cumulative ACKs enabled: {}", cumulativeAck);
+    }
+
+    /**
+     * @return true if an ACK may cover several proposals
+     */
+    boolean isCumulativeAck() {
+        return cumulativeAck && leaderProtocolVersion >= Leader.PROTOCOL_VERSION_CUMULATIVE_ACK;
     }
 
     final ConcurrentHashMap<Long, ServerCnxn> pendingRevalidations = new ConcurrentHashMap<Long, ServerCnxn>();
@@ -174,10 +194,18 @@ void writePacket(QuorumPacket pp, boolean flush) throws IOException {
         synchronized (leaderOs) {
             if (pp != null) {
                 messageTracker.trackSent(pp.getType());
-                leaderOs.writeRecord(pp, "packet");
+                if (channelWriter != null) {
+                    channelWriter.write(pp);
+                } else {
+                    leaderOs.writeRecord(pp, "packet");
+                }
             }
             if (flush) {
-                bufferedOutput.flush();
+                if (channelWriter != null) {
+                    channelWriter.flush();
+                } else {
+                    bufferedOutput.flush();
+                }
             }
         }
     }
@@ -317,6 +345,7 @@ protected void connectToLeader(MultipleAddresses multiAddr, String hostname) thr
         leaderIs = BinaryInputArchive.getArchive(new BufferedInputStream(sock.getInputStream()));
         bufferedOutput = new BufferedOutputStream(sock.getOutputStream());
         leaderOs = BinaryOutputArchive.getArchive(bufferedOutput);
+        channelWriter = ChannelPacketWriter.forSocket(sock);
     }
 
     class LeaderConnector implements Runnable {
@@ -428,7 +457,7 @@ protected Socket createSocket() throws X509Exception, IOException {
         if (self.isSslQuorum()) {
             sock = self.getX509Util().createSSLSocket();
         } else {
-            sock = new Socket();
+            sock = ChannelPacketWriter.createSocket();
         }
         sock.setSoTimeout(self.tickTime * self.initLimit);
         return sock;
@@ -453,7 +482,7 @@ protected long registerWithLeader(int pktType) throws IOException {
         /*
          * Add sid to payload
          */
-        LearnerInfo li = new LearnerInfo(self.getId(), 0x10000, self.getQuorumVerifier().getVersion());
+        LearnerInfo li = new LearnerInfo(self.getId(), Leader.PROTOCOL_VERSION_SNAP_FILE, self.getQuorumVerifier().getVersion());
         ByteArrayOutputStream bsid = new ByteArrayOutputStream();
         BinaryOutputArchive boa = BinaryOutputArchive.getArchive(bsid);
         boa.writeRecord(li, "LearnerInfo");
@@ -482,6 +511,14 @@ protected long registerWithLeader(int pktType) throws IOException {
                                       + " is less than accepted epoch, "
                                       + self.getAcceptedEpoch());
             }
+            if (leaderProtocolVersion >= Leader.PROTOCOL_VERSION_SNAP_FILE && self.getTxnFactory() != null) {
+                // resume the transfer of a snapshot file if possible
+                SnapshotFileTransfer.Partial partial = SnapshotFileTransfer.findPartial(self.getTxnFactory().getSnapDir());
+                if (partial != null) {
+                    LOG.info("Found {} bytes of snapshot file {}", partial.length, partial.name);
+                    epochBytes = partial.appendTo(epochBytes);
+                }
+            }
             QuorumPacket ackNewEpoch = new QuorumPacket(Leader.ACKEPOCH, lastLoggedZxid, epochBytes, null);
             writePacket(ackNewEpoch, true);
             return ZxidUtils.makeZxid(newEpoch, 0);
@@ -543,6 +580,26 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
                 }
                 zk.getZKDatabase().setlastProcessedZxid(qp.getZxid());
 
+                // immediately persist the latest snapshot when there is txn log gap
+                syncSnapshot = true;
+            } else if (qp.getType() == Leader.SNAP_FILE) {
+                self.setSyncMode(QuorumPeer.SyncMode.SNAP);
+                LOG.info("Getting a snapshot file from leader 0x{}", Long.toHexString(qp.getZxid()));
+                // The leader is going to send its last snapshot file, followed
+                // by the proposals committed since, applied as after a SNAP
+                File snap = SnapshotFileTransfer.receive(qp, leaderIs, self.getTxnFactory().getSnapDir());
+                try {
+                    zk.getZKDatabase().deserializeSnapshot(snap, qp.getZxid());
+                } finally {
+                    if (!snap.delete()) {
+                        LOG.warn("Unable to delete {}", snap);
+                    }
+                }
+                if (!QuorumPeerConfig.isReconfigEnabled()) {
+                    LOG.debug("Reset config node content from local config after deserialization of snapshot.");
+                    zk.getZKDatabase().initConfigInZKDatabase(self.getQuorumVerifier());
+                }
+
                 // immediately persist the latest snapshot when there is txn log gap
                 syncSnapshot = true;
             } else if (qp.getType() == Leader.TRUNC) {
@@ -628,6 +685,24 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
                         packetsCommitted.add(qp.getZxid());
                     }
                     break;
+                case Leader.COMMIT_UPTO:
+                    for (long zxid = getFirstCommitted(qp); zxid <= qp.getZxid(); zxid++) {
+                        if (!writeToTxnLog) {
+                            pif = packetsNotCommitted.peekFirst();
+                            if (pif.hdr.getZxid() != zxid) {
+                                LOG.warn(
+                                    "Committing 0x{}, but next proposal is 0x{}",
+                                    Long.toHexString(zxid),
+                                    Long.toHexString(pif.hdr.getZxid()));
+                            } else {
+                                zk.processTxn(pif.hdr, pif.rec);
+                                packetsNotCommitted.remove();
+                            }
+                        } else {
+                            packetsCommitted.add(zxid);
+                        }
+                    }
+                    break;
                 case Leader.INFORM:
                 case Leader.INFORMANDACTIVATE:
                     PacketInFlight packet = new PacketInFlight();
@@ -760,6 +835,13 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
         }
     }
 
+    /**
+     * @return the first zxid of the range committed by a COMMIT_UPTO packet
+     */
+    static long getFirstCommitted(QuorumPacket qp) {
+        return ByteBuffer.wrap(qp.getData()).getLong();
+    }
+
     protected void revalidate(QuorumPacket qp) throws IOException {
         ByteArrayInputStream bis = new ByteArrayInputStream(qp.getData());
         DataInputStream dis = new DataInputStream(bis);
@@ -22,6 +22,7 @@
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
 import java.nio.ByteBuffer;
@@ -133,7 +134,8 @@ public Date getEstablished() {
      * If the time is above syncLimit, the connection will be closed.
      * It keeps track of only one proposal at a time, when the ACK for
      * that proposal arrives, it switches to the last proposal received
-     * or clears the value if there is no pending proposal.
+     * or clears the value if there is no pending proposal. An ACK covers
+     * all the proposals up to its zxid.
      */
     private class SyncLimitCheck {
 
@@ -161,16 +163,17 @@ public synchronized void updateProposal(long zxid, long time) {
         }
 
         public synchronized void updateAck(long zxid) {
-            if (currentZxid == zxid) {
-                currentTime = nextTime;
-                currentZxid = nextZxid;
+            if (currentZxid == 0) {
+                return;
+            }
+            if (nextZxid != 0 && zxid >= nextZxid) {
+                currentTime = 0;
+                currentZxid = 0;
                 nextTime = 0;
                 nextZxid = 0;
-            } else if (nextZxid == zxid) {
-                LOG.warn(
-                    "ACK for 0x{} received before ACK for 0x{}",
-                    Long.toHexString(zxid),
-                    Long.toHexString(currentZxid));
+            } else if (zxid >= currentZxid) {
+                currentTime = nextTime;
+                currentZxid = nextZxid;
                 nextTime = 0;
                 nextZxid = 0;
             }
@@ -222,6 +225,10 @@ public boolean equals(Object o) {
     private final BufferedInputStream bufferedInput;
     private BufferedOutputStream bufferedOutput;
 
+    // writes the packets queued once the learner is synced to the socket
+    // channel instead of bufferedOutput, null to write them to the stream
+    private ChannelPacketWriter channelWriter;
+
     protected final MessageTracker messageTracker;
 
     // for test only
@@ -259,6 +266,17 @@ protected void setBufferedOutput(BufferedOutputStream bufferedOutput) {
      */
     private LearnerSyncThrottler syncThrottler = null;
 
+    /**
+     * The partial snapshot file sent by the learner in ACKEPOCH, null if none
+     */
+    private SnapshotFileTransfer.Partial learnerPartialSnapshot;
+
+    /**
+     * The snapshot file to send instead of a snapshot of the data tree,
+     * null if none
+     */
+    private SnapshotFileTransfer snapshotTransfer;
+
     LearnerHandler(Socket sock, BufferedInputStream bufferedInput, LearnerMaster learnerMaster) throws IOException {
         super("LearnerHandler-" + sock.getRemoteSocketAddress());
         this.sock = sock;
@@ -321,7 +339,11 @@ private void sendPackets() throws InterruptedException {
                 QuorumPacket p;
                 p = queuedPackets.poll();
                 if (p == null) {
-                    bufferedOutput.flush();
+                    if (channelWriter != null) {
+                        channelWriter.flush();
+                    } else {
+                        bufferedOutput.flush();
+                    }
                     p = queuedPackets.take();
                 }
 
@@ -353,7 +375,14 @@ private void sendPackets() throws InterruptedException {
                 if (p.getZxid() > 0) {
                     lastZxid = p.getZxid();
                 }
-                oa.writeRecord(p, "packet");
+                if (channelWriter != null) {
+                    channelWriter.write(p);
+                } else if (p instanceof SerializedQuorumPacket) {
+                    // serialized once for all the learners
+                    bufferedOutput.write(((SerializedQuorumPacket) p).getBytes());
+                } else {
+                    oa.writeRecord(p, "packet");
+                }
                 packetsSent.incrementAndGet();
                 messageTracker.trackSent(p.getType());
             } catch (IOException e) {
@@ -384,6 +413,9 @@ public static String packetToString(QuorumPacket p) {
         case Leader.COMMIT:
             type = "COMMIT";
             break;
+        case Leader.COMMIT_UPTO:
+            type = "COMMIT_UPTO";
+            break;
         case Leader.FOLLOWERINFO:
             type = "FOLLOWERINFO";
             break;
@@ -423,6 +455,9 @@ public static String packetToString(QuorumPacket p) {
         case Leader.SNAP:
             type = "SNAP";
             break;
+        case Leader.SNAP_FILE:
+            type = "SNAP_FILE";
+            break;
         case Leader.ACKEPOCH:
             type = "ACKEPOCH";
             break;
@@ -461,6 +496,7 @@ public void run() {
             ia = BinaryInputArchive.getArchive(bufferedInput);
             bufferedOutput = new BufferedOutputStream(sock.getOutputStream());
             oa = BinaryOutputArchive.getArchive(bufferedOutput);
+            channelWriter = ChannelPacketWriter.forSocket(sock);
 
             QuorumPacket qp = new QuorumPacket();
             ia.readRecord(qp, "packet");
@@ -526,7 +562,7 @@ public void run() {
                 learnerMaster.waitForEpochAck(this.getSid(), ss);
             } else {
                 byte[] ver = new byte[4];
-                ByteBuffer.wrap(ver).putInt(0x10000);
+                ByteBuffer.wrap(ver).putInt(Leader.PROTOCOL_VERSION_SNAP_FILE);
                 QuorumPacket newEpochPacket = new QuorumPacket(Leader.LEADERINFO, newLeaderZxid, ver, null);
                 oa.writeRecord(newEpochPacket, "packet");
                 messageTracker.trackSent(Leader.LEADERINFO);
@@ -540,6 +576,9 @@ public void run() {
                 }
                 ByteBuffer bbepoch = ByteBuffer.wrap(ackEpochPacket.getData());
                 ss = new StateSummary(bbepoch.getInt(), ackEpochPacket.getZxid());
+                if (this.getVersion() >= Leader.PROTOCOL_VERSION_SNAP_FILE) {
+                    learnerPartialSnapshot = SnapshotFileTransfer.Partial.fromAckEpoch(ackEpochPacket.getData());
+                }
                 learnerMaster.waitForEpochAck(this.getSid(), ss);
             }
             peerLastZxid = ss.getLastZxid();
@@ -557,23 +596,40 @@ public void run() {
                 syncThrottler = learnerMaster.getLearnerSnapSyncThrottler();
                 syncThrottler.beginSync(exemptFromThrottle);
                 try {
-                    long zxidToSend = learnerMaster.getZKDatabase().getDataTreeLastProcessedZxid();
-                    oa.writeRecord(new QuorumPacket(Leader.SNAP, zxidToSend, null, null), "packet");
-                    messageTracker.trackSent(Leader.SNAP);
-                    bufferedOutput.flush();
+                    if (snapshotTransfer != null) {
+                        oa.writeRecord(snapshotTransfer.toPacket(), "packet");
+                        messageTracker.trackSent(Leader.SNAP_FILE);
 
-                    LOG.info(
-                        "Sending snapshot last zxid of peer is 0x{}, zxid of leader is 0x{}, "
-                            + "send zxid of db as 0x{}, {} concurrent snapshot sync, "
-                            + "snapshot sync was {} from throttle",
-                        Long.toHexString(peerLastZxid),
-                        Long.toHexString(leaderLastZxid),
-                        Long.toHexString(zxidToSend),
-                        syncThrottler.getSyncInProgress(),
-                        exemptFromThrottle ? "exempt" : "not exempt");
-                    // Dump data to peer
-                    learnerMaster.getZKDatabase().serializeSnapshot(oa);
-                    oa.writeString("BenWasHere", "signature");
+                        LOG.info(
+                            "Sending snapshot file from offset {}, last zxid of peer is 0x{}, zxid of leader is 0x{}, "
+                                + "zxid of snapshot is 0x{}, {} concurrent snapshot sync, "
+                                + "snapshot sync was {} from throttle",
+                            snapshotTransfer.getOffset(),
+                            Long.toHexString(peerLastZxid),
+                            Long.toHexString(leaderLastZxid),
+                            Long.toHexString(snapshotTransfer.getZxid()),
+                            syncThrottler.getSyncInProgress(),
+                            exemptFromThrottle ? "exempt" : "not exempt");
+                        snapshotTransfer.send(sock, bufferedOutput, syncThrottler);
+                    } else {
+                        long zxidToSend = learnerMaster.getZKDatabase().getDataTreeLastProcessedZxid();
+                        oa.writeRecord(new QuorumPacket(Leader.SNAP, zxidToSend, null, null), "packet");
+                        messageTracker.trackSent(Leader.SNAP);
+                        bufferedOutput.flush();
+
+                        LOG.info(
+                            "Sending snapshot last zxid of peer is 0x{}, zxid of leader is 0x{}, "
+                                + "send zxid of db as 0x{}, {} concurrent snapshot sync, "
+                                + "snapshot sync was {} from throttle",
+                            Long.toHexString(peerLastZxid),
+                            Long.toHexString(leaderLastZxid),
+                            Long.toHexString(zxidToSend),
+                            syncThrottler.getSyncInProgress(),
+                            exemptFromThrottle ? "exempt" : "not exempt");
+                        // Dump data to peer
+                        learnerMaster.getZKDatabase().serializeSnapshot(oa);
+                        oa.writeString("BenWasHere", "signature");
+                    }
                     bufferedOutput.flush();
                 } finally {
                     ServerMetrics.getMetrics().SNAP_COUNT.add(1);
@@ -865,6 +921,25 @@ boolean syncFollower(long peerLastZxid, LearnerMaster learnerMaster) {
                 Iterator<Proposal> itr = db.getCommittedLog().iterator();
                 currentZxid = queueCommittedProposals(itr, peerLastZxid, null, maxCommittedLog);
                 needSnap = false;
+                if (!needOpPacket) {
+                    ServerMetrics.getMetrics().DIFF_FROM_COMMITTED_LOG_COUNT.add(1);
+                }
+            } else if (peerLastZxid < minCommittedLog && db.isInCommittedLogRing(peerLastZxid, minCommittedLog)) {
+                // Use the ring of committed proposals and committedLog to sync
+                LOG.info("Using committedLog ring and committedLog for peer sid: {}", getSid());
+                Iterator<Proposal> ringItr = db.getProposalsFromCommittedLogRing(peerLastZxid);
+                currentZxid = queueCommittedProposals(ringItr, peerLastZxid, minCommittedLog, maxCommittedLog);
+                if (currentZxid < minCommittedLog) {
+                    // TRUNC across epochs, send a snapshot
+                    currentZxid = peerLastZxid;
+                    queuedPackets.clear();
+                    needOpPacket = true;
+                } else {
+                    Iterator<Proposal> committedLogItr = db.getCommittedLog().iterator();
+                    currentZxid = queueCommittedProposals(committedLogItr, currentZxid, null, maxCommittedLog);
+                    needSnap = false;
+                    ServerMetrics.getMetrics().DIFF_FROM_COMMITTED_LOG_RING_COUNT.add(1);
+                }
             } else if (peerLastZxid < minCommittedLog && txnLogSyncEnabled) {
                 // Use txnlog and committedLog to sync
 
@@ -892,6 +967,7 @@ boolean syncFollower(long peerLastZxid, LearnerMaster learnerMaster) {
                         Iterator<Proposal> committedLogItr = db.getCommittedLog().iterator();
                         currentZxid = queueCommittedProposals(committedLogItr, currentZxid, null, maxCommittedLog);
                         needSnap = false;
+                        ServerMetrics.getMetrics().DIFF_FROM_TXNLOG_COUNT.add(1);
                     }
                 }
                 // closing the resources
@@ -912,7 +988,10 @@ boolean syncFollower(long peerLastZxid, LearnerMaster learnerMaster) {
                     txnLogSyncEnabled);
             }
             if (needSnap) {
-                currentZxid = db.getDataTreeLastProcessedZxid();
+                currentZxid = queueSnapshotFileProposals(db, minCommittedLog, maxCommittedLog, txnLogSyncEnabled);
+                if (snapshotTransfer == null) {
+                    currentZxid = db.getDataTreeLastProcessedZxid();
+                }
             }
 
             LOG.debug("Start forwarding 0x{} for peer sid: {}", Long.toHexString(currentZxid), getSid());
@@ -931,6 +1010,73 @@ boolean syncFollower(long peerLastZxid, LearnerMaster learnerMaster) {
         return needSnap;
     }
 
+    /**
+     * When a snapshot is needed, try to send the last snapshot file instead
+     * of a snapshot of the data tree, along with the proposals committed
+     * since the snapshot. The proposals are queued without any DIFF, the
+     * learner expecting them after the file.
+     *
+     * @return the zxid of the last proposal queued, snapshotTransfer being
+     *         set, or -1 if the snapshot file cannot be used
+     */
+    private long queueSnapshotFileProposals(ZKDatabase db, long minCommittedLog, long maxCommittedLog, boolean txnLogSyncEnabled) {
+        snapshotTransfer = null;
+        if (!SnapshotFileTransfer.isEnabled() || getVersion() < Leader.PROTOCOL_VERSION_SNAP_FILE) {
+            return -1;
+        }
+        File snap;
+        try {
+            snap = db.findMostRecentSnapshot();
+        } catch (IOException e) {
+            LOG.warn("Unable to find the snapshot file for peer sid: {}", getSid(), e);
+            return -1;
+        }
+        if (snap == null) {
+            return -1;
+        }
+        SnapshotFileTransfer transfer = SnapshotFileTransfer.forSnapshot(snap, learnerPartialSnapshot);
+        long queuedZxid = transfer.getZxid();
+        boolean inRing = db.isInCommittedLogRing(queuedZxid, minCommittedLog);
+        if (queuedZxid < minCommittedLog && !inRing && !txnLogSyncEnabled) {
+            return -1;
+        }
+
+        needOpPacket = false;
+        if (queuedZxid < minCommittedLog) {
+            Iterator<Proposal> itr = inRing
+                ? db.getProposalsFromCommittedLogRing(queuedZxid)
+                : db.getProposalsFromTxnLog(queuedZxid, 0);
+            try {
+                queuedZxid = queueCommittedProposals(itr, queuedZxid, minCommittedLog, maxCommittedLog);
+            } finally {
+                if (itr instanceof TxnLogProposalIterator) {
+                    ((TxnLogProposalIterator) itr).close();
+                }
+            }
+        }
+        if (queuedZxid >= minCommittedLog) {
+            queuedZxid = queueCommittedProposals(db.getCommittedLog().iterator(), queuedZxid, null, maxCommittedLog);
+        }
+        needOpPacket = true;
+
+        if (queuedZxid < maxCommittedLog) {
+            LOG.info(
+                "Unable to queue the proposals from snapshot file 0x{} to 0x{} for peer sid: {}",
+                Long.toHexString(transfer.getZxid()),
+                Long.toHexString(maxCommittedLog),
+                getSid());
+            queuedPackets.clear();
+            return -1;
+        }
+        LOG.info(
+            "Using snapshot file 0x{} and {} for peer sid: {}",
+            Long.toHexString(transfer.getZxid()),
+            transfer.getZxid() >= minCommittedLog ? "committedLog" : inRing ? "committedLog ring and committedLog" : "txnlog and committedLog",
+            getSid());
+        snapshotTransfer = transfer;
+        return queuedZxid;
+    }
+
     /**
      * Queue committed proposals into packet queue. The range of packets which
      * is going to be queued are (peerLaxtZxid, maxZxid]
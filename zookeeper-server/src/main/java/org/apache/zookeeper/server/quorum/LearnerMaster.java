@@ -44,12 +44,19 @@ public abstract class LearnerMaster {
     private static final String MAX_CONCURRENT_DIFF_SYNCS = "zookeeper.leader.maxConcurrentDiffSyncs";
     private static final int DEFAULT_CONCURRENT_DIFF_SYNCS;
 
+    // Throttle the rate of the snapshot files sent to the learners, all together
+    private static final String MAX_SNAP_SYNC_BYTES_PER_SEC = "zookeeper.leader.maxSnapSyncBytesPerSec";
+    private static final long DEFAULT_SNAP_SYNC_BYTES_PER_SEC;
+
     static {
         DEFAULT_CONCURRENT_SNAPSYNCS = Integer.getInteger(MAX_CONCURRENT_SNAPSYNCS, 10);
         LOG.info("{} = {}", MAX_CONCURRENT_SNAPSYNCS, DEFAULT_CONCURRENT_SNAPSYNCS);
 
         DEFAULT_CONCURRENT_DIFF_SYNCS = Integer.getInteger(MAX_CONCURRENT_DIFF_SYNCS, 100);
         LOG.info("{} = {}", MAX_CONCURRENT_DIFF_SYNCS, DEFAULT_CONCURRENT_DIFF_SYNCS);
+
+        DEFAULT_SNAP_SYNC_BYTES_PER_SEC = Long.getLong(MAX_SNAP_SYNC_BYTES_PER_SEC, 0);
+        LOG.info("{} = {}", MAX_SNAP_SYNC_BYTES_PER_SEC, DEFAULT_SNAP_SYNC_BYTES_PER_SEC);
     }
 
     private volatile int maxConcurrentSnapSyncs = DEFAULT_CONCURRENT_SNAPSYNCS;
@@ -59,6 +66,10 @@ public abstract class LearnerMaster {
 
     private final LearnerSyncThrottler learnerDiffSyncThrottler = new LearnerSyncThrottler(maxConcurrentDiffSyncs, LearnerSyncThrottler.SyncType.DIFF);
 
+    public LearnerMaster() {
+        learnerSnapSyncThrottler.setMaxBytesPerSec(DEFAULT_SNAP_SYNC_BYTES_PER_SEC);
+    }
+
     public int getMaxConcurrentSnapSyncs() {
         return maxConcurrentSnapSyncs;
     }
@@ -79,6 +90,15 @@ public void setMaxConcurrentDiffSyncs(int maxConcurrentDiffSyncs) {
         learnerDiffSyncThrottler.setMaxConcurrentSyncs(maxConcurrentDiffSyncs);
     }
 
+    public long getMaxSnapSyncBytesPerSec() {
+        return learnerSnapSyncThrottler.getMaxBytesPerSec();
+    }
+
+    public void setMaxSnapSyncBytesPerSec(long maxSnapSyncBytesPerSec) {
+        LOG.info("Set maxSnapSyncBytesPerSec to {}", maxSnapSyncBytesPerSec);
+        learnerSnapSyncThrottler.setMaxBytesPerSec(maxSnapSyncBytesPerSec);
+    }
+
     /**
      * snap sync throttler
      * @return snapshot throttler
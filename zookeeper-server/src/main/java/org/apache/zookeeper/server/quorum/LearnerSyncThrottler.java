@@ -18,6 +18,7 @@
 
 package org.apache.zookeeper.server.quorum;
 
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,6 +28,10 @@
  * objects should call {@link #beginSync(boolean)} before sending a sync and
  * {@link #endSync()} after finishing, successfully or not.
  *
+ * It may also limit the rate at which the syncs send the snapshot files, all
+ * together. The syncs then call {@link #throttleBytes(long)} before sending
+ * each chunk of a file.
+ *
  */
 public class LearnerSyncThrottler {
 
@@ -37,6 +42,13 @@ public class LearnerSyncThrottler {
 
     private volatile int maxConcurrentSyncs;
 
+    private final Object rateObject = new Object();
+    // the time at which the chunks throttled so far have been sent at the
+    // maximum rate
+    private long nextChunkNanos;
+
+    private volatile long maxBytesPerSec;
+
     public enum SyncType {
         DIFF,
         SNAP
@@ -111,6 +123,42 @@ public void setMaxConcurrentSyncs(int maxConcurrentSyncs) {
         this.maxConcurrentSyncs = maxConcurrentSyncs;
     }
 
+    /**
+     * Waits until a chunk of a snapshot file can be sent without exceeding
+     * the maximum rate of all the syncs, if any.
+     *
+     * @param bytes size of the chunk
+     * @throws InterruptedException if thread is interrupted while waiting
+     */
+    public void throttleBytes(long bytes) throws InterruptedException {
+        long rate = maxBytesPerSec;
+        if (rate <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (rateObject) {
+            long now = System.nanoTime();
+            long start = Math.max(now, nextChunkNanos);
+            nextChunkNanos = start + TimeUnit.SECONDS.toNanos(1) * bytes / rate;
+            waitNanos = start - now;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * @param maxBytesPerSec maximum rate of the snapshot files sent by all
+     *                       the syncs, unlimited if not positive
+     */
+    public void setMaxBytesPerSec(long maxBytesPerSec) {
+        this.maxBytesPerSec = maxBytesPerSec;
+    }
+
+    public long getMaxBytesPerSec() {
+        return maxBytesPerSec;
+    }
+
     public int getSyncInProgress() {
         return syncInProgress;
     }
@@ -184,6 +184,7 @@ protected void processPacket(QuorumPacket qp) throws Exception {
             LOG.warn("Ignoring proposal");
             break;
         case Leader.COMMIT:
+        case Leader.COMMIT_UPTO:
             LOG.warn("Ignoring commit");
             break;
         case Leader.UPTODATE:
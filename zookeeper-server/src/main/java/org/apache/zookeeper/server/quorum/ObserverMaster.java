@@ -23,6 +23,7 @@
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
@@ -397,8 +398,9 @@ private synchronized void cacheCommittedPacket(final QuorumPacket pkt) {
     }
 
     private synchronized void sendPacket(final QuorumPacket pkt) {
+        QuorumPacket serialized = SerializedQuorumPacket.of(pkt);
         for (LearnerHandler lh : activeObservers) {
-            lh.queuePacket(pkt);
+            lh.queuePacket(serialized);
         }
         lastProposedZxid = pkt.getZxid();
     }
@@ -439,10 +441,11 @@ public synchronized void start() throws IOException {
                 ss = new UnifiedServerSocket(self.getX509Util(), allowInsecureConnection, port, backlog, address);
             }
         } else {
+            ss = ChannelPacketWriter.createServerSocket();
             if (self.getQuorumListenOnAllIPs()) {
-                ss = new ServerSocket(port, backlog);
+                ss.bind(new InetSocketAddress(port), backlog);
             } else {
-                ss = new ServerSocket(port, backlog, address);
+                ss.bind(new InetSocketAddress(address, port), backlog);
             }
         }
         thread = new Thread(this, "ObserverMaster");
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.apache.zookeeper.server.quorum.Leader.Proposal;
+import org.apache.zookeeper.server.quorum.flexible.QuorumMaj;
+import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
+
+/**
+ * The outstanding proposals of the leader in a ring buffer indexed by the
+ * counter of their zxid, which the learner handlers read without holding
+ * the leader lock to record their acks.
+ *
+ * Proposals are added under the leader lock, in zxid order. A proposal which
+ * finds its slot still used by an older outstanding proposal isn't added and
+ * marks the window as overflowed, until all the outstanding proposals are
+ * committed. While the window isn't overflowed, a proposal proposed after
+ * the first one of the window and missing from it is committed already.
+ */
+final class ProposalWindow {
+
+    private final AtomicReferenceArray<Proposal> slots;
+    private final int mask;
+    private volatile boolean overflowed;
+
+    // the voters of the last quorum verifier of the proposals
+    private QuorumVerifier votersQv;
+    private Voters voters;
+
+    /**
+     * @param capacity the number of slots, rounded up to a power of two
+     */
+    ProposalWindow(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    private int indexOf(long zxid) {
+        return (int) zxid & mask;
+    }
+
+    /**
+     * Add a proposal, called by the leader when it proposes it.
+     *
+     * @return false if the slot of the proposal is used by an older one
+     */
+    boolean add(Proposal p) {
+        long zxid = p.packet.getZxid();
+        if (slots.get(indexOf(zxid)) != null) {
+            overflowed = true;
+            return false;
+        }
+        slots.set(indexOf(zxid), p);
+        return true;
+    }
+
+    /**
+     * @return the proposal of zxid, or null if it isn't in the window
+     */
+    Proposal get(long zxid) {
+        Proposal p = slots.get(indexOf(zxid));
+        return p != null && p.packet.getZxid() == zxid ? p : null;
+    }
+
+    /**
+     * Remove a committed proposal.
+     *
+     * @param empty true if there is no outstanding proposal left
+     */
+    void remove(long zxid, boolean empty) {
+        int index = indexOf(zxid);
+        Proposal p = slots.get(index);
+        if (p != null && p.packet.getZxid() == zxid) {
+            slots.set(index, null);
+        }
+        if (empty) {
+            overflowed = false;
+        }
+    }
+
+    /**
+     * @return true if some outstanding proposals aren't in the window
+     */
+    boolean isOverflowed() {
+        return overflowed;
+    }
+
+    /**
+     * @return the voters of qv, or null if its acks can't be recorded in a
+     * bitmap. Called under the leader lock.
+     */
+    Voters votersOf(QuorumVerifier qv) {
+        if (qv != votersQv) {
+            votersQv = qv;
+            voters = Voters.of(qv);
+        }
+        return voters;
+    }
+
+    /**
+     * The voters of a majority quorum numbered from 0, so that the acks of
+     * a proposal can be recorded in the bits of a long updated atomically.
+     */
+    static final class Voters {
+
+        final QuorumVerifier qv;
+        private final long[] sids;
+        private final int quorumSize;
+
+        private Voters(QuorumVerifier qv, long[] sids) {
+            this.qv = qv;
+            this.sids = sids;
+            this.quorumSize = sids.length / 2 + 1;
+        }
+
+        /**
+         * @return the voters of qv, or null if its quorums aren't simple
+         * majorities or if it has more than 64 voters
+         */
+        static Voters of(QuorumVerifier qv) {
+            if (qv.getClass() != QuorumMaj.class || qv.getVotingMembers().size() > Long.SIZE) {
+                return null;
+            }
+            long[] sids = new long[qv.getVotingMembers().size()];
+            int i = 0;
+            for (Long sid : qv.getVotingMembers().keySet()) {
+                sids[i++] = sid;
+            }
+            Arrays.sort(sids);
+            return new Voters(qv, sids);
+        }
+
+        /**
+         * @return the bit of sid, or 0 if it isn't a voter
+         */
+        long bitOf(long sid) {
+            int index = Arrays.binarySearch(sids, sid);
+            return index < 0 ? 0 : 1L << index;
+        }
+
+        boolean isQuorum(long bits) {
+            return Long.bitCount(bits) >= quorumSize;
+        }
+
+        HashSet<Long> toSids(long bits) {
+            HashSet<Long> set = new HashSet<>();
+            for (int i = 0; i < sids.length; i++) {
+                if ((bits & (1L << i)) != 0) {
+                    set.add(sids[i]);
+                }
+            }
+            return set;
+        }
+
+    }
+
+}
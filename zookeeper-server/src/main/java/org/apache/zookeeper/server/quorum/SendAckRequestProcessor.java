@@ -33,34 +33,38 @@ public class SendAckRequestProcessor implements RequestProcessor, Flushable {
 
     Learner learner;
 
+    // zxid of the last proposal logged, which is acked by the next flush
+    // when the ACKs are cumulative
+    private long pendingAckZxid = -1;
+
     SendAckRequestProcessor(Learner peer) {
         this.learner = peer;
     }
 
-    public void processRequest(Request si) {
+    public synchronized void processRequest(Request si) {
         if (si.type != OpCode.sync) {
-            QuorumPacket qp = new QuorumPacket(Leader.ACK, si.getHdr().getZxid(), null, null);
-            try {
-                si.logLatency(ServerMetrics.getMetrics().PROPOSAL_ACK_CREATION_LATENCY);
-
-                learner.writePacket(qp, false);
-            } catch (IOException e) {
-                LOG.warn("Closing connection to leader, exception during packet send", e);
-                try {
-                    if (!learner.sock.isClosed()) {
-                        learner.sock.close();
-                    }
-                } catch (IOException e1) {
-                    // Nothing to do, we are shutting things down, so an exception here is irrelevant
-                    LOG.debug("Ignoring error closing the connection", e1);
-                }
+            si.logLatency(ServerMetrics.getMetrics().PROPOSAL_ACK_CREATION_LATENCY);
+            if (learner.isCumulativeAck()) {
+                pendingAckZxid = si.getHdr().getZxid();
+            } else {
+                writePacket(new QuorumPacket(Leader.ACK, si.getHdr().getZxid(), null, null), false);
             }
         }
     }
 
-    public void flush() throws IOException {
+    public synchronized void flush() throws IOException {
+        QuorumPacket qp = null;
+        if (pendingAckZxid != -1) {
+            // a single ACK for the proposals logged since the last flush
+            qp = new QuorumPacket(Leader.ACK, pendingAckZxid, null, null);
+            pendingAckZxid = -1;
+        }
+        writePacket(qp, true);
+    }
+
+    private void writePacket(QuorumPacket qp, boolean flush) {
         try {
-            learner.writePacket(null, true);
+            learner.writePacket(qp, flush);
         } catch (IOException e) {
             LOG.warn("Closing connection to leader, exception during packet send", e);
             try {
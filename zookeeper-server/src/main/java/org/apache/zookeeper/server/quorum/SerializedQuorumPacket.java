@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.data.Id;
+
+/**
+ * A packet broadcast to several learners, serialized once by the sender.
+ *
+ * The learner handlers write the serialized bytes to their sockets instead
+ * of serializing the packet again, so a proposal sent to n learners is
+ * encoded once instead of n times. The packet is immutable, since its bytes
+ * are shared by the queues of all the learner handlers.
+ */
+final class SerializedQuorumPacket extends QuorumPacket {
+
+    private final byte[] bytes;
+
+    private SerializedQuorumPacket(QuorumPacket p, byte[] bytes) {
+        super(p.getType(), p.getZxid(), p.getData(), p.getAuthinfo());
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return the packet serialized as by {@link BinaryOutputArchive#writeRecord}
+     */
+    static SerializedQuorumPacket of(QuorumPacket p) {
+        if (p instanceof SerializedQuorumPacket) {
+            return (SerializedQuorumPacket) p;
+        }
+        int size = 4 + 8 + 4 + 4 + (p.getData() == null ? 0 : p.getData().length);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(size);
+        try {
+            BinaryOutputArchive.getArchive(baos).writeRecord(p, "packet");
+        } catch (IOException e) {
+            // writing to a byte array can't fail
+            throw new IllegalStateException("Failed to serialize " + LearnerHandler.packetToString(p), e);
+        }
+        return new SerializedQuorumPacket(p, baos.toByteArray());
+    }
+
+    /**
+     * @return the serialized packet, which must not be modified
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public void setType(int type) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setZxid(long zxid) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setData(byte[] data) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setAuthinfo(List<Id> authinfo) {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,328 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.jute.InputArchive;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transfers the last snapshot file of the leader to a learner, instead of
+ * serializing the data tree of the leader onto the socket for a SNAP.
+ *
+ * The leader sends a SNAP_FILE packet with the zxid of the snapshot, the
+ * name, last modified time and length of the file and the offset the
+ * transfer starts from, followed by the rest of the file in chunks, each
+ * one prefixed by its length. The proposals committed since the snapshot
+ * are then sent as for a DIFF. The chunks are copied from the file to the
+ * socket channel by FileChannel.transferTo when the socket has one, which
+ * is the case with the NIO quorum transport without SSL, and through the
+ * socket stream otherwise. All the transfers of a leader share the byte
+ * rate of its snapshot {@link LearnerSyncThrottler}.
+ *
+ * The learner writes the chunks to a partial file in its snapshot
+ * directory, then loads its data tree from it and deletes it. If the
+ * connection is lost during the transfer, the partial file is kept and
+ * its length sent in ACKEPOCH the next time the learner connects, so that
+ * a leader with the same snapshot file resumes the transfer from there.
+ * The file is checked by its checksum when loaded.
+ */
+final class SnapshotFileTransfer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SnapshotFileTransfer.class);
+
+    /**
+     * true to send the snapshot files to the learners which need a snapshot
+     */
+    static final String ENABLED = "zookeeper.leader.snapshotFileSync";
+
+    /**
+     * Size of the chunks of the snapshot files, which must stay below
+     * jute.maxbuffer
+     */
+    static final String CHUNK_BYTES = "zookeeper.leader.snapshotFileSync.chunkBytes";
+
+    private static final String PARTIAL_FILE_PREFIX = "transfer";
+
+    private static final long RETRY_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final File file;
+    private final long zxid;
+    private final long lastModified;
+    private final long length;
+    private final long offset;
+
+    private SnapshotFileTransfer(File file, long zxid, long lastModified, long length, long offset) {
+        this.file = file;
+        this.zxid = zxid;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.offset = offset;
+    }
+
+    static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED);
+    }
+
+    /**
+     * @param snap a valid snapshot file
+     * @param partial the partial file of the learner, null if none
+     * @return a transfer of snap, starting from the end of partial if it is
+     * a part of the same file
+     */
+    static SnapshotFileTransfer forSnapshot(File snap, Partial partial) {
+        long zxid = Util.getZxidFromName(snap.getName(), FileSnap.SNAPSHOT_FILE_PREFIX);
+        long lastModified = snap.lastModified();
+        long length = snap.length();
+        long offset = 0;
+        if (partial != null
+            && partial.name.equals(snap.getName())
+            && partial.lastModified == lastModified
+            && partial.length <= length) {
+            offset = partial.length;
+        }
+        return new SnapshotFileTransfer(snap, zxid, lastModified, length, offset);
+    }
+
+    long getZxid() {
+        return zxid;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the SNAP_FILE packet starting the transfer
+     */
+    QuorumPacket toPacket() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeUTF(file.getName());
+        dos.writeLong(lastModified);
+        dos.writeLong(length);
+        dos.writeLong(offset);
+        return new QuorumPacket(Leader.SNAP_FILE, zxid, bos.toByteArray(), null);
+    }
+
+    /**
+     * Send the file from the offset, after the SNAP_FILE packet.
+     *
+     * @param sock the socket of the learner
+     * @param out the buffered stream of sock, which is flushed first when
+     *            the chunks are written to the channel of sock
+     * @param throttler the throttler of the snapshot syncs
+     */
+    void send(Socket sock, OutputStream out, LearnerSyncThrottler throttler) throws IOException, InterruptedException {
+        int chunkBytes = Integer.getInteger(CHUNK_BYTES, 512 * 1024);
+        SocketChannel socketChannel = sock.getChannel();
+        if (socketChannel != null) {
+            out.flush();
+        }
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            byte[] chunk = socketChannel == null ? new byte[chunkBytes] : null;
+            long position = offset;
+            while (position < length) {
+                int n = (int) Math.min(chunkBytes, length - position);
+                throttler.throttleBytes(n);
+                header.clear();
+                header.putInt(n).flip();
+                if (socketChannel != null) {
+                    write(socketChannel, header);
+                    transfer(fileChannel, position, n, socketChannel);
+                } else {
+                    ByteBuffer bb = ByteBuffer.wrap(chunk, 0, n);
+                    while (bb.hasRemaining()) {
+                        if (fileChannel.read(bb, position + bb.position()) < 0) {
+                            throw new EOFException("Snapshot file " + file + " is shorter than " + length);
+                        }
+                    }
+                    out.write(header.array());
+                    out.write(chunk, 0, n);
+                }
+                position += n;
+            }
+        }
+    }
+
+    private static void write(SocketChannel channel, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            if (channel.write(bb) == 0) {
+                // the channel is in non-blocking mode for a timed read
+                LockSupport.parkNanos(RETRY_NANOS);
+            }
+        }
+    }
+
+    private void transfer(FileChannel fileChannel, long position, long count, SocketChannel channel) throws IOException {
+        while (count > 0) {
+            long n = fileChannel.transferTo(position, count, channel);
+            if (n == 0) {
+                if (position >= fileChannel.size()) {
+                    throw new EOFException("Snapshot file " + file + " is shorter than " + length);
+                }
+                LockSupport.parkNanos(RETRY_NANOS);
+            }
+            position += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Receive the file sent after a SNAP_FILE packet into a partial file.
+     *
+     * @param qp the SNAP_FILE packet
+     * @param ia the archive of the leader connection
+     * @param snapDir the snapshot directory of the learner
+     * @return the complete file, named after the file of the leader
+     */
+    static File receive(QuorumPacket qp, InputArchive ia, File snapDir) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(qp.getData()));
+        String name = dis.readUTF();
+        long lastModified = dis.readLong();
+        long length = dis.readLong();
+        long offset = dis.readLong();
+        if (!Util.isSnapshotFileName(name) || new File(name).getParent() != null) {
+            throw new IOException("Invalid snapshot file name " + name);
+        }
+
+        File partial = new File(snapDir, PARTIAL_FILE_PREFIX + "." + Long.toHexString(lastModified) + "." + name);
+        if (offset == 0) {
+            deletePartials(snapDir);
+        } else if (partial.length() < offset) {
+            throw new IOException("Cannot resume the transfer of " + name + " from " + offset + ", got " + partial.length());
+        }
+        LOG.info("Receiving snapshot file {} of {} bytes from offset {}", name, length, offset);
+        try (FileChannel channel = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(offset);
+            long position = offset;
+            while (position < length) {
+                byte[] chunk = ia.readBuffer("chunk");
+                if (chunk == null) {
+                    throw new IOException("Missing chunk of snapshot file " + name + " at " + position);
+                }
+                ByteBuffer bb = ByteBuffer.wrap(chunk);
+                while (bb.hasRemaining()) {
+                    position += channel.write(bb, position);
+                }
+            }
+            channel.force(false);
+        }
+        return partial;
+    }
+
+    /**
+     * @param snapDir the snapshot directory of the learner
+     * @return the partial file left by an interrupted transfer, null if none
+     */
+    static Partial findPartial(File snapDir) {
+        File[] files = snapDir.listFiles();
+        if (files == null) {
+            return null;
+        }
+        for (File f : files) {
+            String[] parts = f.getName().split("\\.", 3);
+            if (parts.length == 3 && parts[0].equals(PARTIAL_FILE_PREFIX) && Util.isSnapshotFileName(parts[2])) {
+                try {
+                    return new Partial(parts[2], Long.parseLong(parts[1], 16), f.length());
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring {}", f);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Delete the partial files of the snapshot directory.
+     */
+    static void deletePartials(File snapDir) {
+        File[] files = snapDir.listFiles((dir, name) -> name.startsWith(PARTIAL_FILE_PREFIX + "."));
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (!f.delete()) {
+                LOG.warn("Unable to delete partial snapshot file {}", f);
+            }
+        }
+    }
+
+    /**
+     * The part of a snapshot file received by a learner, sent to the leader
+     * in ACKEPOCH after the epoch.
+     */
+    static final class Partial {
+
+        final String name;
+        final long lastModified;
+        final long length;
+
+        Partial(String name, long lastModified, long length) {
+            this.name = name;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        /**
+         * @return data, followed by this partial file
+         */
+        byte[] appendTo(byte[] data) throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.write(data);
+            dos.writeUTF(name);
+            dos.writeLong(lastModified);
+            dos.writeLong(length);
+            return bos.toByteArray();
+        }
+
+        /**
+         * @return the partial file following the epoch in the data of an
+         * ACKEPOCH packet, null if none
+         */
+        static Partial fromAckEpoch(byte[] data) throws IOException {
+            if (data == null || data.length <= 4) {
+                return null;
+            }
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data, 4, data.length - 4));
+            return new Partial(dis.readUTF(), dis.readLong(), dis.readLong());
+        }
+
+    }
+
+}
@@ -0,0 +1,449 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.util;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded FIFO queue for any number of producer threads and a single
+ * consumer thread, backed by a ring of slots allocated once.
+ *
+ * Producers claim consecutive slots with a single CAS, so that a batch of
+ * elements is enqueued at once, then publish the elements into them. The
+ * consumer takes the elements in the order of their slots, spinning a
+ * little then parking until the next one is published. Producers finding
+ * the ring full spin then park for short periods until the consumer makes
+ * room.
+ *
+ * Only the consumer thread may remove elements, with the exception of
+ * {@link #clear()} which any thread may call. Unlike other bounded blocking
+ * queues, {@link #add(Object)} and {@link #addAll(Collection)} wait for room
+ * instead of failing when the ring is full, keeping the interrupt status of
+ * the thread, so that the ring may replace an unbounded queue without
+ * changing its producers.
+ */
+public class MpscRing<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    // spinning only pays off when the other side runs on another core
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 64 : 0;
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+    private final AtomicReferenceArray<E> slots;
+    private final int capacity;
+    private final int mask;
+
+    // next slot to claim by the producers
+    private final AtomicLong tail = new AtomicLong();
+    // next slot to take by the consumer, only written by the consumer
+    private volatile long head;
+    // the consumer discards the elements of the slots before this one
+    private final AtomicLong cleared = new AtomicLong();
+    private volatile Thread waitingConsumer;
+
+    /**
+     * @param capacity the minimum number of elements of the ring, rounded up
+     *                 to a power of 2
+     */
+    public MpscRing(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid ring capacity " + capacity);
+        }
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.slots = new AtomicReferenceArray<>(this.capacity);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Add an element, waiting for room if the ring is full.
+     */
+    @Override
+    public void put(E e) throws InterruptedException {
+        checkNotNull(e);
+        publish(claim(1, 0), e);
+    }
+
+    /**
+     * Add an element, waiting for room if the ring is full, and keeping the
+     * interrupt status of the thread.
+     *
+     * @return true
+     */
+    @Override
+    public boolean add(E e) {
+        checkNotNull(e);
+        publish(claimUninterruptibly(1), e);
+        return true;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        checkNotNull(e);
+        long t = tryClaim(1);
+        if (t < 0) {
+            return false;
+        }
+        publish(t, e);
+        return true;
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        checkNotNull(e);
+        long t = claim(1, System.nanoTime() + Math.max(1, unit.toNanos(timeout)));
+        if (t < 0) {
+            return false;
+        }
+        publish(t, e);
+        return true;
+    }
+
+    private void publish(long t, E e) {
+        slots.set(index(t), e);
+        signalConsumer();
+    }
+
+    /**
+     * Add the elements in order, claiming the slots for all of them at once
+     * if they fit in the ring, and keeping the interrupt status of the
+     * thread while waiting for room.
+     */
+    @Override
+    public boolean addAll(Collection<? extends E> c) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        List<? extends E> elements = c instanceof List ? (List<? extends E>) c : new ArrayList<>(c);
+        checkNoneNull(elements);
+        int n = elements.size();
+        int i = 0;
+        while (i < n) {
+            int count = Math.min(n - i, capacity);
+            publishAll(claimUninterruptibly(count), elements, i, count);
+            i += count;
+        }
+        return n > 0;
+    }
+
+    private void publishAll(long t, List<? extends E> elements, int from, int count) {
+        for (int j = 0; j < count - 1; j++) {
+            slots.lazySet(index(t + j), elements.get(from + j));
+        }
+        // the volatile write of the last one orders the whole batch
+        // before the read of waitingConsumer
+        slots.set(index(t + count - 1), elements.get(from + count - 1));
+        signalConsumer();
+    }
+
+    private static void checkNotNull(Object e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+    }
+
+    private static void checkNoneNull(List<?> elements) {
+        for (int i = 0; i < elements.size(); i++) {
+            checkNotNull(elements.get(i));
+        }
+    }
+
+    /**
+     * @return the first of the n slots claimed, -1 if the ring is full
+     */
+    private long tryClaim(int n) {
+        while (true) {
+            long t = tail.get();
+            if (t + n - head > capacity) {
+                return -1;
+            }
+            if (tail.compareAndSet(t, t + n)) {
+                return t;
+            }
+        }
+    }
+
+    /**
+     * @param deadline the System.nanoTime() to give up at, 0 to wait for
+     *                 ever
+     * @return the first of the n slots claimed, -1 if the deadline passed
+     */
+    private long claim(int n, long deadline) throws InterruptedException {
+        int spins = 0;
+        while (true) {
+            long t = tryClaim(n);
+            if (t >= 0) {
+                return t;
+            } else if (Thread.interrupted()) {
+                throw new InterruptedException();
+            } else if (deadline != 0 && deadline - System.nanoTime() <= 0) {
+                return -1;
+            } else if (spins++ < SPINS) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(this, FULL_PARK_NANOS);
+            }
+        }
+    }
+
+    private long claimUninterruptibly(int n) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return claim(n, 0);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void signalConsumer() {
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Take the next element, waiting for it if the ring is empty. Must only
+     * be called by the consumer thread.
+     */
+    @Override
+    public E take() throws InterruptedException {
+        E e = awaitNext(0);
+        release();
+        return e;
+    }
+
+    /**
+     * Take the next element, waiting for it up to the timeout if the ring is
+     * empty. Must only be called by the consumer thread.
+     */
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E e = awaitNext(System.nanoTime() + Math.max(1, unit.toNanos(timeout)));
+        if (e != null) {
+            release();
+        }
+        return e;
+    }
+
+    /**
+     * @param deadline the System.nanoTime() to give up at, 0 to wait for
+     *                 ever
+     * @return the element at the head, null if the deadline passed
+     */
+    private E awaitNext(long deadline) throws InterruptedException {
+        int spins = 0;
+        E e;
+        while ((e = next()) == null) {
+            if (spins++ < SPINS) {
+                Thread.yield();
+                continue;
+            }
+            long nanos = 0;
+            if (deadline != 0) {
+                nanos = deadline - System.nanoTime();
+                if (nanos <= 0) {
+                    return null;
+                }
+            }
+            waitingConsumer = Thread.currentThread();
+            if (next() == null) {
+                if (deadline == 0) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, nanos);
+                }
+            }
+            waitingConsumer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Take the next element if there is one. Must only be called by the
+     * consumer thread.
+     *
+     * @return the next element, null if the ring is empty
+     */
+    @Override
+    public E poll() {
+        E e = next();
+        if (e != null) {
+            release();
+        }
+        return e;
+    }
+
+    /**
+     * Must only be called by the consumer thread.
+     *
+     * @return the next element without taking it, null if the ring is
+     *         empty
+     */
+    @Override
+    public E peek() {
+        return next();
+    }
+
+    /**
+     * @return the element at the head after discarding the cleared ones,
+     *         null if the ring is empty
+     */
+    private E next() {
+        while (true) {
+            long h = head;
+            E e = slots.get(index(h));
+            if (e == null) {
+                if (tail.get() <= h) {
+                    return null;
+                }
+                // claimed by a producer about to publish it
+                Thread.yield();
+            } else if (h >= cleared.get()) {
+                return e;
+            } else {
+                release();
+            }
+        }
+    }
+
+    private void release() {
+        long h = head;
+        // cleared before moving head, so that a producer claiming the slot
+        // again finds it empty
+        slots.lazySet(index(h), null);
+        head = h + 1;
+    }
+
+    /**
+     * Discard the elements in the ring, which the consumer drops instead of
+     * taking them. May be called by any thread.
+     */
+    @Override
+    public void clear() {
+        cleared.accumulateAndGet(tail.get(), Math::max);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Must only be called by the consumer thread.
+     */
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int n = 0;
+        E e;
+        while (n < maxElements && (e = poll()) != null) {
+            c.add(e);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * @return the number of elements in the ring, including the ones being
+     *         published
+     */
+    @Override
+    public int size() {
+        return (int) Math.max(0, tail.get() - Math.max(head, cleared.get()));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    /**
+     * @return a weakly consistent iterator over the elements published in
+     *         the ring, which does not support removing them
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private long sequence = Math.max(head, cleared.get());
+            private final long end = tail.get();
+            private E next = advance();
+
+            private E advance() {
+                while (sequence < end) {
+                    E e = slots.get(index(sequence++));
+                    if (e != null) {
+                        return e;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public E next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                E e = next;
+                next = advance();
+                return e;
+            }
+        };
+    }
+
+    private int index(long sequence) {
+        return (int) sequence & mask;
+    }
+
+}
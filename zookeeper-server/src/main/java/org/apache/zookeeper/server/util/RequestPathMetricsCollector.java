@@ -28,6 +28,7 @@
 import static org.apache.zookeeper.ZooDefs.OpCode.getACL;
 import static org.apache.zookeeper.ZooDefs.OpCode.getChildren;
 import static org.apache.zookeeper.ZooDefs.OpCode.getChildren2;
+import static org.apache.zookeeper.ZooDefs.OpCode.getChildrenPaged;
 import static org.apache.zookeeper.ZooDefs.OpCode.getData;
 import static org.apache.zookeeper.ZooDefs.OpCode.removeWatches;
 import static org.apache.zookeeper.ZooDefs.OpCode.setACL;
@@ -130,6 +131,7 @@ public RequestPathMetricsCollector(boolean accurateMode) {
         requestsMap.put(Request.op2String(setACL), new PathStatsQueue(setACL));
         requestsMap.put(Request.op2String(getChildren), new PathStatsQueue(getChildren));
         requestsMap.put(Request.op2String(getChildren2), new PathStatsQueue(getChildren2));
+        requestsMap.put(Request.op2String(getChildrenPaged), new PathStatsQueue(getChildrenPaged));
         requestsMap.put(Request.op2String(checkWatches), new PathStatsQueue(checkWatches));
         requestsMap.put(Request.op2String(removeWatches), new PathStatsQueue(removeWatches));
         requestsMap.put(Request.op2String(setWatches2), new PathStatsQueue(setWatches2));
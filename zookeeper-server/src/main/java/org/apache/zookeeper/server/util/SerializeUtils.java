@@ -145,6 +145,22 @@ public static TxnLogEntry deserializeTxn(byte[] txnBytes) throws IOException {
     }
 
     public static void deserializeSnapshot(DataTree dt, InputArchive ia, Map<Long, Integer> sessions) throws IOException {
+        deserializeSessions(ia, sessions);
+        dt.deserialize(ia, "tree");
+    }
+
+    /**
+     * Deserialize a snapshot written by
+     * {@link #serializeChunkedSnapshot(DataTree, OutputArchive, Map)}.
+     *
+     * @param parallelism the number of threads decoding the nodes
+     */
+    public static void deserializeChunkedSnapshot(DataTree dt, InputArchive ia, Map<Long, Integer> sessions, int parallelism) throws IOException {
+        deserializeSessions(ia, sessions);
+        dt.deserializeChunked(ia, parallelism);
+    }
+
+    private static void deserializeSessions(InputArchive ia, Map<Long, Integer> sessions) throws IOException {
         int count = ia.readInt("count");
         while (count > 0) {
             long id = ia.readLong("id");
@@ -158,17 +174,29 @@ public static void deserializeSnapshot(DataTree dt, InputArchive ia, Map<Long, I
             }
             count--;
         }
-        dt.deserialize(ia, "tree");
     }
 
     public static void serializeSnapshot(DataTree dt, OutputArchive oa, Map<Long, Integer> sessions) throws IOException {
+        serializeSessions(oa, sessions);
+        dt.serialize(oa, "tree");
+    }
+
+    /**
+     * Serialize a snapshot with the nodes of the tree grouped into chunks
+     * which can be decoded in parallel.
+     */
+    public static void serializeChunkedSnapshot(DataTree dt, OutputArchive oa, Map<Long, Integer> sessions) throws IOException {
+        serializeSessions(oa, sessions);
+        dt.serializeChunked(oa);
+    }
+
+    private static void serializeSessions(OutputArchive oa, Map<Long, Integer> sessions) throws IOException {
         HashMap<Long, Integer> sessSnap = new HashMap<Long, Integer>(sessions);
         oa.writeInt(sessSnap.size(), "count");
         for (Entry<Long, Integer> entry : sessSnap.entrySet()) {
             oa.writeLong(entry.getKey().longValue(), "id");
             oa.writeInt(entry.getValue().intValue(), "timeout");
         }
-        dt.serialize(oa, "tree");
     }
 
     public static byte[] serializeRequest(Request request) {
@@ -68,6 +68,20 @@ default boolean addWatch(String path, Watcher watcher, WatcherMode watcherMode)
      */
     boolean containsWatcher(String path, Watcher watcher);
 
+    /**
+     * Get the mode of the watch of the specified watcher on the given path.
+     * Implementations which do not support the modes only hold watches of
+     * the default mode.
+     *
+     * @param path    znode path
+     * @param watcher watcher object reference
+     * @return the mode of the watch, null if the watcher has no watch on the
+     *         path itself
+     */
+    default WatcherMode getWatcherMode(String path, Watcher watcher) {
+        return containsWatcher(path, watcher) ? WatcherMode.DEFAULT_WATCHER_MODE : null;
+    }
+
     /**
      * Removes the specified watcher for the given path.
      * <p>
@@ -108,6 +122,31 @@ default boolean addWatch(String path, Watcher watcher, WatcherMode watcherMode)
      */
     WatcherOrBitSet triggerWatch(String path, EventType type, WatcherOrBitSet suppress);
 
+    /**
+     * Distribute the watch event of a txn for the given path, but ignore
+     * those suppressed ones. Implementations which do not support it do not
+     * send the zxid to the watchers.
+     *
+     * @param path     znode path
+     * @param type     the watch event type
+     * @param zxid     the zxid of the txn
+     * @param suppress the suppressed watcher set
+     * @return the watchers have been notified
+     */
+    default WatcherOrBitSet triggerWatch(String path, EventType type, long zxid, WatcherOrBitSet suppress) {
+        return triggerWatch(path, type, suppress);
+    }
+
+    /**
+     * Deliver the events triggered through a dispatcher instead of on the
+     * thread triggering them. Implementations which do not support it keep
+     * delivering them on the thread triggering them.
+     *
+     * @param dispatcher the dispatcher, null to deliver them inline
+     */
+    default void setNotificationDispatcher(NotificationDispatcher dispatcher) {
+    }
+
     /**
      * Get the size of watchers.
      * <p>
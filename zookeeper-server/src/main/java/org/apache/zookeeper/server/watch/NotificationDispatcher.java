@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.watch;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.server.ServerCnxn;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.ZooKeeperThread;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers the events triggered to the watchers on its own threads, so
+ * that the thread applying a txn only queues the notifications instead of
+ * sending them to every watcher.
+ *
+ * The watchers are sharded across the threads, each with a bounded queue,
+ * so the events of a watcher are delivered in the order they are
+ * triggered. A thread triggering events waits when the queue of a watcher
+ * is full. Before a response is sent to a connection, the notifications
+ * queued for it are waited for, see
+ * {@link ServerCnxn#waitForQueuedNotifications()}, so a client still sees
+ * the notification of a change before the response to a later request.
+ */
+public class NotificationDispatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NotificationDispatcher.class);
+
+    /**
+     * The number of threads delivering the notifications, 0 to deliver
+     * them on the thread triggering them.
+     */
+    public static final String ZOOKEEPER_WATCH_DELIVERY_THREADS = "zookeeper.watchDeliveryThreads";
+
+    /**
+     * The number of notifications each thread may have queued.
+     */
+    public static final String ZOOKEEPER_WATCH_DELIVERY_QUEUE_SIZE = "zookeeper.watchDeliveryQueueSize";
+
+    private final BlockingQueue<Notification>[] queues;
+    private final DeliveryThread[] threads;
+    private volatile boolean stopped = false;
+
+    /**
+     * @return a started dispatcher configured by the system properties, or
+     *         null if the notifications are delivered on the thread
+     *         triggering them
+     */
+    public static NotificationDispatcher create() {
+        int numThreads = Integer.getInteger(ZOOKEEPER_WATCH_DELIVERY_THREADS, 0);
+        if (numThreads <= 0) {
+            return null;
+        }
+        int queueSize = Integer.getInteger(ZOOKEEPER_WATCH_DELIVERY_QUEUE_SIZE, 10000);
+        LOG.info("{}={}, {}={}", ZOOKEEPER_WATCH_DELIVERY_THREADS, numThreads, ZOOKEEPER_WATCH_DELIVERY_QUEUE_SIZE, queueSize);
+        NotificationDispatcher dispatcher = new NotificationDispatcher(numThreads, queueSize);
+        dispatcher.start();
+        return dispatcher;
+    }
+
+    @SuppressWarnings("unchecked")
+    public NotificationDispatcher(int numThreads, int queueSize) {
+        if (numThreads <= 0 || queueSize <= 0) {
+            throw new IllegalArgumentException("Invalid numThreads " + numThreads + " or queueSize " + queueSize);
+        }
+        queues = new BlockingQueue[numThreads];
+        threads = new DeliveryThread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            queues[i] = new ArrayBlockingQueue<>(queueSize);
+            threads[i] = new DeliveryThread("NotificationDelivery-" + i, queues[i]);
+        }
+    }
+
+    public void start() {
+        for (DeliveryThread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Queue an event for delivery to a watcher, waiting if its queue is
+     * full. Once shut down, the event is delivered on the calling thread.
+     */
+    public void dispatch(Watcher watcher, WatchedEvent event) {
+        if (stopped) {
+            watcher.process(event);
+            return;
+        }
+        Notification notification = new Notification(watcher, event);
+        if (watcher instanceof ServerCnxn) {
+            ((ServerCnxn) watcher).incrQueuedNotifications();
+        }
+        BlockingQueue<Notification> queue = queues[Math.floorMod(System.identityHashCode(watcher), queues.length)];
+        ServerMetrics.getMetrics().NOTIFICATION_QUEUE_SIZE.add(queue.size());
+        if (!queue.offer(notification)) {
+            long startTime = Time.currentElapsedTime();
+            try {
+                queue.put(notification);
+            } catch (InterruptedException e) {
+                LOG.warn("Interrupted while queuing a notification, delivering it now");
+                Thread.currentThread().interrupt();
+                deliver(notification);
+                return;
+            }
+            ServerMetrics.getMetrics().NOTIFICATION_QUEUE_FULL_TIME.add(Time.currentElapsedTime() - startTime);
+        }
+        if (stopped) {
+            // the delivery thread may be gone already
+            drain(queue);
+        }
+    }
+
+    /**
+     * Stop the delivery threads, once the notifications queued are
+     * delivered.
+     */
+    public void shutdown() {
+        stopped = true;
+        for (DeliveryThread thread : threads) {
+            thread.interrupt();
+        }
+        for (DeliveryThread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                LOG.warn("Interrupted while waiting for {} to finish", thread.getName());
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    private static void drain(BlockingQueue<Notification> queue) {
+        Notification notification;
+        while ((notification = queue.poll()) != null) {
+            deliver(notification);
+        }
+    }
+
+    private static void deliver(Notification notification) {
+        try {
+            notification.watcher.process(notification.event);
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to deliver {} to {}", notification.event, notification.watcher, e);
+        } finally {
+            if (notification.watcher instanceof ServerCnxn) {
+                ((ServerCnxn) notification.watcher).decrQueuedNotifications();
+            }
+        }
+        ServerMetrics.getMetrics().NOTIFICATION_DELIVERY_LAG.add(Time.currentElapsedTime() - notification.queuedTime);
+    }
+
+    private static class Notification {
+
+        final Watcher watcher;
+        final WatchedEvent event;
+        final long queuedTime = Time.currentElapsedTime();
+
+        Notification(Watcher watcher, WatchedEvent event) {
+            this.watcher = watcher;
+            this.event = event;
+        }
+
+    }
+
+    private class DeliveryThread extends ZooKeeperThread {
+
+        private final BlockingQueue<Notification> queue;
+
+        DeliveryThread(String name, BlockingQueue<Notification> queue) {
+            super(name);
+            this.queue = queue;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                try {
+                    deliver(queue.take());
+                } catch (InterruptedException e) {
+                    // check whether stopped
+                }
+            }
+            drain(queue);
+            LOG.info("{} exited", getName());
+        }
+
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.watch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ClientCnxn;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.proto.ReplyHeader;
+
+/**
+ * A WatchedEvent delivered to all the watchers of a trigger, which keeps
+ * the notification sent to the clients once serialized, so that every
+ * connection sends the same bytes instead of serializing its own copy.
+ */
+public class NotificationEvent extends WatchedEvent {
+
+    // the length prefix, the reply header and the event, never modified
+    private volatile ByteBuffer serialized;
+    // whether the watch of the watchers notified coalesces the events
+    private final boolean coalesced;
+
+    public NotificationEvent(EventType eventType, KeeperState keeperState, String path) {
+        this(eventType, keeperState, path, NO_ZXID, false);
+    }
+
+    public NotificationEvent(EventType eventType, KeeperState keeperState, String path, long zxid, boolean coalesced) {
+        super(eventType, keeperState, path, zxid);
+        this.coalesced = coalesced;
+    }
+
+    /**
+     * @return whether the event may be dropped for a later one of the same
+     *         type and path not sent yet
+     */
+    public boolean isCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * @return the same event, for the watchers whose watches coalesce it
+     */
+    public NotificationEvent toCoalesced() {
+        return coalesced ? this : new NotificationEvent(getType(), getState(), getPath(), getZxid(), true);
+    }
+
+    /**
+     * @return a read-only view of the notification with its own position,
+     *         which a connection may enqueue for sending
+     */
+    public ByteBuffer serialize() throws IOException {
+        ByteBuffer buffer = serialized;
+        if (buffer == null) {
+            // several threads may serialize it at once, any copy will do
+            buffer = serialize(this);
+            serialized = buffer;
+        }
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Serialize the notification of an event, as sent to the clients.
+     */
+    public static ByteBuffer serialize(WatchedEvent event) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        BinaryOutputArchive bos = BinaryOutputArchive.getArchive(out);
+        bos.writeInt(-1, "len");
+        bos.writeRecord(new ReplyHeader(ClientCnxn.NOTIFICATION_XID, event.getZxid(), 0), "header");
+        bos.writeRecord(event.getWrapper(), "notification");
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+        buffer.putInt(0, buffer.remaining() - 4);
+        return buffer;
+    }
+
+}
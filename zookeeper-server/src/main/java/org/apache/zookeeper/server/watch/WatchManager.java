@@ -58,6 +58,9 @@ public class WatchManager implements IWatchManager {
 
     private final WatcherModeManager watcherModeManager = new WatcherModeManager();
 
+    // delivers the events triggered, null to deliver them inline
+    private volatile NotificationDispatcher dispatcher;
+
     @Override
     public synchronized int size() {
         int result = 0;
@@ -123,6 +126,11 @@ public synchronized void removeWatcher(Watcher watcher) {
         }
     }
 
+    @Override
+    public void setNotificationDispatcher(NotificationDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
     @Override
     public WatcherOrBitSet triggerWatch(String path, EventType type) {
         return triggerWatch(path, type, null);
@@ -130,9 +138,35 @@ public WatcherOrBitSet triggerWatch(String path, EventType type) {
 
     @Override
     public WatcherOrBitSet triggerWatch(String path, EventType type, WatcherOrBitSet supress) {
+        return triggerWatch(path, type, WatchedEvent.NO_ZXID, supress);
+    }
+
+    /**
+     * Add a watcher to notify of an event, keeping track of the watchers
+     * all of whose watches matching the event coalesce it.
+     *
+     * @return the coalescing watchers, allocated when the first is added
+     */
+    static Set<Watcher> addWatcher(Set<Watcher> watchers, Set<Watcher> coalescing, Watcher watcher, WatcherMode mode) {
+        if (watchers.add(watcher)) {
+            if (mode.isCoalesced()) {
+                if (coalescing == null) {
+                    coalescing = new HashSet<>();
+                }
+                coalescing.add(watcher);
+            }
+        } else if (coalescing != null && !mode.isCoalesced()) {
+            coalescing.remove(watcher);
+        }
+        return coalescing;
+    }
+
+    @Override
+    public WatcherOrBitSet triggerWatch(String path, EventType type, long zxid, WatcherOrBitSet supress) {
         // 创建监听事件
-        WatchedEvent e = new WatchedEvent(type, KeeperState.SyncConnected, path);
+        NotificationEvent e = new NotificationEvent(type, KeeperState.SyncConnected, path, zxid, false);
         Set<Watcher> watchers = new HashSet<>();
+        Set<Watcher> coalescing = null;
 
         /**
          * 路径的父迭代器
@@ -151,10 +185,10 @@ public WatcherOrBitSet triggerWatch(String path, EventType type, WatcherOrBitSet
                     WatcherMode watcherMode = watcherModeManager.getWatcherMode(watcher, localPath);
                     if (watcherMode.isRecursive()) {
                         if (type != EventType.NodeChildrenChanged) {
-                            watchers.add(watcher);
+                            coalescing = addWatcher(watchers, coalescing, watcher, watcherMode);
                         }
                     } else if (!pathParentIterator.atParentPath()) {
-                        watchers.add(watcher);
+                        coalescing = addWatcher(watchers, coalescing, watcher, watcherMode);
                         if (!watcherMode.isPersistent()) {
                             iterator.remove();
                             Set<String> paths = watch2Paths.get(watcher);
@@ -176,11 +210,17 @@ public WatcherOrBitSet triggerWatch(String path, EventType type, WatcherOrBitSet
             return null;
         }
 
+        NotificationEvent coalesced = coalescing == null ? null : e.toCoalesced();
         for (Watcher w : watchers) {
             if (supress != null && supress.contains(w)) {
                 continue;
             }
-            w.process(e);
+            WatchedEvent event = coalesced != null && coalescing.contains(w) ? coalesced : e;
+            if (dispatcher == null) {
+                w.process(event);
+            } else {
+                dispatcher.dispatch(w, event);
+            }
         }
 
         switch (type) {
@@ -263,6 +303,15 @@ public synchronized boolean containsWatcher(String path, Watcher watcher) {
         return false;
     }
 
+    @Override
+    public synchronized WatcherMode getWatcherMode(String path, Watcher watcher) {
+        Set<Watcher> watchers = watchTable.get(path);
+        if (watchers == null || !watchers.contains(watcher)) {
+            return null;
+        }
+        return watcherModeManager.getWatcherMode(watcher, path);
+    }
+
     @Override
     public synchronized boolean removeWatcher(String path, Watcher watcher) {
         Set<String> paths = watch2Paths.get(watcher);
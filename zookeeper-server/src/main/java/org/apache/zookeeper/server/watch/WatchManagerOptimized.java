@@ -65,6 +65,9 @@ public class WatchManagerOptimized implements IWatchManager, IDeadWatcherListene
 
     private final ReentrantReadWriteLock addRemovePathRWLock = new ReentrantReadWriteLock();
 
+    // delivers the events triggered, null to deliver them inline
+    private volatile NotificationDispatcher dispatcher;
+
     public WatchManagerOptimized() {
         watcherCleaner = new WatcherCleaner(this);
         watcherCleaner.start();
@@ -201,6 +204,11 @@ public void processDeadWatchers(Set<Integer> deadWatchers) {
         }
     }
 
+    @Override
+    public void setNotificationDispatcher(NotificationDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
     @Override
     public WatcherOrBitSet triggerWatch(String path, EventType type) {
         return triggerWatch(path, type, null);
@@ -208,7 +216,12 @@ public WatcherOrBitSet triggerWatch(String path, EventType type) {
 
     @Override
     public WatcherOrBitSet triggerWatch(String path, EventType type, WatcherOrBitSet suppress) {
-        WatchedEvent e = new WatchedEvent(type, KeeperState.SyncConnected, path);
+        return triggerWatch(path, type, WatchedEvent.NO_ZXID, suppress);
+    }
+
+    @Override
+    public WatcherOrBitSet triggerWatch(String path, EventType type, long zxid, WatcherOrBitSet suppress) {
+        WatchedEvent e = new NotificationEvent(type, KeeperState.SyncConnected, path, zxid, false);
 
         BitHashSet watchers = remove(path);
         if (watchers == null) {
@@ -232,7 +245,11 @@ public WatcherOrBitSet triggerWatch(String path, EventType type, WatcherOrBitSet
                     continue;
                 }
 
-                w.process(e);
+                if (dispatcher == null) {
+                    w.process(e);
+                } else {
+                    dispatcher.dispatch(w, e);
+                }
                 triggeredWatches++;
             }
         }
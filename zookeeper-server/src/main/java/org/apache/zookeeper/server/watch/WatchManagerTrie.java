@@ -0,0 +1,604 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.watch;
+
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.server.ServerCnxn;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.ZooTrace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watch manager indexing the watches in a trie of the path segments, without
+ * a lock over the whole manager.
+ *
+ * Changes made compared to WatchManager:
+ *
+ * - Each trie node holds the watchers of its path and their mode under its
+ *   own lock, so that adding, removing and triggering the watches of
+ *   different paths do not contend
+ * - When there are recursive watchers, triggering walks down the trie from
+ *   the root, finding the recursive watchers of the parents on the way,
+ *   instead of hashing the string of every parent path. The children are
+ *   looked up by a view of the segment in the path, so that no string is
+ *   allocated. Otherwise, the node of the path is found from an index of
+ *   the nodes by path
+ * - The nodes left without watchers and children are removed from the trie
+ *
+ * A node is only removed under the lock of its parent, and children are only
+ * added under the lock of their parent when it is still in the trie, so that
+ * no watch is added to a node which has been removed.
+ */
+public class WatchManagerTrie implements IWatchManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WatchManagerTrie.class);
+
+    private final Node root = new Node(null, "", "/");
+
+    // the nodes of the trie by path, including the root
+    private final ConcurrentHashMap<String, Node> pathNodes = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Watcher, Set<String>> watcher2Paths = new ConcurrentHashMap<>();
+
+    private final AtomicInteger recursiveQty = new AtomicInteger();
+
+    // delivers the events triggered, null to deliver them inline
+    private volatile NotificationDispatcher dispatcher;
+
+    private static class Node {
+
+        final Node parent;
+        final String name;
+        final String path;
+        final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>(4);
+
+        // guarded by this, null when there are none
+        Map<Watcher, WatcherMode> watchers;
+        // the number of recursive watchers, read without the lock to skip
+        // the parents without any when triggering
+        volatile int recursiveCount;
+        // guarded by this, only set while also holding the lock of the parent
+        boolean removed;
+
+        Node(Node parent, String name, String path) {
+            this.parent = parent;
+            this.name = name;
+            this.path = path;
+        }
+
+        boolean isEmpty() {
+            return watchers == null && children.isEmpty();
+        }
+
+    }
+
+    /**
+     * A segment of a path used to look up a child without allocating its
+     * name: it hashes like the String of the segment, and equals the String
+     * of the same characters. It may only be passed to the get method of the
+     * children maps, which compare it with their keys.
+     */
+    private static final class Segment {
+
+        private String path;
+        private int start;
+        private int end;
+        private int hash;
+
+        void set(String path, int start, int end) {
+            this.path = path;
+            this.start = start;
+            this.end = end;
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + path.charAt(i);
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof String)) {
+                return false;
+            }
+            String name = (String) o;
+            return name.length() == end - start && path.regionMatches(start, name, 0, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return path.substring(start, end);
+        }
+
+    }
+
+    public WatchManagerTrie() {
+        pathNodes.put(root.path, root);
+    }
+
+    private static boolean isDeadWatcher(Watcher watcher) {
+        return watcher instanceof ServerCnxn && ((ServerCnxn) watcher).isStale();
+    }
+
+    /**
+     * @return the index of the end of the segment of the path starting at
+     *         start
+     */
+    private static int segmentEnd(String path, int start) {
+        int end = path.indexOf('/', start);
+        return end < 0 ? path.length() : end;
+    }
+
+    /**
+     * @return the node of the path, created if needed, null if a node on
+     *         the way was removed concurrently
+     */
+    private Node findOrCreate(String path) {
+        Node node = pathNodes.get(path);
+        if (node != null) {
+            return node;
+        }
+        node = root;
+        Segment segment = new Segment();
+        for (int start = 1; start < path.length(); start = segment.end + 1) {
+            int end = segmentEnd(path, start);
+            segment.set(path, start, end);
+            Node child = node.children.get(segment);
+            if (child == null) {
+                synchronized (node) {
+                    if (node.removed) {
+                        return null;
+                    }
+                    child = node.children.get(segment);
+                    if (child == null) {
+                        child = new Node(node, segment.toString(), path.substring(0, end));
+                        node.children.put(child.name, child);
+                        pathNodes.put(child.path, child);
+                    }
+                }
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * Remove the node and the parents left empty from the trie.
+     */
+    private void prune(Node node) {
+        while (node.parent != null) {
+            Node parent = node.parent;
+            synchronized (parent) {
+                synchronized (node) {
+                    if (node.removed || !node.isEmpty()) {
+                        return;
+                    }
+                    node.removed = true;
+                }
+                parent.children.remove(node.name, node);
+                pathNodes.remove(node.path, node);
+            }
+            node = parent;
+        }
+    }
+
+    private void adjustRecursiveQty(Node node, WatcherMode oldMode, WatcherMode newMode) {
+        boolean wasRecursive = oldMode != null && oldMode.isRecursive();
+        boolean isRecursive = newMode != null && newMode.isRecursive();
+        if (wasRecursive != isRecursive) {
+            int delta = isRecursive ? 1 : -1;
+            node.recursiveCount += delta;
+            recursiveQty.addAndGet(delta);
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Node node : nodes()) {
+            synchronized (node) {
+                if (node.watchers != null) {
+                    size += node.watchers.size();
+                }
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public boolean addWatch(String path, Watcher watcher) {
+        return addWatch(path, watcher, WatcherMode.DEFAULT_WATCHER_MODE);
+    }
+
+    @Override
+    public boolean addWatch(String path, Watcher watcher, WatcherMode watcherMode) {
+        if (isDeadWatcher(watcher)) {
+            LOG.debug("Ignoring addWatch with closed cnxn");
+            return false;
+        }
+
+        boolean added;
+        while (true) {
+            Node node = findOrCreate(path);
+            if (node == null) {
+                continue;
+            }
+            synchronized (node) {
+                if (node.removed) {
+                    continue;
+                }
+                if (node.watchers == null) {
+                    node.watchers = new HashMap<>(4);
+                }
+                WatcherMode oldMode = node.watchers.put(watcher, watcherMode);
+                adjustRecursiveQty(node, oldMode, watcherMode);
+                added = oldMode == null;
+                if (added) {
+                    watcher2Paths.computeIfAbsent(watcher, w -> ConcurrentHashMap.newKeySet()).add(path);
+                }
+                break;
+            }
+        }
+
+        // the cnxn may have been closed and its watches removed since
+        // checking it, leaving this one behind
+        if (added && isDeadWatcher(watcher)) {
+            removeWatcher(watcher);
+            return false;
+        }
+        return added;
+    }
+
+    @Override
+    public void removeWatcher(Watcher watcher) {
+        Set<String> paths = watcher2Paths.remove(watcher);
+        if (paths == null) {
+            return;
+        }
+        for (String path : paths) {
+            removeWatch(path, watcher);
+        }
+    }
+
+    @Override
+    public boolean removeWatcher(String path, Watcher watcher) {
+        if (!removeWatch(path, watcher)) {
+            return false;
+        }
+        Set<String> paths = watcher2Paths.get(watcher);
+        if (paths != null) {
+            paths.remove(path);
+        }
+        return true;
+    }
+
+    /**
+     * Remove the watch from the node of the path, leaving the paths of the
+     * watcher to the caller.
+     */
+    private boolean removeWatch(String path, Watcher watcher) {
+        Node node = pathNodes.get(path);
+        if (node == null) {
+            return false;
+        }
+        synchronized (node) {
+            if (node.watchers == null) {
+                return false;
+            }
+            WatcherMode oldMode = node.watchers.remove(watcher);
+            if (oldMode == null) {
+                return false;
+            }
+            adjustRecursiveQty(node, oldMode, null);
+            if (node.watchers.isEmpty()) {
+                node.watchers = null;
+            }
+        }
+        prune(node);
+        return true;
+    }
+
+    @Override
+    public void setNotificationDispatcher(NotificationDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public WatcherOrBitSet triggerWatch(String path, EventType type) {
+        return triggerWatch(path, type, null);
+    }
+
+    @Override
+    public WatcherOrBitSet triggerWatch(String path, EventType type, WatcherOrBitSet supress) {
+        return triggerWatch(path, type, WatchedEvent.NO_ZXID, supress);
+    }
+
+    @Override
+    public WatcherOrBitSet triggerWatch(String path, EventType type, long zxid, WatcherOrBitSet supress) {
+        NotificationEvent e = new NotificationEvent(type, KeeperState.SyncConnected, path, zxid, false);
+        Set<Watcher> watchers = new HashSet<>();
+        Set<Watcher> coalescing = null;
+
+        Node node;
+        if (type != EventType.NodeChildrenChanged && recursiveQty.get() > 0) {
+            node = root;
+            Segment segment = new Segment();
+            for (int start = 1; start < path.length() && node != null; start = segment.end + 1) {
+                if (node.recursiveCount > 0) {
+                    coalescing = collectRecursive(node, watchers, coalescing);
+                }
+                segment.set(path, start, segmentEnd(path, start));
+                node = node.children.get(segment);
+            }
+        } else {
+            node = pathNodes.get(path);
+        }
+
+        if (node != null) {
+            boolean empty;
+            synchronized (node) {
+                if (node.watchers != null) {
+                    Iterator<Entry<Watcher, WatcherMode>> iterator = node.watchers.entrySet().iterator();
+                    while (iterator.hasNext()) {
+                        Entry<Watcher, WatcherMode> entry = iterator.next();
+                        WatcherMode watcherMode = entry.getValue();
+                        if (watcherMode.isRecursive()) {
+                            if (type != EventType.NodeChildrenChanged) {
+                                coalescing = WatchManager.addWatcher(watchers, coalescing, entry.getKey(), watcherMode);
+                            }
+                        } else {
+                            coalescing = WatchManager.addWatcher(watchers, coalescing, entry.getKey(), watcherMode);
+                            if (!watcherMode.isPersistent()) {
+                                iterator.remove();
+                                Set<String> paths = watcher2Paths.get(entry.getKey());
+                                if (paths != null) {
+                                    paths.remove(path);
+                                }
+                            }
+                        }
+                    }
+                    if (node.watchers.isEmpty()) {
+                        node.watchers = null;
+                    }
+                }
+                empty = node.isEmpty();
+            }
+            if (empty) {
+                prune(node);
+            }
+        }
+
+        if (watchers.isEmpty()) {
+            if (LOG.isTraceEnabled()) {
+                ZooTrace.logTraceMessage(LOG, ZooTrace.EVENT_DELIVERY_TRACE_MASK, "No watchers for " + path);
+            }
+            return null;
+        }
+
+        NotificationEvent coalesced = coalescing == null ? null : e.toCoalesced();
+        for (Watcher w : watchers) {
+            if (supress != null && supress.contains(w)) {
+                continue;
+            }
+            WatchedEvent event = coalesced != null && coalescing.contains(w) ? coalesced : e;
+            if (dispatcher == null) {
+                w.process(event);
+            } else {
+                dispatcher.dispatch(w, event);
+            }
+        }
+
+        updateMetrics(type, watchers.size());
+        return new WatcherOrBitSet(watchers);
+    }
+
+    /**
+     * @return the coalescing watchers, see {@link WatchManager#addWatcher}
+     */
+    private static Set<Watcher> collectRecursive(Node node, Set<Watcher> watchers, Set<Watcher> coalescing) {
+        synchronized (node) {
+            if (node.watchers != null) {
+                for (Entry<Watcher, WatcherMode> entry : node.watchers.entrySet()) {
+                    if (entry.getValue().isRecursive()) {
+                        coalescing = WatchManager.addWatcher(watchers, coalescing, entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+        return coalescing;
+    }
+
+    void updateMetrics(final EventType type, int size) {
+        switch (type) {
+        case NodeCreated:
+            ServerMetrics.getMetrics().NODE_CREATED_WATCHER.add(size);
+            break;
+
+        case NodeDeleted:
+            ServerMetrics.getMetrics().NODE_DELETED_WATCHER.add(size);
+            break;
+
+        case NodeDataChanged:
+            ServerMetrics.getMetrics().NODE_CHANGED_WATCHER.add(size);
+            break;
+
+        case NodeChildrenChanged:
+            ServerMetrics.getMetrics().NODE_CHILDREN_WATCHER.add(size);
+            break;
+        default:
+            // Other types not logged.
+            break;
+        }
+    }
+
+    /**
+     * @return the nodes of the trie, which may miss the updates made while
+     *         iterating
+     */
+    private Collection<Node> nodes() {
+        return pathNodes.values();
+    }
+
+    /**
+     * @return the watchers of each path being watched
+     */
+    private Map<String, Set<Watcher>> pathWatchers() {
+        Map<String, Set<Watcher>> pathWatchers = new HashMap<>();
+        for (Node node : nodes()) {
+            synchronized (node) {
+                if (node.watchers != null) {
+                    pathWatchers.put(node.path, new HashSet<>(node.watchers.keySet()));
+                }
+            }
+        }
+        return pathWatchers;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(watcher2Paths.size()).append(" connections watching ").append(pathWatchers().size()).append(" paths\n");
+
+        int total = 0;
+        for (Set<String> paths : watcher2Paths.values()) {
+            total += paths.size();
+        }
+        sb.append("Total watches:").append(total);
+
+        return sb.toString();
+    }
+
+    @Override
+    public void dumpWatches(PrintWriter pwriter, boolean byPath) {
+        if (byPath) {
+            for (Entry<String, Set<Watcher>> e : pathWatchers().entrySet()) {
+                pwriter.println(e.getKey());
+                for (Watcher w : e.getValue()) {
+                    pwriter.print("\t0x");
+                    pwriter.print(Long.toHexString(((ServerCnxn) w).getSessionId()));
+                    pwriter.print("\n");
+                }
+            }
+        } else {
+            for (Entry<Watcher, Set<String>> e : watcher2Paths.entrySet()) {
+                pwriter.print("0x");
+                pwriter.println(Long.toHexString(((ServerCnxn) e.getKey()).getSessionId()));
+                for (String path : e.getValue()) {
+                    pwriter.print("\t");
+                    pwriter.println(path);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean containsWatcher(String path, Watcher watcher) {
+        Node node = pathNodes.get(path);
+        if (node == null) {
+            return false;
+        }
+        synchronized (node) {
+            return node.watchers != null && node.watchers.containsKey(watcher);
+        }
+    }
+
+    @Override
+    public WatcherMode getWatcherMode(String path, Watcher watcher) {
+        Node node = pathNodes.get(path);
+        if (node == null) {
+            return null;
+        }
+        synchronized (node) {
+            return node.watchers == null ? null : node.watchers.get(watcher);
+        }
+    }
+
+    @Override
+    public WatchesReport getWatches() {
+        Map<Long, Set<String>> id2paths = new HashMap<>();
+        for (Entry<Watcher, Set<String>> e : watcher2Paths.entrySet()) {
+            Long id = ((ServerCnxn) e.getKey()).getSessionId();
+            Set<String> paths = new HashSet<>(e.getValue());
+            id2paths.put(id, paths);
+        }
+        return new WatchesReport(id2paths);
+    }
+
+    @Override
+    public WatchesPathReport getWatchesByPath() {
+        Map<String, Set<Long>> path2ids = new HashMap<>();
+        for (Entry<String, Set<Watcher>> e : pathWatchers().entrySet()) {
+            Set<Long> ids = new HashSet<>(e.getValue().size());
+            path2ids.put(e.getKey(), ids);
+            for (Watcher watcher : e.getValue()) {
+                ids.add(((ServerCnxn) watcher).getSessionId());
+            }
+        }
+        return new WatchesPathReport(path2ids);
+    }
+
+    @Override
+    public WatchesSummary getWatchesSummary() {
+        int numPaths = 0;
+        int totalWatches = 0;
+        for (Node node : nodes()) {
+            synchronized (node) {
+                if (node.watchers != null) {
+                    numPaths++;
+                    totalWatches += node.watchers.size();
+                }
+            }
+        }
+        return new WatchesSummary(watcher2Paths.size(), numPaths, totalWatches);
+    }
+
+    // VisibleForTesting
+    int nodeCount() {
+        return nodes().size();
+    }
+
+    @Override
+    public void shutdown() { /* do nothing */ }
+
+    @Override
+    public int getRecursiveWatchQty() {
+        return recursiveQty.get();
+    }
+
+}
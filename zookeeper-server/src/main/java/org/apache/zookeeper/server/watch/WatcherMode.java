@@ -24,15 +24,17 @@ public enum WatcherMode {
     /**
      * 标准
      */
-    STANDARD(false, false),
+    STANDARD(false, false, false),
     /**
      * 持久
      */
-    PERSISTENT(true, false),
+    PERSISTENT(true, false, false),
     /**
      * 递归
      */
-    PERSISTENT_RECURSIVE(true, true)
+    PERSISTENT_RECURSIVE(true, true, false),
+    PERSISTENT_COALESCED(true, false, true),
+    PERSISTENT_RECURSIVE_COALESCED(true, true, true)
     ;
 
     public static final WatcherMode DEFAULT_WATCHER_MODE = WatcherMode.STANDARD;
@@ -43,6 +45,10 @@ public static WatcherMode fromZooDef(int mode) {
                 return PERSISTENT;
             case ZooDefs.AddWatchModes.persistentRecursive:
                 return PERSISTENT_RECURSIVE;
+            case ZooDefs.AddWatchModes.persistentCoalesced:
+                return PERSISTENT_COALESCED;
+            case ZooDefs.AddWatchModes.persistentRecursiveCoalesced:
+                return PERSISTENT_RECURSIVE_COALESCED;
         }
         throw new IllegalArgumentException("Unsupported mode: " + mode);
     }
@@ -55,10 +61,15 @@ public static WatcherMode fromZooDef(int mode) {
      * 是否执行
      */
     private final boolean isRecursive;
+    /**
+     * whether the events not sent yet may be coalesced
+     */
+    private final boolean isCoalesced;
 
-    WatcherMode(boolean isPersistent, boolean isRecursive) {
+    WatcherMode(boolean isPersistent, boolean isRecursive, boolean isCoalesced) {
         this.isPersistent = isPersistent;
         this.isRecursive = isRecursive;
+        this.isCoalesced = isCoalesced;
     }
 
     public boolean isPersistent() {
@@ -68,4 +79,8 @@ public boolean isPersistent() {
     public boolean isRecursive() {
         return isRecursive;
     }
+
+    public boolean isCoalesced() {
+        return isCoalesced;
+    }
 }
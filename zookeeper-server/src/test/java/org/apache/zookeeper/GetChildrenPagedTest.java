@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.Test;
+
+public class GetChildrenPagedTest extends ClientBase {
+
+    private static final String BASE = "/getChildrenPagedTest";
+    private static final int CHILDREN_CNT = 25;
+
+    private ZooKeeper zk;
+    private List<String> expected = new ArrayList<>();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        zk = createClient();
+        zk.create(BASE, null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        for (int i = 0; i < CHILDREN_CNT; i++) {
+            String child = "child" + i;
+            zk.create(BASE + "/" + child, null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            expected.add(child);
+        }
+        Collections.sort(expected);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+
+        zk.close();
+    }
+
+    @Test
+    public void testPages() throws Exception {
+        ChildrenPage page = zk.getChildrenPaged(BASE, "", 10);
+        assertEquals(expected.subList(0, 10), page.getChildren());
+        assertTrue(page.hasMore());
+        assertEquals(expected.get(9), page.getNextStartAfter());
+        assertEquals(CHILDREN_CNT, page.getStat().getNumChildren());
+
+        page = zk.getChildrenPaged(BASE, page.getNextStartAfter(), 10);
+        assertEquals(expected.subList(10, 20), page.getChildren());
+
+        page = zk.getChildrenPaged(BASE, page.getNextStartAfter(), 10);
+        assertEquals(expected.subList(20, CHILDREN_CNT), page.getChildren());
+        assertFalse(page.hasMore());
+        assertEquals("", page.getNextStartAfter());
+
+        // a deleted child still works as a continuation
+        zk.delete(BASE + "/" + expected.get(4), -1);
+        page = zk.getChildrenPaged(BASE, expected.get(4), 3);
+        assertEquals(expected.subList(5, 8), page.getChildren());
+
+        // non-positive counts return the server maximum
+        page = zk.getChildrenPaged(BASE, null, 0);
+        assertEquals(CHILDREN_CNT - 1, page.getChildren().size());
+        assertFalse(page.hasMore());
+
+        page = zk.getChildrenPaged(BASE + "/" + expected.get(0), "", 10);
+        assertTrue(page.getChildren().isEmpty());
+        assertFalse(page.hasMore());
+    }
+
+    @Test
+    public void testNoNode() throws Exception {
+        try {
+            zk.getChildrenPaged(BASE + "/missing", "", 10);
+            fail("NoNodeException is expected");
+        } catch (KeeperException.NoNodeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testIterator() throws Exception {
+        RemoteIterator<String> it = zk.getChildrenIterator(BASE, 4);
+        List<String> children = new ArrayList<>();
+        while (it.hasNext()) {
+            children.add(it.next());
+        }
+        assertEquals(expected, children);
+        try {
+            it.next();
+            fail("NoSuchElementException is expected");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+
+        it = zk.getChildrenIterator(BASE + "/" + expected.get(0), 4);
+        assertFalse(it.hasNext());
+    }
+
+}
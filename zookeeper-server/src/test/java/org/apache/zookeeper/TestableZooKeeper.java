@@ -21,6 +21,7 @@
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import org.apache.jute.Record;
@@ -107,6 +108,11 @@ public List<String> getExistWatches() {
         return super.getExistWatches();
     }
 
+    @Override
+    public Map<String, AddWatchMode> getCoalescedWatches() {
+        return super.getCoalescedWatches();
+    }
+
     /**
      * Cause this ZooKeeper object to disconnect from the server. It will then
      * later attempt to reconnect.
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+public class WatchPathTrieTest extends ZKTestCase {
+
+    private static Watcher watcher() {
+        // a distinct instance each time
+        return new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+            }
+        };
+    }
+
+    private static Set<Watcher> watchers(Watcher... watchers) {
+        return new HashSet<>(Arrays.asList(watchers));
+    }
+
+    @Test
+    public void testPathAndAncestors() {
+        WatchPathTrie trie = new WatchPathTrie();
+        Watcher root = watcher();
+        Watcher a = watcher();
+        Watcher ab = watcher();
+        Watcher abc = watcher();
+        ZooKeeper.ZKWatchManager.addWatcher(trie, "/", root);
+        ZooKeeper.ZKWatchManager.addWatcher(trie, "/a", a);
+        ZooKeeper.ZKWatchManager.addWatcher(trie, "/a/b", ab);
+        ZooKeeper.ZKWatchManager.addWatcher(trie, "/ab", abc);
+        assertEquals(4, trie.size());
+        assertEquals(watchers(ab), trie.get("/a/b"));
+        assertNull(trie.get("/a/bc"));
+
+        Set<Watcher> result = new HashSet<>();
+        trie.addWatchersOfPathAndAncestors("/a/b/c", result);
+        assertEquals(watchers(root, a, ab), result);
+
+        // the segments are matched whole
+        result.clear();
+        trie.addWatchersOfPathAndAncestors("/a/bc", result);
+        assertEquals(watchers(root, a), result);
+        result.clear();
+        trie.addWatchersOfPathAndAncestors("/ab", result);
+        assertEquals(watchers(root, abc), result);
+
+        result.clear();
+        trie.addWatchersOfPathAndAncestors("/", result);
+        assertEquals(watchers(root), result);
+
+        assertEquals(new HashSet<>(Arrays.asList("/", "/a", "/a/b", "/ab")), trie.keySet());
+    }
+
+    @Test
+    public void testRemoveAndPrune() {
+        WatchPathTrie trie = new WatchPathTrie();
+        Watcher watcher = watcher();
+        ZooKeeper.ZKWatchManager.addWatcher(trie, "/a/b/c", watcher);
+        ZooKeeper.ZKWatchManager.addWatcher(trie, "/a", watcher);
+        assertEquals(2, trie.size());
+
+        assertEquals(watchers(watcher), trie.remove("/a/b/c"));
+        assertNull(trie.remove("/a/b/c"));
+        assertNull(trie.remove("/a/b"));
+        assertEquals(1, trie.size());
+        assertEquals(new HashSet<>(Arrays.asList("/a")), trie.keySet());
+
+        // removed once its watchers are gone
+        assertNull(trie.computeIfPresent("/a", (path, ws) -> null));
+        assertTrue(trie.isEmpty());
+        assertFalse(trie.containsKey("/a"));
+
+        assertNull(trie.put("/a/b", watchers(watcher)));
+        assertEquals(watchers(watcher), trie.put("/a/b", watchers()));
+        assertEquals(1, trie.size());
+    }
+
+    /**
+     * Watchers added while the paths are removed and pruned concurrently
+     * are never lost.
+     */
+    @Test
+    public void testConcurrentAddAndRemove() throws InterruptedException {
+        WatchPathTrie trie = new WatchPathTrie();
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread remover = new Thread(() -> {
+            while (!stop.get()) {
+                trie.remove("/a/b");
+                trie.remove("/a/b/c");
+            }
+        });
+        remover.start();
+        try {
+            for (int i = 0; i < 10000; i++) {
+                Watcher watcher = watcher();
+                String path = i % 2 == 0 ? "/a/b/c" : "/a/b/d";
+                ZooKeeper.ZKWatchManager.addWatcher(trie, path, watcher);
+                if (path.equals("/a/b/d")) {
+                    assertTrue(trie.get(path).contains(watcher));
+                    Set<Watcher> result = new HashSet<>();
+                    trie.addWatchersOfPathAndAncestors(path + "/e", result);
+                    assertTrue(result.contains(watcher));
+                    trie.remove(path);
+                }
+            }
+        } finally {
+            stop.set(true);
+            remover.join();
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.Test;
+
+public class ChildSetTest extends ZKTestCase {
+
+    @Test
+    public void testDenseAndHashed() {
+        ChildSet set = new ChildSet();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(set.add("child" + i));
+            assertFalse(set.add("child" + i));
+        }
+        assertEquals(100, set.size());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(set.contains("child" + i));
+        }
+        assertFalse(set.contains("child100"));
+
+        for (int i = 0; i < 98; i++) {
+            assertTrue(set.remove("child" + i));
+            assertFalse(set.remove("child" + i));
+        }
+        assertEquals(new HashSet<>(Arrays.asList("child98", "child99")), new HashSet<>(set));
+        assertEquals(2, set.toArray().length);
+    }
+
+    @Test
+    public void testMatchesHashSet() {
+        ChildSet set = new ChildSet();
+        Set<String> reference = new HashSet<>();
+        Random r = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            // alternate between growing and shrinking phases to cross
+            // the dense and hashed forms many times
+            int range = (i / 10000) % 2 == 0 ? 2000 : 20;
+            String name = "n" + r.nextInt(range);
+            if (r.nextInt(3) > 0 == ((i / 10000) % 2 == 0)) {
+                assertEquals(reference.add(name), set.add(name));
+            } else {
+                assertEquals(reference.remove(name), set.remove(name));
+            }
+            assertEquals(reference.size(), set.size());
+        }
+        assertEquals(reference, set);
+        List<String> iterated = new ArrayList<>();
+        for (String name : set) {
+            iterated.add(name);
+        }
+        assertEquals(reference.size(), iterated.size());
+        assertEquals(reference, new HashSet<>(iterated));
+        assertEquals(reference, new HashSet<>(Arrays.asList(set.toArray(new String[0]))));
+    }
+
+    @Test
+    public void testPresized() {
+        ChildSet set = new ChildSet(1000);
+        for (int i = 0; i < 1000; i++) {
+            set.add("child" + i);
+        }
+        assertEquals(1000, set.size());
+        assertTrue(set.contains("child999"));
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertEquals;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.metrics.MetricsUtils;
+import org.apache.zookeeper.proto.ReplyHeader;
+import org.apache.zookeeper.proto.WatcherEvent;
+import org.apache.zookeeper.server.watch.NotificationEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CoalescedNotificationTest extends ZKTestCase {
+
+    @Before
+    public void setUp() {
+        ServerMetrics.getMetrics().resetAll();
+    }
+
+    private static class BackedUpCnxn extends DumbWatcher {
+
+        // the path and zxid of each notification sent
+        final List<String> sent = new ArrayList<>();
+        volatile boolean backedUp;
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (coalesceNotification(event)) {
+                return;
+            }
+            try {
+                sendBuffer(serializeNotification(event));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        void sendBuffer(ByteBuffer... buffers) {
+            flushCoalescedNotifications();
+            try {
+                for (ByteBuffer buffer : buffers) {
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    BinaryInputArchive bia = BinaryInputArchive.getArchive(new ByteArrayInputStream(bytes));
+                    bia.readInt("len");
+                    ReplyHeader header = new ReplyHeader();
+                    header.deserialize(bia, "header");
+                    WatcherEvent event = new WatcherEvent();
+                    event.deserialize(bia, "notification");
+                    sent.add(event.getPath() + "@" + header.getZxid());
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        protected boolean isOutgoingBackedUp() {
+            return backedUp;
+        }
+
+    }
+
+    private static WatchedEvent event(String path, long zxid, boolean coalesced) {
+        return new NotificationEvent(EventType.NodeDataChanged, KeeperState.SyncConnected, path, zxid, coalesced);
+    }
+
+    /**
+     * While the outgoing queue is backed up, only the latest notification of
+     * each path is held back, and they are all sent before anything else.
+     */
+    @Test
+    public void testCoalesceWhileBackedUp() {
+        BackedUpCnxn cnxn = new BackedUpCnxn();
+        cnxn.process(event("/a", 1, true));
+        assertEquals(Arrays.asList("/a@1"), cnxn.sent);
+
+        cnxn.backedUp = true;
+        cnxn.process(event("/a", 2, true));
+        cnxn.process(event("/b", 3, true));
+        cnxn.process(event("/a", 4, true));
+        assertEquals(1, cnxn.sent.size());
+
+        cnxn.process(event("/c", 5, false));
+        assertEquals(Arrays.asList("/a@1", "/b@3", "/a@4", "/c@5"), cnxn.sent);
+        assertEquals(1L, MetricsUtils.currentServerMetrics().get("coalesced_notifications"));
+    }
+
+    /**
+     * A notification held back is sent once the outgoing queue drains, and
+     * the ones not coalescing are never held back.
+     */
+    @Test
+    public void testFlushOnceDrained() {
+        BackedUpCnxn cnxn = new BackedUpCnxn();
+        cnxn.backedUp = true;
+        cnxn.process(event("/a", 1, false));
+        cnxn.process(event("/a", 2, true));
+        assertEquals(Arrays.asList("/a@1"), cnxn.sent);
+
+        cnxn.backedUp = false;
+        cnxn.process(event("/a", 3, true));
+        assertEquals(Arrays.asList("/a@1", "/a@3"), cnxn.sent);
+        assertEquals(1L, MetricsUtils.currentServerMetrics().get("coalesced_notifications"));
+
+        cnxn.backedUp = true;
+        cnxn.process(event("/b", 4, true));
+        cnxn.backedUp = false;
+        cnxn.flushCoalescedNotifications();
+        assertEquals(Arrays.asList("/a@1", "/a@3", "/b@4"), cnxn.sent);
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.Arrays;
+import java.util.Iterator;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.quorum.Leader;
+import org.apache.zookeeper.server.quorum.Leader.Proposal;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Test;
+
+public class CommittedLogRingTest extends ZKTestCase {
+
+    @After
+    public void tearDown() {
+        System.clearProperty(ZKDatabase.COMMIT_LOG_RING_BYTES);
+    }
+
+    private static byte[] data(long zxid, int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) zxid);
+        return data;
+    }
+
+    @Test
+    public void testEvictAndWrap() {
+        // room for 4 entries of 88 bytes, so that the entries wrap around
+        CommittedLogRing ring = new CommittedLogRing(400);
+        assertTrue(ring.isEmpty());
+        assertFalse(ring.iterator(0).hasNext());
+        for (long zxid = 1; zxid <= 20; zxid++) {
+            ring.add(zxid, data(zxid, 76));
+            assertEquals(Math.min(zxid, 4), ring.size());
+            assertEquals(Math.max(1, zxid - 3), ring.getMinZxid());
+            assertEquals(zxid, ring.getMaxZxid());
+            assertEquals(ring.size() * 88, ring.getBytes());
+
+            long expected = ring.getMinZxid();
+            Iterator<Proposal> itr = ring.iterator(0);
+            while (itr.hasNext()) {
+                Proposal p = itr.next();
+                assertEquals(Leader.PROPOSAL, p.packet.getType());
+                assertEquals(expected, p.packet.getZxid());
+                assertArrayEquals(data(expected, 76), p.packet.getData());
+                expected++;
+            }
+            assertEquals(zxid + 1, expected);
+        }
+    }
+
+    @Test
+    public void testIteratorFromZxid() {
+        CommittedLogRing ring = new CommittedLogRing(1024);
+        for (long zxid = 10; zxid < 20; zxid++) {
+            ring.add(zxid, data(zxid, (int) zxid));
+        }
+        Iterator<Proposal> itr = ring.iterator(15);
+        for (long zxid = 15; zxid < 20; zxid++) {
+            assertEquals(zxid, itr.next().packet.getZxid());
+        }
+        assertFalse(itr.hasNext());
+        assertFalse(ring.iterator(20).hasNext());
+    }
+
+    @Test
+    public void testGap() {
+        CommittedLogRing ring = new CommittedLogRing(100);
+        ring.add(1, data(1, 10));
+        ring.add(2, data(2, 10));
+
+        // larger than the ring
+        ring.add(3, data(3, 100));
+        assertTrue(ring.isEmpty());
+        ring.add(4, data(4, 10));
+        assertEquals(1, ring.size());
+        assertEquals(4, ring.getMinZxid());
+
+        // replayed after a truncation
+        ring.add(5, data(5, 10));
+        ring.add(3, data(3, 10));
+        assertEquals(1, ring.size());
+        assertEquals(3, ring.getMinZxid());
+        assertEquals(3, ring.getMaxZxid());
+    }
+
+    @Test
+    public void testZKDatabase() throws Exception {
+        ZKDatabase db = new ZKDatabase(null);
+        assertFalse(db.isInCommittedLogRing(1, 1));
+        assertFalse(db.getProposalsFromCommittedLogRing(1).hasNext());
+
+        System.setProperty(ZKDatabase.COMMIT_LOG_RING_BYTES, Integer.toString(1024 * 1024));
+        db = new ZKDatabase(null);
+        int count = db.commitLogCount * 2;
+        for (long zxid = 1; zxid <= count; zxid++) {
+            TxnHeader hdr = new TxnHeader(1, 1, zxid, 1, ZooDefs.OpCode.setData);
+            SetDataTxn txn = new SetDataTxn("/foo", new byte[10], 1);
+            db.addCommittedProposal(new Request(0, 1, hdr.getType(), hdr, txn, zxid));
+        }
+        assertTrue(db.getminCommittedLog() > 1);
+        assertTrue(db.isInCommittedLogRing(1, db.getminCommittedLog()));
+        db.getLogLock().readLock().lock();
+        try {
+            Iterator<Proposal> itr = db.getProposalsFromCommittedLogRing(1);
+            for (Proposal committed : db.getCommittedLog()) {
+                // the ring holds the proposals of the committedLog too
+                while (true) {
+                    Proposal p = itr.next();
+                    if (p.packet.getZxid() == committed.packet.getZxid()) {
+                        assertArrayEquals(committed.packet.getData(), p.packet.getData());
+                        break;
+                    }
+                }
+            }
+        } finally {
+            db.getLogLock().readLock().unlock();
+        }
+
+        db.clear();
+        assertFalse(db.isInCommittedLogRing(0, 0));
+    }
+
+}
@@ -18,9 +18,14 @@
 
 package org.apache.zookeeper.server;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import org.junit.Test;
 
@@ -64,4 +69,53 @@ public void testGetChildrenReturnsImmutableEmptySet() {
         }
     }
 
+    @Test
+    public void testGetChildrenListIsCachedUntilChildrenChange() {
+        DataNode dataNode = new DataNode();
+        assertEquals(0, dataNode.getChildrenList().size());
+
+        dataNode.addChild("a");
+        dataNode.addChild("b");
+        List<String> children = dataNode.getChildrenList();
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), new HashSet<>(children));
+        assertSame(children, dataNode.getChildrenList());
+        // adding an existing child doesn't change the list
+        dataNode.addChild("a");
+        assertSame(children, dataNode.getChildrenList());
+
+        dataNode.removeChild("a");
+        assertEquals(Arrays.asList("b"), dataNode.getChildrenList());
+        try {
+            dataNode.getChildrenList().add("c");
+            fail("UnsupportedOperationException is expected");
+        } catch (UnsupportedOperationException e) {
+            // do nothing
+        }
+    }
+
+    @Test
+    public void testSortedChildrenFollowChanges() {
+        DataNode dataNode = new DataNode();
+        dataNode.addChild("b");
+        dataNode.addChild("d");
+        String[] sorted = dataNode.getSortedChildren();
+        assertArrayEquals(new String[]{"b", "d"}, sorted);
+
+        dataNode.addChild("c");
+        dataNode.addChild("a");
+        dataNode.removeChild("d");
+        assertArrayEquals(new String[]{"a", "b", "c"}, dataNode.getSortedChildren());
+        // the array handed out before is left unchanged
+        assertArrayEquals(new String[]{"b", "d"}, sorted);
+
+        // many changes without a listing drop the array, which is sorted again
+        for (int i = 0; i < 100; i++) {
+            dataNode.addChild("e" + i);
+        }
+        for (int i = 0; i < 100; i++) {
+            dataNode.removeChild("e" + i);
+        }
+        assertArrayEquals(new String[]{"a", "b", "c"}, dataNode.getSortedChildren());
+    }
+
 }
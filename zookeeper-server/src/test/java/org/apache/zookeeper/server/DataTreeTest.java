@@ -28,10 +28,15 @@
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Semaphore;
@@ -49,6 +54,8 @@
 import org.apache.zookeeper.common.PathTrie;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.metrics.MetricsUtils;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.test.ClientBase;
 import org.apache.zookeeper.txn.CreateTxn;
 import org.apache.zookeeper.txn.TxnHeader;
 import org.junit.Test;
@@ -613,4 +620,82 @@ public void testDigest() throws Exception {
         }
     }
 
+    @Test
+    public void testChunkedSnapshot() throws Exception {
+        try {
+            ZooKeeperServer.setDigestEnabled(true);
+
+            DataTree dt = new DataTree();
+            long zxid = 1;
+            byte[] data = new byte[1000];
+            // enough data for several chunks
+            for (int i = 0; i < 50; i++) {
+                String parent = "/parent" + i;
+                dt.createNode(parent, data, null, 0, -1, zxid, zxid++);
+                for (int j = 0; j < 50; j++) {
+                    dt.createNode(parent + "/child" + j, data, null, (i * 50 + j) % 7, -1, zxid, zxid++);
+                }
+            }
+            dt.createNode("/container", new byte[0], null, EphemeralType.CONTAINER_EPHEMERAL_OWNER, -1, zxid, zxid++);
+            dt.createNode("/ttl", new byte[0], null, EphemeralType.TTL.toEphemeralOwner(1000), -1, zxid, zxid++);
+            Map<Long, Integer> sessions = new HashMap<>();
+            sessions.put(1L, 3000);
+
+            File snapDir = ClientBase.createTmpDir();
+            File snapFile = new File(snapDir, "snapshot.1");
+            System.setProperty(FileSnap.SNAPSHOT_CHUNKED, "true");
+            System.setProperty(FileSnap.SNAPSHOT_LOAD_THREADS, "4");
+            try {
+                new FileSnap(snapDir).serialize(dt, sessions, snapFile, false);
+            } finally {
+                System.clearProperty(FileSnap.SNAPSHOT_CHUNKED);
+                System.clearProperty(FileSnap.SNAPSHOT_LOAD_THREADS);
+            }
+
+            DataTree loaded = new DataTree();
+            Map<Long, Integer> loadedSessions = new HashMap<>();
+            new FileSnap(snapDir).deserialize(loaded, loadedSessions);
+
+            assertEquals(sessions, loadedSessions);
+            assertEquals(dt.getNodeCount(), loaded.getNodeCount());
+            assertEquals(dt.getTreeDigest(), loaded.getTreeDigest());
+            assertEquals(dt.approximateDataSize(), loaded.approximateDataSize());
+            assertEquals(dt.getAllChildrenNumber("/"), loaded.getAllChildrenNumber("/"));
+            assertEquals(dt.getEphemerals(), loaded.getEphemerals());
+            assertEquals(dt.getContainers(), loaded.getContainers());
+            assertEquals(dt.getTtls(), loaded.getTtls());
+            for (int i = 0; i < 50; i++) {
+                String parent = "/parent" + i;
+                assertEquals(dt.getNode(parent).getChildren(), loaded.getNode(parent).getChildren());
+            }
+        } finally {
+            ZooKeeperServer.setDigestEnabled(false);
+        }
+    }
+
+    @Test
+    public void testChildrenPageBoundBySerializedSize() throws Exception {
+        DataTree dt = new DataTree();
+        dt.createNode("/parent", new byte[0], null, 0, 1, 1, 1);
+        // 3 chars, 9 bytes in UTF-8, 13 bytes serialized
+        String[] names = {"\u20ac\u20ac1", "\u20ac\u20ac2", "\u20ac\u20ac3"};
+        for (String name : names) {
+            dt.createNode("/parent/" + name, new byte[0], null, 0, 1, 1, 1);
+        }
+
+        List<String> page = new ArrayList<>();
+        assertEquals(names[1], dt.getChildrenPage("/parent", "", 10, 26, page, null));
+        assertEquals(Arrays.asList(names[0], names[1]), page);
+
+        // one child at least, even when it is larger than the bound
+        page.clear();
+        assertEquals(names[0], dt.getChildrenPage("/parent", "", 10, 1, page, null));
+        assertEquals(Arrays.asList(names[0]), page);
+
+        // or when the count is not positive
+        page.clear();
+        assertEquals(names[1], dt.getChildrenPage("/parent", names[0], 0, 100, page, null));
+        assertEquals(Arrays.asList(names[1]), page);
+    }
+
 }
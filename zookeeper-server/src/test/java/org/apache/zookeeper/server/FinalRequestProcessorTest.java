@@ -22,6 +22,7 @@
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
@@ -73,14 +74,17 @@ public void setUp() throws KeeperException.NoNodeException, IOException {
         processor = new FinalRequestProcessor(zks);
 
         cnxn = mock(ServerCnxn.class);
-        doAnswer(new Answer() {
+        Answer captureResponse = new Answer() {
             @Override
             public Object answer(InvocationOnMock invocationOnMock) {
                 replyHeaders[0] = invocationOnMock.getArgument(0);
                 responseRecord[0] = invocationOnMock.getArgument(1);
                 return null;
             }
-        }).when(cnxn).sendResponse(any(), any(), anyString());
+        };
+        doAnswer(captureResponse).when(cnxn).sendResponse(any(), any(), anyString());
+        // the responses which are not redacted are sent for caching
+        doAnswer(captureResponse).when(cnxn).sendResponse(any(), any(), anyString(), anyString(), any(), anyInt());
 
         GetACLRequest getACLRequest = new GetACLRequest();
         getACLRequest.setPath(testPath);
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.Test;
+
+public class GroupCommitPolicyTest extends ZKTestCase {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long TARGET = 10 * MS;
+
+    @Test
+    public void testLoneWriteIsFlushedRightAway() {
+        GroupCommitPolicy policy = new GroupCommitPolicy();
+        // no arrival rate is known yet
+        policy.onArrival(1000 * MS, TARGET);
+        assertEquals(0, policy.getPollTimeNanos(1000 * MS, TARGET));
+        policy.onFlush(2 * MS);
+
+        // writes arriving much slower than the target don't wait either
+        policy.onArrival(2000 * MS, TARGET);
+        assertEquals(TARGET, policy.getArrivalGapNanos());
+        assertEquals(0, policy.getPollTimeNanos(2000 * MS, TARGET));
+    }
+
+    @Test
+    public void testBurstIsBatchedUntilTheDeadline() {
+        GroupCommitPolicy policy = new GroupCommitPolicy();
+        for (int i = 0; i < 100; i++) {
+            policy.onFlush(2 * MS);
+        }
+        // steady fsyncs of 2ms leave no deviation
+        assertEquals(2 * MS, policy.getFsyncEstimateNanos());
+
+        long now = 1000 * MS;
+        for (int i = 0; i < 20; i++) {
+            policy.onArrival(now + i * MS / 10, TARGET);
+        }
+        now += 2 * MS;
+        // the batch started 2ms ago and can wait for the rest of the
+        // target minus the fsync
+        assertEquals(TARGET - 4 * MS, policy.getPollTimeNanos(now, TARGET));
+        assertFalse(policy.shouldFlush(now + 5 * MS, TARGET));
+        assertTrue(policy.shouldFlush(now + 6 * MS, TARGET));
+        assertEquals(0, policy.getPollTimeNanos(now + 6 * MS, TARGET));
+
+        policy.onFlush(2 * MS);
+        assertFalse(policy.shouldFlush(now + 6 * MS, TARGET));
+    }
+
+    @Test
+    public void testFsyncEstimateTracksVariance() {
+        GroupCommitPolicy policy = new GroupCommitPolicy();
+        for (int i = 0; i < 100; i++) {
+            policy.onFlush(i % 2 == 0 ? MS : 5 * MS);
+        }
+        // the estimate covers the slow fsyncs
+        assertTrue(policy.getFsyncEstimateNanos() >= 5 * MS);
+        assertTrue(policy.getFsyncEstimateNanos() <= 15 * MS);
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.ConnectRequest;
+import org.apache.zookeeper.proto.ConnectResponse;
+import org.apache.zookeeper.proto.ExistsRequest;
+import org.apache.zookeeper.proto.ReplyHeader;
+import org.apache.zookeeper.proto.RequestHeader;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.Test;
+
+/**
+ * Connections reading their requests in batches, through the read buffer of
+ * the worker threads.
+ */
+public class NIOServerCnxnBatchedReadTest extends ClientBase {
+
+    static {
+        // read before the factory is loaded, the tests run in their own JVM
+        System.setProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_READ_BUFFER_BYTES, "4096");
+    }
+
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        try (ZooKeeper zk = createClient()) {
+            int count = 1000;
+            List<Integer> completed = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch latch = new CountDownLatch(count);
+            for (int i = 0; i < count; i++) {
+                final int n = i;
+                zk.create("/node" + i, new byte[i % 100], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT,
+                    (rc, path, ctx, name) -> {
+                        if (rc == KeeperException.Code.OK.intValue()) {
+                            completed.add(n);
+                        }
+                        latch.countDown();
+                    }, null);
+            }
+            assertTrue(latch.await(30, TimeUnit.SECONDS));
+            assertEquals(count, completed.size());
+            for (int i = 0; i < count; i++) {
+                assertEquals(i, (int) completed.get(i));
+            }
+            // larger than the read buffer
+            zk.setData("/node0", new byte[10000], -1);
+            assertEquals(10000, zk.getData("/node0", false, null).length);
+        }
+    }
+
+    /**
+     * Requests read in a batch after the connection got throttled are queued
+     * until it is unthrottled
+     */
+    @Test
+    public void testThrottledRequests() throws Exception {
+        System.setProperty(ZooKeeperServer.GLOBAL_OUTSTANDING_LIMIT, "5");
+        try (ZooKeeper zk = createClient()) {
+            int count = 500;
+            List<Integer> completed = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch latch = new CountDownLatch(count);
+            for (int i = 0; i < count; i++) {
+                final int n = i;
+                zk.create("/throttled" + i, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT,
+                    (rc, path, ctx, name) -> {
+                        if (rc == KeeperException.Code.OK.intValue()) {
+                            completed.add(n);
+                        }
+                        latch.countDown();
+                    }, null);
+            }
+            assertTrue(latch.await(30, TimeUnit.SECONDS));
+            assertEquals(count, completed.size());
+            for (int i = 0; i < count; i++) {
+                assertEquals(i, (int) completed.get(i));
+            }
+        } finally {
+            System.clearProperty(ZooKeeperServer.GLOBAL_OUTSTANDING_LIMIT);
+        }
+    }
+
+    /**
+     * Requests split at any byte across the reads of the server
+     */
+    @Test
+    public void testSplitRequests() throws Exception {
+        try (ZooKeeper zk = createClient()) {
+            zk.create("/a", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+        String[] hp = hostPort.split(":");
+        try (Socket sock = new Socket(hp[0], Integer.parseInt(hp[1]))) {
+            sock.setTcpNoDelay(true);
+            OutputStream out = sock.getOutputStream();
+            DataInputStream in = new DataInputStream(sock.getInputStream());
+
+            out.write(serialize(new ConnectRequest(0, 0, 30000, 0, new byte[16])));
+            in.readInt();
+            ConnectResponse connectResponse = new ConnectResponse();
+            connectResponse.deserialize(BinaryInputArchive.getArchive(in), "connect");
+            assertTrue(connectResponse.getSessionId() != 0);
+
+            ByteArrayOutputStream requests = new ByteArrayOutputStream();
+            int count = 4;
+            for (int xid = 1; xid <= count; xid++) {
+                requests.write(serialize(
+                    new RequestHeader(xid, ZooDefs.OpCode.exists),
+                    new ExistsRequest(xid % 2 == 0 ? "/a" : "/b", false)));
+            }
+            byte[] bytes = requests.toByteArray();
+            // split in the length, then in the payload of a request
+            int[] splits = {2, bytes.length / count + 7, bytes.length};
+            int from = 0;
+            for (int split : splits) {
+                out.write(bytes, from, split - from);
+                out.flush();
+                from = split;
+                Thread.sleep(100);
+            }
+
+            BinaryInputArchive ia = BinaryInputArchive.getArchive(in);
+            for (int xid = 1; xid <= count; xid++) {
+                in.readInt();
+                ReplyHeader reply = new ReplyHeader();
+                reply.deserialize(ia, "header");
+                assertEquals(xid, reply.getXid());
+                if (xid % 2 == 0) {
+                    assertEquals(KeeperException.Code.OK.intValue(), reply.getErr());
+                    new Stat().deserialize(ia, "stat");
+                } else {
+                    assertEquals(KeeperException.Code.NONODE.intValue(), reply.getErr());
+                }
+            }
+        }
+    }
+
+    private static byte[] serialize(Record... records) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        BinaryOutputArchive oa = BinaryOutputArchive.getArchive(bos);
+        oa.writeInt(-1, "len");
+        for (Record record : records) {
+            record.serialize(oa, "record");
+        }
+        byte[] bytes = bos.toByteArray();
+        int len = bytes.length - 4;
+        bytes[0] = (byte) (len >>> 24);
+        bytes[1] = (byte) (len >>> 16);
+        bytes[2] = (byte) (len >>> 8);
+        bytes[3] = (byte) len;
+        return bytes;
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.data.Stat;
+import org.junit.After;
+import org.junit.Test;
+
+public class OffHeapPayloadStoreTest extends ZKTestCase {
+
+    @After
+    public void tearDown() {
+        System.clearProperty(OffHeapPayloadStore.NODE_PAYLOAD_STORAGE);
+    }
+
+    @Test
+    public void testSizeClasses() {
+        int previous = -1;
+        for (int size = 1; size < 1 << 20; size++) {
+            int chunk = OffHeapPayloadStore.chunkSize(size);
+            assertTrue(chunk >= size);
+            // never waste more than a quarter of a chunk, past the minimum
+            assertTrue(chunk <= 16 || chunk - size < chunk / 4);
+            int sizeClass = OffHeapPayloadStore.sizeClass(chunk);
+            assertTrue(sizeClass >= previous);
+            assertEquals(chunk, OffHeapPayloadStore.chunkSize(chunk));
+            previous = sizeClass;
+        }
+    }
+
+    @Test
+    public void testAllocateReadFree() {
+        OffHeapPayloadStore store = new OffHeapPayloadStore(64 * 1024);
+        byte[] data = "some data".getBytes();
+        long handle = store.allocate(data);
+        assertTrue(handle != 0);
+        assertEquals(data.length, store.length(handle));
+        assertArrayEquals(data, store.read(handle));
+        assertEquals(16, store.getUsedBytes());
+
+        store.free(handle);
+        assertEquals(0, store.getUsedBytes());
+        // chunks of the same size class are reused
+        assertEquals(handle, store.allocate("other data".getBytes()));
+        assertArrayEquals("other data".getBytes(), store.read(handle));
+    }
+
+    @Test
+    public void testSlabsGrow() {
+        OffHeapPayloadStore store = new OffHeapPayloadStore(64 * 1024);
+        long[] handles = new long[1000];
+        for (int i = 0; i < handles.length; i++) {
+            byte[] data = new byte[100];
+            data[0] = (byte) i;
+            handles[i] = store.allocate(data);
+        }
+        // 1000 chunks of 112 bytes need two slabs
+        assertEquals(2 * 64 * 1024, store.getReservedBytes());
+        assertEquals(1000 * 112, store.getUsedBytes());
+        for (int i = 0; i < handles.length; i++) {
+            assertEquals((byte) i, store.read(handles[i])[0]);
+        }
+        store.reset();
+        assertEquals(0, store.getReservedBytes());
+        assertEquals(0, store.getUsedBytes());
+    }
+
+    @Test
+    public void testAccepts() {
+        OffHeapPayloadStore store = new OffHeapPayloadStore(64 * 1024);
+        assertFalse(store.accepts(null));
+        assertFalse(store.accepts(new byte[0]));
+        assertTrue(store.accepts(new byte[8 * 1024]));
+        assertFalse(store.accepts(new byte[8 * 1024 + 1]));
+    }
+
+    @Test
+    public void testDataTreeWithOffHeapPayloads() throws Exception {
+        System.setProperty(OffHeapPayloadStore.NODE_PAYLOAD_STORAGE, "offheap");
+        DataTree tree = new DataTree();
+        OffHeapPayloadStore store = tree.getPayloadStore();
+        assertNotNull(store);
+
+        tree.createNode("/a", "first".getBytes(), null, -1, 1, 1, 1);
+        tree.createNode("/b", null, null, -1, 2, 2, 2);
+        tree.createNode("/c", new byte[0], null, -1, 3, 3, 3);
+        Stat stat = new Stat();
+        assertArrayEquals("first".getBytes(), tree.getData("/a", stat, null));
+        assertEquals(5, stat.getDataLength());
+        assertNull(tree.getData("/b", stat, null));
+        assertArrayEquals(new byte[0], tree.getData("/c", stat, null));
+        assertEquals(16, store.getUsedBytes());
+
+        tree.setData("/a", "second value".getBytes(), 1, 4, 4);
+        assertArrayEquals("second value".getBytes(), tree.getData("/a", stat, null));
+        assertEquals(12, stat.getDataLength());
+        assertEquals(16, store.getUsedBytes());
+        long digest = tree.getTreeDigest();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        tree.serialize(BinaryOutputArchive.getArchive(baos), "test");
+        DataTree copy = new DataTree();
+        copy.deserialize(BinaryInputArchive.getArchive(new ByteArrayInputStream(baos.toByteArray())), "test");
+        assertArrayEquals("second value".getBytes(), copy.getData("/a", stat, null));
+        assertEquals(digest, copy.getTreeDigest());
+        assertEquals(tree.approximateDataSize(), copy.approximateDataSize());
+
+        tree.deleteNode("/a", 5);
+        assertEquals(0, store.getUsedBytes());
+    }
+
+}
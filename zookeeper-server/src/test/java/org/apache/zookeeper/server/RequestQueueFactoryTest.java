@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.metrics.MetricsUtils;
+import org.apache.zookeeper.server.util.MpscRing;
+import org.junit.After;
+import org.junit.Test;
+
+public class RequestQueueFactoryTest extends ZKTestCase {
+
+    @After
+    public void tearDown() {
+        System.clearProperty(RequestQueueFactory.ZOOKEEPER_REQUEST_QUEUE);
+        System.clearProperty(RequestQueueFactory.ZOOKEEPER_REQUEST_QUEUE_CAPACITY);
+    }
+
+    @Test
+    public void testQueueType() {
+        assertTrue(RequestQueueFactory.createQueue("test") instanceof LinkedBlockingQueue);
+        assertTrue(RequestQueueFactory.createQueue("test", RequestQueueFactory.RING, 8) instanceof MpscRing);
+
+        System.setProperty(RequestQueueFactory.ZOOKEEPER_REQUEST_QUEUE, RequestQueueFactory.RING);
+        System.setProperty(RequestQueueFactory.ZOOKEEPER_REQUEST_QUEUE_CAPACITY, "100");
+        BlockingQueue<Object> queue = RequestQueueFactory.createQueue("test");
+        assertTrue(queue instanceof MpscRing);
+        assertEquals(128, queue.remainingCapacity());
+
+        System.setProperty(RequestQueueFactory.ZOOKEEPER_REQUEST_QUEUE, RequestQueueFactory.LINKED);
+        assertTrue(RequestQueueFactory.createQueue("test", RequestQueueFactory.RING, 8) instanceof LinkedBlockingQueue);
+
+        System.setProperty(RequestQueueFactory.ZOOKEEPER_REQUEST_QUEUE, "unknown");
+        assertTrue(RequestQueueFactory.createQueue("test") instanceof LinkedBlockingQueue);
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        for (String type : new String[]{RequestQueueFactory.LINKED, RequestQueueFactory.RING}) {
+            ServerMetrics.getMetrics().resetAll();
+            BlockingQueue<Integer> queue = RequestQueueFactory.createQueue(type, type, 1);
+
+            // the consumer waits for the producer
+            Thread producer = new Thread(() -> {
+                try {
+                    Thread.sleep(50);
+                    queue.add(1);
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+            });
+            producer.start();
+            assertEquals(1, (int) queue.take());
+            producer.join();
+
+            // the producer waits for room in a ring
+            queue.add(2);
+            producer = new Thread(() -> queue.add(3));
+            producer.start();
+            Thread.sleep(50);
+            assertEquals(2, (int) queue.take());
+            producer.join();
+            assertEquals(3, (int) queue.take());
+
+            Map<String, Object> values = MetricsUtils.currentServerMetrics();
+            assertEquals(3L, values.get("cnt_" + type + "_request_queue_size"));
+            // 3 is added without waiting to a linked queue
+            assertEquals(type.equals(RequestQueueFactory.RING) ? 1L : 2L, values.get("max_" + type + "_request_queue_size"));
+            assertEquals(1L, values.get("cnt_" + type + "_request_queue_take_wait_time_us"));
+            assertTrue((Long) values.get("max_" + type + "_request_queue_take_wait_time_us") >= 40000L);
+            if (type.equals(RequestQueueFactory.RING)) {
+                assertEquals(1L, values.get("cnt_" + type + "_request_queue_put_wait_time_us"));
+                assertTrue((Long) values.get("max_" + type + "_request_queue_put_wait_time_us") >= 40000L);
+            } else {
+                assertNull(values.get("cnt_" + type + "_request_queue_put_wait_time_us"));
+            }
+        }
+    }
+
+}
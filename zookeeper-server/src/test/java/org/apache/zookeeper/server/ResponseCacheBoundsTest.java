@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.metrics.MetricsUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResponseCacheBoundsTest extends ZKTestCase {
+
+    @Before
+    public void setup() {
+        ServerMetrics.getMetrics().resetAll();
+    }
+
+    private static Stat stat(long mzxid) {
+        Stat stat = new Stat();
+        stat.setMzxid(mzxid);
+        return stat;
+    }
+
+    @Test
+    public void testEntryBound() {
+        ResponseCache cache = new ResponseCache(4, 0, ServerMetrics.getMetrics().RESPONSE_PACKET_CACHE_EVICTIONS);
+        for (int i = 0; i < 10; i++) {
+            cache.put("/n" + i, new byte[8], stat(i));
+            assertTrue(cache.getEntryCount() < 4);
+        }
+        Map<String, Object> metrics = MetricsUtils.currentServerMetrics();
+        assertEquals(7L, metrics.get("response_packet_cache_evictions"));
+    }
+
+    @Test
+    public void testByteBound() {
+        ResponseCache cache = new ResponseCache(1000, 100, null);
+        for (int i = 0; i < 50; i++) {
+            cache.put("/n" + i, new byte[30], stat(i));
+            assertTrue(cache.getCacheBytes() <= 100);
+        }
+        assertEquals(3, cache.getEntryCount());
+        assertEquals(90, cache.getCacheBytes());
+
+        // responses larger than the whole budget are never admitted
+        cache.put("/large", new byte[101], stat(1));
+        assertNull(cache.get("/large", stat(1)));
+        assertEquals(90, cache.getCacheBytes());
+    }
+
+    @Test
+    public void testReferencedEntriesSurviveEviction() {
+        ResponseCache cache = new ResponseCache(1000, 100, null);
+        byte[] hot = new byte[30];
+        cache.put("/hot", hot, stat(1));
+        for (int i = 0; i < 50; i++) {
+            assertArrayEquals(hot, cache.get("/hot", stat(1)));
+            cache.put("/cold" + i, new byte[30], stat(i));
+        }
+        assertNotNull(cache.get("/hot", stat(1)));
+    }
+
+    @Test
+    public void testStaleEntryIsInvalidated() {
+        ResponseCache cache = new ResponseCache(10, 0, null);
+        cache.put("/a", new byte[10], stat(1));
+        cache.put("/a", new byte[20], stat(2));
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(20, cache.getCacheBytes());
+
+        assertNull(cache.get("/a", stat(3)));
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getCacheBytes());
+    }
+
+    @Test
+    public void testDisabled() {
+        ResponseCache cache = new ResponseCache(0);
+        assertTrue(!cache.isEnabled());
+        cache.put("/a", new byte[10], stat(1));
+        assertNull(cache.get("/a", stat(1)));
+    }
+
+    @Test
+    public void testConcurrentAccessKeepsAccounting() throws Exception {
+        final ResponseCache cache = new ResponseCache(64, 1024, null);
+        final int threadCount = 8;
+        final AtomicBoolean failed = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < 10000; i++) {
+                        String key = "/n" + ((i * 31 + seed) % 200);
+                        Stat stat = stat(i % 3);
+                        if (cache.get(key, stat) == null) {
+                            cache.put(key, new byte[(i % 40) + 1], stat);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failed.set(true);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assertTrue(!failed.get());
+        assertTrue(cache.getEntryCount() < 64);
+        assertTrue(cache.getCacheBytes() <= 1024);
+    }
+
+}
@@ -27,9 +27,12 @@
 import static org.mockito.Mockito.mock;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.DummyWatcher;
 import org.apache.zookeeper.PortAssignment;
@@ -130,6 +133,55 @@ public void testPreAllocSizeSmallerThanTxnData() throws IOException {
         assertTrue(Arrays.equals(createTxn.getData(), new byte[]{}));
     }
 
+    @Test
+    public void testPipelinedWriter() throws Exception {
+        File logDir = ClientBase.createTmpDir();
+        System.setProperty(FileTxnLog.TXN_LOG_PIPELINED, "true");
+        System.setProperty(FileTxnLog.TXN_LOG_WRITE_BUFFER_SIZE, "1");
+        FileTxnLog fileTxnLog;
+        try {
+            fileTxnLog = new FileTxnLog(logDir);
+        } finally {
+            System.clearProperty(FileTxnLog.TXN_LOG_PIPELINED);
+            System.clearProperty(FileTxnLog.TXN_LOG_WRITE_BUFFER_SIZE);
+        }
+
+        // transactions spanning several buffers and log files, committed
+        // without waiting for the fsync
+        byte[] large = new byte[10 * KB];
+        Arrays.fill(large, (byte) 0xff);
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        long zxid = 1;
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 5; j++) {
+                byte[] data = (zxid % 7 == 0) ? large : new byte[]{(byte) zxid};
+                fileTxnLog.append(
+                    new TxnHeader(1, 1, zxid, zxid, ZooDefs.OpCode.create),
+                    new CreateTxn("/testPipelinedWriter" + zxid, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0));
+                zxid++;
+            }
+            commits.add(fileTxnLog.commitAsync());
+            if (i == 4) {
+                fileTxnLog.rollLog();
+            }
+        }
+        commits.get(commits.size() - 1).get();
+        for (CompletableFuture<Void> commit : commits) {
+            assertTrue(commit.isDone());
+        }
+        fileTxnLog.close();
+
+        assertEquals(2, FileTxnLog.getLogFiles(logDir.listFiles(), 0).length);
+        FileTxnLog.FileTxnIterator itr = new FileTxnLog.FileTxnIterator(logDir, 1);
+        for (long expected = 1; expected < zxid; expected++) {
+            assertEquals(expected, itr.getHeader().getZxid());
+            CreateTxn createTxn = (CreateTxn) itr.getTxn();
+            assertEquals(expected % 7 == 0 ? large.length : 1, createTxn.getData().length);
+            assertEquals(expected == zxid - 1, !itr.next());
+        }
+        itr.close();
+    }
+
     @Test
     public void testSetPreallocSize() {
         long customPreallocSize = 10101;
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedTxnIteratorTest extends ZKTestCase {
+
+    private File logDir;
+    private long lastZxid;
+
+    @Before
+    public void setUp() throws Exception {
+        logDir = ClientBase.createTmpDir();
+        FileTxnLog.setPreallocSize(64 * 1024);
+        FileTxnLog log = new FileTxnLog(logDir);
+        long zxid = 1;
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 100; j++) {
+                byte[] data = new byte[zxid % 10 == 0 ? 20000 : 10];
+                data[0] = (byte) zxid;
+                log.append(
+                    new TxnHeader(zxid, (int) zxid, zxid, zxid, ZooDefs.OpCode.create),
+                    new CreateTxn("/node" + zxid, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0));
+                zxid++;
+            }
+            log.commit();
+            log.rollLog();
+        }
+        log.close();
+        lastZxid = zxid - 1;
+    }
+
+    @Test
+    public void testSameAsStreamIterator() throws Exception {
+        TxnLog.TxnIterator expected = new FileTxnLog.FileTxnIterator(logDir, 1);
+        TxnLog.TxnIterator actual = new MappedTxnIterator(logDir, 1, true);
+        long count = 0;
+        while (expected.getHeader() != null) {
+            assertEquals(expected.getHeader(), actual.getHeader());
+            assertArrayEquals(expected.getTxnBytes(), actual.getTxnBytes());
+            assertEquals(expected.getTxn(), actual.getTxn());
+            assertEquals(expected.getStorageSize(), actual.getStorageSize());
+            count++;
+            assertEquals(expected.next(), actual.next());
+        }
+        assertNull(actual.getHeader());
+        assertEquals(lastZxid, count);
+        expected.close();
+        actual.close();
+    }
+
+    @Test
+    public void testFastForward() throws Exception {
+        TxnLog.TxnIterator itr = new MappedTxnIterator(logDir, 150, true);
+        assertEquals(150, itr.getHeader().getZxid());
+        itr.close();
+
+        // without fast forwarding, the iterator starts at the log holding 150
+        itr = new MappedTxnIterator(logDir, 150, false);
+        assertEquals(101, itr.getHeader().getZxid());
+        itr.close();
+
+        itr = new MappedTxnIterator(logDir, lastZxid + 1, true);
+        assertNull(itr.getHeader());
+        itr.close();
+    }
+
+    @Test
+    public void testCorruptedTxn() throws Exception {
+        File log = new File(logDir, Util.makeLogName(1));
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+            // flip a byte of the data of the second txn
+            raf.seek(200);
+            int b = raf.read();
+            raf.seek(200);
+            raf.write(b ^ 0xff);
+        }
+        TxnLog.TxnIterator itr = new MappedTxnIterator(logDir, 1, true);
+        assertTrue(itr.getHeader() != null);
+        try {
+            while (itr.next()) {
+            }
+            fail("The corrupted txn was not detected");
+        } catch (IOException e) {
+            assertEquals(FileTxnLog.FileTxnIterator.CRC_ERROR, e.getMessage());
+        }
+        assertFalse(itr.next());
+        itr.close();
+    }
+
+}
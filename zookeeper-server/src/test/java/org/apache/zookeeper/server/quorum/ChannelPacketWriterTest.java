@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import java.io.BufferedInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChannelPacketWriterTest extends ZKTestCase {
+
+    private ServerSocket serverSocket;
+    private Socket client;
+    private Socket server;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty(ChannelPacketWriter.TRANSPORT, "nio");
+        serverSocket = ChannelPacketWriter.createServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = ChannelPacketWriter.createSocket();
+        client.connect(serverSocket.getLocalSocketAddress());
+        server = serverSocket.accept();
+        server.setSoTimeout(10000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        System.clearProperty(ChannelPacketWriter.TRANSPORT);
+        client.close();
+        server.close();
+        serverSocket.close();
+    }
+
+    @Test
+    public void testForSocket() throws Exception {
+        assertNotNull(ChannelPacketWriter.forSocket(client));
+        assertNotNull(ChannelPacketWriter.forSocket(server));
+        System.setProperty(ChannelPacketWriter.TRANSPORT, "stream");
+        assertNull(ChannelPacketWriter.forSocket(client));
+        try (Socket plain = ChannelPacketWriter.createSocket()) {
+            System.setProperty(ChannelPacketWriter.TRANSPORT, "nio");
+            assertNull(ChannelPacketWriter.forSocket(plain));
+        }
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        List<QuorumPacket> packets = new ArrayList<>();
+        packets.add(new QuorumPacket(Leader.PING, 1, new byte[0], Collections.emptyList()));
+        // larger than the buffer, serialized by the writer
+        packets.add(new QuorumPacket(Leader.PROPOSAL, 2, new byte[200], Collections.emptyList()));
+        packets.add(new QuorumPacket(Leader.REQUEST, 3, new byte[10], Collections.singletonList(ZooDefs.Ids.ANYONE_ID_UNSAFE)));
+        // serialized once, fitting in the buffer and not
+        packets.add(SerializedQuorumPacket.of(new QuorumPacket(Leader.COMMIT, 2, new byte[0], Collections.emptyList())));
+        packets.add(SerializedQuorumPacket.of(new QuorumPacket(Leader.PROPOSAL, 4, new byte[300], Collections.emptyList())));
+        packets.add(new QuorumPacket(Leader.ACK, 4, new byte[0], Collections.emptyList()));
+
+        ChannelPacketWriter writer = new ChannelPacketWriter(client.getChannel(), 64);
+        for (QuorumPacket p : packets) {
+            writer.write(p);
+        }
+        writer.flush();
+
+        BinaryInputArchive ia = BinaryInputArchive.getArchive(new BufferedInputStream(server.getInputStream()));
+        for (QuorumPacket p : packets) {
+            QuorumPacket read = new QuorumPacket();
+            ia.readRecord(read, "packet");
+            assertEquals(new QuorumPacket(p.getType(), p.getZxid(), p.getData(), p.getAuthinfo()), read);
+        }
+    }
+
+}
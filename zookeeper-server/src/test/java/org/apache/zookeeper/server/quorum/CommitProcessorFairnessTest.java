@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.metrics.MetricsUtils;
+import org.apache.zookeeper.proto.GetChildrenRequest;
+import org.apache.zookeeper.proto.GetDataRequest;
+import org.apache.zookeeper.proto.SetDataRequest;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.RequestProcessor;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.WorkerService;
+import org.apache.zookeeper.server.ZooKeeperServerListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CommitProcessorFairnessTest extends ZKTestCase {
+
+    BlockingQueue<Request> processedRequests;
+    MockCommitProcessor processor;
+
+    @Before
+    public void setUp() throws Exception {
+        processedRequests = new LinkedBlockingQueue<>();
+        processor = new MockCommitProcessor();
+        CommitProcessor.setMaxReadBatchSize(-1);
+        CommitProcessor.setMaxCommitBatchSize(1);
+        System.setProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_FAIR_SCHEDULING, "true");
+        ServerMetrics.getMetrics().resetAll();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        processor.shutdown();
+        System.clearProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_FAIR_SCHEDULING);
+        System.clearProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_FAIR_QUANTUM);
+        System.clearProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_MAX_READS_IN_FLIGHT);
+        System.clearProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_SESSION_METRICS);
+    }
+
+    class MockCommitProcessor extends CommitProcessor {
+
+        MockCommitProcessor() {
+            super(new RequestProcessor() {
+                public void processRequest(Request request) {
+                    processedRequests.offer(request);
+                }
+
+                public void shutdown() {
+                }
+            }, "0", false, new ZooKeeperServerListener() {
+
+                @Override
+                public void notifyStopping(String threadName, int errorCode) {
+                    fail("Commit processor crashed " + errorCode);
+                }
+            });
+        }
+
+        public void initThreads(int poolSize) {
+            this.stopped = false;
+            this.workerPool = new WorkerService("CommitProcWork", poolSize, true);
+            initFairScheduling(poolSize);
+        }
+
+    }
+
+    private Request newRequest(Record rec, int type, long sessionId, int xid) throws IOException {
+        ByteArrayOutputStream boas = new ByteArrayOutputStream();
+        BinaryOutputArchive boa = BinaryOutputArchive.getArchive(boas);
+        rec.serialize(boa, "request");
+        ByteBuffer bb = ByteBuffer.wrap(boas.toByteArray());
+        return new Request(null, sessionId, xid, type, bb, new ArrayList<Id>());
+    }
+
+    private void addReads(long sessionId, int type, int count) throws IOException {
+        for (int xid = 1; xid <= count; xid++) {
+            Record record = type == OpCode.getChildren ? new GetChildrenRequest("/", false) : new GetDataRequest("/", false);
+            processor.processRequest(newRequest(record, type, sessionId, xid));
+        }
+    }
+
+    private List<Long> processedSessions(int count) throws InterruptedException {
+        List<Long> sessions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Request request = processedRequests.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Request not processed", request);
+            sessions.add(request.sessionId);
+        }
+        assertNull(processedRequests.poll());
+        return sessions;
+    }
+
+    /**
+     * The reads of a session are interleaved with the ones of the sessions
+     * queued after them, in proportion to their cost.
+     */
+    @Test
+    public void testRoundRobin() throws Exception {
+        System.setProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_FAIR_QUANTUM, "1");
+        System.setProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_SESSION_METRICS, "true");
+        processor.initThreads(0);
+        addReads(1, OpCode.getData, 6);
+        addReads(2, OpCode.getData, 2);
+        addReads(3, OpCode.getChildren, 1);
+
+        processor.stoppedMainLoop = true;
+        processor.run();
+
+        assertEquals(
+            Arrays.asList(1L, 2L, 1L, 2L, 1L, 1L, 3L, 1L, 1L),
+            processedSessions(9));
+
+        Map<String, Object> values = MetricsUtils.currentServerMetrics();
+        assertEquals(9L, values.get("cnt_fair_read_queue_time_ms"));
+        assertEquals(6L, values.get("cnt_1_session_read_queue_time_ms"));
+        assertEquals(2L, values.get("cnt_2_session_read_queue_time_ms"));
+        assertEquals(1L, values.get("cnt_3_session_read_queue_time_ms"));
+    }
+
+    /**
+     * Only maxReadsInFlight reads are handed to the worker threads at once,
+     * so that the reads of a session do not wait behind all the reads of a
+     * busy session assigned to the same worker thread.
+     */
+    @Test
+    public void testMaxReadsInFlight() throws Exception {
+        System.setProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_MAX_READS_IN_FLIGHT, "2");
+        // sessions 5 and 7 are assigned to the same worker thread
+        processor.initThreads(2);
+        addReads(5, OpCode.getData, 10);
+        addReads(7, OpCode.getData, 1);
+
+        processor.stoppedMainLoop = true;
+        do {
+            processor.run();
+        } while (processor.fairScheduler.size() > 0);
+
+        // the quantum of session 5 is 4 reads
+        assertEquals(
+            Arrays.asList(5L, 5L, 5L, 5L, 7L, 5L, 5L, 5L, 5L, 5L, 5L),
+            processedSessions(11));
+        Map<String, Object> values = MetricsUtils.currentServerMetrics();
+        assertEquals(11L, values.get("cnt_fair_read_queue_time_ms"));
+        assertNull(values.get("cnt_5_session_read_queue_time_ms"));
+    }
+
+    /**
+     * A committed write of a session is processed after the reads of the
+     * session queued before it, and before the ones queued after it.
+     */
+    @Test
+    public void testWriteAfterReads() throws Exception {
+        System.setProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_MAX_READS_IN_FLIGHT, "1");
+        processor.initThreads(1);
+        Request read1 = newRequest(new GetDataRequest("/", false), OpCode.getData, 1, 1);
+        Request read2 = newRequest(new GetDataRequest("/", false), OpCode.getData, 1, 2);
+        Request write = newRequest(new SetDataRequest("/", new byte[16], -1), OpCode.setData, 1, 3);
+        Request read3 = newRequest(new GetDataRequest("/", false), OpCode.getData, 1, 4);
+        processor.processRequest(read1);
+        processor.processRequest(read2);
+        processor.processRequest(write);
+        processor.processRequest(read3);
+        processor.commit(write);
+
+        processor.stoppedMainLoop = true;
+        do {
+            processor.run();
+        } while (!processor.queuedRequests.isEmpty()
+                 || !processor.committedRequests.isEmpty()
+                 || processor.fairScheduler.size() > 0);
+
+        for (Request request : Arrays.asList(read1, read2, write, read3)) {
+            assertEquals(request, processedRequests.poll(5, TimeUnit.SECONDS));
+        }
+        assertNull(processedRequests.poll());
+    }
+
+}
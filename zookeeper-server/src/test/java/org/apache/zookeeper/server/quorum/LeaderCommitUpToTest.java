@@ -0,0 +1,289 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.quorum.QuorumPeer.LearnerType;
+import org.apache.zookeeper.server.quorum.QuorumPeer.QuorumServer;
+import org.apache.zookeeper.server.quorum.flexible.QuorumMaj;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.mockito.ArgumentCaptor;
+
+@RunWith(Parameterized.class)
+public class LeaderCommitUpToTest extends ZKTestCase {
+
+    private final int proposalWindowSize;
+
+    private FileTxnSnapLog fileTxnSnapLog;
+    private LeaderZooKeeperServer zks;
+    private Leader leader;
+    private LearnerHandler follower;
+    private LearnerHandler oldFollower;
+
+    public LeaderCommitUpToTest(int proposalWindowSize) {
+        this.proposalWindowSize = proposalWindowSize;
+    }
+
+    /**
+     * Acks recorded under the leader lock only, with a window too small for
+     * the outstanding proposals, and with the default window.
+     */
+    @Parameterized.Parameters
+    public static Collection<Object[]> proposalWindowSizes() {
+        return Arrays.asList(new Object[][]{{0}, {2}, {4096}});
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        QuorumPeer peer = new QuorumPeer();
+        peer.setMyid(1);
+        Map<Long, QuorumServer> servers = LeaderBeanTest.getMockedPeerViews(1);
+        servers.put(2L, new QuorumServer(2, new InetSocketAddress("127.0.0.1", 0)));
+        servers.put(3L, new QuorumServer(3, new InetSocketAddress("127.0.0.1", 0)));
+        peer.setQuorumVerifier(new QuorumMaj(servers), false);
+
+        File tmpDir = ClientBase.createEmptyTestDir();
+        fileTxnSnapLog = new FileTxnSnapLog(new File(tmpDir, "data"), new File(tmpDir, "data_txnlog"));
+        zks = new LeaderZooKeeperServer(fileTxnSnapLog, peer, new ZKDatabase(fileTxnSnapLog));
+        zks.commitProcessor = mock(CommitProcessor.class);
+        System.setProperty(Leader.PROPOSAL_WINDOW_SIZE, Integer.toString(proposalWindowSize));
+        leader = new Leader(peer, zks);
+
+        follower = mockFollower(2, Leader.PROTOCOL_VERSION_COMMIT_UPTO);
+        oldFollower = mockFollower(3, 0x10000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        System.clearProperty(Leader.PROPOSAL_WINDOW_SIZE);
+        leader.closeSockets();
+        fileTxnSnapLog.close();
+    }
+
+    private LearnerHandler mockFollower(long sid, int version) {
+        LearnerHandler handler = mock(LearnerHandler.class);
+        when(handler.getLearnerType()).thenReturn(LearnerType.PARTICIPANT);
+        when(handler.getSid()).thenReturn(sid);
+        when(handler.getVersion()).thenReturn(version);
+        leader.addForwardingFollower(handler);
+        return handler;
+    }
+
+    private void propose(long zxid) throws Exception {
+        TxnHeader hdr = new TxnHeader(1, 1, zxid, 1, ZooDefs.OpCode.setData);
+        leader.propose(new Request(1, 1, ZooDefs.OpCode.setData, hdr, new SetDataTxn("/foo", new byte[0], 1), zxid));
+    }
+
+    private List<QuorumPacket> commits(LearnerHandler handler) {
+        ArgumentCaptor<QuorumPacket> captor = ArgumentCaptor.forClass(QuorumPacket.class);
+        verify(handler, atLeastOnce()).queuePacket(captor.capture());
+        List<QuorumPacket> commits = new ArrayList<>();
+        for (QuorumPacket p : captor.getAllValues()) {
+            if (p.getType() != Leader.PROPOSAL) {
+                commits.add(p);
+            }
+        }
+        return commits;
+    }
+
+    @Test
+    public void testCommitUpTo() throws Exception {
+        propose(1);
+        propose(2);
+        propose(3);
+        // 2 has a quorum before 1, so both are committed by the ack of 1
+        leader.processAck(1, 2, null);
+        leader.processAck(2, 2, null);
+        leader.processAck(1, 1, null);
+        leader.processAck(2, 1, null);
+
+        List<QuorumPacket> commits = commits(follower);
+        assertEquals(1, commits.size());
+        assertEquals(Leader.COMMIT_UPTO, commits.get(0).getType());
+        assertEquals(2, commits.get(0).getZxid());
+        assertEquals(1, Learner.getFirstCommitted(commits.get(0)));
+
+        commits = commits(oldFollower);
+        assertEquals(2, commits.size());
+        assertEquals(Leader.COMMIT, commits.get(0).getType());
+        assertEquals(1, commits.get(0).getZxid());
+        assertEquals(Leader.COMMIT, commits.get(1).getType());
+        assertEquals(2, commits.get(1).getZxid());
+
+        assertEquals(2, leader.lastCommitted);
+        verify(zks.commitProcessor, times(2)).commit(any(Request.class));
+    }
+
+    @Test
+    public void testCumulativeAck() throws Exception {
+        propose(1);
+        propose(2);
+        propose(3);
+        // a single ACK of each voter covers the three proposals
+        leader.processAck(1, 3, null);
+        assertEquals(-1, leader.lastCommitted);
+        leader.processAck(2, 3, null);
+
+        List<QuorumPacket> commits = commits(follower);
+        assertEquals(1, commits.size());
+        assertEquals(Leader.COMMIT_UPTO, commits.get(0).getType());
+        assertEquals(3, commits.get(0).getZxid());
+        assertEquals(1, Learner.getFirstCommitted(commits.get(0)));
+        assertEquals(3, commits(oldFollower).size());
+        assertEquals(3, leader.lastCommitted);
+        assertEquals(0, leader.outstandingProposals.size());
+    }
+
+    @Test
+    public void testCumulativeAckAfterSingleAcks() throws Exception {
+        propose(1);
+        propose(2);
+        propose(3);
+        leader.processAck(1, 1, null);
+        leader.processAck(1, 2, null);
+        leader.processAck(2, 1, null);
+        assertEquals(1, leader.lastCommitted);
+        // covers 2 and 3, 1 is committed already
+        leader.processAck(2, 3, null);
+        assertEquals(2, leader.lastCommitted);
+        leader.processAck(1, 3, null);
+        assertEquals(3, leader.lastCommitted);
+    }
+
+    @Test
+    public void testConcurrentAcks() throws Exception {
+        final int count = 1000;
+        for (int zxid = 1; zxid <= count; zxid++) {
+            propose(zxid);
+        }
+        Thread[] voters = new Thread[3];
+        for (int i = 0; i < voters.length; i++) {
+            final long sid = i + 1;
+            voters[i] = new Thread(() -> {
+                for (int zxid = 1; zxid <= count; zxid++) {
+                    leader.processAck(sid, zxid, null);
+                }
+            });
+            voters[i].start();
+        }
+        for (Thread voter : voters) {
+            voter.join();
+        }
+
+        assertEquals(count, leader.lastCommitted);
+        assertEquals(0, leader.outstandingProposals.size());
+        ArgumentCaptor<Request> captor = ArgumentCaptor.forClass(Request.class);
+        verify(zks.commitProcessor, times(count)).commit(captor.capture());
+        long zxid = 0;
+        for (Request request : captor.getAllValues()) {
+            assertTrue(request.zxid > zxid);
+            zxid = request.zxid;
+        }
+        long committed = 0;
+        for (QuorumPacket p : commits(follower)) {
+            committed += p.getType() == Leader.COMMIT_UPTO ? p.getZxid() - Learner.getFirstCommitted(p) + 1 : 1;
+        }
+        assertEquals(count, committed);
+    }
+
+    @Test
+    public void testSingleCommit() throws Exception {
+        propose(1);
+        propose(2);
+        leader.processAck(1, 1, null);
+        leader.processAck(2, 1, null);
+
+        for (LearnerHandler handler : new LearnerHandler[]{follower, oldFollower}) {
+            List<QuorumPacket> commits = commits(handler);
+            assertEquals(1, commits.size());
+            assertEquals(Leader.COMMIT, commits.get(0).getType());
+            assertEquals(1, commits.get(0).getZxid());
+        }
+    }
+
+    /**
+     * The zxid of the leader moved near the end of the epoch while proposals
+     * are outstanding, as ZxidRolloverTest does.
+     */
+    @Test(timeout = 30000)
+    public void testCumulativeAckAcrossZxidGap() throws Exception {
+        propose(1);
+        propose(2);
+        propose(0xfffffffdL);
+        propose(0xfffffffeL);
+        leader.processAck(1, 0xfffffffeL, null);
+        assertEquals(-1, leader.lastCommitted);
+        leader.processAck(2, 0xfffffffeL, null);
+
+        List<QuorumPacket> commits = commits(follower);
+        assertEquals(2, commits.size());
+        assertEquals(Leader.COMMIT_UPTO, commits.get(0).getType());
+        assertEquals(2, commits.get(0).getZxid());
+        assertEquals(1, Learner.getFirstCommitted(commits.get(0)));
+        assertEquals(Leader.COMMIT_UPTO, commits.get(1).getType());
+        assertEquals(0xfffffffeL, commits.get(1).getZxid());
+        assertEquals(0xfffffffdL, Learner.getFirstCommitted(commits.get(1)));
+        assertEquals(4, commits(oldFollower).size());
+        assertEquals(0xfffffffeL, leader.lastCommitted);
+        assertEquals(0, leader.outstandingProposals.size());
+    }
+
+    @Test(timeout = 30000)
+    public void testAckAcrossZxidGap() throws Exception {
+        propose(1);
+        propose(0xfffffffdL);
+        // the ACKs of the proposal after the gap cover the one before it
+        leader.processAck(1, 0xfffffffdL, null);
+        leader.processAck(2, 0xfffffffdL, null);
+
+        assertEquals(0xfffffffdL, leader.lastCommitted);
+        assertEquals(0, leader.outstandingProposals.size());
+        ArgumentCaptor<Request> captor = ArgumentCaptor.forClass(Request.class);
+        verify(zks.commitProcessor, times(2)).commit(captor.capture());
+        assertEquals(1, captor.getAllValues().get(0).zxid);
+        assertEquals(0xfffffffdL, captor.getAllValues().get(1).zxid);
+    }
+
+}
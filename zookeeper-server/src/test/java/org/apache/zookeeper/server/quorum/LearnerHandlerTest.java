@@ -24,20 +24,26 @@
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.metrics.MetricsUtils;
+import org.apache.zookeeper.server.ServerMetrics;
 import org.apache.zookeeper.server.TxnLogProposalIterator;
 import org.apache.zookeeper.server.ZKDatabase;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.persistence.Util;
 import org.apache.zookeeper.server.quorum.Leader.Proposal;
 import org.apache.zookeeper.server.util.ZxidUtils;
+import org.apache.zookeeper.test.ClientBase;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentMatchers;
@@ -75,6 +81,8 @@ class MockZKDatabase extends ZKDatabase {
         ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
         LinkedList<Proposal> committedLog = new LinkedList<Leader.Proposal>();
         LinkedList<Proposal> txnLog = new LinkedList<Leader.Proposal>();
+        LinkedList<Proposal> ring = new LinkedList<Leader.Proposal>();
+        File snapshot;
 
         public MockZKDatabase(FileTxnSnapLog snapLog) {
             super(snapLog);
@@ -115,10 +123,24 @@ public Iterator<Proposal> getProposalsFromTxnLog(long peerZxid, long limit) {
 
         }
 
+        public boolean isInCommittedLogRing(long fromZxid, long toZxid) {
+            return !ring.isEmpty()
+                   && ring.getFirst().packet.getZxid() <= fromZxid
+                   && ring.getLast().packet.getZxid() >= toZxid;
+        }
+
+        public Iterator<Proposal> getProposalsFromCommittedLogRing(long startZxid) {
+            return ring.iterator();
+        }
+
         public long calculateTxnLogSizeLimit() {
             return 1;
         }
 
+        public File findMostRecentSnapshot() {
+            return snapshot;
+        }
+
     }
 
     private MockLearnerHandler learnerHandler;
@@ -323,6 +345,50 @@ public void testTxnLog() throws Exception {
 
     }
 
+    /**
+     * Test cases when the ring of committed proposals holds the proposals
+     * older than the committedLog
+     */
+    @Test
+    public void testCommittedLogRing() throws Exception {
+        ServerMetrics.getMetrics().resetAll();
+        long peerZxid;
+        for (long zxid = 3; zxid <= 8; zxid++) {
+            db.ring.add(createProposal(zxid));
+        }
+        db.lastProcessedZxid = 8;
+        db.committedLog.add(createProposal(6));
+        db.committedLog.add(createProposal(7));
+        db.committedLog.add(createProposal(8));
+
+        // Peer zxid is in the ring, which is used instead of the txnlog
+        peerZxid = 4;
+        assertFalse(learnerHandler.syncFollower(peerZxid, leader));
+        assertOpType(Leader.DIFF, db.getmaxCommittedLog(), db.getmaxCommittedLog());
+        // DIFF + 4 proposals + 4 commit
+        assertEquals(9, learnerHandler.getQueuedPackets().size());
+        queuedPacketMatches(new long[]{5, 6, 7, 8});
+        reset();
+
+        // Peer zxid is in the committedLog
+        peerZxid = 7;
+        assertFalse(learnerHandler.syncFollower(peerZxid, leader));
+        queuedPacketMatches(new long[]{8});
+        reset();
+
+        // Peer zxid is older than the ring and there is no txnlog
+        peerZxid = 2;
+        db.txnLog.add(createProposal(5));
+        assertTrue(learnerHandler.syncFollower(peerZxid, leader));
+        assertEquals(0, learnerHandler.getQueuedPackets().size());
+        reset();
+
+        Map<String, Object> values = MetricsUtils.currentServerMetrics();
+        assertEquals(1L, values.get("diff_from_committed_log_ring_count"));
+        assertEquals(1L, values.get("diff_from_committed_log_count"));
+        assertEquals(0L, values.get("diff_from_txnlog_count"));
+    }
+
     /**
      * Test case verifying TxnLogProposalIterator closure.
      */
@@ -559,4 +625,64 @@ public void testTxnLogGap() throws Exception {
         reset();
     }
 
+    /**
+     * Test that the proposals committed since the last snapshot file are
+     * queued without op packet when the file can be sent to the learner
+     */
+    @Test
+    public void testSnapshotFile() throws Exception {
+        System.setProperty(SnapshotFileTransfer.ENABLED, "true");
+        try {
+            File tmpDir = ClientBase.createTmpDir();
+            learnerHandler.version = Leader.PROTOCOL_VERSION_SNAP_FILE;
+            for (long zxid = 3; zxid <= 8; zxid++) {
+                db.txnLog.add(createProposal(zxid));
+            }
+            db.lastProcessedZxid = 8;
+            db.committedLog.add(createProposal(6));
+            db.committedLog.add(createProposal(7));
+            db.committedLog.add(createProposal(8));
+
+            // Peer zxid is older than the txnlog, no snapshot file
+            long peerZxid = 1;
+            assertTrue(learnerHandler.syncFollower(peerZxid, leader));
+            assertEquals(0, learnerHandler.getQueuedPackets().size());
+            assertZxidEquals(8, currentZxid);
+            reset();
+
+            // Snapshot file in txnlog range
+            db.snapshot = new File(tmpDir, Util.makeSnapshotName(4));
+            assertTrue(learnerHandler.syncFollower(peerZxid, leader));
+            assertEquals(Leader.PROPOSAL, learnerHandler.getQueuedPackets().peek().getType());
+            queuedPacketMatches(new long[]{5, 6, 7, 8});
+            assertZxidEquals(8, currentZxid);
+            reset();
+
+            // Snapshot file in committedLog range
+            db.snapshot = new File(tmpDir, Util.makeSnapshotName(7));
+            assertTrue(learnerHandler.syncFollower(peerZxid, leader));
+            assertEquals(Leader.PROPOSAL, learnerHandler.getQueuedPackets().peek().getType());
+            queuedPacketMatches(new long[]{8});
+            assertZxidEquals(8, currentZxid);
+            reset();
+
+            // Snapshot file older than the txnlog
+            db.snapshot = new File(tmpDir, Util.makeSnapshotName(2));
+            assertTrue(learnerHandler.syncFollower(peerZxid, leader));
+            assertEquals(0, learnerHandler.getQueuedPackets().size());
+            assertZxidEquals(8, currentZxid);
+            reset();
+
+            // Learner not handling SNAP_FILE
+            db.snapshot = new File(tmpDir, Util.makeSnapshotName(4));
+            learnerHandler.version = Leader.PROTOCOL_VERSION_COMMIT_UPTO;
+            assertTrue(learnerHandler.syncFollower(peerZxid, leader));
+            assertEquals(0, learnerHandler.getQueuedPackets().size());
+            assertZxidEquals(8, currentZxid);
+            reset();
+        } finally {
+            System.clearProperty(SnapshotFileTransfer.ENABLED);
+        }
+    }
+
 }
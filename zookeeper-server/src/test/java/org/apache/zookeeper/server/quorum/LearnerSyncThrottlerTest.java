@@ -30,6 +30,7 @@
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.apache.zookeeper.ZKTestCase;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -120,6 +121,25 @@ public void testTryWithResourceThrottle() throws Exception {
         }
     }
 
+    @Test
+    public void testThrottleBytes() throws Exception {
+        LearnerSyncThrottler throttler = new LearnerSyncThrottler(1, syncType);
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            throttler.throttleBytes(1000);
+        }
+        assertTrue("unlimited rate", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+        // 10 chunks of 100 bytes at 2000 bytes/s, the first one being sent
+        // right away
+        throttler.setMaxBytesPerSec(2000);
+        start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            throttler.throttleBytes(100);
+        }
+        assertTrue("throttled rate", System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(450));
+    }
+
     @Test
     public void testParallelNoThrottle() {
         final int numThreads = 50;
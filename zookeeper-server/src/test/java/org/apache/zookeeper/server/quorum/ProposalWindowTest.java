@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.server.quorum.Leader.Proposal;
+import org.apache.zookeeper.server.quorum.QuorumPeer.QuorumServer;
+import org.apache.zookeeper.server.quorum.flexible.QuorumMaj;
+import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
+import org.junit.Test;
+
+public class ProposalWindowTest extends ZKTestCase {
+
+    static QuorumMaj majority(long... sids) {
+        Map<Long, QuorumServer> servers = new HashMap<>();
+        for (long sid : sids) {
+            servers.put(sid, new QuorumServer(sid, new InetSocketAddress("127.0.0.1", 0)));
+        }
+        return new QuorumMaj(servers);
+    }
+
+    private static Proposal proposal(long zxid) {
+        Proposal p = new Proposal();
+        p.packet = new QuorumPacket(Leader.PROPOSAL, zxid, null, null);
+        return p;
+    }
+
+    @Test
+    public void testAddGetRemove() {
+        ProposalWindow window = new ProposalWindow(3);
+        assertEquals(4, window.capacity());
+        Proposal p1 = proposal(0x100000001L);
+        Proposal p5 = proposal(0x100000005L);
+        assertTrue(window.add(p1));
+        assertSame(p1, window.get(0x100000001L));
+        assertNull(window.get(0x100000002L));
+
+        // the slot of p5 is still used by p1
+        assertFalse(window.add(p5));
+        assertTrue(window.isOverflowed());
+        assertNull(window.get(0x100000005L));
+
+        window.remove(0x100000001L, false);
+        assertNull(window.get(0x100000001L));
+        assertTrue(window.isOverflowed());
+        window.remove(0x100000005L, true);
+        assertFalse(window.isOverflowed());
+        assertTrue(window.add(p5));
+        assertSame(p5, window.get(0x100000005L));
+        assertNull(window.get(0x100000001L));
+    }
+
+    @Test
+    public void testVoters() {
+        QuorumMaj qv = majority(5, 1, 3);
+        ProposalWindow window = new ProposalWindow(16);
+        ProposalWindow.Voters voters = window.votersOf(qv);
+        assertSame(voters, window.votersOf(qv));
+        assertEquals(1, voters.bitOf(1));
+        assertEquals(2, voters.bitOf(3));
+        assertEquals(4, voters.bitOf(5));
+        assertEquals(0, voters.bitOf(2));
+        assertFalse(voters.isQuorum(4));
+        assertTrue(voters.isQuorum(5));
+        assertEquals(new HashSet<>(Arrays.asList(1L, 5L)), voters.toSids(5));
+
+        assertNull(ProposalWindow.Voters.of(mock(QuorumVerifier.class)));
+        long[] sids = new long[65];
+        for (int i = 0; i < sids.length; i++) {
+            sids[i] = i + 1;
+        }
+        assertNull(ProposalWindow.Voters.of(majority(sids)));
+    }
+
+    @Test
+    public void testAckBitmap() {
+        QuorumMaj qv = majority(1, 2, 3, 4, 5);
+        Proposal p = proposal(1);
+        p.addQuorumVerifier(qv);
+        p.useAckBitmap(ProposalWindow.Voters.of(qv));
+        assertTrue(p.hasAckBitmap());
+
+        assertFalse(p.addAckAndCheckQuorum(1));
+        assertFalse(p.addAckAndCheckQuorum(1));
+        assertFalse(p.addAck(6L));
+        assertTrue(p.addAck(2L));
+        assertFalse(p.hasAllQuorums());
+        assertTrue(p.addAckAndCheckQuorum(4));
+        assertTrue(p.hasAllQuorums());
+        // the quorum is completed once
+        assertFalse(p.addAckAndCheckQuorum(5));
+        assertEquals(new HashSet<>(Arrays.asList(1L, 2L, 4L, 5L)), p.qvAcksetPairs.get(0).getAckset());
+    }
+
+}
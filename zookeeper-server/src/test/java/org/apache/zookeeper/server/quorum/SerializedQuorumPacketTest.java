@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.junit.Test;
+
+public class SerializedQuorumPacketTest extends ZKTestCase {
+
+    @Test
+    public void testSameBytesAsArchive() throws Exception {
+        QuorumPacket[] packets = {
+            new QuorumPacket(Leader.PROPOSAL, 0x100000001L, "proposal".getBytes(), Collections.emptyList()),
+            new QuorumPacket(Leader.COMMIT, 0x100000001L, new byte[0], Collections.emptyList()),
+            new QuorumPacket(Leader.REQUEST, 2, new byte[0], Collections.singletonList(ZooDefs.Ids.ANYONE_ID_UNSAFE))
+        };
+        for (QuorumPacket p : packets) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            BinaryOutputArchive.getArchive(baos).writeRecord(p, "packet");
+            SerializedQuorumPacket serialized = SerializedQuorumPacket.of(p);
+            assertArrayEquals(baos.toByteArray(), serialized.getBytes());
+            assertEquals(p, serialized);
+            assertSame(serialized, SerializedQuorumPacket.of(serialized));
+
+            QuorumPacket read = new QuorumPacket();
+            BinaryInputArchive.getArchive(new ByteArrayInputStream(serialized.getBytes())).readRecord(read, "packet");
+            assertEquals(p, read);
+        }
+    }
+
+    @Test
+    public void testNullFields() throws Exception {
+        QuorumPacket p = new QuorumPacket(Leader.COMMIT, 1, null, null);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive.getArchive(baos).writeRecord(p, "packet");
+        assertArrayEquals(baos.toByteArray(), SerializedQuorumPacket.of(p).getBytes());
+    }
+
+    @Test
+    public void testImmutable() {
+        SerializedQuorumPacket p = SerializedQuorumPacket.of(new QuorumPacket(Leader.COMMIT, 1, null, null));
+        try {
+            p.setZxid(2);
+            fail("The packet was modified");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            p.setData(new byte[1]);
+            fail("The packet was modified");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        assertEquals(1, p.getZxid());
+    }
+
+}
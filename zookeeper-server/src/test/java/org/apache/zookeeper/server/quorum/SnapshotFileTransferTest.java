@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.WriterAppender;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.persistence.Util;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotFileTransferTest extends QuorumPeerTestBase {
+
+    private File leaderDir;
+    private File learnerDir;
+    private File snap;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty(SnapshotFileTransfer.CHUNK_BYTES, "4096");
+        leaderDir = ClientBase.createTmpDir();
+        learnerDir = ClientBase.createTmpDir();
+        snap = new File(leaderDir, Util.makeSnapshotName(5));
+        content = new byte[100000];
+        new Random(1).nextBytes(content);
+        Files.write(snap.toPath(), content);
+    }
+
+    @After
+    public void cleanUp() {
+        System.clearProperty(SnapshotFileTransfer.CHUNK_BYTES);
+        System.clearProperty(SnapshotFileTransfer.ENABLED);
+        System.clearProperty(LearnerHandler.FORCE_SNAP_SYNC);
+        System.clearProperty(ChannelPacketWriter.TRANSPORT);
+    }
+
+    @Test
+    public void testTransfer() throws Exception {
+        for (String transport : Arrays.asList("stream", "nio")) {
+            System.setProperty(ChannelPacketWriter.TRANSPORT, transport);
+            File received = transfer(SnapshotFileTransfer.forSnapshot(snap, null));
+            assertEquals("transfer." + Long.toHexString(snap.lastModified()) + "." + snap.getName(), received.getName());
+            assertArrayEquals(content, Files.readAllBytes(received.toPath()));
+            // a new transfer replaces the partial file
+            assertTrue(received.delete());
+        }
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        assertNull(SnapshotFileTransfer.findPartial(learnerDir));
+        File partialFile = new File(learnerDir, "transfer." + Long.toHexString(snap.lastModified()) + "." + snap.getName());
+        Files.write(partialFile.toPath(), Arrays.copyOf(content, 30000));
+
+        SnapshotFileTransfer.Partial partial = SnapshotFileTransfer.findPartial(learnerDir);
+        assertEquals(snap.getName(), partial.name);
+        assertEquals(snap.lastModified(), partial.lastModified);
+        assertEquals(30000, partial.length);
+
+        // sent in ACKEPOCH after the epoch
+        assertNull(SnapshotFileTransfer.Partial.fromAckEpoch(new byte[4]));
+        partial = SnapshotFileTransfer.Partial.fromAckEpoch(partial.appendTo(new byte[4]));
+        assertEquals(snap.getName(), partial.name);
+        assertEquals(snap.lastModified(), partial.lastModified);
+        assertEquals(30000, partial.length);
+
+        // not the same file
+        SnapshotFileTransfer.Partial other = new SnapshotFileTransfer.Partial(snap.getName(), snap.lastModified() + 1, 30000);
+        assertEquals(0, SnapshotFileTransfer.forSnapshot(snap, other).getOffset());
+
+        SnapshotFileTransfer transfer = SnapshotFileTransfer.forSnapshot(snap, partial);
+        assertEquals(30000, transfer.getOffset());
+        assertEquals(5, transfer.getZxid());
+        File received = transfer(transfer);
+        assertEquals(partialFile, received);
+        assertArrayEquals(content, Files.readAllBytes(received.toPath()));
+    }
+
+    private File transfer(SnapshotFileTransfer transfer) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ServerSocket serverSocket = ChannelPacketWriter.createServerSocket()) {
+            serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (Socket learner = ChannelPacketWriter.createSocket()) {
+                learner.connect(serverSocket.getLocalSocketAddress());
+                try (Socket leader = serverSocket.accept()) {
+                    Future<?> sent = executor.submit(() -> {
+                        BufferedOutputStream out = new BufferedOutputStream(leader.getOutputStream());
+                        BinaryOutputArchive.getArchive(out).writeRecord(transfer.toPacket(), "packet");
+                        transfer.send(leader, out, new LearnerSyncThrottler(1, LearnerSyncThrottler.SyncType.SNAP));
+                        out.flush();
+                        return null;
+                    });
+                    BinaryInputArchive ia = BinaryInputArchive.getArchive(new BufferedInputStream(learner.getInputStream()));
+                    QuorumPacket qp = new QuorumPacket();
+                    ia.readRecord(qp, "packet");
+                    assertEquals(Leader.SNAP_FILE, qp.getType());
+                    assertEquals(transfer.getZxid(), qp.getZxid());
+                    File received = SnapshotFileTransfer.receive(qp, ia, learnerDir);
+                    sent.get();
+                    return received;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Test that a restarted follower is synced from the snapshot file of the
+     * leader
+     */
+    @Test
+    public void testSyncFromSnapshotFile() throws Exception {
+        System.setProperty(SnapshotFileTransfer.ENABLED, "true");
+        System.setProperty(LearnerHandler.FORCE_SNAP_SYNC, "true");
+        numServers = 3;
+        servers = LaunchServers(numServers);
+        int leader = servers.findLeader();
+        int follower = servers.findAnyFollower();
+        ZooKeeper zk = servers.zk[leader];
+        for (int i = 0; i < 50; i++) {
+            zk.create("/node" + i, new byte[100], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+        servers.mt[leader].getQuorumPeer().getActiveServer().takeSnapshot(true);
+
+        servers.mt[follower].shutdown();
+        waitForOne(servers.zk[follower], ZooKeeper.States.CONNECTING);
+        for (int i = 50; i < 100; i++) {
+            zk.create("/node" + i, new byte[100], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        WriterAppender appender = new WriterAppender(new PatternLayout("%m%n"), os);
+        appender.setThreshold(Level.INFO);
+        Logger logger = Logger.getLogger(SnapshotFileTransfer.class);
+        logger.addAppender(appender);
+        try {
+            servers.mt[follower].start();
+            waitForOne(servers.zk[follower], ZooKeeper.States.CONNECTED);
+        } finally {
+            logger.removeAppender(appender);
+        }
+        assertTrue(os.toString(), os.toString().contains("Receiving snapshot file"));
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(100, servers.zk[follower].getData("/node" + i, false, null).length);
+        }
+        File snapDir = servers.mt[follower].getQuorumPeer().getTxnFactory().getSnapDir();
+        assertNull(SnapshotFileTransfer.findPartial(snapDir));
+    }
+
+}
@@ -22,18 +22,24 @@
 import static org.hamcrest.number.OrderingComparison.greaterThanOrEqualTo;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.metrics.MetricsUtils;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.RequestProcessor;
+import org.apache.zookeeper.server.ServerMetrics;
 import org.apache.zookeeper.server.SyncRequestProcessor;
 import org.apache.zookeeper.server.ZKDatabase;
 import org.apache.zookeeper.server.ZooKeeperServer;
@@ -48,12 +54,13 @@ public class SyncRequestProcessorMetricTest {
 
     @Before
     public void setup() throws Exception {
+        ServerMetrics.getMetrics().resetAll();
         ZKDatabase db = mock(ZKDatabase.class);
         when(db.append(any(Request.class))).thenReturn(true);
         doAnswer(invocation -> {
             Thread.sleep(100);
-            return null;
-        }).when(db).commit();
+            return CompletableFuture.completedFuture(null);
+        }).when(db).commitAsync();
         zks = mock(ZooKeeperServer.class);
         when(zks.getZKDatabase()).thenReturn(db);
 
@@ -101,6 +108,42 @@ public void testSyncProcessorMetrics() throws Exception {
         assertEquals(500L, values.get("max_sync_processor_batch_size"));
         assertEquals(1L, values.get("cnt_sync_processor_queue_flush_time_ms"));
         assertThat((long) values.get("max_sync_processor_queue_flush_time_ms"), greaterThanOrEqualTo(100L));
+        assertEquals(1L, values.get("cnt_sync_processor_batch_wait_time_ms"));
+
+        syncProcessor.shutdown();
+    }
+
+    @Test
+    public void testPipelinedBatchForwardedBySyncThread() throws Exception {
+        CompletableFuture<Void> persisted = new CompletableFuture<>();
+        CountDownLatch committed = new CountDownLatch(1);
+        ZKDatabase db = zks.getZKDatabase();
+        doAnswer(invocation -> {
+            committed.countDown();
+            return persisted;
+        }).when(db).commitAsync();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        doAnswer(invocationOnMock -> {
+            threads.add(Thread.currentThread().getName());
+            allRequestsFlushed.countDown();
+            return null;
+        }).when(nextProcessor).processRequest(any(Request.class));
+
+        SyncRequestProcessor syncProcessor = new SyncRequestProcessor(zks, nextProcessor);
+        for (int i = 0; i < 10; i++) {
+            syncProcessor.processRequest(createRquest(1, i));
+        }
+        allRequestsFlushed = new CountDownLatch(10);
+        syncProcessor.start();
+        assertTrue(committed.await(5000, TimeUnit.MILLISECONDS));
+
+        // completed as by the log writer thread
+        Thread writer = new Thread(() -> persisted.complete(null), "TxnLogWriter");
+        writer.start();
+        writer.join();
+
+        assertTrue(allRequestsFlushed.await(5000, TimeUnit.MILLISECONDS));
+        assertEquals(Collections.singleton(syncProcessor.getName()), threads);
 
         syncProcessor.shutdown();
     }
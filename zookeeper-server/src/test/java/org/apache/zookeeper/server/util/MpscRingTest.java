@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.Test;
+
+public class MpscRingTest extends ZKTestCase {
+
+    @Test
+    public void testCapacity() {
+        assertEquals(1, new MpscRing<String>(1).capacity());
+        assertEquals(4, new MpscRing<String>(3).capacity());
+        assertEquals(4, new MpscRing<String>(4).capacity());
+        assertEquals(1024, new MpscRing<String>(1000).capacity());
+    }
+
+    @Test
+    public void testPutAndTake() throws Exception {
+        MpscRing<String> ring = new MpscRing<>(4);
+        assertTrue(ring.isEmpty());
+        assertNull(ring.poll());
+        for (int round = 0; round < 3; round++) {
+            ring.put("A");
+            ring.addAll(Arrays.asList("B", "C", "D"));
+            assertEquals(4, ring.size());
+            assertEquals("A", ring.take());
+            assertEquals("B", ring.poll());
+            assertEquals("C", ring.take());
+            assertEquals("D", ring.take());
+            assertTrue(ring.isEmpty());
+        }
+    }
+
+    @Test
+    public void testBatchLargerThanRing() throws Exception {
+        MpscRing<Integer> ring = new MpscRing<>(8);
+        List<Integer> batch = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            batch.add(i);
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> put = executor.submit(() -> ring.addAll(batch));
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, (int) ring.take());
+            }
+            put.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFullRing() throws Exception {
+        MpscRing<Integer> ring = new MpscRing<>(2);
+        ring.put(1);
+        ring.put(2);
+        CountDownLatch put = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            try {
+                ring.put(3);
+                put.countDown();
+            } catch (InterruptedException e) {
+                // ignored
+            }
+        });
+        producer.start();
+        assertFalse(put.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, (int) ring.take());
+        assertTrue(put.await(10, TimeUnit.SECONDS));
+        assertEquals(2, (int) ring.take());
+        assertEquals(3, (int) ring.take());
+        producer.join();
+    }
+
+    @Test
+    public void testTimeouts() throws Exception {
+        MpscRing<Integer> ring = new MpscRing<>(2);
+        assertNull(ring.poll(10, TimeUnit.MILLISECONDS));
+        assertTrue(ring.offer(1));
+        assertTrue(ring.offer(2, 10, TimeUnit.MILLISECONDS));
+        assertFalse(ring.offer(3));
+        assertFalse(ring.offer(3, 10, TimeUnit.MILLISECONDS));
+        assertEquals(0, ring.remainingCapacity());
+        assertEquals(1, (int) ring.peek());
+        assertEquals(1, (int) ring.poll(10, TimeUnit.MILLISECONDS));
+        assertTrue(ring.offer(3));
+        assertEquals(Arrays.asList(2, 3), new ArrayList<>(ring));
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(2, ring.drainTo(drained));
+        assertEquals(Arrays.asList(2, 3), drained);
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        MpscRing<Integer> ring = new MpscRing<>(4);
+        ring.addAll(Arrays.asList(1, 2, 3));
+        assertEquals(1, (int) ring.take());
+        // may be called by a thread other than the consumer
+        Thread clearer = new Thread(ring::clear);
+        clearer.start();
+        clearer.join();
+        assertTrue(ring.isEmpty());
+        assertFalse(ring.contains(2));
+        ring.add(4);
+        assertTrue(ring.contains(4));
+        assertEquals(1, ring.size());
+        assertEquals(4, (int) ring.take());
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void testProducers() throws Exception {
+        final int producers = 4;
+        final int count = 100000;
+        MpscRing<long[]> ring = new MpscRing<>(64);
+        ExecutorService executor = Executors.newFixedThreadPool(producers);
+        try {
+            for (int p = 0; p < producers; p++) {
+                final int producer = p;
+                executor.submit(() -> {
+                    List<long[]> batch = new ArrayList<>();
+                    for (int i = 0; i < count; i++) {
+                        long[] element = {producer, i};
+                        if (i % 10 == 0) {
+                            ring.addAll(batch);
+                            batch.clear();
+                            ring.put(element);
+                        } else {
+                            batch.add(element);
+                        }
+                    }
+                    ring.addAll(batch);
+                    return null;
+                });
+            }
+            // each producer's elements come in order
+            long[] next = new long[producers];
+            for (int i = 0; i < producers * count; i++) {
+                long[] element = ring.take();
+                assertEquals(next[(int) element[0]]++, element[1]);
+            }
+            assertTrue(ring.isEmpty());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
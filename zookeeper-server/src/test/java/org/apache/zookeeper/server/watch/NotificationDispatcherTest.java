@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.watch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.metrics.MetricsUtils;
+import org.apache.zookeeper.server.DumbWatcher;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NotificationDispatcherTest extends ZKTestCase {
+
+    private NotificationDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        ServerMetrics.getMetrics().resetAll();
+    }
+
+    @After
+    public void tearDown() {
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+    }
+
+    private static class RecordingWatcher extends DumbWatcher {
+
+        final List<String> paths = Collections.synchronizedList(new ArrayList<>());
+        volatile CountDownLatch block;
+
+        @Override
+        public void process(WatchedEvent event) {
+            CountDownLatch latch = block;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            paths.add(event.getPath());
+        }
+
+    }
+
+    private static WatchedEvent event(int i) {
+        return new WatchedEvent(EventType.NodeDataChanged, KeeperState.SyncConnected, "/" + i);
+    }
+
+    /**
+     * The events of a watcher are delivered in the order they are
+     * dispatched, and waitForQueuedNotifications returns once they are all
+     * delivered.
+     */
+    @Test
+    public void testOrderPerWatcher() {
+        dispatcher = new NotificationDispatcher(3, 16);
+        dispatcher.start();
+        RecordingWatcher[] watchers = new RecordingWatcher[10];
+        for (int i = 0; i < watchers.length; i++) {
+            watchers[i] = new RecordingWatcher();
+        }
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            expected.add("/" + i);
+            for (RecordingWatcher watcher : watchers) {
+                dispatcher.dispatch(watcher, event(i));
+            }
+        }
+        for (RecordingWatcher watcher : watchers) {
+            watcher.waitForQueuedNotifications();
+            assertEquals(expected, watcher.paths);
+        }
+        Map<String, Object> values = MetricsUtils.currentServerMetrics();
+        assertEquals(2000L, values.get("cnt_notification_queue_size"));
+        assertEquals(2000L, values.get("cnt_notification_delivery_lag_ms"));
+    }
+
+    /**
+     * A thread dispatching an event waits while the queue of the watcher is
+     * full.
+     */
+    @Test
+    public void testQueueFull() throws Exception {
+        dispatcher = new NotificationDispatcher(1, 1);
+        dispatcher.start();
+        RecordingWatcher watcher = new RecordingWatcher();
+        watcher.block = new CountDownLatch(1);
+        dispatcher.dispatch(watcher, event(0));
+        // taken by the delivery thread or queued
+        dispatcher.dispatch(watcher, event(1));
+
+        CountDownLatch dispatched = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            dispatcher.dispatch(watcher, event(2));
+            dispatcher.dispatch(watcher, event(3));
+            dispatched.countDown();
+        });
+        thread.start();
+        assertFalse(dispatched.await(500, TimeUnit.MILLISECONDS));
+
+        watcher.block.countDown();
+        assertTrue(dispatched.await(10, TimeUnit.SECONDS));
+        watcher.waitForQueuedNotifications();
+        assertEquals(4, watcher.paths.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals("/" + i, watcher.paths.get(i));
+        }
+    }
+
+    /**
+     * The events queued are delivered on shutdown, and the ones dispatched
+     * after it on the calling thread.
+     */
+    @Test
+    public void testShutdown() {
+        dispatcher = new NotificationDispatcher(2, 100);
+        dispatcher.start();
+        RecordingWatcher watcher = new RecordingWatcher();
+        for (int i = 0; i < 50; i++) {
+            dispatcher.dispatch(watcher, event(i));
+        }
+        dispatcher.shutdown();
+        assertEquals(50, watcher.paths.size());
+
+        dispatcher.dispatch(watcher, event(50));
+        assertEquals(51, watcher.paths.size());
+        watcher.waitForQueuedNotifications();
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.watch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.zookeeper.ClientCnxn;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.proto.ReplyHeader;
+import org.apache.zookeeper.proto.WatcherEvent;
+import org.junit.Test;
+
+public class NotificationEventTest extends ZKTestCase {
+
+    @Test
+    public void testSerialize() throws IOException {
+        NotificationEvent event = new NotificationEvent(EventType.NodeDataChanged, KeeperState.SyncConnected, "/a/b");
+        ByteBuffer buffer = event.serialize();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+
+        BinaryInputArchive bia = BinaryInputArchive.getArchive(new ByteArrayInputStream(bytes));
+        assertEquals(bytes.length - 4, bia.readInt("len"));
+        ReplyHeader header = new ReplyHeader();
+        header.deserialize(bia, "header");
+        assertEquals(ClientCnxn.NOTIFICATION_XID, header.getXid());
+        assertEquals(-1L, header.getZxid());
+        assertEquals(0, header.getErr());
+        WatcherEvent wire = new WatcherEvent();
+        wire.deserialize(bia, "notification");
+        WatchedEvent received = new WatchedEvent(wire);
+        assertEquals(event.getType(), received.getType());
+        assertEquals(event.getState(), received.getState());
+        assertEquals(event.getPath(), received.getPath());
+    }
+
+    /**
+     * The connections sharing a notification each get a read-only view
+     * whose position is their own.
+     */
+    @Test
+    public void testSharedViews() throws IOException {
+        NotificationEvent event = new NotificationEvent(EventType.NodeCreated, KeeperState.SyncConnected, "/a");
+        ByteBuffer first = event.serialize();
+        ByteBuffer second = event.serialize();
+        assertTrue(first.isReadOnly());
+        assertEquals(NotificationEvent.serialize(event), first);
+
+        first.position(first.limit());
+        assertEquals(0, second.position());
+        assertEquals(NotificationEvent.serialize(event), second);
+        assertEquals(0, event.serialize().position());
+    }
+
+}
@@ -163,7 +163,7 @@ public void testRecursiveQtyConcurrency() {
 
         int expectedRecursiveQty = (int) manager.getWatcherModes().values()
                 .stream()
-                .filter(mode -> mode == WatcherMode.PERSISTENT_RECURSIVE)
+                .filter(WatcherMode::isRecursive)
                 .count();
         assertEquals(expectedRecursiveQty, manager.getRecursiveQty());
     }
@@ -20,6 +20,7 @@
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -30,6 +31,7 @@
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.Watcher.Event.EventType;
 import org.apache.zookeeper.ZKTestCase;
@@ -61,7 +63,7 @@ public WatchManagerTest(String className) {
 
     @Parameterized.Parameters
     public static List<Object[]> data() {
-        return Arrays.asList(new Object[][]{{WatchManager.class.getName()}, {WatchManagerOptimized.class.getName()}});
+        return Arrays.asList(new Object[][]{{WatchManager.class.getName()}, {WatchManagerOptimized.class.getName()}, {WatchManagerTrie.class.getName()}});
     }
 
     @Before
@@ -467,4 +469,45 @@ public void testWatcherMetrics() throws IOException {
         checkMetrics("node_created_watch_count", 1L, 2L, 1.5D, 2L, 3L);
     }
 
+    /**
+     * A watcher whose watches matching an event all coalesce it gets a
+     * coalesced event, carrying the zxid of the change like the others.
+     */
+    @Test
+    public void testCoalescedMode() throws IOException {
+        assumeFalse(className.equals(WatchManagerOptimized.class.getName()));
+        IWatchManager manager = getWatchManager();
+        List<WatchedEvent> coalescedEvents = new ArrayList<>();
+        List<WatchedEvent> otherEvents = new ArrayList<>();
+        DumbWatcher coalescedWatcher = new DumbWatcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                coalescedEvents.add(event);
+            }
+        };
+        DumbWatcher otherWatcher = new DumbWatcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                otherEvents.add(event);
+            }
+        };
+        manager.addWatch("/a", coalescedWatcher, WatcherMode.PERSISTENT_RECURSIVE_COALESCED);
+        manager.addWatch("/a/b", coalescedWatcher, WatcherMode.PERSISTENT_COALESCED);
+        manager.addWatch("/a/b", otherWatcher, WatcherMode.PERSISTENT);
+
+        manager.triggerWatch("/a/b", EventType.NodeDataChanged, 7L, null);
+        assertEquals(1, coalescedEvents.size());
+        assertTrue(((NotificationEvent) coalescedEvents.get(0)).isCoalesced());
+        assertEquals(7L, coalescedEvents.get(0).getZxid());
+        assertEquals(1, otherEvents.size());
+        assertFalse(((NotificationEvent) otherEvents.get(0)).isCoalesced());
+        assertEquals(7L, otherEvents.get(0).getZxid());
+
+        // a watch of the watcher not coalescing the event
+        manager.addWatch("/a/b", coalescedWatcher, WatcherMode.PERSISTENT);
+        manager.triggerWatch("/a/b", EventType.NodeDataChanged, 8L, null);
+        assertEquals(2, coalescedEvents.size());
+        assertFalse(((NotificationEvent) coalescedEvents.get(1)).isCoalesced());
+    }
+
 }
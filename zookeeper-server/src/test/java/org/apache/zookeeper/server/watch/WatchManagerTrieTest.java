@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.watch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.util.Random;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.server.DumbWatcher;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class WatchManagerTrieTest extends ZKTestCase {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WatchManagerTrieTest.class);
+
+    private static final String[] PATHS = {"/", "/a", "/a/b", "/a/b/c", "/a/bc", "/ab", "/d"};
+    private static final EventType[] TYPES = {
+        EventType.NodeCreated,
+        EventType.NodeDeleted,
+        EventType.NodeDataChanged,
+        EventType.NodeChildrenChanged};
+
+    @Test
+    public void testWatcherModes() {
+        WatchManagerTrie manager = new WatchManagerTrie();
+        Watcher standard = new DumbWatcher(1);
+        Watcher persistent = new DumbWatcher(2);
+        Watcher recursive = new DumbWatcher(3);
+
+        assertTrue(manager.addWatch("/a/b", standard));
+        assertFalse(manager.addWatch("/a/b", standard));
+        assertTrue(manager.addWatch("/a/b", persistent, WatcherMode.PERSISTENT));
+        assertTrue(manager.addWatch("/a", recursive, WatcherMode.PERSISTENT_RECURSIVE));
+        assertEquals(1, manager.getRecursiveWatchQty());
+        assertTrue(manager.containsWatcher("/a/b", standard));
+        assertFalse(manager.containsWatcher("/a/b", recursive));
+
+        // the recursive watcher is not notified of children changes
+        WatcherOrBitSet fired = manager.triggerWatch("/a/b", EventType.NodeChildrenChanged);
+        assertEquals(2, fired.size());
+        assertFalse(fired.contains(recursive));
+
+        // the standard watcher has fired
+        fired = manager.triggerWatch("/a/b", EventType.NodeDataChanged);
+        assertEquals(2, fired.size());
+        assertTrue(fired.contains(persistent));
+        assertTrue(fired.contains(recursive));
+
+        // a watcher of the parent is only notified if recursive
+        assertTrue(manager.addWatch("/a", standard));
+        fired = manager.triggerWatch("/a/b/c", EventType.NodeCreated);
+        assertEquals(1, fired.size());
+        assertTrue(fired.contains(recursive));
+        assertNull(manager.triggerWatch("/d", EventType.NodeCreated));
+
+        assertTrue(manager.removeWatcher("/a", recursive));
+        assertFalse(manager.removeWatcher("/a", recursive));
+        assertEquals(0, manager.getRecursiveWatchQty());
+        manager.removeWatcher(standard);
+        manager.removeWatcher(persistent);
+        assertEquals(0, manager.size());
+        // the trie is left with the root only
+        assertEquals(1, manager.nodeCount());
+    }
+
+    /**
+     * Apply the same random operations to a WatchManager and a
+     * WatchManagerTrie, and compare their results.
+     */
+    @Test
+    public void testSameAsWatchManager() {
+        long seed = System.nanoTime();
+        LOG.info("Seed {}", seed);
+        Random r = new Random(seed);
+        WatchManager expected = new WatchManager();
+        WatchManagerTrie manager = new WatchManagerTrie();
+        Watcher[] watchers = new Watcher[5];
+        for (int i = 0; i < watchers.length; i++) {
+            watchers[i] = new DumbWatcher(i);
+        }
+        WatcherMode[] modes = WatcherMode.values();
+
+        for (int i = 0; i < 20000; i++) {
+            String path = PATHS[r.nextInt(PATHS.length)];
+            Watcher watcher = watchers[r.nextInt(watchers.length)];
+            int op = r.nextInt(10);
+            if (op < 5) {
+                WatcherMode mode = modes[r.nextInt(modes.length)];
+                assertEquals(expected.addWatch(path, watcher, mode), manager.addWatch(path, watcher, mode));
+            } else if (op < 8) {
+                EventType type = TYPES[r.nextInt(TYPES.length)];
+                WatcherOrBitSet expectedFired = expected.triggerWatch(path, type);
+                WatcherOrBitSet fired = manager.triggerWatch(path, type);
+                if (expectedFired == null) {
+                    assertNull(fired);
+                } else {
+                    assertEquals(expectedFired.size(), fired.size());
+                    for (Watcher w : watchers) {
+                        assertEquals(expectedFired.contains(w), fired.contains(w));
+                    }
+                }
+            } else if (op < 9) {
+                assertEquals(expected.removeWatcher(path, watcher), manager.removeWatcher(path, watcher));
+            } else {
+                expected.removeWatcher(watcher);
+                manager.removeWatcher(watcher);
+            }
+            assertEquals(expected.size(), manager.size());
+            assertEquals(expected.getRecursiveWatchQty(), manager.getRecursiveWatchQty());
+            assertEquals(expected.getWatches().toMap(), manager.getWatches().toMap());
+            assertEquals(expected.getWatchesByPath().toMap(), manager.getWatchesByPath().toMap());
+        }
+
+        for (Watcher watcher : watchers) {
+            manager.removeWatcher(watcher);
+        }
+        assertEquals(1, manager.nodeCount());
+    }
+
+}
@@ -19,7 +19,9 @@
 package org.apache.zookeeper.test;
 
 import static org.apache.zookeeper.AddWatchMode.PERSISTENT;
+import static org.apache.zookeeper.AddWatchMode.PERSISTENT_COALESCED;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -27,10 +29,14 @@
 import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.TestableZooKeeper;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.ServerCnxn;
+import org.apache.zookeeper.server.watch.WatcherMode;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -201,11 +207,75 @@ public void testRootWatcher()
         }
     }
 
-    private void assertEvent(BlockingQueue<WatchedEvent> events, Watcher.Event.EventType eventType, String path)
+    /**
+     * The notifications carry the zxid of the change, whatever the mode.
+     */
+    @Test
+    public void testNotificationZxid()
+            throws IOException, InterruptedException, KeeperException {
+        try (ZooKeeper zk = createClient(new CountdownWatcher(), hostPort)) {
+            zk.create("/a", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            zk.addWatch("/a", persistentWatcher, PERSISTENT_COALESCED);
+            Stat stat = zk.setData("/a", "one".getBytes(), -1);
+            WatchedEvent event = assertEvent(events, Watcher.Event.EventType.NodeDataChanged, "/a");
+            Assert.assertEquals(stat.getMzxid(), event.getZxid());
+
+            zk.addWatch("/a", persistentWatcher, PERSISTENT);
+            stat = zk.setData("/a", "two".getBytes(), -1);
+            event = assertEvent(events, Watcher.Event.EventType.NodeDataChanged, "/a");
+            Assert.assertEquals(stat.getMzxid(), event.getZxid());
+        }
+    }
+
+    /**
+     * The coalescing mode of a watch is kept across reconnects, until it is
+     * added again without one or removed.
+     */
+    @Test
+    public void testCoalescedDisconnect() throws Exception {
+        try (TestableZooKeeper zk = createClient(new CountdownWatcher(), hostPort)) {
+            zk.addWatch("/a/b", persistentWatcher, PERSISTENT_COALESCED);
+            Assert.assertEquals(Collections.singletonMap("/a/b", PERSISTENT_COALESCED), zk.getCoalescedWatches());
+            stopServer();
+            assertEvent(events, Watcher.Event.EventType.None, null);
+            startServer();
+            assertEvent(events, Watcher.Event.EventType.None, null);
+            internalTestBasic(zk);
+            // the watch is set again on the server with its coalescing mode
+            Assert.assertEquals(WatcherMode.PERSISTENT_COALESCED, getServerWatcherMode(zk, "/a/b"));
+
+            zk.addWatch("/a/b", persistentWatcher, PERSISTENT);
+            Assert.assertTrue(zk.getCoalescedWatches().isEmpty());
+            zk.addWatch("/a/b", persistentWatcher, PERSISTENT_COALESCED);
+            zk.removeWatches("/a/b", persistentWatcher, Watcher.WatcherType.Any, false);
+            Assert.assertTrue(zk.getCoalescedWatches().isEmpty());
+
+            // the mode is kept until the last watcher of the path is removed
+            Watcher other = event -> { };
+            zk.addWatch("/a/b", persistentWatcher, PERSISTENT_COALESCED);
+            zk.addWatch("/a/b", other, PERSISTENT_COALESCED);
+            zk.removeWatches("/a/b", persistentWatcher, Watcher.WatcherType.Any, true);
+            Assert.assertEquals(Collections.singletonMap("/a/b", PERSISTENT_COALESCED), zk.getCoalescedWatches());
+            zk.removeWatches("/a/b", other, Watcher.WatcherType.Any, true);
+            Assert.assertTrue(zk.getCoalescedWatches().isEmpty());
+        }
+    }
+
+    private WatcherMode getServerWatcherMode(ZooKeeper zk, String path) {
+        for (ServerCnxn cnxn : serverFactory.getConnections()) {
+            if (cnxn.getSessionId() == zk.getSessionId()) {
+                return serverFactory.getZooKeeperServer().getZKDatabase().getDataTree().getWatcherMode(path, cnxn);
+            }
+        }
+        return null;
+    }
+
+    private WatchedEvent assertEvent(BlockingQueue<WatchedEvent> events, Watcher.Event.EventType eventType, String path)
             throws InterruptedException {
         WatchedEvent event = events.poll(5, TimeUnit.SECONDS);
         Assert.assertNotNull(event);
         Assert.assertEquals(eventType, event.getType());
         Assert.assertEquals(path, event.getPath());
+        return event;
     }
 }
\ No newline at end of file
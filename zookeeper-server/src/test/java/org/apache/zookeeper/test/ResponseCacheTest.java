@@ -170,6 +170,36 @@ public void performCacheTest(ZooKeeper zk, String path, boolean useCache) throws
 
         checkCacheStatus(expectedHits, expectedMisses, "response_packet_get_children_cache_hits",
                 "response_packet_get_children_cache_misses");
+        checkCacheStatus(expectedHits, expectedMisses, "response_packet_exists_cache_hits",
+                "response_packet_exists_cache_misses");
+        checkCacheStatus(expectedHits, expectedMisses, "response_packet_get_children_without_stat_cache_hits",
+                "response_packet_get_children_without_stat_cache_misses");
+
+        ServerMetrics.getMetrics().resetAll();
+        expectedHits = 0;
+        expectedMisses = 0;
+
+        for (int i = 0; i < reads; ++i) {
+            assertEquals(ZooDefs.Ids.OPEN_ACL_UNSAFE, zk.getACL(path + "/a", readStat));
+            assertEquals(7, zk.getAllChildrenNumber(path + "/a"));
+        }
+        if (useCache) {
+            expectedMisses += 1;
+            expectedHits += reads - 1;
+        }
+        checkCacheStatus(expectedHits, expectedMisses, "response_packet_get_acl_cache_hits",
+                "response_packet_get_acl_cache_misses");
+        checkCacheStatus(expectedHits, expectedMisses, "response_packet_get_all_children_number_cache_hits",
+                "response_packet_get_all_children_number_cache_misses");
+
+        // Any write invalidates the cached subtree counts.
+        createPath(path + "/a/c/i", zk);
+        assertEquals(8, zk.getAllChildrenNumber(path + "/a"));
+        if (useCache) {
+            expectedMisses++;
+        }
+        checkCacheStatus(expectedHits, expectedMisses, "response_packet_get_all_children_number_cache_hits",
+                "response_packet_get_all_children_number_cache_misses");
     }
 
     private void createPath(String path, ZooKeeper zk) throws Exception {